@@ -0,0 +1,80 @@
+package org.senai.mecatronica.dripper.activities;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.senai.mecatronica.dripper.R;
+import org.senai.mecatronica.dripper.managers.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows the sync metrics of every controller (see MetricsRegistry) and exports them to a
+ * file in the app's external files directory.
+ * */
+
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final String EXPORT_FILE_PREFIX = "dripper_metrics_";
+
+    TextView reportText;
+    Button refreshButton;
+    Button exportButton;
+    private final Context context = this;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        reportText = (TextView) findViewById(R.id.txt_diagnostics_report);
+        refreshButton = (Button) findViewById(R.id.btn_diagnostics_refresh);
+        exportButton = (Button) findViewById(R.id.btn_diagnostics_export);
+
+        refreshButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showReport();
+            }
+        });
+
+        exportButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportReport();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showReport();
+    }
+
+    private void showReport(){
+        String report = MetricsRegistry.getInstance().report();
+        reportText.setText(report.isEmpty() ? getString(R.string.diagnostics_empty) : report);
+    }
+
+    private void exportReport(){
+        //external files need no permission from API 19, internal storage is the fallback
+        File directory = getExternalFilesDir(null);
+        if(directory == null){
+            directory = getFilesDir();
+        }
+        File file = new File(directory, EXPORT_FILE_PREFIX + System.currentTimeMillis() + ".txt");
+        try{
+            MetricsRegistry.getInstance().export(file);
+            Toast.makeText(context, getString(R.string.diagnostics_exported) + " " + file.getPath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e){
+            Toast.makeText(context, R.string.diagnostics_export_failed, Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -2,8 +2,10 @@ package org.senai.mecatronica.dripper.activities;
 
 import android.app.Dialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.View;
@@ -17,14 +19,17 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import org.senai.mecatronica.dripper.R;
+import org.senai.mecatronica.dripper.beans.EpochDay;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.MinuteOfDay;
 import org.senai.mecatronica.dripper.helpers.DateOperations;
+import org.senai.mecatronica.dripper.helpers.IrrigationTimeline;
+import org.senai.mecatronica.dripper.helpers.ScheduleConflicts;
+import org.senai.mecatronica.dripper.helpers.WeeklyTimetable;
+import org.senai.mecatronica.dripper.managers.DataManager;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 public class EditIrrigationActivity extends AppCompatActivity {
 
@@ -45,6 +50,8 @@ public class EditIrrigationActivity extends AppCompatActivity {
 
     private Boolean oneTime;
     private int id;
+    //false when adding a new irrigation
+    private boolean editing;
     private Boolean[] selectedWeekdays;
 
     @Override
@@ -92,6 +99,7 @@ public class EditIrrigationActivity extends AppCompatActivity {
     private void setupStartingParameters(Intent parameters){
         oneTime = parameters.getBooleanExtra(IrrigationFragment.getExtraOnetime(),false);
         id = parameters.getIntExtra(IrrigationFragment.getExtraId(), 0);
+        editing = parameters.hasExtra(IrrigationFragment.getExtraId());
         editDate.setText(parameters.getStringExtra(IrrigationFragment.getExtraDate()));
         editTime.setText(parameters.getStringExtra(IrrigationFragment.getExtraTime()));
 
@@ -133,9 +141,7 @@ public class EditIrrigationActivity extends AppCompatActivity {
                 //return to previous activity
                 String mode = chooseMode.getSelectedItem().toString();
                 if(checkIrrigationParameters(mode)){
-                    Intent resultsIntent = getResultParameters();
-                    setResult(RESULT_OK, resultsIntent);
-                    finish();
+                    checkConflictsAndSave();
                 }
             }
         });
@@ -205,6 +211,115 @@ public class EditIrrigationActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Saves the irrigation, asking first if it runs at the same time as others already
+     * scheduled
+     * */
+    private void checkConflictsAndSave(){
+        List<IrrigationData> irrigationDataList = DataManager.getInstance(context).getIrrigationDataList();
+        List<Integer> conflicts = ScheduleConflicts.findFor(irrigationDataList, getEditedIrrigation(),
+                editing ? id : -1, IrrigationTimeline.localSeconds(System.currentTimeMillis()));
+        if(conflicts.isEmpty()){
+            checkTimetableAndSave();
+            return;
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append("Este horário coincide com as irrigações das:");
+        for(int index : conflicts){
+            IrrigationData data = irrigationDataList.get(index);
+            message.append("\n");
+            message.append(data.getStartTime());
+            if(data.isOneTime()){
+                message.append(" de ");
+                message.append(data.getStartDate());
+            }
+        }
+        message.append("\nSalvar mesmo assim?");
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setMessage(message.toString())
+                .setTitle("Irrigações simultâneas");
+        builder.setPositiveButton("Salvar", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                checkTimetableAndSave();
+            }
+        });
+        builder.setNegativeButton("Cancelar", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                //back to editing
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Saves the irrigation, telling first if it is too far from the other one time
+     * irrigations to go with the next sync: the controller gets them 7 days at a time (see
+     * WeeklyTimetable)
+     * */
+    private void checkTimetableAndSave(){
+        IrrigationData edited = getEditedIrrigation();
+        List<IrrigationData> schedule = new ArrayList<>(DataManager.getInstance(context).getIrrigationDataList());
+        if(editing){
+            schedule.set(id, edited);
+        } else {
+            schedule.add(edited);
+        }
+        WeeklyTimetable timetable = WeeklyTimetable.compile(false, schedule,
+                IrrigationTimeline.localSeconds(System.currentTimeMillis()));
+        if(timetable.covers(edited)){
+            save();
+            return;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setMessage("O controlador recebe as irrigações programadas de 7 dias por vez, a partir da próxima. "
+                + "Esta só será enviada numa sincronização feita depois que as anteriores terminarem."
+                + "\nSalvar mesmo assim?")
+                .setTitle("Irrigação distante");
+        builder.setPositiveButton("Salvar", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                save();
+            }
+        });
+        builder.setNegativeButton("Cancelar", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                //back to editing
+            }
+        });
+        builder.create().show();
+    }
+
+    private void save(){
+        Intent resultsIntent = getResultParameters();
+        setResult(RESULT_OK, resultsIntent);
+        finish();
+    }
+
+    /**
+     * The irrigation as entered by the user, once checkIrrigationParameters() passed
+     * */
+    private IrrigationData getEditedIrrigation(){
+        IrrigationData data = new IrrigationData();
+        data.setOneTime(oneTime);
+        data.setStartTime(editTime.getText().toString());
+        data.setStartDate(editDate.getText().toString());
+        int[] durationParams = new int[3];
+        for(int i = 0; i < editDuration.size(); i++){
+            durationParams[i] = Integer.parseInt(editDuration.get(i).getText().toString());
+        }
+        data.setDuration(durationParams);
+        int weekdays = 0;
+        for(int i = 0; i < selectedWeekdays.length; i++){
+            if(selectedWeekdays[i]){
+                weekdays |= 1 << i;
+            }
+        }
+        data.setWeekdayMask(weekdays);
+        return data;
+    }
+
     /**
      * If the data is valid, takes the values inserted by the user and puts into intent
      * for sending back to the caller activity
@@ -246,34 +361,25 @@ public class EditIrrigationActivity extends AppCompatActivity {
         String time = editTime.getText().toString();
         String date = editDate.getText().toString();
 
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.getDefault());
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yy", Locale.getDefault());
-        SimpleDateFormat fullDateFormat = new SimpleDateFormat("dd/MM/yy h:mm a", Locale.getDefault());
-
-        try {
-            //check time
-            Date t = timeFormat.parse(time);
-            if (!time.equals(timeFormat.format(t))) {
-                Toast.makeText(context,"Formato de hora inválido", Toast.LENGTH_SHORT).show();
+        //check time
+        MinuteOfDay startTime = MinuteOfDay.parse(time);
+        if(startTime == null || !time.equals(startTime.format())){
+            Toast.makeText(context,"Formato de hora inválido", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        //check date if chosen mode is onetime
+        if(mode.equals(ONE_TIME)){
+            EpochDay startDate = EpochDay.parse(date);
+            //check if date format is valid
+            if(startDate == null || !date.equals(startDate.format())){
+                Toast.makeText(context,"Formato de data inválido", Toast.LENGTH_SHORT).show();
                 return false;
             }
-            //check date if chosen mode is onetime
-            if(mode.equals(ONE_TIME)){
-                Date d = dateFormat.parse(date);
-                //check if date format is valid
-                if(!date.equals(dateFormat.format(d)) && mode.equals(ONE_TIME)){
-                    Toast.makeText(context,"Formato de data inválido", Toast.LENGTH_SHORT).show();
-                    return false;
-                }
-                //check if date and time is before current time
-                Date fullDate = fullDateFormat.parse(date + " " + time);
-                if(DateOperations.isPast(fullDate)){
-                    Toast.makeText(context, "Escolha uma data no futuro", Toast.LENGTH_SHORT).show();
-                    return false;
-                }
+            //check if date and time is before current time
+            if(DateOperations.isPast(startDate, startTime)){
+                Toast.makeText(context, "Escolha uma data no futuro", Toast.LENGTH_SHORT).show();
+                return false;
             }
-        } catch (ParseException ex) {
-            ex.printStackTrace();
         }
 
         boolean durationOk = false;
@@ -15,10 +15,15 @@ import android.widget.TextView;
 
 import org.senai.mecatronica.dripper.R;
 import org.senai.mecatronica.dripper.adapters.SchedulesAdapter;
+import org.senai.mecatronica.dripper.beans.EpochDay;
 import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.MinuteOfDay;
 import org.senai.mecatronica.dripper.helpers.DateOperations;
+import org.senai.mecatronica.dripper.helpers.IrrigationTimeline;
 import org.senai.mecatronica.dripper.managers.DataManager;
 
+import java.util.List;
+
 import static android.app.Activity.RESULT_OK;
 
 /**
@@ -51,6 +56,9 @@ public class IrrigationFragment extends Fragment implements IrrigationEditor{
     private static final Integer ADD_CODE = 1;
     private static final Integer EDIT_CODE = 2;
 
+    //the next irrigation line is refreshed at this interval while visible
+    private static final long NEXT_IRRIGATION_REFRESH_MS = 30 * 1000;
+
     //temporary variables relative to final
 //    private Boolean isAuto;
 //    private List<IrrigationData> irrigationDataList;
@@ -61,9 +69,20 @@ public class IrrigationFragment extends Fragment implements IrrigationEditor{
     private Switch switchAutoMode;
     private FloatingActionButton btnAddIrrigation;
     private TextView txtLastIrrigation;
+    private TextView txtNextIrrigation;
     private View grayOutArea;
     private ListView irrigationListView;
 
+    //rebuilt when the schedule changes, advanced as time passes
+    private IrrigationTimeline timeline;
+    private final Runnable nextIrrigationRefresh = new Runnable() {
+        @Override
+        public void run() {
+            updateNextIrrigation();
+            txtNextIrrigation.postDelayed(this, NEXT_IRRIGATION_REFRESH_MS);
+        }
+    };
+
     public static Fragment newInstance() {
 
         //instantiate fragment and add parameters to final variables
@@ -124,6 +143,7 @@ public class IrrigationFragment extends Fragment implements IrrigationEditor{
         grayOutArea = view.findViewById(R.id.listview_schedules_grayout);
         irrigationListView = (ListView) view.findViewById(R.id.listview_schedules);
         txtLastIrrigation = (TextView) view.findViewById(R.id.txt_last_irrigation);
+        txtNextIrrigation = (TextView) view.findViewById(R.id.txt_next_irrigation);
 
         // set stuff to view elements (clickers, text, colors)
         //add irrigation button click listener
@@ -183,11 +203,74 @@ public class IrrigationFragment extends Fragment implements IrrigationEditor{
 //        super.onSaveInstanceState(outState);
 //    }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        //keep the next irrigation line current while the fragment is visible
+        nextIrrigationRefresh.run();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        txtNextIrrigation.removeCallbacks(nextIrrigationRefresh);
+    }
+
     private void updateIrrigationListView(){
         //set schedules to listview through custom adapter
-        SchedulesAdapter adapter = new SchedulesAdapter(this.getContext(),
-                DataManager.getInstance(getContext()).getIrrigationDataList(), this);
+        List<IrrigationData> irrigationDataList = DataManager.getInstance(getContext()).getIrrigationDataList();
+        SchedulesAdapter adapter = new SchedulesAdapter(this.getContext(), irrigationDataList, this);
         irrigationListView.setAdapter(adapter);
+
+        timeline = new IrrigationTimeline(irrigationDataList,
+                IrrigationTimeline.localSeconds(System.currentTimeMillis()));
+        updateNextIrrigation();
+    }
+
+    /**
+     * Show the irrigation running now, or else the next one. Hidden in auto mode, where
+     * the schedules are not used.
+     * */
+    private void updateNextIrrigation(){
+        if(timeline == null){
+            return;
+        }
+        if(DataManager.getInstance(getContext()).getAutoMode()){
+            txtNextIrrigation.setVisibility(View.GONE);
+            return;
+        }
+        txtNextIrrigation.setVisibility(View.VISIBLE);
+
+        long now = IrrigationTimeline.localSeconds(System.currentTimeMillis());
+        if(now > timeline.getNow()){
+            timeline.advanceTo(now);
+        }
+
+        StringBuilder nextIrrigationString = new StringBuilder();
+        IrrigationTimeline.Occurrence next = timeline.peek();
+        if(next == null){
+            nextIrrigationString.append(getString(R.string.next_irrigation_none));
+        } else if(next.isRunningAt(timeline.getNow())){
+            //the running irrigation that ends last
+            long end = next.getEnd();
+            for(IrrigationTimeline.Occurrence running : timeline.running()){
+                end = Math.max(end, running.getEnd());
+            }
+            nextIrrigationString.append(getString(R.string.irrigation_running_until));
+            nextIrrigationString.append(" ");
+            nextIrrigationString.append(MinuteOfDay.of(IrrigationTimeline.minuteOfDay(end)).format());
+        } else {
+            nextIrrigationString.append(getString(R.string.next_irrigation));
+            nextIrrigationString.append(" ");
+            nextIrrigationString.append(EpochDay.of(IrrigationTimeline.epochDay(next.getStart())).format());
+            nextIrrigationString.append(" ");
+            nextIrrigationString.append(MinuteOfDay.of(IrrigationTimeline.minuteOfDay(next.getStart())).format());
+            nextIrrigationString.append(" ");
+            nextIrrigationString.append(getString(R.string.next_irrigation_for));
+            nextIrrigationString.append(" ");
+            nextIrrigationString.append(IrrigationData.formatDuration(next.getDurationSeconds()));
+        }
+        txtNextIrrigation.setText(nextIrrigationString);
     }
 
     /**
@@ -20,10 +20,10 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.Toast;
 
-import org.json.JSONException;
 import org.senai.mecatronica.dripper.R;
 import org.senai.mecatronica.dripper.managers.BluetoothManager;
 import org.senai.mecatronica.dripper.managers.DataManager;
+import org.senai.mecatronica.dripper.services.ConnectionService;
 
 import java.io.IOException;
 
@@ -45,10 +45,8 @@ public class MainActivity extends AppCompatActivity {
         try{
             dataManager.updateIrrigationData();
             dataManager.updateSensorData();
-        } catch (JSONException e){
-            System.out.println("Error creating JSON Object");
         } catch (IOException e){
-            System.out.println("Could not read JSON File");
+            System.out.println("Could not read data files");
         }
 
         //initialize bluetooth manager
@@ -101,7 +99,8 @@ public class MainActivity extends AppCompatActivity {
                     Toast.makeText(this, "Dispositivo não pareado", Toast.LENGTH_SHORT).show();
                 } else{
 //                    new ConnectToBTServer().execute();
-                    btManager.startConnection();
+                    //the service keeps the connection open for the next sync
+                    ConnectionService.sync(this, dataManager.getMacAddress());
                 }
                 break;
 
@@ -133,7 +132,12 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        btManager.closeConnection();
+        if(isFinishing()){
+            //the user left the app, let a sync in progress finish but keep no connection after it
+            ConnectionService.release(this);
+        }
+        //make sure the last edits reach the disk before the process can be killed
+        dataManager.flushPendingWrites();
     }
 
     private void selectFragment(MenuItem item){
@@ -12,13 +12,15 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import org.senai.mecatronica.dripper.R;
+import org.senai.mecatronica.dripper.beans.EpochMillis;
+import org.senai.mecatronica.dripper.helpers.TimeFormats;
 import org.senai.mecatronica.dripper.managers.DataManager;
 
 /**
  * Created by Felipe on 26/10/2017.
  */
 
-public class SensorDataFragment extends Fragment {
+public class SensorDataFragment extends Fragment implements DataManager.SensorDataListener {
 
     //fragment final variables
 //    private static final String TEMPERATURE = "arg_temperature";
@@ -112,6 +114,25 @@ public class SensorDataFragment extends Fragment {
         updateSensorDataValues();
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        //refresh values when a sync stores new readings while the fragment is visible
+        DataManager.getInstance(getContext()).addSensorDataListener(this);
+        updateSensorDataValues();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        DataManager.getInstance(getContext()).removeSensorDataListener(this);
+    }
+
+    @Override
+    public void onSensorDataUpdated() {
+        updateSensorDataValues();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         //update state with temp variables
@@ -129,7 +150,9 @@ public class SensorDataFragment extends Fragment {
         Integer moisture = dataManager.getCurrentMoisture();
         String luminosity = dataManager.getCurrentLuminosity();
         String soilMoisture = dataManager.getCurrentSoilMoisture();
-        String lastSync = "Última atualização feita em: " + dataManager.getLastSync();
+        EpochMillis lastSyncTime = dataManager.getLastSync();
+        String lastSync = "Última atualização feita em: "
+                + (lastSyncTime == null ? "-" : TimeFormats.formatDateTime(lastSyncTime));
 
         //set text according to data
         temperatureData.setText(temperature == null ? "???" : (temperature.toString() + "°C"));
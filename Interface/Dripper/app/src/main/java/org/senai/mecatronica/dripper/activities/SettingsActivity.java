@@ -3,6 +3,7 @@ package org.senai.mecatronica.dripper.activities;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
@@ -15,8 +16,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import org.senai.mecatronica.dripper.R;
+import org.senai.mecatronica.dripper.beans.Controller;
 import org.senai.mecatronica.dripper.managers.DataManager;
+import org.senai.mecatronica.dripper.services.ConnectionService;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public class SettingsActivity extends AppCompatActivity {
@@ -24,6 +29,7 @@ public class SettingsActivity extends AppCompatActivity {
     TextView aboutItem;
     TextView macAddress;
     TextView clearDataItem;
+    TextView diagnosticsItem;
     RelativeLayout userManualItem;
     RelativeLayout macAddressItem;
     private final Context context = this;
@@ -45,8 +51,24 @@ public class SettingsActivity extends AppCompatActivity {
         aboutItem = (TextView) findViewById(R.id.lbl_settings_about);
         macAddress = (TextView) findViewById(R.id.txt_settings_mac_address);
         clearDataItem = (TextView) findViewById(R.id.lbl_settings_clear_data);
+        diagnosticsItem = (TextView) findViewById(R.id.lbl_settings_diagnostics);
 
-        macAddress.setText(DataManager.getInstance(context).getMacAddress());
+        macAddress.setText(getControllerList());
+    }
+
+    /**
+     * Address of the controller shown in the app first, then the other controllers of the
+     * farm
+     * */
+    private String getControllerList(){
+        DataManager dataManager = DataManager.getInstance(context);
+        StringBuilder list = new StringBuilder(dataManager.getMacAddress());
+        for(Controller controller : dataManager.getControllerRegistry().getControllers()){
+            if(!controller.getAddress().equals(dataManager.getMacAddress())){
+                list.append(", ").append(controller.getAddress());
+            }
+        }
+        return list.toString();
     }
 
     private void setupClickListeners() {
@@ -66,11 +88,28 @@ public class SettingsActivity extends AppCompatActivity {
                 confirmBtn.setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        //check if mac address is valid
-                        String mac = String.valueOf(macEdit.getText()).trim().toUpperCase();
-                        if(isMacAddress(mac)){
-                            macAddress.setText(mac);
-                            DataManager.getInstance(context).setMacAddress(mac);
+                        //check if every mac address is valid, a farm can list several controllers
+                        List<String> macs = new ArrayList<>();
+                        for(String mac : String.valueOf(macEdit.getText()).trim().toUpperCase().split("[,;\\s]+")){
+                            if(!mac.isEmpty() && !macs.contains(mac)){
+                                macs.add(mac);
+                            }
+                        }
+                        boolean valid = !macs.isEmpty();
+                        for(String mac : macs){
+                            valid &= isMacAddress(mac);
+                        }
+                        if(valid){
+                            DataManager dataManager = DataManager.getInstance(context);
+                            String before = getControllerList();
+                            dataManager.getControllerRegistry().setControllers(macs);
+                            //the first one is shown in the app
+                            dataManager.setMacAddress(macs.get(0));
+                            macAddress.setText(getControllerList());
+                            if(!before.equals(getControllerList())){
+                                //drop the connection and the syncs of the old controllers
+                                ConnectionService.disconnect(context);
+                            }
                         } else {
                             Toast.makeText(d.getContext(), "Endereço MAC inválido", Toast.LENGTH_LONG);
                         }
@@ -95,6 +134,13 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
+        diagnosticsItem.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startActivity(new Intent(context, DiagnosticsActivity.class));
+            }
+        });
+
         clearDataItem.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -106,6 +152,8 @@ public class SettingsActivity extends AppCompatActivity {
                 builder.setPositiveButton("Sim", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
                         // User clicked OK button
+                        //a sync running would store into the data being cleared
+                        ConnectionService.disconnect(context);
                         DataManager.getInstance(context).clearDataFiles();
                     }
                 });
@@ -80,7 +80,7 @@ public class SchedulesAdapter extends BaseAdapter {
         setupClickListeners();
 
         //set type of irrigation
-        if(data.getOneTime()){
+        if(data.isOneTime()){
             irrigationType.setText(context.getString(R.string.one_time_irrigation));
             weekdaysLayout.setVisibility(View.GONE);
             dateLayout.setVisibility(View.VISIBLE);
@@ -92,30 +92,15 @@ public class SchedulesAdapter extends BaseAdapter {
 
         //set time and duration texts
         startTime.setText(data.getStartTime());
-        StringBuilder durationString = new StringBuilder();
-        int[] d = data.getDuration();
-        if(d[0] > 0){
-            durationString.append(d[0]);
-            durationString.append("h ");
-        }
-        if(d[1] > 0){
-            durationString.append(d[1]);
-            durationString.append("m ");
-        }
-        if(d[2] > 0){
-            durationString.append(d[2]);
-            durationString.append("s");
-        }
-
-        duration.setText(durationString.toString());
+        duration.setText(IrrigationData.formatDuration(data.getDurationSeconds()));
 
         //put colors to selected weekdays
-        HashMap<String, Boolean> weekdays = data.getWeekDays();
-        for(String weekday : weekdays.keySet()){
-            if(weekdays.get(weekday)){
-                weekMap.get(weekday).setTextColor(ContextCompat.getColor(this.context, R.color.colorAccent));
+        for(int day = 0; day < IrrigationData.WEEKDAY_NAMES.length; day++){
+            TextView weekday = weekMap.get(IrrigationData.WEEKDAY_NAMES[day]);
+            if(data.isWeekday(day)){
+                weekday.setTextColor(ContextCompat.getColor(this.context, R.color.colorAccent));
             } else {
-                weekMap.get(weekday).setTextColor(ContextCompat.getColor(this.context, R.color.colorShadows));
+                weekday.setTextColor(ContextCompat.getColor(this.context, R.color.colorShadows));
             }
         }
 
@@ -0,0 +1,56 @@
+package org.senai.mecatronica.dripper.beans;
+
+/**
+ * A field controller the phone syncs with, and the state of its last sync.
+ */
+
+public class Controller {
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_SYNCING = 2;
+    public static final int STATE_FAILED = 3;
+
+    private final String address;
+    private String name;
+    private long lastSync;
+    private volatile int state;
+
+    public Controller(String address, String name, long lastSync){
+        this.address = address;
+        this.name = name;
+        this.lastSync = lastSync;
+        this.state = STATE_IDLE;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Time of the last complete sync, 0 if there was none
+     * */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    public void setLastSync(long lastSync) {
+        this.lastSync = lastSync;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,175 @@
+package org.senai.mecatronica.dripper.beans;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * A calendar date, held as the days since 1970-01-01 in the proleptic Gregorian
+ * calendar, so dates sort, compare and add as integers. Immutable.
+ *
+ * parse() and format() read and write the "dd/MM/yy" text the irrigation file and the
+ * edit screen use.
+ */
+
+public final class EpochDay implements Comparable<EpochDay>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    //1970-01-01 was a Thursday
+    private static final int EPOCH_WEEKDAY = 4;
+
+    private final int value;
+
+    private EpochDay(int value){
+        this.value = value;
+    }
+
+    public static EpochDay of(int epochDay){
+        return new EpochDay(epochDay);
+    }
+
+    /**
+     * @param month 1 for January to 12
+     * */
+    public static EpochDay of(int year, int month, int day){
+        return new EpochDay(daysFromCivil(year, month, day));
+    }
+
+    /**
+     * Date of "dd/MM/yy" or "dd/MM/yyyy" text, null if unreadable. Two digit years are in
+     * this century.
+     * */
+    public static EpochDay parse(String text){
+        if(text == null){
+            return null;
+        }
+        int first = text.indexOf('/');
+        int second = first < 0 ? -1 : text.indexOf('/', first + 1);
+        if(second < 0){
+            return null;
+        }
+        int day = parseDigits(text, 0, first);
+        int month = parseDigits(text, first + 1, second);
+        int year = parseDigits(text, second + 1, text.length());
+        if(day < 1 || day > 31 || month < 1 || month > 12 || year < 0){
+            return null;
+        }
+        return of(year < 100 ? 2000 + year : year, month, day);
+    }
+
+    /**
+     * Days since 1970-01-01
+     * */
+    public int getValue(){
+        return value;
+    }
+
+    public int getYear(){
+        return civilFromDays(value)[0];
+    }
+
+    /**
+     * 1 for January to 12
+     * */
+    public int getMonth(){
+        return civilFromDays(value)[1];
+    }
+
+    public int getDayOfMonth(){
+        return civilFromDays(value)[2];
+    }
+
+    /**
+     * 0 for Sunday to 6 for Saturday
+     * */
+    public int getWeekday(){
+        return weekdayOf(value);
+    }
+
+    public EpochDay plusDays(int days){
+        return new EpochDay(value + days);
+    }
+
+    /**
+     * As "dd/MM/yy"
+     * */
+    public String format(){
+        int[] date = civilFromDays(value);
+        return String.format(Locale.US, "%02d/%02d/%02d", date[2], date[1], date[0] % 100);
+    }
+
+    /**
+     * 0 for Sunday to 6 for Saturday, of a number of days since 1970-01-01
+     * */
+    public static int weekdayOf(int epochDay){
+        int weekday = (epochDay + EPOCH_WEEKDAY) % 7;
+        return weekday < 0 ? weekday + 7 : weekday;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar
+     * */
+    public static int daysFromCivil(int year, int month, int day){
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Year, month and day of a number of days since 1970-01-01
+     * */
+    public static int[] civilFromDays(int epochDay){
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new int[]{year, month, day};
+    }
+
+    /**
+     * Value of the decimal digits from start to end, -1 if there are none or any other
+     * character
+     * */
+    static int parseDigits(String text, int start, int end){
+        if(start >= end){
+            return -1;
+        }
+        int value = 0;
+        for(int i = start; i < end; i++){
+            char c = text.charAt(i);
+            if(c < '0' || c > '9'){
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    @Override
+    public int compareTo(EpochDay other){
+        return value < other.value ? -1 : (value == other.value ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof EpochDay && ((EpochDay) other).value == value;
+    }
+
+    @Override
+    public int hashCode(){
+        return value;
+    }
+
+    @Override
+    public String toString(){
+        return format();
+    }
+}
@@ -0,0 +1,85 @@
+package org.senai.mecatronica.dripper.beans;
+
+import java.io.Serializable;
+import java.util.TimeZone;
+
+/**
+ * An instant, held as the milliseconds since 1970-01-01 00:00 UTC, so instants sort and
+ * compare as integers. Turned into a local date and time of day only where shown, with
+ * the time zone of the phone by default. Immutable.
+ */
+
+public final class EpochMillis implements Comparable<EpochMillis>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private final long value;
+
+    private EpochMillis(long value){
+        this.value = value;
+    }
+
+    public static EpochMillis of(long millis){
+        return new EpochMillis(millis);
+    }
+
+    public static EpochMillis now(){
+        return new EpochMillis(System.currentTimeMillis());
+    }
+
+    public long getValue(){
+        return value;
+    }
+
+    /**
+     * Milliseconds since 1970-01-01 00:00 of the wall clock in a time zone
+     * */
+    public long getLocalMillis(TimeZone timeZone){
+        return value + timeZone.getOffset(value);
+    }
+
+    public EpochDay getEpochDay(TimeZone timeZone){
+        return EpochDay.of((int) floorDiv(getLocalMillis(timeZone), MILLIS_PER_DAY));
+    }
+
+    public EpochDay getEpochDay(){
+        return getEpochDay(TimeZone.getDefault());
+    }
+
+    public MinuteOfDay getMinuteOfDay(TimeZone timeZone){
+        long local = getLocalMillis(timeZone);
+        return MinuteOfDay.of((int) ((local - floorDiv(local, MILLIS_PER_DAY) * MILLIS_PER_DAY) / MILLIS_PER_MINUTE));
+    }
+
+    public MinuteOfDay getMinuteOfDay(){
+        return getMinuteOfDay(TimeZone.getDefault());
+    }
+
+    private static long floorDiv(long x, long y){
+        long q = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+
+    @Override
+    public int compareTo(EpochMillis other){
+        return value < other.value ? -1 : (value == other.value ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof EpochMillis && ((EpochMillis) other).value == value;
+    }
+
+    @Override
+    public int hashCode(){
+        return (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public String toString(){
+        return String.valueOf(value);
+    }
+}
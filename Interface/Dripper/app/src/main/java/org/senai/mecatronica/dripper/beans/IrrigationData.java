@@ -1,105 +1,253 @@
 package org.senai.mecatronica.dripper.beans;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 
 /**
  * Created by Felipe on 05/11/2017.
+ *
+ * One irrigation trigger, held in primitives only: the weekdays as a 7 bit mask with
+ * Sunday in bit 0, the start time in minutes of the day, the start date in days since
+ * 1970-01-01 and the duration in seconds. A trigger is a single small object, with no map,
+ * array or strings behind it, so large schedules stay small in memory and comparing or
+ * hashing triggers needs no text.
+ *
+ * The original accessors (time and date strings, the h/m/s duration array, the weekday
+ * map) are kept as views computed from these fields; MinuteOfDay and EpochDay give the
+ * start as values.
  */
 
 public class IrrigationData implements Serializable{
 
-    private Boolean oneTime;
-    private String startTime;
-    private String startDate;
-    private int[] duration;
-    private HashMap<String, Boolean> weekDays;
+    private static final long serialVersionUID = 2L;
+
+    public static final String[] WEEKDAY_NAMES = {"Sunday", "Monday", "Tuesday", "Wednesday",
+            "Thursday", "Friday", "Saturday"};
+    public static final int NO_START_TIME = -1;
+    public static final int NO_START_DATE = Integer.MIN_VALUE;
+
+    private boolean oneTime;
+    private int weekdays;
+    private int startMinute = NO_START_TIME;
+    private int startDay = NO_START_DATE;
+    private int durationSeconds;
 
     public IrrigationData(){
-        this.weekDays = new HashMap<>();
-        this.weekDays.put("Sunday", false);
-        this.weekDays.put("Monday", false);
-        this.weekDays.put("Tuesday", false);
-        this.weekDays.put("Wednesday", false);
-        this.weekDays.put("Thursday", false);
-        this.weekDays.put("Friday", false);
-        this.weekDays.put("Saturday", false);
-        this.duration = new int[]{0,0,0};
     }
 
-    public int[] getDuration() {
-        return duration;
+    public boolean isOneTime(){
+        return oneTime;
     }
 
-    public void setDuration(int[] duration) {
-        this.duration = duration;
+    public Boolean getOneTime() {
+        return oneTime;
     }
 
-    public void setDurationSecs(int secs){ this.duration[2] = secs;}
+    public void setOneTime(Boolean oneTime) {
+        this.oneTime = Boolean.TRUE.equals(oneTime);
+    }
 
-    public void setDurationMins(int mins){ this.duration[1] = mins;}
+    /**
+     * Weekdays the trigger runs on, Sunday in bit 0
+     * */
+    public int getWeekdayMask(){
+        return weekdays;
+    }
 
-    public void setDurationHours(int hours){ this.duration[0] = hours;}
+    public void setWeekdayMask(int weekdays){
+        this.weekdays = weekdays & 0x7F;
+    }
 
-    public Boolean getOneTime() {
-        return oneTime;
+    /**
+     * @param day 0 for Sunday to 6 for Saturday
+     * */
+    public boolean isWeekday(int day){
+        return (weekdays & (1 << day)) != 0;
     }
 
-    public void setOneTime(Boolean oneTime) {
-        this.oneTime = oneTime;
+    /**
+     * Minutes since midnight, NO_START_TIME if not set
+     * */
+    public int getStartMinute(){
+        return startMinute;
+    }
+
+    public void setStartMinute(int startMinute){
+        this.startMinute = startMinute;
+    }
+
+    /**
+     * Start time, null if not set
+     * */
+    public MinuteOfDay getStartTimeOfDay(){
+        return startMinute == NO_START_TIME ? null : MinuteOfDay.of(startMinute);
+    }
+
+    public void setStartTimeOfDay(MinuteOfDay startTime){
+        this.startMinute = startTime == null ? NO_START_TIME : startTime.getValue();
+    }
+
+    /**
+     * Days since 1970-01-01, NO_START_DATE if not set
+     * */
+    public int getStartDay(){
+        return startDay;
+    }
+
+    public void setStartDay(int startDay){
+        this.startDay = startDay;
+    }
+
+    /**
+     * Start date, null if not set
+     * */
+    public EpochDay getStartEpochDay(){
+        return startDay == NO_START_DATE ? null : EpochDay.of(startDay);
     }
 
+    public void setStartEpochDay(EpochDay startDate){
+        this.startDay = startDate == null ? NO_START_DATE : startDate.getValue();
+    }
+
+    public boolean hasStartDate(){
+        return startDay != NO_START_DATE;
+    }
+
+    public int getDurationSeconds(){
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds){
+        this.durationSeconds = durationSeconds;
+    }
+
+    /**
+     * Duration as hours, minutes and seconds. A copy, set changes with setDuration().
+     * */
+    public int[] getDuration() {
+        return new int[]{durationSeconds / 3600, (durationSeconds % 3600) / 60, durationSeconds % 60};
+    }
+
+    public void setDuration(int[] duration) {
+        this.durationSeconds = duration[0] * 3600 + duration[1] * 60 + duration[2];
+    }
+
+    public void setDurationSecs(int secs){
+        int[] duration = getDuration();
+        duration[2] = secs;
+        setDuration(duration);
+    }
+
+    public void setDurationMins(int mins){
+        int[] duration = getDuration();
+        duration[1] = mins;
+        setDuration(duration);
+    }
+
+    public void setDurationHours(int hours){
+        int[] duration = getDuration();
+        duration[0] = hours;
+        setDuration(duration);
+    }
+
+    /**
+     * Start time as "h:mm AM", null if not set
+     * */
     public String getStartTime() {
-        return startTime;
+        return startMinute == NO_START_TIME ? null : MinuteOfDay.of(startMinute).format();
     }
 
+    /**
+     * Set the start time from "h:mm AM" text, or "H:mm". Unreadable text clears it.
+     * */
     public void setStartTime(String startTime) {
-        this.startTime = startTime;
+        setStartTimeOfDay(MinuteOfDay.parse(startTime));
     }
 
+    /**
+     * Weekdays by English day name. A new map on every call, prefer isWeekday().
+     * */
     public HashMap<String, Boolean> getWeekDays() {
-        return weekDays;
+        HashMap<String, Boolean> map = new HashMap<>(WEEKDAY_NAMES.length * 2);
+        for(int day = 0; day < WEEKDAY_NAMES.length; day++){
+            map.put(WEEKDAY_NAMES[day], isWeekday(day));
+        }
+        return map;
     }
 
     public void setWeekDay(String key, Boolean value) {
-        this.weekDays.put(key, value);
+        int day = weekdayOf(key);
+        if(day < 0){
+            return;
+        }
+        if(Boolean.TRUE.equals(value)){
+            weekdays |= 1 << day;
+        } else {
+            weekdays &= ~(1 << day);
+        }
     }
 
     public void setWeekDays(boolean[] weekdays){
-
-        this.weekDays.put("Sunday", weekdays[0]);
-        this.weekDays.put("Monday", weekdays[1]);
-        this.weekDays.put("Tuesday", weekdays[2]);
-        this.weekDays.put("Wednesday", weekdays[3]);
-        this.weekDays.put("Thursday", weekdays[4]);
-        this.weekDays.put("Friday", weekdays[5]);
-        this.weekDays.put("Saturday", weekdays[6]);
+        int mask = 0;
+        for(int day = 0; day < WEEKDAY_NAMES.length; day++){
+            if(weekdays[day]){
+                mask |= 1 << day;
+            }
+        }
+        this.weekdays = mask;
     }
 
     public boolean[] getWeekAsBoolArray(){
-
-        boolean weekBoolArray[] = new boolean[7];
-        weekBoolArray[0] = this.weekDays.get("Sunday");
-        weekBoolArray[1] = this.weekDays.get("Monday");
-        weekBoolArray[2] = this.weekDays.get("Tuesday");
-        weekBoolArray[3] = this.weekDays.get("Wednesday");
-        weekBoolArray[4] = this.weekDays.get("Thursday");
-        weekBoolArray[5] = this.weekDays.get("Friday");
-        weekBoolArray[6] = this.weekDays.get("Saturday");
-
+        boolean weekBoolArray[] = new boolean[WEEKDAY_NAMES.length];
+        for(int day = 0; day < WEEKDAY_NAMES.length; day++){
+            weekBoolArray[day] = isWeekday(day);
+        }
         return weekBoolArray;
     }
 
+    /**
+     * Start date as "dd/MM/yy", null if not set
+     * */
     public String getStartDate() {
-        return startDate;
+        return startDay == NO_START_DATE ? null : EpochDay.of(startDay).format();
     }
 
+    /**
+     * Set the start date from "dd/MM/yy" or "dd/MM/yyyy" text. Unreadable text clears it.
+     * */
     public void setStartDate(String startDate) {
-        this.startDate = startDate;
+        setStartEpochDay(EpochDay.parse(startDate));
     }
 
+    /**
+     * Index of an English day name, -1 if it is not one
+     * */
+    public static int weekdayOf(String name){
+        for(int day = 0; day < WEEKDAY_NAMES.length; day++){
+            if(WEEKDAY_NAMES[day].equals(name)){
+                return day;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Duration as "1h 2m 3s", leaving out the parts that are zero
+     * */
+    public static String formatDuration(int seconds){
+        StringBuilder durationString = new StringBuilder();
+        if(seconds >= 3600){
+            durationString.append(seconds / 3600);
+            durationString.append("h ");
+        }
+        if(seconds % 3600 >= 60){
+            durationString.append((seconds % 3600) / 60);
+            durationString.append("m ");
+        }
+        if(seconds % 60 > 0){
+            durationString.append(seconds % 60);
+            durationString.append("s");
+        }
+        return durationString.toString().trim();
+    }
 }
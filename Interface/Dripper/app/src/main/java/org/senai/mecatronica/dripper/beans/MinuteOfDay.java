@@ -0,0 +1,131 @@
+package org.senai.mecatronica.dripper.beans;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * A time of day to the minute, held as the minutes since midnight, so times sort and
+ * compare as integers. Immutable; of() returns shared instances.
+ *
+ * parse() and format() read and write the "h:mm AM" text the irrigation file and the
+ * edit screen use, whatever the phone's locale.
+ */
+
+public final class MinuteOfDay implements Comparable<MinuteOfDay>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static final MinuteOfDay[] CACHE = new MinuteOfDay[MINUTES_PER_DAY];
+
+    static {
+        for(int minute = 0; minute < MINUTES_PER_DAY; minute++){
+            CACHE[minute] = new MinuteOfDay(minute);
+        }
+    }
+
+    private final int value;
+
+    private MinuteOfDay(int value){
+        this.value = value;
+    }
+
+    /**
+     * @param minutes minutes since midnight, 0 to 1439
+     * */
+    public static MinuteOfDay of(int minutes){
+        if(minutes < 0 || minutes >= MINUTES_PER_DAY){
+            throw new IllegalArgumentException("Minute of day out of range: " + minutes);
+        }
+        return CACHE[minutes];
+    }
+
+    public static MinuteOfDay of(int hour, int minute){
+        if(minute < 0 || minute >= 60){
+            throw new IllegalArgumentException("Minute out of range: " + minute);
+        }
+        return of(hour * 60 + minute);
+    }
+
+    /**
+     * Time of "h:mm AM" or "H:mm" text, null if unreadable
+     * */
+    public static MinuteOfDay parse(String text){
+        if(text == null){
+            return null;
+        }
+        int colon = text.indexOf(':');
+        if(colon <= 0 || colon + 3 > text.length()){
+            return null;
+        }
+        int hour = EpochDay.parseDigits(text, 0, colon);
+        int minute = EpochDay.parseDigits(text, colon + 1, colon + 3);
+        if(hour < 0 || minute < 0 || minute >= 60){
+            return null;
+        }
+        //the marker may be localized, only its first letter is looked at
+        String marker = text.substring(colon + 3).trim().toLowerCase(Locale.US);
+        if(marker.isEmpty()){
+            return hour < 24 ? of(hour, minute) : null;
+        }
+        if(hour < 1 || hour > 12){
+            return null;
+        }
+        hour %= 12;
+        if(marker.charAt(0) == 'p'){
+            hour += 12;
+        } else if(marker.charAt(0) != 'a'){
+            return null;
+        }
+        return of(hour, minute);
+    }
+
+    /**
+     * Minutes since midnight
+     * */
+    public int getValue(){
+        return value;
+    }
+
+    public int getHour(){
+        return value / 60;
+    }
+
+    public int getMinute(){
+        return value % 60;
+    }
+
+    /**
+     * As "h:mm AM"
+     * */
+    public String format(){
+        int hour = getHour();
+        return String.format(Locale.US, "%d:%02d %s", hour % 12 == 0 ? 12 : hour % 12, getMinute(),
+                hour >= 12 ? "PM" : "AM");
+    }
+
+    @Override
+    public int compareTo(MinuteOfDay other){
+        return value - other.value;
+    }
+
+    @Override
+    public boolean equals(Object other){
+        return other instanceof MinuteOfDay && ((MinuteOfDay) other).value == value;
+    }
+
+    @Override
+    public int hashCode(){
+        return value;
+    }
+
+    @Override
+    public String toString(){
+        return format();
+    }
+
+    private Object readResolve(){
+        return of(value);
+    }
+}
@@ -0,0 +1,76 @@
+package org.senai.mecatronica.dripper.beans;
+
+import java.util.Arrays;
+
+/**
+ * One timestamped set of sensor values received from the field controller.
+ *
+ * Values are kept in a primitive column per sensor id (see SensorRegistry): numbers as
+ * the bits of a double, labels as their interned code. Sensors that were not present in
+ * the log have no value.
+ */
+
+public class SensorReading {
+
+    //a NaN that Double.doubleToLongBits never returns, so no number or label encodes to it
+    public static final long NO_VALUE = 0x7FF0000000000001L;
+
+    private long timestamp;
+    private long[] values;
+
+    public SensorReading(long timestamp){
+        this.timestamp = timestamp;
+        this.values = new long[0];
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Number of columns, one past the highest sensor id set
+     * */
+    public int getColumnCount(){
+        return values.length;
+    }
+
+    public boolean hasValue(int sensorId){
+        return sensorId < values.length && values[sensorId] != NO_VALUE;
+    }
+
+    public double getNumber(int sensorId){
+        return Double.longBitsToDouble(values[sensorId]);
+    }
+
+    public void setNumber(int sensorId, double value){
+        setRaw(sensorId, Double.doubleToLongBits(value));
+    }
+
+    public int getLabelCode(int sensorId){
+        return (int) values[sensorId];
+    }
+
+    public void setLabelCode(int sensorId, int code){
+        setRaw(sensorId, code);
+    }
+
+    /**
+     * Raw column value, NO_VALUE if the sensor is missing
+     * */
+    public long getRaw(int sensorId){
+        return sensorId < values.length ? values[sensorId] : NO_VALUE;
+    }
+
+    public void setRaw(int sensorId, long value){
+        if(sensorId >= values.length){
+            int length = values.length;
+            values = Arrays.copyOf(values, sensorId + 1);
+            Arrays.fill(values, length, values.length, NO_VALUE);
+        }
+        values[sensorId] = value;
+    }
+}
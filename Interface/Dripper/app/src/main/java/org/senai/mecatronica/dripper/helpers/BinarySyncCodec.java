@@ -0,0 +1,509 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes and decodes the messages of the binary sync (see WireProtocol).
+ *
+ * Schedule message: auto byte, trigger count, then per trigger a flags byte (bit 0 set for
+ * one time irrigations), the start time in minutes of the day, the start date in days
+ * since 1970-01-01 plus one (0 when there is none), the duration in seconds and the
+ * weekdays as a bit mask with Sunday in bit 0.
+ *
+ * Since version 4 the controller sends a schedule state first and the phone answers with
+ * a schedule diff instead of the schedule (see encodeScheduleDiff). Since version 6 it
+ * sends a timetable state and the phone answers with the schedule compiled into a weekly
+ * timetable (see encodeTimetable).
+ *
+ * Sync request message: the time in seconds of the newest log the phone stored from this
+ * controller, 0 if it has none. The controller sends only logs newer than that.
+ *
+ * Sensor message: wire id, kind and name and unit of a sensor. Label message: wire id and
+ * text of a label. Both come before the logs that use them, so the names and labels go
+ * over the link once per sync instead of once per value.
+ *
+ * Logs message: log count, then per log the time in seconds since the previous log of the
+ * message (since 1970-01-01 for the first), the number of values and the values: the
+ * sensor's wire id followed by the number in hundredths or the label's wire id.
+ *
+ * A decoder instance keeps the ids declared during one sync, so a new one is needed for
+ * each connection.
+ * */
+
+public class BinarySyncCodec {
+
+    //wire ids index plain arrays, larger ones mean a corrupt message
+    private static final int MAX_WIRE_ID = 0xFFFF;
+
+    //schedule diff operations
+    private static final int OP_ADD = 0;
+    private static final int OP_REMOVE = 1;
+    private static final int OP_REPLACE = 2;
+
+    //timetable flags and bitmap forms
+    private static final int TIMETABLE_AUTO = 1;
+    private static final int TIMETABLE_CURRENT = 2;
+    private static final int FORM_RUNS = 0;
+    private static final int FORM_BITMAP = 1;
+
+    private final SensorRegistry registry;
+    //registry ids and codes by wire id, -1 if not declared
+    private int[] sensorIds;
+    private int[] labelCodes;
+
+    public BinarySyncCodec(SensorRegistry registry){
+        this.registry = registry;
+        this.sensorIds = new int[0];
+        this.labelCodes = new int[0];
+    }
+
+    public static byte[] encodeSchedule(boolean auto, List<IrrigationData> triggers){
+        WireProtocol.Writer writer = new WireProtocol.Writer(WireProtocol.MESSAGE_SCHEDULE);
+        writer.writeByte(auto ? 1 : 0);
+        writer.writeVarint(triggers.size());
+        for(IrrigationData data : triggers){
+            writeTrigger(writer, data);
+        }
+        return writer.toMessage();
+    }
+
+    /**
+     * Triggers of a schedule message, with the auto flag set to auto[0]
+     * */
+    public static List<IrrigationData> decodeSchedule(byte[] message, boolean[] auto) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_SCHEDULE){
+            throw new ParseException("Not a schedule message", 0);
+        }
+        auto[0] = reader.readByte() != 0;
+        int count = reader.readInt();
+        List<IrrigationData> triggers = new ArrayList<>(Math.min(count, 256));
+        for(int i = 0; i < count; i++){
+            triggers.add(readTrigger(reader));
+        }
+        return triggers;
+    }
+
+    /**
+     * Hash of each trigger's encoding, the same on the phone and on the controller
+     * */
+    public static int[] triggerHashes(List<IrrigationData> triggers){
+        int[] hashes = new int[triggers.size()];
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < hashes.length; i++){
+            WireProtocol.Writer writer = new WireProtocol.Writer();
+            writeTrigger(writer, triggers.get(i));
+            byte[] bytes = writer.toMessage();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            hashes[i] = (int) crc.getValue();
+        }
+        return hashes;
+    }
+
+    /**
+     * Schedule state message, sent by the controller: hash of its schedule, auto flag,
+     * trigger count and the hash of each trigger.
+     * */
+    public static byte[] encodeScheduleState(ScheduleDigest digest){
+        WireProtocol.Writer writer = new WireProtocol.Writer(WireProtocol.MESSAGE_SCHEDULE_STATE);
+        writer.writeVarint(digest.getHash() & 0xFFFFFFFFL);
+        writer.writeByte(digest.isAuto() ? 1 : 0);
+        writer.writeVarint(digest.getTriggerCount());
+        for(int i = 0; i < digest.getTriggerCount(); i++){
+            writer.writeVarint(digest.getTriggerHash(i) & 0xFFFFFFFFL);
+        }
+        return writer.toMessage();
+    }
+
+    public static ScheduleDigest decodeScheduleState(byte[] message) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_SCHEDULE_STATE){
+            throw new ParseException("Not a schedule state message", 0);
+        }
+        int hash = (int) reader.readVarint();
+        boolean auto = reader.readByte() != 0;
+        int count = reader.readInt();
+        if(count > message.length){
+            //every hash takes at least one byte
+            throw new ParseException("Trigger count out of range: " + count, 0);
+        }
+        int[] hashes = new int[count];
+        for(int i = 0; i < count; i++){
+            hashes[i] = (int) reader.readVarint();
+        }
+        ScheduleDigest digest = new ScheduleDigest(auto, hashes);
+        if(digest.getHash() != hash){
+            throw new ParseException("Schedule hash does not match its triggers", 0);
+        }
+        return digest;
+    }
+
+    /**
+     * Schedule diff message, the phone's answer to a schedule state: the hash the
+     * schedule will have, the auto flag, the operation count and the operations that turn
+     * the controller's triggers into the phone's. An operation is a type byte and a trigger
+     * index, followed by the trigger for additions and replacements, and applies to the
+     * list left by the operations before it.
+     *
+     * Only the part between the longest common head and tail of both lists is sent, so a
+     * single trigger added, removed or edited costs one operation and an unchanged
+     * schedule none.
+     * */
+    public static byte[] encodeScheduleDiff(ScheduleDigest local, List<IrrigationData> triggers, ScheduleDigest remote){
+        WireProtocol.Writer writer = new WireProtocol.Writer(WireProtocol.MESSAGE_SCHEDULE_DIFF);
+        writer.writeVarint(local.getHash() & 0xFFFFFFFFL);
+        writer.writeByte(local.isAuto() ? 1 : 0);
+
+        int localCount = local.getTriggerCount();
+        int remoteCount = remote.getTriggerCount();
+        int head = 0;
+        while(head < localCount && head < remoteCount && local.getTriggerHash(head) == remote.getTriggerHash(head)){
+            head++;
+        }
+        int tail = 0;
+        while(tail < localCount - head && tail < remoteCount - head
+                && local.getTriggerHash(localCount - 1 - tail) == remote.getTriggerHash(remoteCount - 1 - tail)){
+            tail++;
+        }
+        int localChanged = localCount - head - tail;
+        int remoteChanged = remoteCount - head - tail;
+        int replaced = Math.min(localChanged, remoteChanged);
+        writer.writeVarint(replaced + Math.abs(localChanged - remoteChanged));
+
+        for(int i = head; i < head + replaced; i++){
+            writer.writeByte(OP_REPLACE).writeVarint(i);
+            writeTrigger(writer, triggers.get(i));
+        }
+        for(int i = head + replaced; i < head + localChanged; i++){
+            writer.writeByte(OP_ADD).writeVarint(i);
+            writeTrigger(writer, triggers.get(i));
+        }
+        for(int i = replaced; i < remoteChanged; i++){
+            //every removal shifts the next trigger into the same index
+            writer.writeByte(OP_REMOVE).writeVarint(head + replaced);
+        }
+        return writer.toMessage();
+    }
+
+    /**
+     * Apply a schedule diff to the triggers a controller holds, setting the auto flag to
+     * auto[0]. The caller should compare the hash returned with the hash of the result
+     * and ask for the whole schedule again if they differ.
+     *
+     * @return the hash the phone expects the schedule to have
+     * */
+    public static int applyScheduleDiff(byte[] message, List<IrrigationData> triggers, boolean[] auto) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_SCHEDULE_DIFF){
+            throw new ParseException("Not a schedule diff message", 0);
+        }
+        int hash = (int) reader.readVarint();
+        auto[0] = reader.readByte() != 0;
+        int count = reader.readInt();
+        for(int i = 0; i < count; i++){
+            int op = reader.readByte();
+            int index = reader.readInt();
+            int limit = op == OP_ADD ? triggers.size() : triggers.size() - 1;
+            if(index > limit){
+                throw new ParseException("Trigger index out of range: " + index, 0);
+            }
+            switch (op){
+                case OP_ADD:
+                    triggers.add(index, readTrigger(reader));
+                    break;
+                case OP_REPLACE:
+                    triggers.set(index, readTrigger(reader));
+                    break;
+                case OP_REMOVE:
+                    triggers.remove(index);
+                    break;
+                default:
+                    throw new ParseException("Unknown schedule operation " + op, 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Trigger fields, see the class comment
+     * */
+    private static void writeTrigger(WireProtocol.Writer writer, IrrigationData data){
+        writer.writeByte(data.isOneTime() ? 1 : 0);
+        //no valid start time, start at midnight as the controller would
+        writer.writeVarint(Math.max(data.getStartMinute(), 0));
+        //recurring triggers may have no start date
+        writer.writeVarint(data.hasStartDate() ? data.getStartDay() + 1L : 0);
+        writer.writeVarint(data.getDurationSeconds());
+        writer.writeByte(data.getWeekdayMask());
+    }
+
+    private static IrrigationData readTrigger(WireProtocol.Reader reader) throws ParseException{
+        IrrigationData data = new IrrigationData();
+        data.setOneTime((reader.readByte() & 1) != 0);
+        data.setStartMinute((int) reader.readVarint());
+        long startDay = reader.readVarint();
+        data.setStartDay(startDay == 0 ? IrrigationData.NO_START_DATE : (int) (startDay - 1));
+        data.setDurationSeconds(reader.readInt());
+        data.setWeekdayMask(reader.readByte());
+        return data;
+    }
+
+    /**
+     * Timetable state message, sent by the controller from version 6: the checksum of the
+     * timetable it holds, 0 if it has none
+     * */
+    public static byte[] encodeTimetableState(int checksum){
+        return new WireProtocol.Writer(WireProtocol.MESSAGE_TIMETABLE_STATE)
+                .writeVarint(checksum & 0xFFFFFFFFL).toMessage();
+    }
+
+    public static int decodeTimetableState(byte[] message) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_TIMETABLE_STATE){
+            throw new ParseException("Not a timetable state message", 0);
+        }
+        return (int) reader.readVarint();
+    }
+
+    /**
+     * Timetable message, the phone's answer to a timetable state: a flags byte (bit 0 set
+     * in auto mode, bit 1 set if the controller's timetable is current and nothing else
+     * follows) and the checksum, then the anchor in minutes and the weekly and one time
+     * bitmaps. Each bitmap is a form byte followed by either the runs (FORM_RUNS: run
+     * count and lengths) or the dense bitmap (FORM_BITMAP), whichever is shorter, so a
+     * bitmap never takes more than its 1260 bytes.
+     * */
+    public static byte[] encodeTimetable(WeeklyTimetable timetable, int remoteChecksum){
+        WireProtocol.Writer writer = new WireProtocol.Writer(WireProtocol.MESSAGE_TIMETABLE);
+        boolean current = timetable.getChecksum() == remoteChecksum;
+        writer.writeByte((timetable.isAuto() ? TIMETABLE_AUTO : 0) | (current ? TIMETABLE_CURRENT : 0));
+        writer.writeVarint(timetable.getChecksum() & 0xFFFFFFFFL);
+        if(current){
+            return writer.toMessage();
+        }
+        writer.writeSignedVarint(timetable.getAnchor());
+        writeBitmap(writer, timetable.getWeeklyRuns(), timetable.getWeeklyBytes());
+        writeBitmap(writer, timetable.getOnceRuns(), timetable.getOnceBytes());
+        return writer.toMessage();
+    }
+
+    /**
+     * Timetable of a timetable message, or held if the message says it is current
+     * */
+    public static WeeklyTimetable decodeTimetable(byte[] message, WeeklyTimetable held) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_TIMETABLE){
+            throw new ParseException("Not a timetable message", 0);
+        }
+        int flags = reader.readByte();
+        int checksum = (int) reader.readVarint();
+        if((flags & TIMETABLE_CURRENT) != 0){
+            if(held == null || held.getChecksum() != checksum){
+                throw new ParseException("Timetable held is not current", 0);
+            }
+            return held;
+        }
+        long anchor = reader.readSignedVarint();
+        long[] weekly = readBitmap(reader);
+        long[] once = readBitmap(reader);
+        WeeklyTimetable timetable = new WeeklyTimetable((flags & TIMETABLE_AUTO) != 0, anchor, weekly, once);
+        if(timetable.getChecksum() != checksum){
+            throw new ParseException("Timetable checksum mismatch", 0);
+        }
+        return timetable;
+    }
+
+    private static void writeBitmap(WireProtocol.Writer writer, int[] runs, byte[] bitmap){
+        WireProtocol.Writer runsWriter = new WireProtocol.Writer();
+        runsWriter.writeVarint(runs.length);
+        for(int run : runs){
+            runsWriter.writeVarint(run);
+        }
+        byte[] encodedRuns = runsWriter.toMessage();
+        if(encodedRuns.length < bitmap.length){
+            writer.writeByte(FORM_RUNS).writeBytes(encodedRuns);
+        } else {
+            writer.writeByte(FORM_BITMAP).writeBytes(bitmap);
+        }
+    }
+
+    private static long[] readBitmap(WireProtocol.Reader reader) throws ParseException{
+        int form = reader.readByte();
+        if(form == FORM_BITMAP){
+            return WeeklyTimetable.fromBytes(reader.readBytes(WeeklyTimetable.bitmapBytes()));
+        }
+        if(form != FORM_RUNS){
+            throw new ParseException("Unknown bitmap form " + form, 0);
+        }
+        int count = reader.readInt();
+        if(count > WeeklyTimetable.MINUTES_PER_WEEK + 1){
+            throw new ParseException("Run count out of range: " + count, 0);
+        }
+        int[] runs = new int[count];
+        for(int i = 0; i < count; i++){
+            runs[i] = reader.readInt();
+        }
+        long[] bitmap = WeeklyTimetable.fromRuns(runs);
+        if(bitmap == null){
+            throw new ParseException("Runs do not cover the week", 0);
+        }
+        return bitmap;
+    }
+
+    public static byte[] encodeSyncRequest(long cursor){
+        return new WireProtocol.Writer(WireProtocol.MESSAGE_SYNC_REQUEST)
+                .writeVarint(Math.max(cursor, 0) / 1000).toMessage();
+    }
+
+    /**
+     * Time in milliseconds of the newest log the phone has, 0 for a full sync
+     * */
+    public static long decodeSyncRequest(byte[] message) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        if(reader.readByte() != WireProtocol.MESSAGE_SYNC_REQUEST){
+            throw new ParseException("Not a sync request message", 0);
+        }
+        return reader.readVarint() * 1000;
+    }
+
+    public static byte[] encodeSensor(int wireId, int kind, String name, String unit){
+        return new WireProtocol.Writer(WireProtocol.MESSAGE_SENSOR)
+                .writeVarint(wireId).writeByte(kind).writeString(name).writeString(unit).toMessage();
+    }
+
+    public static byte[] encodeLabel(int wireId, String label){
+        return new WireProtocol.Writer(WireProtocol.MESSAGE_LABEL)
+                .writeVarint(wireId).writeString(label).toMessage();
+    }
+
+    public static byte[] encodeEnd(){
+        return new WireProtocol.Writer(WireProtocol.MESSAGE_END).toMessage();
+    }
+
+    /**
+     * Logs message for readings whose columns are wire ids; label columns hold label wire
+     * ids. kinds[wireId] tells how each column is sent. A message must fit in one link
+     * frame, so larger histories are sent in batches of a few thousand logs.
+     * */
+    public static byte[] encodeLogs(List<SensorReading> readings, int[] kinds){
+        WireProtocol.Writer writer = new WireProtocol.Writer(WireProtocol.MESSAGE_LOGS);
+        writer.writeVarint(readings.size());
+        long previousSeconds = 0;
+        for(SensorReading reading : readings){
+            long seconds = reading.getTimestamp() / 1000;
+            writer.writeSignedVarint(seconds - previousSeconds);
+            previousSeconds = seconds;
+
+            int valueCount = 0;
+            for(int column = 0; column < reading.getColumnCount(); column++){
+                if(reading.hasValue(column)){
+                    valueCount++;
+                }
+            }
+            writer.writeVarint(valueCount);
+            for(int column = 0; column < reading.getColumnCount(); column++){
+                if(!reading.hasValue(column)){
+                    continue;
+                }
+                writer.writeVarint(column);
+                if(kinds[column] == SensorRegistry.KIND_LABEL){
+                    writer.writeVarint(reading.getLabelCode(column));
+                } else {
+                    writer.writeSignedVarint(Math.round(reading.getNumber(column) * WireProtocol.NUMBER_SCALE));
+                }
+            }
+        }
+        return writer.toMessage();
+    }
+
+    /**
+     * Decode one message received from the controller. Sensor and label messages are
+     * remembered for the rest of the sync.
+     *
+     * @return the readings of a logs message, an empty list for other messages
+     * */
+    public List<SensorReading> decode(byte[] message) throws ParseException{
+        WireProtocol.Reader reader = new WireProtocol.Reader(message);
+        int type = reader.readByte();
+        switch (type){
+            case WireProtocol.MESSAGE_SENSOR:{
+                int wireId = readWireId(reader);
+                int kind = reader.readByte();
+                String name = reader.readString();
+                String unit = reader.readString();
+                sensorIds = put(sensorIds, wireId, registry.register(name, unit, kind));
+                return new ArrayList<>(0);
+            }
+            case WireProtocol.MESSAGE_LABEL:{
+                int wireId = readWireId(reader);
+                String label = reader.readString();
+                labelCodes = put(labelCodes, wireId, registry.labelCode(label, 0, label.length()));
+                return new ArrayList<>(0);
+            }
+            case WireProtocol.MESSAGE_LOGS:
+                return decodeLogs(reader);
+            case WireProtocol.MESSAGE_END:
+                return new ArrayList<>(0);
+            default:
+                throw new ParseException("Unknown message type " + type, 0);
+        }
+    }
+
+    public static boolean isEnd(byte[] message){
+        return message.length > 0 && message[0] == WireProtocol.MESSAGE_END;
+    }
+
+    private List<SensorReading> decodeLogs(WireProtocol.Reader reader) throws ParseException{
+        int count = reader.readInt();
+        List<SensorReading> readings = new ArrayList<>(Math.min(count, 4096));
+        long seconds = 0;
+        for(int i = 0; i < count; i++){
+            seconds += reader.readSignedVarint();
+            SensorReading reading = new SensorReading(seconds * 1000);
+            int valueCount = reader.readInt();
+            for(int v = 0; v < valueCount; v++){
+                int sensorId = lookup(sensorIds, reader.readInt(), "sensor");
+                if(registry.getKind(sensorId) == SensorRegistry.KIND_LABEL){
+                    reading.setLabelCode(sensorId, lookup(labelCodes, reader.readInt(), "label"));
+                } else {
+                    reading.setNumber(sensorId, reader.readSignedVarint() / WireProtocol.NUMBER_SCALE);
+                }
+            }
+            readings.add(reading);
+        }
+        return readings;
+    }
+
+    private static int readWireId(WireProtocol.Reader reader) throws ParseException{
+        int wireId = reader.readInt();
+        if(wireId > MAX_WIRE_ID){
+            throw new ParseException("Wire id out of range: " + wireId, 0);
+        }
+        return wireId;
+    }
+
+    private static int[] put(int[] table, int wireId, int value){
+        if(wireId >= table.length){
+            int length = table.length;
+            table = Arrays.copyOf(table, Math.max(wireId + 1, length * 2));
+            Arrays.fill(table, length, table.length, -1);
+        }
+        table[wireId] = value;
+        return table;
+    }
+
+    private static int lookup(int[] table, int wireId, String what) throws ParseException{
+        if(wireId >= table.length || table[wireId] < 0){
+            throw new ParseException("Undeclared " + what + " " + wireId, 0);
+        }
+        return table[wireId];
+    }
+}
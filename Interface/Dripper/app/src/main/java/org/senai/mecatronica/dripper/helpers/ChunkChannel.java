@@ -0,0 +1,137 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands chunks of bytes from the socket reader thread to a consumer without copying
+ * and without locks.
+ *
+ * A fixed pool of buffers circulates between two single-producer/single-consumer rings:
+ * the reader takes a free buffer, fills it and publishes it with its length, and the
+ * consumer recycles it once the bytes were used. A buffer is never written while the
+ * consumer may still read it. If every buffer is in flight the reader waits, which
+ * pushes back on the socket instead of overwriting data.
+ * */
+
+public class ChunkChannel {
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * A pooled buffer and the number of valid bytes in it
+     * */
+    public static class Chunk {
+        public final byte[] data;
+        public int length;
+
+        private Chunk(int size){
+            this.data = new byte[size];
+        }
+    }
+
+    private final SpscRingQueue<Chunk> filled;
+    private final SpscRingQueue<Chunk> free;
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    private volatile boolean closed;
+
+    public ChunkChannel(int chunkCount, int chunkSize){
+        this.filled = new SpscRingQueue<>(chunkCount);
+        this.free = new SpscRingQueue<>(chunkCount);
+        //both rings hold every chunk, so offers below can never fail
+        for(int i = 0; i < free.capacity(); i++){
+            free.offer(new Chunk(chunkSize));
+        }
+    }
+
+    /**
+     * Producer side. Take an empty buffer, waiting for the consumer to recycle one if
+     * all are in use.
+     *
+     * @return null if the channel was closed, or the thread interrupted while waiting
+     * */
+    public Chunk acquire(){
+        Chunk chunk = free.poll();
+        while(chunk == null && !closed){
+            if(Thread.currentThread().isInterrupted()){
+                //parking would return at once
+                return null;
+            }
+            waitingProducer = Thread.currentThread();
+            //check again, the consumer may have recycled before we registered
+            chunk = free.poll();
+            if(chunk == null){
+                LockSupport.parkNanos(this, PARK_NANOS);
+                chunk = free.poll();
+            }
+            waitingProducer = null;
+        }
+        return closed ? null : chunk;
+    }
+
+    /**
+     * Producer side. Hand a filled buffer to the consumer.
+     * */
+    public void publish(Chunk chunk){
+        filled.offer(chunk);
+        Thread consumer = waitingConsumer;
+        if(consumer != null){
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer side. Next filled buffer, or null if there is none right now.
+     * */
+    public Chunk poll(){
+        return filled.poll();
+    }
+
+    /**
+     * Consumer side. Next filled buffer, waiting for the producer if there is none yet.
+     *
+     * @return null once the channel was closed and every filled buffer was taken
+     * */
+    public Chunk take(){
+        Chunk chunk = filled.poll();
+        while(chunk == null && !closed){
+            waitingConsumer = Thread.currentThread();
+            chunk = filled.poll();
+            if(chunk == null){
+                LockSupport.parkNanos(this, PARK_NANOS);
+                chunk = filled.poll();
+            }
+            waitingConsumer = null;
+        }
+        //anything published before close is still delivered
+        return chunk != null ? chunk : filled.poll();
+    }
+
+    /**
+     * Consumer side. Give a buffer back once its bytes are no longer needed.
+     * */
+    public void recycle(Chunk chunk){
+        chunk.length = 0;
+        free.offer(chunk);
+        Thread producer = waitingProducer;
+        if(producer != null){
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Stop both sides from waiting. The consumer still gets the chunks already published.
+     * */
+    public void close(){
+        closed = true;
+        Thread producer = waitingProducer;
+        if(producer != null){
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = waitingConsumer;
+        if(consumer != null){
+            LockSupport.unpark(consumer);
+        }
+    }
+}
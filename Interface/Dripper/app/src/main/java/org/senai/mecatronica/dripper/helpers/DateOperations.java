@@ -8,13 +8,11 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.TimePicker;
 
-import org.senai.mecatronica.dripper.activities.GraphsActivity;
+import org.senai.mecatronica.dripper.beans.EpochDay;
+import org.senai.mecatronica.dripper.beans.EpochMillis;
+import org.senai.mecatronica.dripper.beans.MinuteOfDay;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
-import java.util.Locale;
 
 /**
  * Created by Felipe on 24/10/2017.
@@ -38,8 +36,7 @@ public class DateOperations {
                 new DatePickerDialog.OnDateSetListener(){
                     @Override
                     public void onDateSet(DatePicker view, int year, int monthOfYear, int dayOfMonth){
-                        year = year%100;
-                        text.setText(String.format("%02d/%02d/%02d", dayOfMonth, monthOfYear+1, year));
+                        text.setText(EpochDay.of(year, monthOfYear + 1, dayOfMonth).format());
                     }
                 },mYear, mMonth, mDay);
         datePicker.show();
@@ -47,60 +44,47 @@ public class DateOperations {
 
     public static void setTime(Context context, final EditText text, String currentTime){
 
-        final Calendar c = Calendar.getInstance();
-
-        try {
-            Date date = new SimpleDateFormat("h:mm a", Locale.getDefault()).parse(currentTime);
-            c.setTime(date);
-        } catch (ParseException e){
-            e.printStackTrace();
+        MinuteOfDay time = MinuteOfDay.parse(currentTime);
+        if(time == null){
+            time = EpochMillis.now().getMinuteOfDay();
         }
-
-        int hourOfDay = c.get(Calendar.HOUR_OF_DAY);
-        int minute = c.get(Calendar.MINUTE);
+        int hourOfDay = time.getHour();
+        int minute = time.getMinute();
 
         timePicker = new TimePickerDialog(context, new TimePickerDialog.OnTimeSetListener() {
             @Override
             public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
-                boolean isPM = (hourOfDay >= 12);
-                text.setText(String.format(Locale.getDefault(), "%01d:%02d %s",
-                        (hourOfDay == 12 || hourOfDay == 0) ? 12 : hourOfDay % 12, minute, isPM ? "PM" : "AM"));
+                text.setText(MinuteOfDay.of(hourOfDay, minute).format());
             }
         }, hourOfDay, minute, false);
         timePicker.show();
     }
 
     public static String getDateWithOffset(int offset){
-        String date;
-
         //get first date with offset days from current
-        Calendar c = Calendar.getInstance();
-        c.add(Calendar.DATE, -offset);
-        date = new SimpleDateFormat("dd/MM/yy", Locale.getDefault()).format(c.getTime());
-
-        return date;
+        return EpochMillis.now().getEpochDay().plusDays(-offset).format();
     }
 
+    /**
+     * Current time as "h:mm AM", the text the edit screen and the irrigation file use
+     * */
     public static String getCurrentTime(){
-        String time;
-        Calendar c = Calendar.getInstance();
-        time = new SimpleDateFormat("h:mm a", Locale.getDefault()).format(c.getTime());
-        return time;
+        return EpochMillis.now().getMinuteOfDay().format();
     }
 
+    /**
+     * Current date as "dd/MM/yy"
+     * */
     public static String getCurrentDate(){
-        String date;
-        Calendar c = Calendar.getInstance();
-        date = new SimpleDateFormat("dd/MM/yy", Locale.getDefault()).format(c.getTime());
-        return date;
+        return EpochMillis.now().getEpochDay().format();
     }
 
-    public static boolean isPast(Date date){
-        Calendar c = Calendar.getInstance();
-        Date now = c.getTime();
-        if(date.before(now)){
-            return true;
-        }
-        return false;
+    /**
+     * True if a date and time of the phone's time zone has already passed, to the minute
+     * */
+    public static boolean isPast(EpochDay day, MinuteOfDay time){
+        EpochMillis now = EpochMillis.now();
+        int compareDay = day.compareTo(now.getEpochDay());
+        return compareDay < 0 || (compareDay == 0 && time.compareTo(now.getMinuteOfDay()) < 0);
     }
 }
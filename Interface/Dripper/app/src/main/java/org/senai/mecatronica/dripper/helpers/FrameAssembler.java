@@ -0,0 +1,180 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes link frames and rebuilds them from the chunks read from the socket.
+ *
+ * A frame is a start byte, a kind byte, a 4 byte sequence number, a 4 byte payload
+ * length, a 2 byte check of the header, the payload and a CRC32 of everything after the
+ * start byte. The header is checked on its own so a corrupt length is never trusted.
+ * Frames that fail a check are dropped and the assembler resynchronizes on the next
+ * start byte, so a corrupt byte costs one frame instead of the rest of the stream.
+ *
+ * Works like MessageAssembler: chunks are copied into one growable buffer and every
+ * complete frame is cut out of it as soon as its last byte arrives.
+ * */
+
+public class FrameAssembler {
+
+    public static final int KIND_DATA = 0;
+    public static final int KIND_ACK = 1;
+    //keeps an idle connection open, sequence and payload are unused
+    public static final int KIND_PING = 2;
+
+    private static final byte START = (byte) 0xA5;
+    private static final int HEADER_FIELDS_SIZE = 1 + 1 + 4 + 4;
+    private static final int HEADER_SIZE = HEADER_FIELDS_SIZE + 2;
+    private static final int CRC_SIZE = 4;
+    //senders split larger messages, a larger length means a corrupt header
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    //larger buffers are released once drained instead of being kept for reuse
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    public static class Frame {
+        public final int kind;
+        public final int sequence;
+        public final byte[] payload;
+
+        private Frame(int kind, int sequence, byte[] payload){
+            this.kind = kind;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private final CRC32 crc;
+    private ByteBuffer buffer;
+    private int droppedFrames;
+
+    public FrameAssembler(){
+        this.crc = new CRC32();
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    public static byte[] encode(int kind, int sequence, byte[] payload){
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length + CRC_SIZE);
+        frame.put(START).put((byte) kind).putInt(sequence).putInt(payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), 1, HEADER_FIELDS_SIZE - 1);
+        frame.putShort((short) crc.getValue());
+        frame.put(payload);
+        crc.reset();
+        crc.update(frame.array(), 1, frame.position() - 1);
+        frame.putInt((int) crc.getValue());
+        return frame.array();
+    }
+
+    /**
+     * Add a chunk of received bytes.
+     *
+     * @return the valid frames completed by this chunk, in order
+     * */
+    public List<Frame> append(byte[] data, int offset, int length){
+        put(data, offset, length);
+        List<Frame> frames = new ArrayList<>(1);
+        byte[] bytes = buffer.array();
+        int start = 0;
+        int end = buffer.position();
+        while(start < end){
+            if(bytes[start] != START){
+                start++;
+                continue;
+            }
+            if(end - start < HEADER_SIZE){
+                break;
+            }
+            ByteBuffer header = ByteBuffer.wrap(bytes, start, HEADER_SIZE);
+            header.get();
+            int kind = header.get();
+            int sequence = header.getInt();
+            int payloadLength = header.getInt();
+            short headerCheck = header.getShort();
+            crc.reset();
+            crc.update(bytes, start + 1, HEADER_FIELDS_SIZE - 1);
+            if((short) crc.getValue() != headerCheck || payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH){
+                //not a real header, look for the next start byte
+                droppedFrames++;
+                start++;
+                continue;
+            }
+            int frameEnd = start + HEADER_SIZE + payloadLength + CRC_SIZE;
+            if(frameEnd > end){
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, start + 1, HEADER_SIZE - 1 + payloadLength);
+            int expected = ByteBuffer.wrap(bytes, frameEnd - CRC_SIZE, CRC_SIZE).getInt();
+            if((int) crc.getValue() != expected){
+                droppedFrames++;
+                start++;
+                continue;
+            }
+            int payloadStart = start + HEADER_SIZE;
+            frames.add(new Frame(kind, sequence, Arrays.copyOfRange(bytes, payloadStart, payloadStart + payloadLength)));
+            start = frameEnd;
+        }
+        compact(start);
+        return frames;
+    }
+
+    /**
+     * Number of frames dropped for a bad header or checksum since the last call
+     * */
+    public int takeDroppedFrames(){
+        int dropped = droppedFrames;
+        droppedFrames = 0;
+        return dropped;
+    }
+
+    /**
+     * Number of bytes received for the frame still being assembled
+     * */
+    public int getPendingBytes(){
+        return buffer.position();
+    }
+
+    public void reset(){
+        compact(buffer.position());
+    }
+
+    private void put(byte[] data, int offset, int length){
+        if(length <= 0){
+            return;
+        }
+        if(buffer.remaining() < length){
+            //grow geometrically so appends stay amortized constant time per byte
+            int capacity = buffer.capacity();
+            while(capacity - buffer.position() < length){
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        buffer.put(data, offset, length);
+    }
+
+    /**
+     * Drop the bytes before start, keeping the partial frame after them
+     * */
+    private void compact(int start){
+        if(start == 0){
+            return;
+        }
+        int pending = buffer.position() - start;
+        if(pending == 0 && buffer.capacity() > MAX_RETAINED_CAPACITY){
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+            return;
+        }
+        System.arraycopy(buffer.array(), start, buffer.array(), 0, pending);
+        buffer.position(pending);
+    }
+}
@@ -0,0 +1,191 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reliable, ordered delivery of messages over a socket stream, in CRC checked frames.
+ *
+ * Each message travels in a data frame with a sequence number. Up to window frames can
+ * be in flight before the sender waits for acknowledgements, so a transfer does not stop
+ * after every frame. The receiver accepts frames in order only and answers with a
+ * cumulative ack (the next sequence number it expects) whenever frames arrive; a frame
+ * that is lost, corrupt or out of order makes it repeat its last ack. The sender goes
+ * back and resends every unacknowledged frame the first time an ack is repeated, and
+ * again whenever no ack arrives within RETRANSMIT_MS.
+ *
+ * Both ends use a link: send() for outgoing messages, receive() with the bytes read from
+ * the socket. send() waits for acks that only receive() processes, so the two must not
+ * be called from the same thread while the window is full. The retransmission timer is
+ * checked when bytes are received or send() waits; a side that may go quiet while its
+ * last frames are unacknowledged, e.g. the phone waiting for the controller's answer to
+ * them, calls retransmitIfDue() at least every RETRANSMIT_MS.
+ * */
+
+public class FramedLink {
+
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long RETRANSMIT_MS = 1000;
+
+    private final OutputStream out;
+    private final FrameAssembler assembler;
+    private final int window;
+
+    //sender state
+    private final ArrayDeque<byte[]> unacknowledged;
+    private int firstUnacknowledged;
+    private int nextSequence;
+    private long lastSendTime;
+    private int retransmissions;
+    private int framesSent;
+    //one fast retransmission per lost frame, later repeated acks report the same loss
+    private int fastRetransmitSequence = -1;
+
+    //receiver state
+    private int expectedSequence;
+    private int framesReceived;
+
+    public FramedLink(OutputStream out, int window){
+        this.out = out;
+        this.assembler = new FrameAssembler();
+        this.window = window;
+        this.unacknowledged = new ArrayDeque<>(window);
+    }
+
+    /**
+     * Send one message, waiting first if the window is full
+     * */
+    public synchronized void send(byte[] message) throws IOException, InterruptedException{
+        if(message.length > FrameAssembler.MAX_PAYLOAD_LENGTH){
+            throw new IOException("Message too long: " + message.length);
+        }
+        while(unacknowledged.size() >= window){
+            waitForAcks();
+        }
+        byte[] frame = FrameAssembler.encode(FrameAssembler.KIND_DATA, nextSequence++, message);
+        unacknowledged.addLast(frame);
+        writeData(frame);
+        framesSent++;
+    }
+
+    /**
+     * Wait until every message sent was acknowledged, resending as needed
+     *
+     * @return false if the timeout ran out first
+     * */
+    public synchronized boolean awaitAcknowledged(long timeoutMs) throws IOException, InterruptedException{
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!unacknowledged.isEmpty()){
+            if(System.currentTimeMillis() >= deadline){
+                return false;
+            }
+            waitForAcks();
+        }
+        return true;
+    }
+
+    /**
+     * Process bytes read from the socket: acks free the window, data frames are
+     * acknowledged and their messages returned in order.
+     * */
+    public synchronized List<byte[]> receive(byte[] data, int offset, int length) throws IOException{
+        List<byte[]> messages = new ArrayList<>(1);
+        boolean acknowledge = false;
+        for(FrameAssembler.Frame frame : assembler.append(data, offset, length)){
+            if(frame.kind == FrameAssembler.KIND_ACK){
+                onAck(frame.sequence);
+            } else if(frame.kind == FrameAssembler.KIND_DATA){
+                if(frame.sequence == expectedSequence){
+                    messages.add(frame.payload);
+                    expectedSequence++;
+                    framesReceived++;
+                }
+                //duplicates and gaps are answered too, the ack tells what is missing
+                acknowledge = true;
+            }
+        }
+        if(assembler.takeDroppedFrames() > 0){
+            acknowledge = true;
+        }
+        if(acknowledge){
+            out.write(FrameAssembler.encode(FrameAssembler.KIND_ACK, expectedSequence, new byte[0]));
+            out.flush();
+        }
+        retransmitIfDue();
+        return messages;
+    }
+
+    /**
+     * Resend the unacknowledged frames if no frame was sent for RETRANSMIT_MS, so a lost
+     * frame is not waited for forever when no bytes come back
+     * */
+    public synchronized void retransmitIfDue() throws IOException{
+        if(!unacknowledged.isEmpty() && System.currentTimeMillis() - lastSendTime >= RETRANSMIT_MS){
+            resendUnacknowledged();
+        }
+    }
+
+    /**
+     * Frames resent since the link was opened
+     * */
+    public synchronized int getRetransmissions(){
+        return retransmissions;
+    }
+
+    /**
+     * Data frames sent since the link was opened, not counting retransmissions
+     * */
+    public synchronized int getFramesSent(){
+        return framesSent;
+    }
+
+    /**
+     * Data frames accepted since the link was opened, not counting duplicates
+     * */
+    public synchronized int getFramesReceived(){
+        return framesReceived;
+    }
+
+    private void onAck(int ack){
+        int acknowledged = ack - firstUnacknowledged;
+        if(acknowledged > 0 && acknowledged <= unacknowledged.size()){
+            for(int i = 0; i < acknowledged; i++){
+                unacknowledged.removeFirst();
+            }
+            firstUnacknowledged = ack;
+            notifyAll();
+        } else if(acknowledged == 0 && !unacknowledged.isEmpty() && fastRetransmitSequence != ack){
+            //the receiver is still waiting for the first frame in flight
+            fastRetransmitSequence = ack;
+            try{
+                resendUnacknowledged();
+            } catch (IOException e){
+                //the next ack or the retransmission timer tries again
+            }
+        }
+    }
+
+    private void waitForAcks() throws IOException, InterruptedException{
+        int pending = unacknowledged.size();
+        wait(RETRANSMIT_MS);
+        if(unacknowledged.size() == pending && System.currentTimeMillis() - lastSendTime >= RETRANSMIT_MS){
+            resendUnacknowledged();
+        }
+    }
+
+    private void resendUnacknowledged() throws IOException{
+        for(byte[] frame : unacknowledged){
+            writeData(frame);
+            retransmissions++;
+        }
+    }
+
+    private void writeData(byte[] frame) throws IOException{
+        out.write(frame);
+        out.flush();
+        lastSendTime = System.currentTimeMillis();
+    }
+}
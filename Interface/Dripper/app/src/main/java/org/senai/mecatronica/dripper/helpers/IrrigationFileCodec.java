@@ -0,0 +1,171 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import org.senai.mecatronica.dripper.beans.EpochDay;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.MinuteOfDay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the irrigation file (default_irrigation_data.json) in the layout the
+ * app always used, so files written before the compact trigger model and controllers
+ * that parse the file keep working:
+ *
+ * {"auto": false, "numberOfTriggers": 1, "triggers": [{"oneTime": false,
+ * "startTime": "6:30 AM", "startDate": "12/11/17", "duration": 600,
+ * "daysOfTheWeek": ["Monday", "Thursday"]}]}
+ *
+ * Each trigger is bound straight from and to the compact fields of IrrigationData in a
+ * single streaming pass: the time and date text is parsed once here, on load, and
+ * nothing after that works on text.
+ * */
+
+public class IrrigationFileCodec {
+
+    private static final String LABEL_AUTO = "auto";
+    private static final String LABEL_TRIGGERS_SIZE = "numberOfTriggers";
+    private static final String LABEL_TRIGGERS = "triggers";
+    private static final String LABEL_IRRIGATION_TYPE = "oneTime";
+    private static final String LABEL_START_TIME = "startTime";
+    private static final String LABEL_START_DATE = "startDate";
+    private static final String LABEL_DURATION = "duration";
+    private static final String LABEL_WEEKDAYS = "daysOfTheWeek";
+
+    /**
+     * The auto flag and triggers of an irrigation file
+     * */
+    public static class Schedule {
+        public final boolean auto;
+        public final List<IrrigationData> triggers;
+
+        public Schedule(boolean auto, List<IrrigationData> triggers){
+            this.auto = auto;
+            this.triggers = triggers;
+        }
+    }
+
+    /**
+     * Read a whole irrigation file. The numberOfTriggers field is not needed, the
+     * triggers array is read to its end. Closes the stream.
+     * */
+    public static Schedule read(InputStream in) throws IOException{
+        boolean auto = false;
+        List<IrrigationData> triggers = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try{
+            reader.beginObject();
+            while(reader.hasNext()){
+                String name = reader.nextName();
+                if(name.equals(LABEL_AUTO)){
+                    auto = reader.nextBoolean();
+                } else if(name.equals(LABEL_TRIGGERS)){
+                    reader.beginArray();
+                    while(reader.hasNext()){
+                        triggers.add(readTrigger(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e){
+            //thrown by the reader when a value has an unexpected type
+            throw new IOException("Invalid irrigation data file: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return new Schedule(auto, triggers);
+    }
+
+    /**
+     * Write a whole irrigation file. Does not close the stream.
+     * */
+    public static void write(OutputStream out, boolean auto, List<IrrigationData> triggers) throws IOException{
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name(LABEL_AUTO).value(auto);
+        writer.name(LABEL_TRIGGERS_SIZE).value(triggers.size());
+        writer.name(LABEL_TRIGGERS);
+        writer.beginArray();
+        for(IrrigationData data : triggers){
+            writeTrigger(writer, data);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static IrrigationData readTrigger(JsonReader reader) throws IOException{
+        IrrigationData data = new IrrigationData();
+        int weekdays = 0;
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            if(name.equals(LABEL_IRRIGATION_TYPE)){
+                data.setOneTime(reader.nextBoolean());
+            } else if(name.equals(LABEL_START_TIME)){
+                data.setStartTimeOfDay(MinuteOfDay.parse(nextStringOrNull(reader)));
+            } else if(name.equals(LABEL_START_DATE)){
+                data.setStartEpochDay(EpochDay.parse(nextStringOrNull(reader)));
+            } else if(name.equals(LABEL_DURATION)){
+                data.setDurationSeconds(reader.nextInt());
+            } else if(name.equals(LABEL_WEEKDAYS)){
+                reader.beginArray();
+                while(reader.hasNext()){
+                    int day = IrrigationData.weekdayOf(reader.nextString());
+                    if(day >= 0){
+                        weekdays |= 1 << day;
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        data.setWeekdayMask(weekdays);
+        return data;
+    }
+
+    /**
+     * The next string, or null for a JSON null, which is how a trigger without a start
+     * time or date is written
+     * */
+    private static String nextStringOrNull(JsonReader reader) throws IOException{
+        if(reader.peek() == JsonToken.NULL){
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static void writeTrigger(JsonWriter writer, IrrigationData data) throws IOException{
+        writer.beginObject();
+        writer.name(LABEL_IRRIGATION_TYPE).value(data.isOneTime());
+        writer.name(LABEL_START_TIME).value(data.getStartTime());
+        writer.name(LABEL_START_DATE).value(data.getStartDate());
+        writer.name(LABEL_DURATION).value(data.getDurationSeconds());
+        writer.name(LABEL_WEEKDAYS);
+        writer.beginArray();
+        for(int day = 0; day < IrrigationData.WEEKDAY_NAMES.length; day++){
+            if(data.isWeekday(day)){
+                writer.value(IrrigationData.WEEKDAY_NAMES[day]);
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+}
@@ -0,0 +1,425 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.EpochDay;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+/**
+ * Answers when the triggers of a schedule run: the next irrigations and the ones running
+ * at a given time.
+ *
+ * Times are local seconds, the seconds since 1970-01-01 00:00 of the wall clock (see
+ * localSeconds()), so a trigger at 6:30 AM runs at 6:30 AM on any day whatever the
+ * daylight saving time. One time triggers run once at their start date and time; the
+ * other ones run at their start time on each of their weekdays.
+ *
+ * Every trigger has one entry, its earliest occurrence not yet finished at the current
+ * time, in one of two binary heaps: the irrigations running now, keyed by end time, and
+ * the ones still to start, keyed by start time. advanceTo() moves the current time
+ * forward, moving the entries that started and replacing the ones that finished by their
+ * next occurrence, so keeping the timeline up to date as time passes costs O(log n) per
+ * irrigation that went by. The next k irrigations are read from the top of the heaps in
+ * O(k log k) and the running ones in time proportional to their number, without changing
+ * them.
+ *
+ * The occurrences of one trigger are expected not to overlap, i.e. a weekly trigger lasts
+ * less than the time between two of its weekdays. Not thread safe.
+ * */
+
+public class IrrigationTimeline {
+
+    public static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    //no occurrence left
+    private static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * One irrigation, from start (inclusive) to end (exclusive) in local seconds
+     * */
+    public static class Occurrence {
+        private final IrrigationData trigger;
+        private final int index;
+        private final long start;
+        //position in the heap, -1 when not in it
+        private int heapIndex;
+
+        private Occurrence(IrrigationData trigger, int index, long start, int heapIndex){
+            this.trigger = trigger;
+            this.index = index;
+            this.start = start;
+            this.heapIndex = heapIndex;
+        }
+
+        public IrrigationData getTrigger(){
+            return trigger;
+        }
+
+        /**
+         * Position of the trigger in the list the timeline was built from
+         * */
+        public int getIndex(){
+            return index;
+        }
+
+        public long getStart(){
+            return start;
+        }
+
+        public long getEnd(){
+            return start + trigger.getDurationSeconds();
+        }
+
+        public int getDurationSeconds(){
+            return trigger.getDurationSeconds();
+        }
+
+        public boolean isRunningAt(long time){
+            return start <= time && time < getEnd();
+        }
+    }
+
+    private static final Comparator<Occurrence> BY_START = new Comparator<Occurrence>() {
+        @Override
+        public int compare(Occurrence a, Occurrence b) {
+            if(a.start != b.start){
+                return a.start < b.start ? -1 : 1;
+            }
+            return a.index - b.index;
+        }
+    };
+
+    private static final Comparator<Occurrence> BY_END = new Comparator<Occurrence>() {
+        @Override
+        public int compare(Occurrence a, Occurrence b) {
+            long aEnd = a.getEnd();
+            long bEnd = b.getEnd();
+            if(aEnd != bEnd){
+                return aEnd < bEnd ? -1 : 1;
+            }
+            return a.index - b.index;
+        }
+    };
+
+    /**
+     * Binary min heap that keeps each entry's position in it, so a walk from the top can
+     * tell the entries still in it from the ones replaced
+     * */
+    private static class Heap {
+        private final Comparator<Occurrence> order;
+        private Occurrence[] items;
+        private int size;
+
+        Heap(Comparator<Occurrence> order, int capacity){
+            this.order = order;
+            this.items = new Occurrence[Math.max(capacity, 1)];
+        }
+
+        Occurrence peek(){
+            return size == 0 ? null : items[0];
+        }
+
+        Occurrence get(int index){
+            return index < size ? items[index] : null;
+        }
+
+        boolean contains(Occurrence occurrence){
+            return occurrence.heapIndex >= 0 && occurrence.heapIndex < size
+                    && items[occurrence.heapIndex] == occurrence;
+        }
+
+        /**
+         * Add without keeping the heap order, heapify() must follow
+         * */
+        void append(Occurrence occurrence){
+            if(size == items.length){
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = occurrence;
+            occurrence.heapIndex = size;
+            size++;
+        }
+
+        void heapify(){
+            for(int i = size / 2 - 1; i >= 0; i--){
+                siftDown(i);
+            }
+        }
+
+        void add(Occurrence occurrence){
+            append(occurrence);
+            siftUp(size - 1);
+        }
+
+        Occurrence poll(){
+            Occurrence top = items[0];
+            size--;
+            items[0] = items[size];
+            items[size] = null;
+            if(size > 0){
+                siftDown(0);
+            }
+            top.heapIndex = -1;
+            return top;
+        }
+
+        private void siftUp(int index){
+            Occurrence occurrence = items[index];
+            while(index > 0){
+                int parent = (index - 1) / 2;
+                if(order.compare(items[parent], occurrence) <= 0){
+                    break;
+                }
+                items[index] = items[parent];
+                items[index].heapIndex = index;
+                index = parent;
+            }
+            items[index] = occurrence;
+            occurrence.heapIndex = index;
+        }
+
+        private void siftDown(int index){
+            Occurrence occurrence = items[index];
+            while(true){
+                int child = 2 * index + 1;
+                if(child >= size){
+                    break;
+                }
+                if(child + 1 < size && order.compare(items[child + 1], items[child]) < 0){
+                    child++;
+                }
+                if(order.compare(items[child], occurrence) >= 0){
+                    break;
+                }
+                items[index] = items[child];
+                items[index].heapIndex = index;
+                index = child;
+            }
+            items[index] = occurrence;
+            occurrence.heapIndex = index;
+        }
+    }
+
+    //started by now, by end time
+    private final Heap running;
+    //starting after now, by start time
+    private final Heap pending;
+    private long now;
+
+    /**
+     * Index the triggers at the given time. O(n).
+     * */
+    public IrrigationTimeline(List<IrrigationData> triggers, long now){
+        this.now = now;
+        this.running = new Heap(BY_END, 16);
+        this.pending = new Heap(BY_START, triggers.size());
+        for(int i = 0; i < triggers.size(); i++){
+            IrrigationData trigger = triggers.get(i);
+            //the earliest occurrence that ends after now, it may be running
+            long start = nextStart(trigger, now - trigger.getDurationSeconds() + 1);
+            if(start == NEVER){
+                continue;
+            }
+            Occurrence occurrence = new Occurrence(trigger, i, start, -1);
+            if(start <= now){
+                running.add(occurrence);
+            } else {
+                pending.append(occurrence);
+            }
+        }
+        pending.heapify();
+    }
+
+    /**
+     * Local seconds of a time in milliseconds
+     * */
+    public static long localSeconds(long millis, TimeZone timeZone){
+        return floorDiv(millis + timeZone.getOffset(millis), 1000);
+    }
+
+    public static long localSeconds(long millis){
+        return localSeconds(millis, TimeZone.getDefault());
+    }
+
+    /**
+     * Days since 1970-01-01 of a time in local seconds
+     * */
+    public static int epochDay(long localSeconds){
+        return (int) floorDiv(localSeconds, SECONDS_PER_DAY);
+    }
+
+    /**
+     * Minutes since midnight of a time in local seconds
+     * */
+    public static int minuteOfDay(long localSeconds){
+        return (int) ((localSeconds - epochDay(localSeconds) * SECONDS_PER_DAY) / 60);
+    }
+
+    /**
+     * 0 for Sunday to 6 for Saturday
+     * */
+    public static int weekday(int epochDay){
+        return EpochDay.weekdayOf(epochDay);
+    }
+
+    public long getNow(){
+        return now;
+    }
+
+    /**
+     * Number of triggers that still have irrigations to run
+     * */
+    public int size(){
+        return running.size + pending.size;
+    }
+
+    /**
+     * Move the current time forward, dropping the irrigations that finished by then.
+     * Going back in time is not supported, build a new timeline instead.
+     * */
+    public void advanceTo(long time){
+        if(time < now){
+            throw new IllegalArgumentException("The timeline only moves forward");
+        }
+        now = time;
+        while(true){
+            Occurrence started = pending.peek();
+            if(started != null && started.start <= now){
+                pending.poll();
+                if(started.getEnd() > now){
+                    running.add(started);
+                } else {
+                    schedule(started);
+                }
+                continue;
+            }
+            Occurrence finished = running.peek();
+            if(finished != null && finished.getEnd() <= now){
+                schedule(running.poll());
+                continue;
+            }
+            break;
+        }
+    }
+
+    /**
+     * Put the following occurrence of a finished one in the heap it belongs to
+     * */
+    private void schedule(Occurrence finished){
+        long start = nextStart(finished.trigger, Math.max(finished.start + 1,
+                now - finished.getDurationSeconds() + 1));
+        if(start == NEVER){
+            return;
+        }
+        Occurrence occurrence = new Occurrence(finished.trigger, finished.index, start, -1);
+        if(start <= now){
+            running.add(occurrence);
+        } else {
+            pending.add(occurrence);
+        }
+    }
+
+    /**
+     * The next irrigation not yet finished, running or not, or null if there is none
+     * */
+    public Occurrence peek(){
+        List<Occurrence> next = next(1);
+        return next.isEmpty() ? null : next.get(0);
+    }
+
+    /**
+     * The next count irrigations not yet finished, sorted by start time, including the
+     * running ones and the repetitions of weekly triggers. O(k log k) for the k running
+     * irrigations and the count returned.
+     * */
+    public List<Occurrence> next(int count){
+        List<Occurrence> result = new ArrayList<>(Math.min(count, 64));
+        if(count <= 0){
+            return result;
+        }
+        //candidates are the running irrigations, the top of the pending heap, whose
+        //children come after it, and the following occurrences of the triggers returned
+        PriorityQueue<Occurrence> candidates = new PriorityQueue<>(16, BY_START);
+        for(int i = 0; i < running.size; i++){
+            candidates.add(running.get(i));
+        }
+        if(pending.size > 0){
+            candidates.add(pending.peek());
+        }
+        while(result.size() < count && !candidates.isEmpty()){
+            Occurrence occurrence = candidates.poll();
+            result.add(occurrence);
+            if(pending.contains(occurrence)){
+                int index = occurrence.heapIndex;
+                if(2 * index + 1 < pending.size){
+                    candidates.add(pending.get(2 * index + 1));
+                }
+                if(2 * index + 2 < pending.size){
+                    candidates.add(pending.get(2 * index + 2));
+                }
+            }
+            long start = nextStart(occurrence.trigger, occurrence.start + 1);
+            if(start != NEVER){
+                candidates.add(new Occurrence(occurrence.trigger, occurrence.index, start, -1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The irrigations running at the current time, in no particular order
+     * */
+    public List<Occurrence> running(){
+        List<Occurrence> result = new ArrayList<>(running.size);
+        for(int i = 0; i < running.size; i++){
+            result.add(running.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * The irrigations running at a time not before the current one. Advances the
+     * timeline to it.
+     * */
+    public List<Occurrence> runningAt(long time){
+        advanceTo(time);
+        return running();
+    }
+
+    /**
+     * Start of the first occurrence of a trigger at or after a time, NEVER if none
+     * */
+    public static long nextStart(IrrigationData trigger, long from){
+        int minute = trigger.getStartMinute();
+        if(minute == IrrigationData.NO_START_TIME){
+            return NEVER;
+        }
+        if(trigger.isOneTime()){
+            if(!trigger.hasStartDate()){
+                return NEVER;
+            }
+            long start = trigger.getStartDay() * SECONDS_PER_DAY + minute * 60L;
+            return start >= from ? start : NEVER;
+        }
+        if(trigger.getWeekdayMask() == 0){
+            return NEVER;
+        }
+        int day = epochDay(from);
+        for(int i = 0; i <= 7; i++){
+            long start = (day + i) * SECONDS_PER_DAY + minute * 60L;
+            if(trigger.isWeekday(weekday(day + i)) && start >= from){
+                return start;
+            }
+        }
+        return NEVER;
+    }
+
+    static long floorDiv(long x, long y){
+        long q = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,109 @@
+package org.senai.mecatronica.dripper.helpers;
+
+/**
+ * Histogram of durations in microseconds, in a fixed amount of memory whatever the
+ * number of values recorded.
+ *
+ * Values are counted in log-linear buckets: four buckets per power of two, so a bucket
+ * is never wider than a quarter of the values it holds, and percentiles are reported
+ * with the same precision from microseconds to hours. Values past the last bucket are
+ * counted in it.
+ * */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //powers of two covered, up to 2^40 microseconds (about 12 days)
+    private static final int MAGNITUDES = 40;
+    public static final int BUCKET_COUNT = MAGNITUDES * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    public synchronized void record(long micros){
+        if(micros < 0){
+            micros = 0;
+        }
+        counts[bucketOf(micros)]++;
+        count++;
+        sum += micros;
+        if(micros > max){
+            max = micros;
+        }
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    public synchronized long getMax(){
+        return max;
+    }
+
+    public synchronized long getMean(){
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Value below which the given fraction of the values fall, rounded up to the end of
+     * its bucket
+     * */
+    public synchronized long getPercentile(double fraction){
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                //the last bucket has no end, values past the range are counted in it
+                return i == BUCKET_COUNT - 1 ? max : Math.min(lowerBound(i + 1) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Values counted in a bucket, see lowerBound() for its range
+     * */
+    public synchronized long getBucketCount(int bucket){
+        return counts[bucket];
+    }
+
+    public synchronized void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Smallest value of a bucket, the next bucket's is one past its largest
+     * */
+    public static long lowerBound(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Bucket a value is counted in, the last one past the range
+     * */
+    static int bucketOf(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((magnitude - 1) * SUB_BUCKETS + sub, BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,96 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds '#' terminated messages from the chunks read from the Bluetooth socket.
+ *
+ * Chunks are copied as raw bytes into one growable buffer, and each byte is checked for
+ * the terminator only once, as it arrives. A message is decoded from UTF-8 a single time
+ * when it is complete, so multi-byte characters split between two chunks are kept intact
+ * and ingesting a payload takes time linear in its size.
+ * */
+
+public class MessageAssembler {
+
+    private static final byte TERMINATOR = '#';
+    private static final int INITIAL_CAPACITY = 1024;
+    //larger buffers are released after the message instead of being kept for reuse
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteBuffer buffer;
+
+    public MessageAssembler(){
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Add a chunk of received bytes.
+     *
+     * @return the messages completed by this chunk, usually none or one
+     * */
+    public List<String> append(byte[] data, int offset, int length){
+        List<String> messages = new ArrayList<>(1);
+        int start = offset;
+        int end = offset + length;
+        for(int i = offset; i < end; i++){
+            if(data[i] == TERMINATOR){
+                put(data, start, i - start);
+                messages.add(takeMessage());
+                start = i + 1;
+            }
+        }
+        put(data, start, end - start);
+        return messages;
+    }
+
+    /**
+     * Number of bytes received for the message still being assembled
+     * */
+    public int getPendingBytes(){
+        return buffer.position();
+    }
+
+    /**
+     * Drop the message being assembled, e.g. after the connection was lost
+     * */
+    public void reset(){
+        releaseBuffer();
+    }
+
+    private void put(byte[] data, int offset, int length){
+        if(length <= 0){
+            return;
+        }
+        if(buffer.remaining() < length){
+            //grow geometrically so appends stay amortized constant time per byte
+            int capacity = buffer.capacity();
+            while(capacity - buffer.position() < length){
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        buffer.put(data, offset, length);
+    }
+
+    private String takeMessage(){
+        String message = new String(buffer.array(), 0, buffer.position(), UTF_8);
+        releaseBuffer();
+        return message;
+    }
+
+    private void releaseBuffer(){
+        if(buffer.capacity() > MAX_RETAINED_CAPACITY){
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        } else {
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Finds the triggers of a schedule that irrigate at the same time.
+ *
+ * Every trigger is projected onto the week, from Sunday 00:00 to Saturday 24:00 in
+ * seconds: a weekly trigger as one interval per weekday, a one time trigger as one
+ * interval on the weekday of its date. Intervals that go past the end of the week go on
+ * at its start. A sweep over the intervals sorted by start keeps the ones still open in a
+ * heap keyed by end time, so each interval is compared only to the ones it overlaps:
+ * O(n log n) plus the number of overlapping intervals, for n intervals, which keeps it
+ * fast enough to run before saving on schedules of thousands of triggers. Two one time
+ * triggers conflict only if they also overlap in time, not just in the week.
+ *
+ * Times are the local seconds of IrrigationTimeline. One time triggers that finished
+ * before the given time are left out, they cannot conflict any more.
+ * */
+
+public class ScheduleConflicts {
+
+    public static final long SECONDS_PER_WEEK = 7 * IrrigationTimeline.SECONDS_PER_DAY;
+    //look at every trigger
+    private static final int ALL = -1;
+
+    /**
+     * Two triggers that irrigate at the same time, by their position in the schedule
+     * */
+    public static class Conflict {
+        private final int first;
+        private final int second;
+        private final long weekStart;
+
+        private Conflict(int first, int second, long weekStart){
+            this.first = Math.min(first, second);
+            this.second = Math.max(first, second);
+            this.weekStart = weekStart;
+        }
+
+        public int getFirst(){
+            return first;
+        }
+
+        public int getSecond(){
+            return second;
+        }
+
+        /**
+         * 0 for Sunday to 6 for Saturday, of the first overlap found
+         * */
+        public int getWeekday(){
+            return (int) (weekStart / IrrigationTimeline.SECONDS_PER_DAY);
+        }
+
+        /**
+         * Minutes since midnight, of the first overlap found
+         * */
+        public int getStartMinute(){
+            return (int) ((weekStart % IrrigationTimeline.SECONDS_PER_DAY) / 60);
+        }
+    }
+
+    /**
+     * Part of the week a trigger irrigates, from start (inclusive) to end (exclusive)
+     * */
+    private static class Interval {
+        final int trigger;
+        final long start;
+        final long end;
+
+        Interval(int trigger, long start, long end){
+            this.trigger = trigger;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final Comparator<Interval> BY_START = new Comparator<Interval>() {
+        @Override
+        public int compare(Interval a, Interval b) {
+            return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Interval> BY_END = new Comparator<Interval>() {
+        @Override
+        public int compare(Interval a, Interval b) {
+            return a.end < b.end ? -1 : (a.end == b.end ? 0 : 1);
+        }
+    };
+
+    /**
+     * Every pair of triggers that irrigate at the same time, once per pair
+     * */
+    public static List<Conflict> find(List<IrrigationData> triggers, long now){
+        return sweep(triggers, now, ALL);
+    }
+
+    /**
+     * Positions of the triggers a new or changed trigger would conflict with, checked
+     * before saving it
+     *
+     * @param replaced position of the trigger being changed, -1 for a new one
+     * */
+    public static List<Integer> findFor(List<IrrigationData> triggers, IrrigationData trigger, int replaced, long now){
+        List<IrrigationData> schedule = new ArrayList<>(triggers);
+        int position;
+        if(replaced >= 0 && replaced < schedule.size()){
+            schedule.set(replaced, trigger);
+            position = replaced;
+        } else {
+            schedule.add(trigger);
+            position = schedule.size() - 1;
+        }
+
+        List<Integer> result = new ArrayList<>();
+        for(Conflict conflict : sweep(schedule, now, position)){
+            result.add(conflict.first == position ? conflict.second : conflict.first);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @param only report only the conflicts of the trigger at this position, or ALL
+     * */
+    private static List<Conflict> sweep(List<IrrigationData> triggers, long now, int only){
+        List<Interval> intervals = new ArrayList<>(triggers.size() * 2);
+        for(int i = 0; i < triggers.size(); i++){
+            project(triggers.get(i), i, now, intervals);
+        }
+        Collections.sort(intervals, BY_START);
+
+        List<Conflict> conflicts = new ArrayList<>();
+        //pairs already reported, first in the high half and second in the low one
+        Set<Long> reported = new HashSet<>();
+        PriorityQueue<Interval> open = new PriorityQueue<>(16, BY_END);
+        for(Interval interval : intervals){
+            while(!open.isEmpty() && open.peek().end <= interval.start){
+                open.poll();
+            }
+            //every interval still open overlaps this one
+            for(Interval other : open){
+                if(other.trigger == interval.trigger
+                        || (only != ALL && interval.trigger != only && other.trigger != only)){
+                    continue;
+                }
+                IrrigationData a = triggers.get(interval.trigger);
+                IrrigationData b = triggers.get(other.trigger);
+                if(a.isOneTime() && b.isOneTime() && !overlapInTime(a, b)){
+                    continue;
+                }
+                int first = Math.min(interval.trigger, other.trigger);
+                int second = Math.max(interval.trigger, other.trigger);
+                if(reported.add(((long) first << 32) | second)){
+                    conflicts.add(new Conflict(first, second, interval.start));
+                }
+            }
+            open.add(interval);
+        }
+        return conflicts;
+    }
+
+    private static void project(IrrigationData trigger, int index, long now, List<Interval> intervals){
+        int minute = trigger.getStartMinute();
+        long duration = Math.min(trigger.getDurationSeconds(), SECONDS_PER_WEEK);
+        if(minute == IrrigationData.NO_START_TIME || duration <= 0){
+            return;
+        }
+        if(trigger.isOneTime()){
+            if(!trigger.hasStartDate() || start(trigger) + duration <= now){
+                return;
+            }
+            addInterval(index, IrrigationTimeline.weekday(trigger.getStartDay()), minute, duration, intervals);
+            return;
+        }
+        for(int day = 0; day < IrrigationData.WEEKDAY_NAMES.length; day++){
+            if(trigger.isWeekday(day)){
+                addInterval(index, day, minute, duration, intervals);
+            }
+        }
+    }
+
+    private static void addInterval(int index, int weekday, int minute, long duration, List<Interval> intervals){
+        long start = weekday * IrrigationTimeline.SECONDS_PER_DAY + minute * 60L;
+        long end = start + duration;
+        if(end <= SECONDS_PER_WEEK){
+            intervals.add(new Interval(index, start, end));
+        } else {
+            //goes on at the start of the next week
+            intervals.add(new Interval(index, start, SECONDS_PER_WEEK));
+            intervals.add(new Interval(index, 0, end - SECONDS_PER_WEEK));
+        }
+    }
+
+    private static boolean overlapInTime(IrrigationData a, IrrigationData b){
+        long aStart = start(a);
+        long bStart = start(b);
+        return aStart < bStart + b.getDurationSeconds() && bStart < aStart + a.getDurationSeconds();
+    }
+
+    /**
+     * Local seconds a one time trigger starts at
+     * */
+    private static long start(IrrigationData trigger){
+        return trigger.getStartDay() * IrrigationTimeline.SECONDS_PER_DAY + trigger.getStartMinute() * 60L;
+    }
+}
@@ -0,0 +1,62 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Content hash of an irrigation schedule: the auto flag, a hash per trigger and a hash of
+ * the whole schedule computed from them. Two schedules with the same hash hold the same
+ * triggers in the same order, so a controller already holding the phone's schedule does
+ * not need it sent again, and the trigger hashes tell which triggers changed.
+ * */
+
+public class ScheduleDigest {
+
+    private final boolean auto;
+    private final int[] triggerHashes;
+    private final int hash;
+
+    public ScheduleDigest(boolean auto, int[] triggerHashes){
+        this.auto = auto;
+        this.triggerHashes = triggerHashes;
+        CRC32 crc = new CRC32();
+        crc.update(auto ? 1 : 0);
+        for(int triggerHash : triggerHashes){
+            crc.update(triggerHash >>> 24);
+            crc.update(triggerHash >>> 16);
+            crc.update(triggerHash >>> 8);
+            crc.update(triggerHash);
+        }
+        this.hash = (int) crc.getValue();
+    }
+
+    public static ScheduleDigest of(boolean auto, List<IrrigationData> triggers){
+        return new ScheduleDigest(auto, BinarySyncCodec.triggerHashes(triggers));
+    }
+
+    public boolean isAuto(){
+        return auto;
+    }
+
+    public int getHash(){
+        return hash;
+    }
+
+    public int getTriggerCount(){
+        return triggerHashes.length;
+    }
+
+    public int getTriggerHash(int index){
+        return triggerHashes[index];
+    }
+
+    /**
+     * True if both schedules hold the same triggers in the same order
+     * */
+    public boolean matches(ScheduleDigest other){
+        return hash == other.hash && auto == other.auto && Arrays.equals(triggerHashes, other.triggerHashes);
+    }
+}
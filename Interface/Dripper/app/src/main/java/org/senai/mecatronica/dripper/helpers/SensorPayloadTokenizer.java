@@ -0,0 +1,426 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.SensorReading;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Single pass parser for the sensor payload sent by the field controller.
+ *
+ * The controller sends its JSON file as the Python representation of a list of lines,
+ * e.g. ['{\n', '\t"numberOfLogs":1,\n', ...], and some values are bare words
+ * ("data":Day). The tokenizer reads the message once, from the first '{' to the end of
+ * that object, treating the list quotes and separators and the escaped newlines and
+ * tabs as whitespace, and binds each log straight into a SensorReading. Keys are
+ * compared in place and sensor names and labels are resolved through the SensorRegistry
+ * from the message itself; only names and labels seen for the first time are copied.
+ *
+ * Logs without a date are placed before the time the message was received, one log
+ * interval ("logFrequency", in seconds) apart in the order they were sent, so none of
+ * them takes the place of another.
+ * */
+
+public class SensorPayloadTokenizer {
+
+    private static final String KEY_LOGS = "logs";
+    private static final String KEY_LOG_FREQUENCY = "logFrequency";
+    private static final String KEY_DATE = "date";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_SENSORS = "sensors";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_UNIT = "unit";
+    //between logs without a date when the payload has no interval
+    private static final long DEFAULT_LOG_INTERVAL_MS = 1000;
+
+    private final String input;
+    private final int length;
+    private final long receivedAt;
+    private final SensorRegistry registry;
+    private final Calendar calendar;
+    private int pos;
+    //logs without a date, stamped once the whole payload was read
+    private final List<SensorReading> undated = new ArrayList<>();
+    private long logIntervalMs = DEFAULT_LOG_INTERVAL_MS;
+
+    //bounds of the last string or bare word read
+    private int tokenStart;
+    private int tokenEnd;
+
+    /**
+     * @param receivedAt timestamp of the last log that carries no date, the ones before
+     * it are placed a log interval apart
+     * */
+    public SensorPayloadTokenizer(String input, long receivedAt, SensorRegistry registry){
+        this.input = input;
+        this.length = input.length();
+        this.receivedAt = receivedAt;
+        this.registry = registry;
+        this.calendar = Calendar.getInstance();
+    }
+
+    /**
+     * Parse every log of the payload, in the order they were sent. Logs without
+     * sensors are left out.
+     * */
+    public List<SensorReading> parse() throws ParseException{
+        List<SensorReading> readings = new ArrayList<>();
+        undated.clear();
+        pos = input.indexOf('{');
+        if(pos < 0){
+            throw new ParseException("Payload has no object", 0);
+        }
+
+        expect('{');
+        if(!tryConsume('}')){
+            do{
+                readKey();
+                if(keyIs(KEY_LOGS)){
+                    expect('[');
+                    if(!tryConsume(']')){
+                        do{
+                            SensorReading reading = parseLog();
+                            if(reading != null){
+                                readings.add(reading);
+                            }
+                        } while(tryConsume(','));
+                        expect(']');
+                    }
+                } else if(keyIs(KEY_LOG_FREQUENCY)){
+                    readScalar();
+                    if(isNumber(tokenStart, tokenEnd)){
+                        long interval = Math.round(parseNumber(tokenStart, tokenEnd) * 1000);
+                        logIntervalMs = interval > 0 ? interval : DEFAULT_LOG_INTERVAL_MS;
+                    }
+                } else {
+                    skipValue();
+                }
+            } while(tryConsume(','));
+            expect('}');
+        }
+        //anything after the payload object is list syntax, nothing to read there
+
+        //the interval may come after the logs
+        for(int i = 0; i < undated.size(); i++){
+            undated.get(i).setTimestamp(receivedAt - (undated.size() - 1 - i) * logIntervalMs);
+        }
+        return readings;
+    }
+
+    private SensorReading parseLog() throws ParseException{
+        SensorReading reading = new SensorReading(receivedAt);
+        boolean hasSensors = false;
+        int[] date = null;
+        int[] time = null;
+
+        expect('{');
+        if(tryConsume('}')){
+            return null;
+        }
+        do{
+            readKey();
+            if(keyIs(KEY_DATE)){
+                readScalar();
+                date = parseFields(tokenStart, tokenEnd, '/');
+            } else if(keyIs(KEY_TIME)){
+                readScalar();
+                time = parseFields(tokenStart, tokenEnd, ':');
+            } else if(keyIs(KEY_SENSORS)){
+                expect('[');
+                if(!tryConsume(']')){
+                    do{
+                        hasSensors |= parseSensor(reading);
+                    } while(tryConsume(','));
+                    expect(']');
+                }
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+
+        if(date != null && date.length == 3){
+            int year = date[2] < 100 ? 2000 + date[2] : date[2];
+            calendar.clear();
+            calendar.set(year, date[1] - 1, date[0]);
+            if(time != null && time.length >= 2){
+                calendar.set(Calendar.HOUR_OF_DAY, time[0]);
+                calendar.set(Calendar.MINUTE, time[1]);
+                calendar.set(Calendar.SECOND, time.length > 2 ? time[2] : 0);
+            }
+            reading.setTimestamp(calendar.getTimeInMillis());
+        } else if(hasSensors){
+            undated.add(reading);
+        }
+        return hasSensors ? reading : null;
+    }
+
+    /**
+     * Read one sensor object and set its value to the reading, registering the sensor
+     * if it was never seen. The data may come before the name, so only its bounds are
+     * kept until the end.
+     * */
+    private boolean parseSensor(SensorReading reading) throws ParseException{
+        int nameStart = -1;
+        int nameEnd = -1;
+        int dataStart = -1;
+        int dataEnd = -1;
+        int unitStart = -1;
+        int unitEnd = -1;
+
+        expect('{');
+        if(tryConsume('}')){
+            return false;
+        }
+        do{
+            readKey();
+            if(keyIs(KEY_NAME)){
+                readScalar();
+                nameStart = tokenStart;
+                nameEnd = tokenEnd;
+            } else if(keyIs(KEY_DATA)){
+                readScalar();
+                dataStart = tokenStart;
+                dataEnd = tokenEnd;
+            } else if(keyIs(KEY_UNIT)){
+                readScalar();
+                unitStart = tokenStart;
+                unitEnd = tokenEnd;
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+
+        if(nameStart < 0 || dataStart < 0){
+            return false;
+        }
+        int sensorId = registry.findSensor(input, nameStart, nameEnd);
+        if(sensorId < 0){
+            //new probe, its kind is taken from the first value it sends
+            String unit = unitStart < 0 ? "" : input.substring(unitStart, unitEnd);
+            int kind = isNumber(dataStart, dataEnd) ? SensorRegistry.KIND_NUMBER : SensorRegistry.KIND_LABEL;
+            sensorId = registry.register(input.substring(nameStart, nameEnd), unit, kind);
+        }
+
+        if(registry.getKind(sensorId) == SensorRegistry.KIND_LABEL){
+            reading.setLabelCode(sensorId, registry.labelCode(input, dataStart, dataEnd));
+        } else if(isNumber(dataStart, dataEnd)){
+            reading.setNumber(sensorId, parseNumber(dataStart, dataEnd));
+        } else {
+            //the controller reports a failed probe with a word instead of a number
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip whitespace, escaped newlines and tabs, and the quotes and separators of the
+     * Python list the payload is wrapped in
+     * */
+    private void skipIgnorable(){
+        while(pos < length){
+            char c = input.charAt(pos);
+            if(c == ' ' || c == '\n' || c == '\t' || c == '\r'){
+                pos++;
+            } else if(c == '\\' && pos + 1 < length && isEscapedWhitespace(input.charAt(pos + 1))){
+                pos += 2;
+            } else if(c == '\''){
+                //"', '" separates two lines of the list
+                pos += input.startsWith(", '", pos + 1) ? 4 : 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static boolean isEscapedWhitespace(char c){
+        return c == 'n' || c == 't' || c == 'r';
+    }
+
+    private boolean tryConsume(char expected){
+        skipIgnorable();
+        if(pos < length && input.charAt(pos) == expected){
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) throws ParseException{
+        if(!tryConsume(expected)){
+            throw new ParseException("Expected '" + expected + "'", pos);
+        }
+    }
+
+    private void readKey() throws ParseException{
+        skipIgnorable();
+        if(pos >= length || input.charAt(pos) != '"'){
+            throw new ParseException("Expected key", pos);
+        }
+        readString();
+        expect(':');
+    }
+
+    private boolean keyIs(String key){
+        return rangeIs(tokenStart, tokenEnd, key);
+    }
+
+    private boolean rangeIs(int start, int end, String value){
+        return end - start == value.length() && input.regionMatches(start, value, 0, value.length());
+    }
+
+    /**
+     * Read a quoted string or a bare word, leaving its bounds in tokenStart/tokenEnd
+     * */
+    private void readScalar() throws ParseException{
+        skipIgnorable();
+        if(pos >= length){
+            throw new ParseException("Unexpected end of payload", pos);
+        }
+        if(input.charAt(pos) == '"'){
+            readString();
+            return;
+        }
+        tokenStart = pos;
+        while(pos < length && !isWordEnd(input.charAt(pos))){
+            pos++;
+        }
+        tokenEnd = pos;
+        if(tokenStart == tokenEnd){
+            throw new ParseException("Expected value", pos);
+        }
+    }
+
+    private static boolean isWordEnd(char c){
+        return c == ',' || c == '}' || c == ']' || c == ' ' || c == '\\' || c == '\''
+                || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private void readString() throws ParseException{
+        //opening quote
+        pos++;
+        tokenStart = pos;
+        while(pos < length && input.charAt(pos) != '"'){
+            pos += input.charAt(pos) == '\\' ? 2 : 1;
+        }
+        if(pos >= length){
+            throw new ParseException("Unterminated string", tokenStart);
+        }
+        tokenEnd = pos;
+        //closing quote
+        pos++;
+    }
+
+    private void skipValue() throws ParseException{
+        skipIgnorable();
+        if(pos >= length){
+            throw new ParseException("Unexpected end of payload", pos);
+        }
+        char c = input.charAt(pos);
+        if(c == '{' || c == '['){
+            char close = c == '{' ? '}' : ']';
+            pos++;
+            if(tryConsume(close)){
+                return;
+            }
+            do{
+                if(c == '{'){
+                    readKey();
+                }
+                skipValue();
+            } while(tryConsume(','));
+            expect(close);
+        } else {
+            readScalar();
+        }
+    }
+
+    private boolean isNumber(int start, int end){
+        int i = start;
+        if(i < end && (input.charAt(i) == '-' || input.charAt(i) == '+')){
+            i++;
+        }
+        boolean digits = false;
+        boolean point = false;
+        for(; i < end; i++){
+            char c = input.charAt(i);
+            if(c >= '0' && c <= '9'){
+                digits = true;
+            } else if(c == '.' && !point){
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * Parse a decimal number in place, without creating a string for it
+     * */
+    private double parseNumber(int start, int end) throws ParseException{
+        int i = start;
+        boolean negative = false;
+        if(i < end && (input.charAt(i) == '-' || input.charAt(i) == '+')){
+            negative = input.charAt(i) == '-';
+            i++;
+        }
+        double value = 0;
+        double scale = 0;
+        boolean digits = false;
+        for(; i < end; i++){
+            char c = input.charAt(i);
+            if(c >= '0' && c <= '9'){
+                digits = true;
+                if(scale == 0){
+                    value = value * 10 + (c - '0');
+                } else {
+                    value += (c - '0') * scale;
+                    scale /= 10;
+                }
+            } else if(c == '.' && scale == 0){
+                scale = 0.1;
+            } else {
+                throw new ParseException("Invalid number", i);
+            }
+        }
+        if(!digits){
+            throw new ParseException("Invalid number", start);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Split a value like 12/11/2017 or 06:11:00 into its numeric fields
+     * */
+    private int[] parseFields(int start, int end, char separator) throws ParseException{
+        int count = 1;
+        for(int i = start; i < end; i++){
+            if(input.charAt(i) == separator){
+                count++;
+            }
+        }
+        int[] fields = new int[count];
+        int field = 0;
+        boolean digits = false;
+        for(int i = start; i < end; i++){
+            char c = input.charAt(i);
+            if(c == separator){
+                field++;
+            } else if(c >= '0' && c <= '9'){
+                fields[field] = fields[field] * 10 + (c - '0');
+                digits = true;
+            } else {
+                throw new ParseException("Invalid date or time", i);
+            }
+        }
+        if(!digits){
+            throw new ParseException("Invalid date or time", start);
+        }
+        return fields;
+    }
+}
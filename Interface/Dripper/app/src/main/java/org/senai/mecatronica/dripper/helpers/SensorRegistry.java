@@ -0,0 +1,253 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the sensors named in the controller payload to small integer ids, and the text
+ * values of label sensors to small integer codes.
+ *
+ * A sensor is registered the first time its name is seen and keeps its id for good, so
+ * readings can store their values in plain arrays indexed by id. Names and labels are
+ * looked up straight from the region of the message they appear in, nothing is copied
+ * unless the name or label is new. The four sensors of the original controller are
+ * always registered, with fixed ids.
+ * */
+
+public class SensorRegistry {
+
+    public static final int KIND_NUMBER = 0;
+    public static final int KIND_LABEL = 1;
+
+    public static final int TEMPERATURE = 0;
+    public static final int MOISTURE = 1;
+    public static final int LUMINOSITY = 2;
+    public static final int SOIL_MOISTURE = 3;
+
+    private static final int FILE_VERSION = 1;
+
+    private final File file;
+    private final InternTable names;
+    private final InternTable labels;
+    private final List<String> units;
+    private int[] kinds;
+    private boolean dirty;
+
+    /**
+     * @param file where the registry is kept, loaded now if it exists
+     * */
+    public SensorRegistry(File file) throws IOException{
+        this.file = file;
+        this.names = new InternTable();
+        this.labels = new InternTable();
+        this.units = new ArrayList<>();
+        this.kinds = new int[8];
+        register("Temperature", "°C", KIND_NUMBER);
+        register("Moisture", "%", KIND_NUMBER);
+        register("Luminosity", "Lux", KIND_LABEL);
+        register("Soil Moisture", "", KIND_LABEL);
+        //saved sensors start with the same four, so their ids are kept in order
+        if(file.exists()){
+            load();
+        }
+    }
+
+    /**
+     * Id of the sensor named by text[start, end), or -1 if it is not registered
+     * */
+    public synchronized int findSensor(CharSequence text, int start, int end){
+        return names.find(text, start, end);
+    }
+
+    /**
+     * Id of the sensor with the given name, registering it if it is new.
+     * The unit and kind are only used for new sensors.
+     * */
+    public synchronized int register(String name, String unit, int kind){
+        int id = names.find(name, 0, name.length());
+        if(id >= 0){
+            return id;
+        }
+        id = names.add(name);
+        units.add(unit);
+        if(id == kinds.length){
+            kinds = Arrays.copyOf(kinds, id * 2);
+        }
+        kinds[id] = kind;
+        dirty = true;
+        return id;
+    }
+
+    /**
+     * Code of the label text[start, end), interning it if it is new
+     * */
+    public synchronized int labelCode(CharSequence text, int start, int end){
+        int code = labels.find(text, start, end);
+        if(code < 0){
+            code = labels.add(text.subSequence(start, end).toString());
+            dirty = true;
+        }
+        return code;
+    }
+
+    public synchronized String getLabel(int code){
+        return labels.get(code);
+    }
+
+    public synchronized String getName(int id){
+        return names.get(id);
+    }
+
+    public synchronized String getUnit(int id){
+        return units.get(id);
+    }
+
+    public synchronized int getKind(int id){
+        return kinds[id];
+    }
+
+    public synchronized int getSensorCount(){
+        return names.size();
+    }
+
+    /**
+     * Write the registry to its file if anything was added since it was last saved.
+     * Must be called before storing values that use the new ids or codes.
+     * */
+    public synchronized void save() throws IOException{
+        if(!dirty){
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try{
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(names.size());
+            for(int id = 0; id < names.size(); id++){
+                out.writeUTF(names.get(id));
+                out.writeUTF(units.get(id));
+                out.writeByte(kinds[id]);
+            }
+            out.writeInt(labels.size());
+            for(int code = 0; code < labels.size(); code++){
+                out.writeUTF(labels.get(code));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("Unable to replace " + file.getName());
+        }
+        dirty = false;
+    }
+
+    private void load() throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            if(in.readInt() != FILE_VERSION){
+                throw new IOException("Unknown sensor registry version");
+            }
+            int sensorCount = in.readInt();
+            for(int id = 0; id < sensorCount; id++){
+                String name = in.readUTF();
+                String unit = in.readUTF();
+                register(name, unit, in.readByte());
+            }
+            int labelCount = in.readInt();
+            for(int code = 0; code < labelCount; code++){
+                labels.add(in.readUTF());
+            }
+        } finally {
+            in.close();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Open addressing hash table of strings to their insertion order, that can be
+     * queried with a region of a CharSequence without creating a String for it
+     * */
+    private static class InternTable {
+        private final List<String> values = new ArrayList<>();
+        private int[] slots = newSlots(16);
+
+        private static int[] newSlots(int capacity){
+            int[] slots = new int[capacity];
+            Arrays.fill(slots, -1);
+            return slots;
+        }
+
+        private static int hash(CharSequence text, int start, int end){
+            //same as String.hashCode
+            int hash = 0;
+            for(int i = start; i < end; i++){
+                hash = 31 * hash + text.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private int find(CharSequence text, int start, int end){
+            int mask = slots.length - 1;
+            for(int slot = hash(text, start, end) & mask; slots[slot] >= 0; slot = (slot + 1) & mask){
+                String value = values.get(slots[slot]);
+                if(value.length() == end - start && regionEquals(value, text, start)){
+                    return slots[slot];
+                }
+            }
+            return -1;
+        }
+
+        private static boolean regionEquals(String value, CharSequence text, int start){
+            for(int i = 0; i < value.length(); i++){
+                if(value.charAt(i) != text.charAt(start + i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int add(String value){
+            int index = values.size();
+            values.add(value);
+            //keep the table at most half full
+            if(values.size() * 2 > slots.length){
+                slots = newSlots(slots.length * 2);
+                for(int i = 0; i < values.size(); i++){
+                    insert(values.get(i), i);
+                }
+            } else {
+                insert(value, index);
+            }
+            return index;
+        }
+
+        private void insert(String value, int index){
+            int mask = slots.length - 1;
+            int slot = hash(value, 0, value.length()) & mask;
+            while(slots[slot] >= 0){
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+
+        private String get(int index){
+            return values.get(index);
+        }
+
+        private int size(){
+            return values.size();
+        }
+    }
+}
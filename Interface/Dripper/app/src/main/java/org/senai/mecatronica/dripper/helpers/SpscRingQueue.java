@@ -0,0 +1,69 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * The producer only writes the tail and the consumer only writes the head, so no
+ * locks or compare-and-set loops are needed; ordered writes publish the slots.
+ * */
+
+public class SpscRingQueue<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     * */
+    public SpscRingQueue(int capacity){
+        int size = 1;
+        while(size < capacity){
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+    }
+
+    /**
+     * Producer side. Returns false if the queue is full.
+     * */
+    public boolean offer(T item){
+        long currentTail = tail.get();
+        if(currentTail - head.get() == slots.length()){
+            return false;
+        }
+        slots.lazySet((int) currentTail & mask, item);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns null if the queue is empty.
+     * */
+    public T poll(){
+        long currentHead = head.get();
+        if(currentHead == tail.get()){
+            return null;
+        }
+        int index = (int) currentHead & mask;
+        T item = slots.get(index);
+        slots.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+        return item;
+    }
+
+    public boolean isEmpty(){
+        return head.get() == tail.get();
+    }
+
+    public int capacity(){
+        return slots.length();
+    }
+}
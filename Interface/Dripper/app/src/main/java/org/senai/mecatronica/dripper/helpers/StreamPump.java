@@ -0,0 +1,143 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the input stream of a connection on a thread of its own, for as long as the
+ * connection is open, and queues what it reads for the transport's reads.
+ *
+ * Socket reads can be neither interrupted nor, on Bluetooth, given a timeout. The pump
+ * thread does plain blocking reads, like the connected thread of the first versions
+ * did, and ends when the socket is closed. Reads wait on the queue instead, with a
+ * timeout if they want one, and a sync can stop waiting by interrupting its reader
+ * without closing a connection that is kept for the next sync. The end of the stream
+ * and read errors are queued after the bytes, so a controller hanging up is seen as soon
+ * as what it sent before was read.
+ *
+ * Reads are expected from one thread at a time.
+ * */
+
+public class StreamPump {
+
+    private static final int BUFFER_SIZE = 1024;
+    //buffers read ahead before the pump stops reading, pushing back on the controller
+    private static final int QUEUE_CAPACITY = 64;
+    //end of the stream, compared by identity
+    private static final byte[] END = new byte[0];
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicInteger available = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean ended;
+    private volatile IOException failure;
+    //buffer being read and the position in it, reader thread only
+    private byte[] current;
+    private int position;
+
+    public StreamPump(InputStream in, String name){
+        this.in = in;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        }, name);
+        thread.setDaemon(true);
+    }
+
+    public void start(){
+        thread.start();
+    }
+
+    /**
+     * Stop the pump if it waits for the reads to catch up. The owner closes the socket,
+     * which ends a read in progress.
+     * */
+    public void stop(){
+        thread.interrupt();
+    }
+
+    /**
+     * See Transport.read()
+     * */
+    public int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+        if(current == null){
+            if(ended && queue.isEmpty()){
+                return end();
+            }
+            byte[] next;
+            try{
+                next = timeoutMs > 0 ? queue.poll(timeoutMs, TimeUnit.MILLISECONDS) : queue.take();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read cancelled");
+            }
+            if(next == null){
+                throw new SocketTimeoutException("Nothing read in " + timeoutMs + " ms");
+            }
+            if(next == END){
+                return end();
+            }
+            current = next;
+            position = 0;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buffer, offset, count);
+        position += count;
+        if(position == current.length){
+            current = null;
+        }
+        available.addAndGet(-count);
+        return count;
+    }
+
+    /**
+     * Bytes that can be read without waiting
+     * */
+    public int available(){
+        return Math.max(available.get(), 0);
+    }
+
+    private int end() throws IOException {
+        IOException e = failure;
+        if(e != null){
+            throw new IOException(e.getMessage(), e);
+        }
+        return -1;
+    }
+
+    private void pump(){
+        try{
+            while(true){
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytes = in.read(buffer);
+                if(bytes < 0){
+                    break;
+                }
+                if(bytes == 0){
+                    continue;
+                }
+                //counted first, a read may take the bytes as soon as they are queued
+                available.addAndGet(bytes);
+                queue.put(bytes == buffer.length ? buffer : Arrays.copyOf(buffer, bytes));
+            }
+        } catch (IOException e){
+            //closed by the owner or lost
+            failure = e;
+        } catch (InterruptedException e){
+            failure = new IOException("Connection closed");
+        }
+        ended = true;
+        //a full queue is drained first and the end is seen by the flag
+        queue.offer(END);
+    }
+}
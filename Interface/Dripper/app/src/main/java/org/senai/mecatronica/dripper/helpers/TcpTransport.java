@@ -0,0 +1,86 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket, e.g. to a controller stand-in running on the same
+ * machine, so the sync can be tested and measured without a phone or a radio. Reads
+ * go through a StreamPump like on Bluetooth, so they can be interrupted the same way.
+ * */
+
+public class TcpTransport implements Transport {
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+    private StreamPump pump;
+    private OutputStream out;
+
+    public TcpTransport(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void open(long timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try{
+            socket.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+            //frames and acks are small and must not wait for more data to fill a segment
+            socket.setTcpNoDelay(true);
+            pump = new StreamPump(socket.getInputStream(), "TCP Reader");
+            out = socket.getOutputStream();
+        } catch (IOException e){
+            socket.close();
+            throw e;
+        }
+        pump.start();
+        this.socket = socket;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+        openSocket();
+        return pump.read(buffer, offset, length, timeoutMs);
+    }
+
+    @Override
+    public int available() throws IOException {
+        openSocket();
+        return pump.available();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        openSocket();
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        Socket socket = this.socket;
+        if(socket != null){
+            try{
+                socket.close();
+            } catch (IOException e){ }
+            pump.stop();
+        }
+    }
+
+    private Socket openSocket() throws IOException{
+        Socket socket = this.socket;
+        if(socket == null){
+            throw new IOException("Transport not open");
+        }
+        return socket;
+    }
+}
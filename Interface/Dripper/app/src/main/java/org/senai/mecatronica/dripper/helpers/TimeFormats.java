@@ -0,0 +1,66 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.EpochMillis;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Text of the instants shown on screen. Times are kept as EpochMillis, EpochDay and
+ * MinuteOfDay everywhere else and turned into text only here, at the edge of the UI.
+ *
+ * SimpleDateFormat is costly to build and not thread safe, so each thread keeps one of
+ * each format and reuses it.
+ * */
+
+public class TimeFormats {
+
+    //as the last sync was always shown
+    private static final String DATE_TIME_PATTERN = "h:mm a dd/MM/yy";
+    private static final String TIMESTAMP_PATTERN = "dd/MM/yyyy HH:mm:ss";
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_TIME = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(DATE_TIME_PATTERN, Locale.getDefault());
+        }
+    };
+
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.US);
+        }
+    };
+
+    /**
+     * As "h:mm AM dd/MM/yy", in the phone's time zone
+     * */
+    public static String formatDateTime(EpochMillis time){
+        return DATE_TIME.get().format(new Date(time.getValue()));
+    }
+
+    /**
+     * Instant of text written by formatDateTime(), null if unreadable. Only for text
+     * stored before times were kept as numbers.
+     * */
+    public static EpochMillis parseDateTime(String text){
+        if(text == null){
+            return null;
+        }
+        try{
+            return EpochMillis.of(DATE_TIME.get().parse(text).getTime());
+        } catch (ParseException e){
+            return null;
+        }
+    }
+
+    /**
+     * As "dd/MM/yyyy HH:mm:ss", for reports
+     * */
+    public static String formatTimestamp(EpochMillis time){
+        return TIMESTAMP.get().format(new Date(time.getValue()));
+    }
+}
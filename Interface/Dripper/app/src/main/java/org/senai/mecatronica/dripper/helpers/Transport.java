@@ -0,0 +1,53 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.io.IOException;
+
+/**
+ * A byte stream connection to one controller, whatever carries it.
+ *
+ * The sync only needs to open the connection, read and write bytes and close it again,
+ * so it runs the same over a Bluetooth socket on the phone and over a TCP socket to a
+ * stand-in controller on any JVM. Connecting and writing have a timeout, and reads can
+ * have one or be interrupted, so a dead link is noticed instead of waited on forever.
+ * */
+
+public interface Transport {
+
+    /**
+     * Address of the controller, as the sync state and the sensor log partitions know it
+     * */
+    String getAddress();
+
+    /**
+     * Connect, blocking at most timeoutMs
+     *
+     * @throws IOException if the controller could not be reached in time
+     * */
+    void open(long timeoutMs) throws IOException, InterruptedException;
+
+    /**
+     * Read up to length bytes, blocking at most timeoutMs for the first one (0 waits
+     * until data arrives or the connection ends). Interrupting the thread stops the wait
+     * and leaves the connection open.
+     *
+     * @return the number of bytes read, or -1 if the controller closed the connection
+     * @throws java.net.SocketTimeoutException if nothing arrived in time
+     * @throws java.io.InterruptedIOException if the thread was interrupted while waiting
+     * */
+    int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException;
+
+    /**
+     * Bytes that can be read without blocking
+     * */
+    int available() throws IOException;
+
+    /**
+     * Write and flush the bytes
+     * */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Close the connection, unblocking reads and writes in progress. Never throws.
+     * */
+    void close();
+}
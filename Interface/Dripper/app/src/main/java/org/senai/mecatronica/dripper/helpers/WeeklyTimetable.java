@@ -0,0 +1,285 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An irrigation schedule compiled into the minutes the valve is open, so the controller
+ * needs no trigger, day name or time text to run it: "is the valve open now?" is one bit.
+ *
+ * The weekly bitmap has a bit per minute of the week, from Sunday 00:00, set by the
+ * weekly triggers and repeating every week. One time triggers go in a second bitmap of
+ * the same size that covers the 7 days from the anchor, the midnight in local minutes
+ * of the day the first one time trigger not over yet starts on, or 0 when there is none.
+ * Those starting later than that are left out (see covers()) and go with a sync after the
+ * earlier ones are over, which the phone tells the user when they are saved. A trigger
+ * opens the valve from its start minute for its duration rounded up to whole minutes.
+ *
+ * Both bitmaps have a fixed size whatever the number of triggers, 1260 bytes each, and
+ * also convert to runs of closed and open minutes (see getWeeklyRuns()) that are usually
+ * much smaller. The checksum covers the anchor and both bitmaps, so the controller can
+ * tell the phone whether the timetable it holds is current. The anchor only moves when a
+ * one time trigger is over, so compiling the same schedule on another day gives the same
+ * checksum and the timetable is not sent again.
+ * */
+
+public class WeeklyTimetable {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    private final boolean auto;
+    private final long[] weekly;
+    private final long[] once;
+    //local minutes since 1970-01-01 of the first minute of the once bitmap
+    private final long anchor;
+    private final int checksum;
+
+    public WeeklyTimetable(boolean auto, long anchor, long[] weekly, long[] once){
+        this.auto = auto;
+        this.anchor = anchor;
+        this.weekly = weekly;
+        this.once = once;
+        this.checksum = computeChecksum();
+    }
+
+    /**
+     * Compile a schedule at a time in local seconds (see IrrigationTimeline)
+     * */
+    public static WeeklyTimetable compile(boolean auto, List<IrrigationData> triggers, long now){
+        long[] weekly = emptyBitmap();
+        long[] once = emptyBitmap();
+        long anchor = anchorOf(triggers, IrrigationTimeline.floorDiv(now, 60));
+        for(IrrigationData trigger : triggers){
+            int minute = trigger.getStartMinute();
+            //whole minutes, a part of a minute keeps the valve open for all of it
+            int duration = (int) Math.min((trigger.getDurationSeconds() + 59L) / 60, MINUTES_PER_WEEK);
+            if(minute == IrrigationData.NO_START_TIME || duration <= 0){
+                continue;
+            }
+            if(trigger.isOneTime()){
+                if(!trigger.hasStartDate()){
+                    continue;
+                }
+                long start = (long) trigger.getStartDay() * MINUTES_PER_DAY + minute - anchor;
+                //only what is left of it inside the 7 days, triggers over before the anchor
+                //are left out whole
+                long end = Math.min(start + duration, MINUTES_PER_WEEK);
+                start = Math.max(start, 0);
+                if(start < end){
+                    setRange(once, (int) start, (int) end);
+                }
+                continue;
+            }
+            for(int day = 0; day < IrrigationData.WEEKDAY_NAMES.length; day++){
+                if(trigger.isWeekday(day)){
+                    setWrapped(weekly, day * MINUTES_PER_DAY + minute, duration);
+                }
+            }
+        }
+        return new WeeklyTimetable(auto, anchor, weekly, once);
+    }
+
+    public boolean isAuto(){
+        return auto;
+    }
+
+    /**
+     * False for a one time trigger left out of the timetable because it starts 7 days or
+     * more after the anchor
+     * */
+    public boolean covers(IrrigationData trigger){
+        if(!trigger.isOneTime() || !trigger.hasStartDate() || trigger.getStartMinute() == IrrigationData.NO_START_TIME){
+            return true;
+        }
+        return (long) trigger.getStartDay() * MINUTES_PER_DAY + trigger.getStartMinute() - anchor < MINUTES_PER_WEEK;
+    }
+
+    public long getAnchor(){
+        return anchor;
+    }
+
+    public int getChecksum(){
+        return checksum;
+    }
+
+    /**
+     * True if the valve is open at a time in local minutes since 1970-01-01
+     * */
+    public boolean isOpenAt(long localMinute){
+        long day = IrrigationTimeline.floorDiv(localMinute, MINUTES_PER_DAY);
+        int minuteOfWeek = IrrigationTimeline.weekday((int) day) * MINUTES_PER_DAY
+                + (int) (localMinute - day * MINUTES_PER_DAY);
+        if(isSet(weekly, minuteOfWeek)){
+            return true;
+        }
+        long sinceAnchor = localMinute - anchor;
+        return sinceAnchor >= 0 && sinceAnchor < MINUTES_PER_WEEK && isSet(once, (int) sinceAnchor);
+    }
+
+    /**
+     * True if the weekly triggers open the valve at a minute of the week, from Sunday 00:00
+     * */
+    public boolean isOpenWeekly(int minuteOfWeek){
+        return isSet(weekly, minuteOfWeek);
+    }
+
+    public boolean matches(WeeklyTimetable other){
+        return checksum == other.checksum && auto == other.auto && anchor == other.anchor
+                && Arrays.equals(weekly, other.weekly) && Arrays.equals(once, other.once);
+    }
+
+    /**
+     * Weekly bitmap as lengths of alternating runs, closed minutes first, adding up to
+     * MINUTES_PER_WEEK. The first run is 0 if the week starts open.
+     * */
+    public int[] getWeeklyRuns(){
+        return toRuns(weekly);
+    }
+
+    public int[] getOnceRuns(){
+        return toRuns(once);
+    }
+
+    /**
+     * Weekly bitmap as bytes, least significant bit first
+     * */
+    public byte[] getWeeklyBytes(){
+        return toBytes(weekly);
+    }
+
+    public byte[] getOnceBytes(){
+        return toBytes(once);
+    }
+
+    /**
+     * Number of bytes of a bitmap in its dense form
+     * */
+    public static int bitmapBytes(){
+        return MINUTES_PER_WEEK / 8;
+    }
+
+    public static long[] emptyBitmap(){
+        return new long[(MINUTES_PER_WEEK + 63) / 64];
+    }
+
+    /**
+     * Bitmap of the runs written by toRuns(), null if they do not add up to a week
+     * */
+    public static long[] fromRuns(int[] runs){
+        long[] bitmap = emptyBitmap();
+        int minute = 0;
+        for(int i = 0; i < runs.length; i++){
+            if(runs[i] < 0 || runs[i] > MINUTES_PER_WEEK - minute){
+                return null;
+            }
+            if(i % 2 == 1){
+                setRange(bitmap, minute, minute + runs[i]);
+            }
+            minute += runs[i];
+        }
+        return minute == MINUTES_PER_WEEK ? bitmap : null;
+    }
+
+    public static long[] fromBytes(byte[] bytes){
+        long[] bitmap = emptyBitmap();
+        for(int i = 0; i < bytes.length && i < bitmapBytes(); i++){
+            bitmap[i / 8] |= (bytes[i] & 0xFFL) << (8 * (i % 8));
+        }
+        return bitmap;
+    }
+
+    private static int[] toRuns(long[] bitmap){
+        int[] runs = new int[16];
+        int count = 0;
+        boolean open = false;
+        int runStart = 0;
+        for(int minute = 0; minute <= MINUTES_PER_WEEK; minute++){
+            boolean set = minute < MINUTES_PER_WEEK && isSet(bitmap, minute);
+            if(minute == MINUTES_PER_WEEK || set != open){
+                if(count == runs.length){
+                    runs = Arrays.copyOf(runs, count * 2);
+                }
+                runs[count++] = minute - runStart;
+                runStart = minute;
+                open = set;
+            }
+        }
+        return Arrays.copyOf(runs, count);
+    }
+
+    private static byte[] toBytes(long[] bitmap){
+        byte[] bytes = new byte[bitmapBytes()];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) (bitmap[i / 8] >>> (8 * (i % 8)));
+        }
+        return bytes;
+    }
+
+    /**
+     * Midnight of the start day of the first one time trigger not over at a local minute,
+     * 0 if there is none
+     * */
+    private static long anchorOf(List<IrrigationData> triggers, long nowMinute){
+        long first = Long.MAX_VALUE;
+        for(IrrigationData trigger : triggers){
+            int minute = trigger.getStartMinute();
+            if(!trigger.isOneTime() || !trigger.hasStartDate() || minute == IrrigationData.NO_START_TIME
+                    || trigger.getDurationSeconds() <= 0){
+                continue;
+            }
+            long start = (long) trigger.getStartDay() * MINUTES_PER_DAY + minute;
+            long duration = Math.min((trigger.getDurationSeconds() + 59L) / 60, MINUTES_PER_WEEK);
+            if(start + duration > nowMinute){
+                first = Math.min(first, start);
+            }
+        }
+        return first == Long.MAX_VALUE ? 0 : IrrigationTimeline.floorDiv(first, MINUTES_PER_DAY) * MINUTES_PER_DAY;
+    }
+
+    private int computeChecksum(){
+        CRC32 crc = new CRC32();
+        crc.update(auto ? 1 : 0);
+        for(int shift = 56; shift >= 0; shift -= 8){
+            crc.update((int) (anchor >>> shift));
+        }
+        byte[] bytes = toBytes(weekly);
+        crc.update(bytes, 0, bytes.length);
+        bytes = toBytes(once);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static boolean isSet(long[] bitmap, int minute){
+        return (bitmap[minute >>> 6] & (1L << minute)) != 0;
+    }
+
+    /**
+     * Set the minutes from start (inclusive) to end (exclusive), inside one week
+     * */
+    private static void setRange(long[] bitmap, int start, int end){
+        for(int minute = start; minute < end; ){
+            int word = minute >>> 6;
+            int bits = Math.min(64 - (minute & 63), end - minute);
+            long mask = bits == 64 ? -1L : ((1L << bits) - 1) << (minute & 63);
+            bitmap[word] |= mask;
+            minute += bits;
+        }
+    }
+
+    /**
+     * Set duration minutes from start, going on at the start of the week past its end
+     * */
+    private static void setWrapped(long[] bitmap, int start, int duration){
+        int end = start + duration;
+        if(end <= MINUTES_PER_WEEK){
+            setRange(bitmap, start, end);
+        } else {
+            setRange(bitmap, start, MINUTES_PER_WEEK);
+            setRange(bitmap, 0, end - MINUTES_PER_WEEK);
+        }
+    }
+}
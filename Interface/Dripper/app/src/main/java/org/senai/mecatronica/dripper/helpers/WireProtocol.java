@@ -0,0 +1,259 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Binary format of the sync with the field controller.
+ *
+ * The phone opens every connection with the ASCII hello "DRP/" + highest version + '#'.
+ * A controller that speaks the binary protocol answers "DRP/" + chosen version and then
+ * sends messages; an old controller answers with its JSON file as it does for any data it
+ * receives, and the phone falls back to the JSON sync (version 1). The hello is plain
+ * text ending in '#' so old controllers take it as a regular message.
+ *
+ * Which means an old controller also stores it: Program/bt_service.py writes every
+ * message up to a '#' to its client file, so after the hello the schedule it runs is
+ * "DRP/6" until the phone uploads the irrigation file again. The JSON sync only completes
+ * once that upload was written, and a sync that fails before the controller's version is
+ * known is run again at once (see ControllerSync.isScheduleAtRisk()).
+ *
+ * Version 3 adds the sync request: the phone tells the controller the time of the newest
+ * log it already has, so only newer logs are sent instead of the whole history. Version 4
+ * replaces the schedule upload: the controller first sends the hashes of the triggers it
+ * holds and the phone answers with only the triggers that changed. Version 5 keeps the
+ * connection open after the end message: the controller waits for the next hello and
+ * ignores ping frames until then. Older binary controllers close it. Version 6 sends the
+ * schedule compiled into a weekly timetable (see WeeklyTimetable) instead of its triggers:
+ * the controller sends the checksum of the timetable it holds and the phone answers with
+ * the timetable, or only its checksum when it did not change.
+ *
+ * After the handshake both sides exchange messages through a FramedLink, which adds the
+ * length, sequence number and checksum. A message is a type byte and the payload.
+ * Integers are varints (7 bits per byte, least significant group first), signed ones
+ * zigzag encoded, and strings are a varint byte length followed by UTF-8.
+ * */
+
+public class WireProtocol {
+
+    public static final int VERSION_JSON = 1;
+    public static final int VERSION_BINARY = 2;
+    public static final int VERSION_DELTA_SYNC = 3;
+    public static final int VERSION_SCHEDULE_DIFF = 4;
+    public static final int VERSION_PERSISTENT = 5;
+    public static final int VERSION_TIMETABLE = 6;
+    public static final int MAX_VERSION = VERSION_TIMETABLE;
+
+    //phone -> controller
+    public static final byte MESSAGE_SCHEDULE = 0x01;
+    public static final byte MESSAGE_SYNC_REQUEST = 0x06;
+    public static final byte MESSAGE_SCHEDULE_DIFF = 0x08;
+    public static final byte MESSAGE_TIMETABLE = 0x0A;
+    //controller -> phone
+    public static final byte MESSAGE_SENSOR = 0x02;
+    public static final byte MESSAGE_LABEL = 0x03;
+    public static final byte MESSAGE_LOGS = 0x04;
+    public static final byte MESSAGE_END = 0x05;
+    public static final byte MESSAGE_SCHEDULE_STATE = 0x07;
+    public static final byte MESSAGE_TIMETABLE_STATE = 0x09;
+
+    //numbers travel as hundredths
+    public static final double NUMBER_SCALE = 100.0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] HELLO_PREFIX = "DRP/".getBytes(UTF_8);
+    private static final byte HELLO_END = '#';
+
+    /**
+     * Length of the controller's answer to the hello, in the binary protocol
+     * */
+    public static final int HELLO_REPLY_LENGTH = HELLO_PREFIX.length + 1;
+
+    public static byte[] hello(){
+        byte[] hello = Arrays.copyOf(HELLO_PREFIX, HELLO_PREFIX.length + 2);
+        hello[HELLO_PREFIX.length] = (byte) ('0' + MAX_VERSION);
+        hello[HELLO_PREFIX.length + 1] = HELLO_END;
+        return hello;
+    }
+
+    public static byte[] helloReply(int version){
+        byte[] reply = Arrays.copyOf(HELLO_PREFIX, HELLO_REPLY_LENGTH);
+        reply[HELLO_PREFIX.length] = (byte) ('0' + version);
+        return reply;
+    }
+
+    /**
+     * Check the first bytes received after the hello.
+     *
+     * @return the negotiated version, VERSION_JSON if the bytes are not a binary reply,
+     * or 0 if more bytes are needed to tell
+     * */
+    public static int negotiatedVersion(byte[] data, int length){
+        for(int i = 0; i < HELLO_PREFIX.length; i++){
+            if(i >= length){
+                return 0;
+            }
+            if(data[i] != HELLO_PREFIX[i]){
+                return VERSION_JSON;
+            }
+        }
+        if(length < HELLO_REPLY_LENGTH){
+            return 0;
+        }
+        int version = data[HELLO_PREFIX.length] - '0';
+        return version >= VERSION_BINARY && version <= MAX_VERSION ? version : VERSION_JSON;
+    }
+
+    /**
+     * Version a controller should answer with to the given hello, or 0 if the bytes are
+     * not a hello
+     * */
+    public static int acceptHello(byte[] data, int length){
+        if(length != HELLO_PREFIX.length + 2 || data[length - 1] != HELLO_END){
+            return 0;
+        }
+        for(int i = 0; i < HELLO_PREFIX.length; i++){
+            if(data[i] != HELLO_PREFIX[i]){
+                return 0;
+            }
+        }
+        return Math.min(data[HELLO_PREFIX.length] - '0', MAX_VERSION);
+    }
+
+    /**
+     * Builds one message in a growable buffer
+     * */
+    public static class Writer {
+        private byte[] buffer;
+        private int position;
+
+        public Writer(byte type){
+            this();
+            writeByte(type);
+        }
+
+        /**
+         * Writer for fields without a message type
+         * */
+        public Writer(){
+            buffer = new byte[64];
+        }
+
+        public Writer writeByte(int value){
+            ensure(1);
+            buffer[position++] = (byte) value;
+            return this;
+        }
+
+        public Writer writeVarint(long value){
+            ensure(10);
+            while((value & ~0x7FL) != 0){
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+            return this;
+        }
+
+        public Writer writeSignedVarint(long value){
+            return writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        public Writer writeBytes(byte[] value){
+            ensure(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+            return this;
+        }
+
+        public Writer writeString(String value){
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return this;
+        }
+
+        public byte[] toMessage(){
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int bytes){
+            if(position + bytes > buffer.length){
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of one message, the type byte first
+     * */
+    public static class Reader {
+        private final ByteBuffer buffer;
+
+        public Reader(byte[] message){
+            this.buffer = ByteBuffer.wrap(message);
+        }
+
+        public int readByte() throws ParseException{
+            try{
+                return buffer.get() & 0xFF;
+            } catch (BufferUnderflowException e){
+                throw new ParseException("Message too short", buffer.position());
+            }
+        }
+
+        public long readVarint() throws ParseException{
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7){
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0){
+                    return value;
+                }
+            }
+            throw new ParseException("Varint too long", buffer.position());
+        }
+
+        public int readInt() throws ParseException{
+            long value = readVarint();
+            if(value < 0 || value > Integer.MAX_VALUE){
+                throw new ParseException("Value out of range", buffer.position());
+            }
+            return (int) value;
+        }
+
+        public long readSignedVarint() throws ParseException{
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public byte[] readBytes(int length) throws ParseException{
+            if(length > buffer.remaining()){
+                throw new ParseException("Message too short", buffer.position());
+            }
+            byte[] value = new byte[length];
+            buffer.get(value);
+            return value;
+        }
+
+        public String readString() throws ParseException{
+            int length = readInt();
+            if(length > buffer.remaining()){
+                throw new ParseException("String too long", buffer.position());
+            }
+            String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        public boolean hasRemaining(){
+            return buffer.hasRemaining();
+        }
+    }
+
+}
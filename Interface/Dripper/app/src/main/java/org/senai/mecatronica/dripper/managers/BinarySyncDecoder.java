@@ -0,0 +1,108 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.util.Log;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.BinarySyncCodec;
+import org.senai.mecatronica.dripper.helpers.FramedLink;
+import org.senai.mecatronica.dripper.helpers.ScheduleDigest;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+import org.senai.mecatronica.dripper.helpers.WeeklyTimetable;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder for the binary protocol (see WireProtocol). Messages arrive through the
+ * connection's FramedLink, which also acknowledges them. The sync ends with the end
+ * message.
+ *
+ * A schedule state from the controller is answered here with a diff from the schedule
+ * the connection started with, and a timetable state with the timetable compiled from
+ * it; the controller ends the sync only after receiving the answer.
+ * */
+
+public class BinarySyncDecoder implements SensorIngestionPipeline.MessageDecoder<byte[]> {
+
+    private static final String TAG = "Binary Sync Decoder";
+
+    private final FramedLink link;
+    private final BinarySyncCodec codec;
+    private final List<IrrigationData> triggers;
+    private final ScheduleDigest schedule;
+    //null below version 6
+    private final WeeklyTimetable timetable;
+
+    public BinarySyncDecoder(FramedLink link, SensorRegistry registry, List<IrrigationData> triggers, ScheduleDigest schedule,
+                             WeeklyTimetable timetable){
+        this.link = link;
+        this.codec = new BinarySyncCodec(registry);
+        this.triggers = triggers;
+        this.schedule = schedule;
+        this.timetable = timetable;
+    }
+
+    @Override
+    public List<byte[]> frame(byte[] data, int offset, int length) {
+        try{
+            return link.receive(data, offset, length);
+        } catch (IOException e){
+            throw new IllegalStateException("Unable to acknowledge: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<SensorReading> parse(byte[] message) throws ParseException {
+        if(message.length > 0 && message[0] == WireProtocol.MESSAGE_SCHEDULE_STATE){
+            sendScheduleDiff(BinarySyncCodec.decodeScheduleState(message));
+            return new ArrayList<>(0);
+        }
+        if(message.length > 0 && message[0] == WireProtocol.MESSAGE_TIMETABLE_STATE){
+            sendTimetable(BinarySyncCodec.decodeTimetableState(message));
+            return new ArrayList<>(0);
+        }
+        return DataManager.sortAndMerge(codec.decode(message));
+    }
+
+    private void sendScheduleDiff(ScheduleDigest controllerSchedule){
+        if(schedule.matches(controllerSchedule)){
+            Log.i(TAG, "Schedule unchanged");
+        }
+        try{
+            //sent even when empty, it is what the controller waits for
+            link.send(BinarySyncCodec.encodeScheduleDiff(schedule, triggers, controllerSchedule));
+        } catch (IOException e){
+            Log.e(TAG, "Unable to send schedule");
+        } catch (InterruptedException e){
+            //the pipeline was cancelled, the parse stage stops at its next wait
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendTimetable(int controllerChecksum){
+        if(timetable == null){
+            Log.e(TAG, "Timetable requested below version " + WireProtocol.VERSION_TIMETABLE);
+            return;
+        }
+        if(timetable.getChecksum() == controllerChecksum){
+            Log.i(TAG, "Timetable unchanged");
+        }
+        try{
+            //only the checksum when unchanged, it is what the controller waits for
+            link.send(BinarySyncCodec.encodeTimetable(timetable, controllerChecksum));
+        } catch (IOException e){
+            Log.e(TAG, "Unable to send timetable");
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isLast(byte[] message) {
+        return BinarySyncCodec.isEnd(message);
+    }
+}
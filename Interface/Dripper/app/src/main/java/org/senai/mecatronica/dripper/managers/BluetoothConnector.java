@@ -0,0 +1,211 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Opens an RFCOMM socket to the controller.
+ *
+ * Controllers and phones disagree on which way of opening the socket works: the fixed
+ * channel skips the service lookup but only works if the controller listens on channel 1,
+ * the serial port UUID works with most serial adapters, and the Dripper service record is
+ * what the controller advertises. All of them are tried at the same time, the first
+ * socket to connect is kept and the others are closed. The strategy that won is
+ * remembered for the controller, and later connects try it alone first.
+ *
+ * BluetoothSocket.connect() has no timeout, so an attempt is stopped by closing its
+ * socket once its timeout has passed.
+ */
+
+public class BluetoothConnector {
+
+    private static final String TAG = "Bluetooth Connector";
+
+    public static final int STRATEGY_NONE = -1;
+    public static final int STRATEGY_FIXED_CHANNEL = 0;
+    public static final int STRATEGY_SPP_UUID = 1;
+    public static final int STRATEGY_SERVICE_RECORD = 2;
+    private static final int[] STRATEGIES = {STRATEGY_FIXED_CHANNEL, STRATEGY_SPP_UUID, STRATEGY_SERVICE_RECORD};
+
+    private static final int RFCOMM_CHANNEL = 1;
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    //advertised by the controller's bluetooth service
+    private static final UUID SERVICE_UUID = UUID.fromString("e821e169-d793-423b-927b-f9c7a5017fb1");
+    //default timeout of a round of attempts
+    public static final long ATTEMPT_TIMEOUT_MS = 8000;
+
+    private final DataManager dataManager;
+    private volatile Race currentRace;
+    private volatile boolean cancelled;
+
+    public BluetoothConnector(DataManager dataManager){
+        this.dataManager = dataManager;
+    }
+
+    /**
+     * Connect to a device, blocking until a strategy succeeds or all of them failed. Each
+     * round of attempts gives up after timeoutMs.
+     *
+     * @return the connected socket, or null
+     * */
+    public BluetoothSocket connect(BluetoothDevice device, long timeoutMs) throws InterruptedException{
+        String address = device.getAddress();
+        int cached = dataManager.getConnectStrategy(address);
+        if(cached != STRATEGY_NONE){
+            BluetoothSocket socket = run(new Race(device, new int[]{cached}, timeoutMs));
+            if(socket != null || cancelled){
+                return socket;
+            }
+            Log.i(TAG, "Strategy " + cached + " failed, trying all");
+        }
+        Race race = new Race(device, STRATEGIES, timeoutMs);
+        BluetoothSocket socket = run(race);
+        if(socket != null){
+            dataManager.setConnectStrategy(address, race.winnerStrategy);
+        } else if(cached != STRATEGY_NONE){
+            dataManager.setConnectStrategy(address, STRATEGY_NONE);
+        }
+        return socket;
+    }
+
+    /**
+     * Stop the connect in progress and any later one
+     * */
+    public void cancel(){
+        cancelled = true;
+        Race race = currentRace;
+        if(race != null){
+            race.closeAll();
+        }
+    }
+
+    private BluetoothSocket run(Race race) throws InterruptedException{
+        currentRace = race;
+        if(cancelled){
+            return null;
+        }
+        try{
+            return race.run();
+        } finally {
+            currentRace = null;
+        }
+    }
+
+    private static BluetoothSocket createSocket(BluetoothDevice device, int strategy) throws Exception{
+        switch (strategy){
+            case STRATEGY_FIXED_CHANNEL:
+                //reflection (getclass.getmethod), the method is hidden
+                Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
+                return (BluetoothSocket) m.invoke(device, RFCOMM_CHANNEL);
+            case STRATEGY_SPP_UUID:
+                return device.createRfcommSocketToServiceRecord(SPP_UUID);
+            case STRATEGY_SERVICE_RECORD:
+                return device.createRfcommSocketToServiceRecord(SERVICE_UUID);
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+        }
+    }
+
+    private static void close(BluetoothSocket socket){
+        try{
+            socket.close();
+        } catch (IOException e){ }
+    }
+
+    /**
+     * One round of concurrent attempts. Attempt threads report to it under its lock.
+     * */
+    private static class Race {
+        private final BluetoothDevice device;
+        private final int[] strategies;
+        private final long timeoutMs;
+        private final List<BluetoothSocket> sockets;
+        private int pending;
+        private BluetoothSocket winner;
+        private int winnerStrategy = STRATEGY_NONE;
+        private boolean over;
+
+        Race(BluetoothDevice device, int[] strategies, long timeoutMs){
+            this.device = device;
+            this.strategies = strategies;
+            this.timeoutMs = timeoutMs;
+            this.sockets = new ArrayList<>(strategies.length);
+        }
+
+        synchronized BluetoothSocket run() throws InterruptedException{
+            pending = strategies.length;
+            for(final int strategy : strategies){
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(strategy);
+                    }
+                }, "Connect " + strategy).start();
+            }
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            try{
+                long remaining;
+                while(winner == null && pending > 0 && (remaining = deadline - System.currentTimeMillis()) > 0){
+                    wait(remaining);
+                }
+            } finally {
+                over = true;
+                //stops the attempts still connecting, the winner is no longer in the list
+                closeAll();
+            }
+            return winner;
+        }
+
+        synchronized void closeAll(){
+            for(BluetoothSocket socket : sockets){
+                close(socket);
+            }
+            sockets.clear();
+        }
+
+        private void attempt(int strategy){
+            BluetoothSocket socket = null;
+            try{
+                socket = createSocket(device, strategy);
+                synchronized (this){
+                    if(over){
+                        close(socket);
+                        return;
+                    }
+                    sockets.add(socket);
+                }
+                socket.connect();
+                synchronized (this){
+                    sockets.remove(socket);
+                    if(over || winner != null){
+                        close(socket);
+                    } else {
+                        Log.i(TAG, "Connected with strategy " + strategy);
+                        winner = socket;
+                        winnerStrategy = strategy;
+                    }
+                }
+            } catch (Exception e){
+                Log.i(TAG, "Strategy " + strategy + " failed: " + e.getMessage());
+                if(socket != null){
+                    synchronized (this){
+                        sockets.remove(socket);
+                    }
+                    close(socket);
+                }
+            } finally {
+                synchronized (this){
+                    pending--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
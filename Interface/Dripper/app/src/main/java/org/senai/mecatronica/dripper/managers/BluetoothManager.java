@@ -1,77 +1,84 @@
 package org.senai.mecatronica.dripper.managers;
 
-import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.net.Uri;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.senai.mecatronica.dripper.helpers.DateOperations;
+import org.senai.mecatronica.dripper.beans.Controller;
+import org.senai.mecatronica.dripper.helpers.FrameAssembler;
+import org.senai.mecatronica.dripper.helpers.Transport;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.Arrays;
+import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
 
 /**
  * Created by Felipe on 20/11/2017.
+ *
+ * Keeps one connection to the controller open between syncs, owned by a connection
+ * thread that outlives the activities (see ConnectionService). A sync on an open
+ * connection skips the RFCOMM connect, which takes seconds. Idle connections to
+ * controllers that allow it are kept warm with ping frames, and a lost connection is
+ * opened again with exponential backoff and jitter. Controllers that hang up after a
+ * sync are only dialed again for the next one. Once no sync was asked for in
+ * IDLE_DISCONNECT_MS the connection is closed and the thread ends, and the next sync
+ * starts a new one; the idle listener is told when nothing is left running.
+ *
+ * The other controllers of the farm (see ControllerRegistry) are synced over connections
+ * opened for one sync only, a few at a time on a SyncScheduler.
+ *
+ * The sync itself is a ControllerSync, which only sees the BluetoothTransport.
  */
 
 public class BluetoothManager {
 
     private final String TAG = "Bluetooth Manager";
-    private final int MESSAGE_READ = 1;
-    private final int MESSAGE_WRITE = 0;
+
+    //first retry delay, doubled on every failed attempt up to the maximum
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 60000;
+    //give up on a lost connection after this many attempts, until the next sync
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    private static final long HEARTBEAT_INTERVAL_MS = 15000;
+    //how long the connection stays open with no sync asked for
+    private static final long IDLE_DISCONNECT_MS = 5 * 60 * 1000;
+    //links the radio keeps usable at once, one of them stays with the persistent connection
+    private static final int MAX_CONCURRENT_LINKS = 3;
 
     private BluetoothAdapter btAdapter;
     private Set<BluetoothDevice> pairedDevices;
     private String macAddress;
     private Context context;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-    private Handler mHandler;
+    private ConnectionThread connectionThread;
     private DataManager dataManager;
+    private final SyncScheduler syncScheduler = new SyncScheduler(MAX_CONCURRENT_LINKS - 1);
+    private IdleListener idleListener;
 
-
-    private boolean msgOver;
+    /**
+     * Told when there is no connection left open and no sync queued, on the thread that
+     * finished last
+     * */
+    public interface IdleListener {
+        void onIdle();
+    }
 
     private BluetoothManager(Context context) {
         super();
-        this.context = context;
+        //the connection outlives the activity that opened it
+        this.context = context.getApplicationContext();
         this.btAdapter = BluetoothAdapter.getDefaultAdapter();
         if(btAdapter != null){
             this.pairedDevices = btAdapter.getBondedDevices();
         }
         this.dataManager = DataManager.getInstance(context);
-        this.msgOver = true;
-        this.mHandler = new Handler(){
+        syncScheduler.setIdleListener(new Runnable() {
             @Override
-            public void handleMessage(Message msg) {
-                byte[] writeBuf = (byte[]) msg.obj;
-//                int begin = (int)msg.arg1;
-//                int end = (int)msg.arg2;
-                if(msg.what == MESSAGE_READ) {
-                    String writeMessage = new String(writeBuf);
-                    //check if it is the last chunk of data
-                    if(writeMessage.contains("#")){
-                        writeMessage=writeMessage.substring(0,writeMessage.indexOf('#'));
-                        msgOver=true;
-                    }
-                    dataManager.appendSensorData(writeMessage, msgOver);
-//                    writeMessage = writeMessage.substring(begin, end);
-                    Log.i(TAG, writeMessage);
-                }
+            public void run() {
+                notifyIfIdle();
             }
-        };
+        });
     }
 
     private static BluetoothManager bluetoothManager;
@@ -105,295 +112,391 @@ public class BluetoothManager {
         return false;
     }
 
-    public void startConnection(){
-        BluetoothDevice targetDevice = btAdapter.getRemoteDevice(macAddress);
-        if(connectThread != null){
-            connectThread.cancel();
-            connectThread = null;
+    /**
+     * Sync with the controller, over the open connection if there is one
+     * */
+    public synchronized void startConnection(){
+        if(connectionThread != null && !connectionThread.getAddress().equals(macAddress)){
+            //the controller was changed in the settings
+            connectionThread.cancel();
+            connectionThread = null;
         }
+        //a thread that is closing its idle connection takes no more syncs
+        if(connectionThread == null || !connectionThread.requestSync()){
+            connectionThread = new ConnectionThread(btAdapter.getRemoteDevice(macAddress));
+            connectionThread.requestSync();
+            connectionThread.start();
+        }
+    }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    /**
+     * Sync every registered controller. The one set in the settings uses the persistent
+     * connection, the others are queued on the scheduler.
+     * */
+    public synchronized void syncAll(){
+        ControllerRegistry registry = dataManager.getControllerRegistry();
+        registry.register(macAddress);
+        startConnection();
+        for(final Controller controller : registry.getControllers()){
+            if(controller.getAddress().equals(macAddress)){
+                continue;
+            }
+            final BluetoothDevice device;
+            try{
+                device = btAdapter.getRemoteDevice(controller.getAddress());
+            } catch (IllegalArgumentException e){
+                Log.e(TAG, "Invalid address " + controller.getAddress());
+                continue;
+            }
+            if(syncScheduler.schedule(controller.getAddress(), new Runnable() {
+                @Override
+                public void run() {
+                    syncOnce(device);
+                }
+            })){
+                controller.setState(Controller.STATE_QUEUED);
+            }
         }
+    }
 
-        connectThread = new ConnectThread(targetDevice);
-        connectThread.start();
-//        boolean success = false;
-//        final BluetoothSocket mmSocket;
-//        BluetoothSocket tmp = null;
-//            // Get a BluetoothSocket to connect with the given BluetoothDevice
-//            try {
-////                tmp = device.createRfcommSocketToServiceRecord(device.getUuids()[0].getUuid());
-//                //reflection (getclass.getmethod)
-//                Method m = targetDevice.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-//                tmp = (BluetoothSocket) m.invoke(targetDevice, 1);
-//                Log.i(TAG, "RFCOMM Socket created");
-//            } catch (Exception e) {
-//                Log.e(TAG, e.getMessage());
-//            }
-//            mmSocket = tmp;
-//
-//            if(mmSocket != null){
-//                try {
-//                    mmSocket.connect();
-//                    Log.i(TAG, "Connection successful");
-//                    success = true;
-//                } catch (IOException connectException) {
-//                    Log.i(TAG, connectException.getMessage());
-////                    try {
-////                        mmSocket.close();
-////                    } catch (IOException closeException) { }
-//                }
-//            }
-//        try {
-//            mmSocket.close();
-//        } catch (IOException closeException) { }
-
-//        return success;
+    /**
+     * Connect, sync and disconnect, on the calling thread
+     * */
+    private void syncOnce(BluetoothDevice device){
+        Transport transport = new BluetoothTransport(device, new BluetoothConnector(dataManager));
+        ControllerRegistry registry = dataManager.getControllerRegistry();
+        try{
+            transport.open(BluetoothConnector.ATTEMPT_TIMEOUT_MS);
+            new ControllerSync(transport, dataManager).runSync();
+        } catch (IOException e){
+            Log.i(TAG, "Unable to sync " + device.getAddress() + ": " + e.getMessage());
+            registry.setState(device.getAddress(), Controller.STATE_FAILED);
+        } catch (InterruptedException e){
+            //cancelled while connecting
+            registry.setState(device.getAddress(), Controller.STATE_IDLE);
+        } finally {
+            transport.close();
+        }
     }
 
+    public synchronized boolean isConnected(){
+        return connectionThread != null && connectionThread.isConnected();
+    }
 
-    public void closeConnection(){
-        if(connectThread != null){
-            connectThread.cancel();
-            connectedThread = null;
+    public synchronized void closeConnection(){
+        if(connectionThread != null){
+            connectionThread.cancel();
+            connectionThread = null;
         }
-        if(connectedThread != null){
-            connectedThread.cancel();
-            connectedThread = null;
+        syncScheduler.cancelAll();
+    }
+
+    /**
+     * Close the connection as soon as no sync runs or is asked for, instead of keeping it
+     * for the next one
+     * */
+    public synchronized void releaseConnection(){
+        if(connectionThread != null){
+            connectionThread.release();
         }
     }
 
-    public void setMacAddress(String address){
-        this.macAddress = address;
+    /**
+     * True while a connection is open or a sync is queued
+     * */
+    public synchronized boolean isBusy(){
+        return connectionThread != null || !syncScheduler.isIdle();
     }
 
-    private void sendIrrigationData(Uri uri){
-        BufferedInputStream inputStream = null;
-        try
-        {
-            inputStream = new BufferedInputStream(context.getContentResolver().openInputStream(uri));
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
-
-            // we need to know how may bytes were read to write them to the byteBuffer
-            int len = 0;
-            while (len != -1){
-
-                len = inputStream.read(buffer);
-                if(len < 1024 && len > 0){
-                    buffer[len] = (byte) '#';
-                    connectedThread.write(Arrays.copyOfRange(buffer, 0, len+1));
-                } else if(len > 0){
-                    connectedThread.write(buffer);
-                }
+    public synchronized void setIdleListener(IdleListener listener){
+        this.idleListener = listener;
+    }
 
+    private synchronized void connectionEnded(ConnectionThread thread){
+        if(connectionThread == thread){
+            connectionThread = null;
+        }
+    }
+
+    /**
+     * Tell the listener if there is no connection and no sync queued any more
+     * */
+    private void notifyIfIdle(){
+        IdleListener listener;
+        synchronized (this){
+            if(isBusy()){
+                return;
             }
-            System.out.println(inputStream.toString());
-            inputStream.close();
-        }catch (IOException e){
-            Log.e(TAG, "Unable to send irrigation data");
+            listener = idleListener;
+        }
+        if(listener != null){
+            listener.onIdle();
         }
     }
 
+    public void setMacAddress(String address){
+        this.macAddress = address;
+    }
 
     /**
-     * Class to manage Bluetooth connection
+     * Owns the transport for as long as the connection is wanted: connects, runs the syncs
+     * requested, sends heartbeats while idle and reconnects when the connection is lost.
      * */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectionThread extends Thread {
+        private static final String TAG = "Connection Thread";
         private final BluetoothDevice mmDevice;
-        private static final String TAG = "Connect Thread";
-        private final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-        //private final UUID MY_UUID = UUID.fromString("00001105-0000-1000-8000-00805f9b34fb");
-        //private final UUID MY_UUID = UUID.fromString("e821e169-d793-423b-927b-f9c7a5017fb1");
-        private ProgressDialog connectingDialog = new ProgressDialog(context);
-
-        public ConnectThread(BluetoothDevice device) {
-            BluetoothSocket tmp = null;
+        private final Random random = new Random();
+        private final BluetoothConnector connector = new BluetoothConnector(dataManager);
+        private volatile Transport transport;
+        private volatile ControllerSync currentSync;
+        private volatile boolean cancelled;
+        private boolean syncRequested;
+        //the thread takes no more syncs, the next one starts a new thread
+        private boolean finished;
+        //close the connection once idle without waiting for IDLE_DISCONNECT_MS
+        private boolean released;
+        //protocol version the controller answered with in the last sync, 0 before the first
+        private int controllerVersion;
+        //the connection was closed because the controller hangs up after a sync
+        private boolean hungUp;
+        //the last sync failed after an old controller may have stored the hello as its schedule
+        private boolean scheduleAtRisk;
+
+        public ConnectionThread(BluetoothDevice device) {
+            super("Bluetooth Connection");
             mmDevice = device;
-            //UUID MY_UUID = device.getUuids()[0].getUuid();
-            // Get a BluetoothSocket to connect with the given BluetoothDevice
-            try {
-                showConnectingDialog();
-//                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
-//                tmp = device.createRfcommSocketToServiceRecord(device.getUuids()[0].getUuid());
-                //reflection (getclass.getmethod)
-                Method m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-                tmp = (BluetoothSocket) m.invoke(device, 1);
-
-                Log.i(TAG, "RFCOMM Socket created");
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage());
-            }
-            mmSocket = tmp;
-            dismissConnectingDialog();
         }
 
-        public void run() {
-            // Cancel discovery because it will slow down the connection
-            btAdapter.cancelDiscovery();
-
-            //try to connect, if not successful close;
-            try {
-                mmSocket.connect();
-                Log.i(TAG, "Connection successful");
-            } catch (IOException connectException) {
-                Log.i(TAG, connectException.getMessage());
-                try {
-                    mmSocket.close();
-                } catch (IOException closeException) { }
-                return;
-            } catch (NullPointerException noDevice){
-                Log.i(TAG, "Device not found");
-                return;
-            }
-
-            synchronized (BluetoothManager.this){
-                connectThread = null;
-            }
-
-            // Do work to manage the connection (in a separate thread)
-            connected(mmSocket, mmDevice);
-
+        public String getAddress(){
+            return mmDevice.getAddress();
         }
 
-        /** Will cancel an in-progress connection, and close the socket */
-        public void cancel() {
-            try {
-                mmSocket.close();
-                Log.i(TAG, "Socket closed.");
-            } catch (IOException e) { }
+        public boolean isConnected(){
+            return transport != null;
         }
 
-        private void showConnectingDialog(){
-            //set message of the dialog
-            connectingDialog.setMessage("Conectando ao dispositivo");
-            //show dialog
-            connectingDialog.show();
+        /**
+         * @return false if the thread ended or is ending, the sync needs a new one
+         * */
+        public synchronized boolean requestSync(){
+            if(finished || cancelled){
+                return false;
+            }
+            syncRequested = true;
+            //asked for again, keep the connection for the syncs after this one too
+            released = false;
+            notifyAll();
+            return true;
         }
 
-        private void dismissConnectingDialog(){
-            connectingDialog.dismiss();
+        public synchronized void release(){
+            released = true;
+            notifyAll();
         }
 
-    }
-
-
-    private synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+        public void run() {
+            int attempts = 0;
+            //a sync that found its connection already dead is tried again once
+            boolean retried = false;
+            //syncs run again to put back a schedule the hello replaced
+            int scheduleRetries = 0;
+            //heartbeats do not count, only syncs keep the connection wanted
+            long lastSync = System.currentTimeMillis();
+            try{
+                while(!cancelled){
+                    if(transport == null){
+                        synchronized (this){
+                            if(hungUp){
+                                //not lost, the controller hangs up after every sync: dial again
+                                //for the next one only
+                                long idle;
+                                while(!syncRequested && (idle = idleTimeLeft(lastSync)) > 0){
+                                    wait(idle);
+                                }
+                                if(!syncRequested){
+                                    finished = true;
+                                    break;
+                                }
+                                hungUp = false;
+                            }
+                            if(attempts >= MAX_RECONNECT_ATTEMPTS){
+                                //stop trying, the next sync starts over on a new thread
+                                Log.i(TAG, "Controller unreachable");
+                                syncRequested = false;
+                                finished = true;
+                                break;
+                            }
+                        }
+                        if(attempts > 0){
+                            Thread.sleep(backoff(attempts));
+                        }
+                        if(connect()){
+                            attempts = 0;
+                        } else {
+                            attempts++;
+                            continue;
+                        }
+                    }
 
-        // Cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+                    boolean sync;
+                    synchronized (this){
+                        long idle = idleTimeLeft(lastSync);
+                        if(!syncRequested && idle > 0){
+                            wait(Math.min(HEARTBEAT_INTERVAL_MS, idle));
+                        }
+                        sync = syncRequested;
+                        syncRequested = false;
+                        if(!sync && idleTimeLeft(lastSync) <= 0){
+                            //nothing to sync for a while, free the radio link
+                            Log.i(TAG, "Connection idle");
+                            finished = true;
+                            break;
+                        }
+                    }
+                    if(cancelled){
+                        break;
+                    }
+                    if(sync){
+                        if(runSync()){
+                            retried = false;
+                            scheduleRetries = 0;
+                        } else {
+                            closeTransport();
+                            if(scheduleAtRisk && scheduleRetries < MAX_RECONNECT_ATTEMPTS){
+                                //the controller is left without a schedule until one gets through
+                                Log.i(TAG, "Schedule not restored, syncing again");
+                                scheduleRetries++;
+                                synchronized (this){
+                                    syncRequested = true;
+                                }
+                            } else if(!retried){
+                                retried = true;
+                                synchronized (this){
+                                    syncRequested = true;
+                                }
+                            } else {
+                                retried = false;
+                            }
+                        }
+                        lastSync = System.currentTimeMillis();
+                    } else if(!sendHeartbeat()){
+                        closeTransport();
+                    }
+                }
+            } catch (InterruptedException e){
+                Log.i(TAG, "Connection thread cancelled");
+            }
+            synchronized (this){
+                finished = true;
+            }
+            closeTransport();
+            connectionEnded(this);
+            notifyIfIdle();
         }
 
-        // Cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        /**
+         * Time left before the connection counts as idle, 0 once released
+         * */
+        private long idleTimeLeft(long lastSync){
+            if(released){
+                return 0;
+            }
+            return lastSync + IDLE_DISCONNECT_MS - System.currentTimeMillis();
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
-
-        // Send the name of the connected device back to the UI Activity
-        /*
-        Message msg = mHandler.obtainMessage(BlueTerm.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(BlueTerm.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-
-        setState(STATE_CONNECTED);
-        */
-    }
+        /**
+         * Random delay between half and all of an exponentially growing limit, so phones
+         * that lost the controller together do not all retry at the same moment
+         * */
+        private long backoff(int attempts){
+            long limit = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempts - 1, 16));
+            return limit / 2 + (long) (random.nextDouble() * (limit / 2));
+        }
 
-    private class ConnectedThread extends Thread {
-        private final String TAG = "Connected Thread";
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-            Log.i(TAG, "Connected thread started");
-            // Get the input and output streams, using temp objects because
-            // member streams are final
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-                Log.i(TAG, "I/O Streams initialized");
-            } catch (IOException e) { }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+        private boolean connect() throws InterruptedException{
+            // Cancel discovery because it will slow down the connection
+            btAdapter.cancelDiscovery();
+            Transport opened = new BluetoothTransport(mmDevice, connector);
+            try{
+                opened.open(BluetoothConnector.ATTEMPT_TIMEOUT_MS);
+            } catch (IOException e){
+                Log.i(TAG, "Connection failed");
+                return false;
+            }
+            Log.i(TAG, "Connection successful");
+            transport = opened;
+            if(cancelled){
+                //cancelled while connecting, the transport was not there to be closed
+                closeTransport();
+                return false;
+            }
+            controllerVersion = 0;
+            return true;
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];  // buffer store for the stream
-            int bytes; // bytes returned from read()
-            //buffer = "Hello".getBytes();
-            //connectedThread.write(buffer);
-
-            Uri irrigationDataUri = dataManager.getIrrigationDataUri(); //data to send
-            sendIrrigationData(irrigationDataUri);
-
-            // Keep listening to the InputStream until message is over or exception occurs
-            msgOver = false;
-            while (!msgOver) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    String message = new String(buffer, 0, bytes);
-                    Log.i(TAG, message);
-                    // Send the obtained bytes to the UI activity
-                    mHandler.obtainMessage(MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                    dataManager.setLastSync(DateOperations.getCurrentTime() +
-                            " " + DateOperations.getCurrentDate());
-                } catch (IOException e) {
-                    msgOver = true;
-                    Log.e(TAG, "Unable to read from InputStream");
-                    break;
+        private boolean runSync(){
+            Transport current = transport;
+            if(current == null){
+                return false;
+            }
+            ControllerSync sync = new ControllerSync(current, dataManager);
+            currentSync = sync;
+            try{
+                boolean completed = sync.runSync();
+                controllerVersion = sync.getVersion();
+                scheduleAtRisk = sync.isScheduleAtRisk();
+                //only version 5 controllers wait for another hello, older binary ones hang up
+                if(completed && controllerVersion >= WireProtocol.VERSION_BINARY
+                        && controllerVersion < WireProtocol.VERSION_PERSISTENT){
+                    closeTransport();
+                    hungUp = true;
                 }
+                return completed;
+            } finally {
+                currentSync = null;
             }
+        }
 
-
+        /**
+         * Keep an idle connection from timing out. Only controllers that said they wait
+         * for the next hello get pings, old ones would take them for a message.
+         *
+         * @return false if the connection was lost
+         * */
+        private boolean sendHeartbeat(){
+            Transport current = transport;
+            if(current == null || controllerVersion < WireProtocol.VERSION_PERSISTENT){
+                return true;
+            }
             try{
-                dataManager.updateSensorData();
-            } catch (JSONException e){
-                System.out.println("Error creating JSON Object");
+                byte[] ping = FrameAssembler.encode(FrameAssembler.KIND_PING, 0, new byte[0]);
+                current.write(ping, 0, ping.length);
+                return true;
             } catch (IOException e){
-                System.out.println("Could not read JSON File");
+                Log.i(TAG, "Connection lost");
+                return false;
             }
-
         }
 
-        /* Call this from the main activity to send data to the remote device */
-        public void write(byte[] bytes) {
-            try {
-                mmOutStream.write(bytes);
-
-                Log.i(TAG, "Sending bytes: " + new String(bytes));
-                Log.i(TAG, "Send bytes successful");
-            } catch (IOException e) {
-                Log.e(TAG, "Error writing message");
+        private void closeTransport(){
+            Transport current = transport;
+            transport = null;
+            if(current != null){
+                current.close();
+                Log.i(TAG, "Transport closed.");
             }
         }
 
-        /* Call this from the main activity to shutdown the connection */
+        /** Will cancel the connection and a sync in progress, and close the transport */
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) { }
+            cancelled = true;
+            connector.cancel();
+            ControllerSync sync = currentSync;
+            if(sync != null){
+                sync.cancel();
+            }
+            closeTransport();
+            interrupt();
         }
     }
-
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import org.senai.mecatronica.dripper.helpers.StreamPump;
+import org.senai.mecatronica.dripper.helpers.Transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Transport over an RFCOMM socket, opened by a BluetoothConnector.
+ *
+ * Bluetooth sockets have no read timeout and their reads cannot be interrupted, so the
+ * socket is read by a StreamPump and reads wait on what it queued.
+ * */
+
+public class BluetoothTransport implements Transport {
+
+    private final BluetoothDevice device;
+    private final BluetoothConnector connector;
+    private volatile BluetoothSocket socket;
+    private StreamPump pump;
+    private OutputStream out;
+
+    public BluetoothTransport(BluetoothDevice device, BluetoothConnector connector){
+        this.device = device;
+        this.connector = connector;
+    }
+
+    @Override
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    @Override
+    public void open(long timeoutMs) throws IOException, InterruptedException {
+        MetricsRegistry.ControllerMetrics metrics = MetricsRegistry.getInstance().forController(device.getAddress());
+        long start = System.nanoTime();
+        BluetoothSocket socket = connector.connect(device, timeoutMs);
+        if(socket == null){
+            metrics.increment(MetricsRegistry.CONNECT_FAILURES);
+            throw new IOException("Unable to connect to " + device.getAddress());
+        }
+        metrics.recordNanos(MetricsRegistry.CONNECT_TIME, System.nanoTime() - start);
+        try{
+            pump = new StreamPump(socket.getInputStream(), "Bluetooth Reader");
+            out = socket.getOutputStream();
+        } catch (IOException e){
+            socket.close();
+            throw e;
+        }
+        pump.start();
+        this.socket = socket;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+        openSocket();
+        return pump.read(buffer, offset, length, timeoutMs);
+    }
+
+    @Override
+    public int available() throws IOException {
+        openSocket();
+        return pump.available();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        openSocket();
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        BluetoothSocket socket = this.socket;
+        if(socket != null){
+            try{
+                socket.close();
+            } catch (IOException e){ }
+            pump.stop();
+        }
+    }
+
+    private void openSocket() throws IOException{
+        if(socket == null){
+            throw new IOException("Transport not open");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.senai.mecatronica.dripper.beans.Controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The field controllers of the farm, by MAC address.
+ *
+ * Each controller has its own partition of the sensor log and its own sync cursor (see
+ * DataManager); the registry keeps its name and last sync in a shared preferences file of
+ * its own, and its sync state in memory.
+ * */
+
+public class ControllerRegistry {
+
+    private static final String PREFS_FILE = "org.senai.mecatronica.dripper.controllers";
+    //followed by the controller's address
+    private static final String PREFS_NAME = "name_";
+    private static final String PREFS_LAST_SYNC = "lastSync_";
+
+    private final SharedPreferences sharedPreferences;
+    //sorted by address, so the order does not change between runs
+    private final Map<String, Controller> controllers;
+
+    public ControllerRegistry(Context context){
+        this.sharedPreferences = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+        this.controllers = new TreeMap<>();
+        for(String key : sharedPreferences.getAll().keySet()){
+            if(key.startsWith(PREFS_NAME)){
+                String address = key.substring(PREFS_NAME.length());
+                controllers.put(address, new Controller(address, sharedPreferences.getString(key, address),
+                        sharedPreferences.getLong(PREFS_LAST_SYNC + address, 0)));
+            }
+        }
+    }
+
+    /**
+     * Add a controller, or return the one already registered with the address
+     * */
+    public synchronized Controller register(String address){
+        Controller controller = controllers.get(address);
+        if(controller == null){
+            controller = new Controller(address, address, 0);
+            controllers.put(address, controller);
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(PREFS_NAME + address, address);
+            editor.apply();
+        }
+        return controller;
+    }
+
+    /**
+     * Keep only the given controllers, registering the new ones. The sensor data of the
+     * ones removed stays on disk.
+     * */
+    public synchronized void setControllers(List<String> addresses){
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for(String address : new ArrayList<>(controllers.keySet())){
+            if(!addresses.contains(address)){
+                controllers.remove(address);
+                editor.remove(PREFS_NAME + address);
+                editor.remove(PREFS_LAST_SYNC + address);
+            }
+        }
+        editor.apply();
+        for(String address : addresses){
+            register(address);
+        }
+    }
+
+    /**
+     * @return the controller, or null if it is not registered
+     * */
+    public synchronized Controller getController(String address){
+        return controllers.get(address);
+    }
+
+    public synchronized List<Controller> getControllers(){
+        return new ArrayList<>(controllers.values());
+    }
+
+    /**
+     * Set the sync state of a registered controller
+     * */
+    public synchronized void setState(String address, int state){
+        Controller controller = controllers.get(address);
+        if(controller != null){
+            controller.setState(state);
+        }
+    }
+
+    /**
+     * Record a complete sync of a registered controller
+     * */
+    public synchronized void setSynced(String address, long time){
+        Controller controller = controllers.get(address);
+        if(controller == null){
+            return;
+        }
+        controller.setLastSync(time);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putLong(PREFS_LAST_SYNC + address, time);
+        editor.apply();
+    }
+}
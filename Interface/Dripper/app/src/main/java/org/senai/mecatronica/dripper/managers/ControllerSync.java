@@ -0,0 +1,351 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.util.Log;
+
+import org.senai.mecatronica.dripper.beans.Controller;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.helpers.BinarySyncCodec;
+import org.senai.mecatronica.dripper.helpers.ChunkChannel;
+import org.senai.mecatronica.dripper.helpers.FramedLink;
+import org.senai.mecatronica.dripper.helpers.IrrigationTimeline;
+import org.senai.mecatronica.dripper.helpers.ScheduleDigest;
+import org.senai.mecatronica.dripper.helpers.Transport;
+import org.senai.mecatronica.dripper.helpers.WeeklyTimetable;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One sync with a controller over an open transport: the handshake, then the schedule
+ * upload and the sensor data download of the protocol version the controller speaks.
+ * Runs on the calling thread; the transport is opened and closed by the caller.
+ * */
+
+public class ControllerSync {
+
+    private static final String TAG = "Controller Sync";
+    private static final int READ_CHUNK_COUNT = 16;
+    private static final int READ_CHUNK_SIZE = 1024;
+    //how long the controller may take to answer the hello
+    private static final long HELLO_TIMEOUT_MS = 10000;
+    //how long the upload may lag behind a finished download
+    private static final long UPLOAD_TIMEOUT_MS = 10000;
+    //how long the controller may stay quiet during the download without hanging up
+    private static final long DOWNLOAD_IDLE_MS = 30000;
+
+    private final Transport transport;
+    private final DataManager dataManager;
+    private final String address;
+    //read buffers travel to the ingestion pipeline and back without being overwritten in between
+    private final ChunkChannel readChannel = new ChunkChannel(READ_CHUNK_COUNT, READ_CHUNK_SIZE);
+    private final SyncSession session;
+    private final MetricsRegistry.ControllerMetrics metrics;
+    //binary protocol only
+    private FramedLink link;
+    private int version;
+    private boolean helloSent;
+    private boolean completed;
+
+    public ControllerSync(Transport transport, DataManager dataManager){
+        this.transport = transport;
+        this.dataManager = dataManager;
+        this.address = transport.getAddress();
+        this.session = new SyncSession(transport, readChannel);
+        this.metrics = MetricsRegistry.getInstance().forController(address);
+    }
+
+    /**
+     * Protocol version the controller answered with, 0 if it did not answer
+     * */
+    public int getVersion(){
+        return version;
+    }
+
+    /**
+     * Whether the controller may be left without its schedule: an old controller stores
+     * the hello as its schedule (see WireProtocol), and only the upload that follows puts
+     * the schedule back. True when the hello was sent and the sync failed before the
+     * controller was known to speak the binary protocol; the caller syncs again at once.
+     * */
+    public boolean isScheduleAtRisk(){
+        return helloSent && !completed && version < WireProtocol.VERSION_BINARY;
+    }
+
+    /**
+     * @return true if the controller's last message arrived and, for an old controller,
+     * the irrigation file was written to it
+     * */
+    public boolean runSync() {
+        ControllerRegistry registry = dataManager.getControllerRegistry();
+        registry.setState(address, Controller.STATE_SYNCING);
+        long start = System.nanoTime();
+        completed = sync();
+        recordMetrics(completed, System.nanoTime() - start);
+        if(completed){
+            registry.setSynced(address, System.currentTimeMillis());
+        }
+        registry.setState(address, completed ? Controller.STATE_IDLE : Controller.STATE_FAILED);
+        return completed;
+    }
+
+    /**
+     * Stop the sync, the caller closes the transport
+     * */
+    public void cancel() {
+        session.cancel();
+    }
+
+    private void recordMetrics(boolean completed, long nanos){
+        metrics.increment(MetricsRegistry.SYNCS);
+        if(completed){
+            metrics.recordNanos(MetricsRegistry.SYNC_TIME, nanos);
+            metrics.set(MetricsRegistry.LAST_SYNC, System.currentTimeMillis());
+        } else {
+            metrics.increment(MetricsRegistry.SYNC_FAILURES);
+        }
+        metrics.set(MetricsRegistry.PROTOCOL_VERSION, version);
+        if(link != null){
+            metrics.add(MetricsRegistry.FRAMES_OUT, link.getFramesSent());
+            metrics.add(MetricsRegistry.FRAMES_IN, link.getFramesReceived());
+            metrics.add(MetricsRegistry.RETRANSMISSIONS, link.getRetransmissions());
+        }
+    }
+
+    private boolean sync() {
+        long startTime = System.currentTimeMillis();
+        skipStaleBytes();
+        session.start();
+        try{
+            //offer the binary protocol, old controllers answer with their JSON file
+            session.send(WireProtocol.hello());
+            helloSent = true;
+        } catch (IOException | InterruptedException e){
+            Log.e(TAG, "Unable to send hello");
+            session.cancel();
+            return false;
+        }
+        ChunkChannel.Chunk reply = readHelloReply();
+        if(reply == null){
+            session.cancel();
+            return false;
+        }
+
+        SensorIngestionPipeline<?> ingestionPipeline;
+        version = WireProtocol.negotiatedVersion(reply.data, reply.length);
+        if(version >= WireProtocol.VERSION_BINARY){
+            Log.i(TAG, "Using binary protocol");
+            //what follows the reply is already frame data
+            reply.length -= WireProtocol.HELLO_REPLY_LENGTH;
+            System.arraycopy(reply.data, WireProtocol.HELLO_REPLY_LENGTH, reply.data, 0, reply.length);
+            //frames and acks go through the session's writer, never blocking the stage that sends them
+            link = new FramedLink(session.getOutputStream(), FramedLink.DEFAULT_WINDOW);
+            //the schedule as it is now, edits made during the sync go with the next one
+            List<IrrigationData> triggers = new ArrayList<>();
+            ScheduleDigest schedule = dataManager.snapshotSchedule(triggers);
+            //from version 6 the controller gets the schedule compiled, see WeeklyTimetable
+            WeeklyTimetable timetable = version >= WireProtocol.VERSION_TIMETABLE
+                    ? WeeklyTimetable.compile(schedule.isAuto(), triggers,
+                            IrrigationTimeline.localSeconds(System.currentTimeMillis()))
+                    : null;
+            long cursor;
+            try{
+                ingestionPipeline = new SensorIngestionPipeline<>(readChannel,
+                        new BinarySyncDecoder(link, dataManager.getSensorRegistry(address), triggers, schedule, timetable),
+                        dataManager, address);
+                cursor = dataManager.getSyncCursor(address);
+            } catch (IOException e){
+                Log.e(TAG, "Unable to open sensor log");
+                session.cancel();
+                return false;
+            }
+            if(version >= WireProtocol.VERSION_DELTA_SYNC && !sendSyncRequest(link, cursor)){
+                session.cancel();
+                return false;
+            }
+            //from version 4 the controller asks for the triggers that changed instead
+            if(version < WireProtocol.VERSION_SCHEDULE_DIFF && !sendSchedule(link, schedule.isAuto(), triggers)){
+                session.cancel();
+                return false;
+            }
+        } else {
+            Log.i(TAG, "Using JSON protocol");
+            //old controllers always send their whole file, stored logs are skipped on append
+            ingestionPipeline = new SensorIngestionPipeline<>(readChannel, new JsonSyncDecoder(dataManager, address), dataManager, address);
+            //queued only, the file is written while the controller's answer is read. The
+            //controller took the hello for its schedule, the sync fails without the file
+            if(!sendIrrigationData()){
+                session.cancel();
+                return false;
+            }
+        }
+
+        Future<Integer> download = session.startDownload(ingestionPipeline, reply);
+        boolean completed = false;
+        try{
+            int received = awaitDownload(download);
+            long downloadTime = System.currentTimeMillis() - startTime;
+            //acks for the last messages were queued before the download completed
+            session.getUpload().get(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Log.i(TAG, "Received " + received + " bytes in " + downloadTime + " ms, sync done in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+            completed = ingestionPipeline.isMessageComplete();
+        } catch (ExecutionException | CancellationException e){
+            Log.e(TAG, "Sync incomplete");
+        } catch (TimeoutException e){
+            Log.e(TAG, "Controller stopped sending");
+            session.cancel();
+        } catch (InterruptedException e){
+            Log.i(TAG, "Sync cancelled");
+            session.cancel();
+            Thread.currentThread().interrupt();
+        }
+        session.close();
+        return completed;
+    }
+
+    /**
+     * Wait for the download to end, resending the phone's unacknowledged frames while the
+     * controller is quiet: a lost sync request, schedule or timetable would otherwise
+     * leave both sides waiting for each other
+     *
+     * @throws TimeoutException if nothing was read for DOWNLOAD_IDLE_MS
+     * */
+    private int awaitDownload(Future<Integer> download) throws ExecutionException, InterruptedException, TimeoutException{
+        while(true){
+            try{
+                return download.get(FramedLink.RETRANSMIT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e){
+                if(System.currentTimeMillis() - session.getLastReadTime() >= DOWNLOAD_IDLE_MS){
+                    throw e;
+                }
+            }
+            if(link != null){
+                try{
+                    link.retransmitIfDue();
+                } catch (IOException e){
+                    //the download fails too once the connection is gone
+                    Log.e(TAG, "Unable to resend frames");
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop what an old controller sent after the previous sync ended: it answers
+     * every chunk it receives with its file, and only the first answer was read
+     * */
+    private void skipStaleBytes(){
+        byte[] stale = new byte[READ_CHUNK_SIZE];
+        try{
+            int available;
+            while((available = transport.available()) > 0){
+                transport.read(stale, 0, Math.min(available, stale.length), 0);
+            }
+        } catch (IOException e){
+            //the hello will fail too and the connection is opened again
+        }
+    }
+
+    /**
+     * Read until the first bytes tell which protocol the controller speaks
+     *
+     * @return the bytes read, or null if the connection was lost or the controller did
+     * not answer in time
+     * */
+    private ChunkChannel.Chunk readHelloReply(){
+        ChunkChannel.Chunk chunk = readChannel.acquire();
+        if(chunk == null){
+            return null;
+        }
+        chunk.length = 0;
+        long deadline = System.currentTimeMillis() + HELLO_TIMEOUT_MS;
+        while(WireProtocol.negotiatedVersion(chunk.data, chunk.length) == 0){
+            long remaining = deadline - System.currentTimeMillis();
+            try{
+                if(remaining <= 0){
+                    throw new IOException("Hello timed out");
+                }
+                int bytes = transport.read(chunk.data, chunk.length, chunk.data.length - chunk.length, remaining);
+                if(bytes < 0){
+                    Log.i(TAG, "Connection closed by device");
+                    return null;
+                }
+                chunk.length += bytes;
+            } catch (IOException e){
+                Log.e(TAG, "No hello reply: " + e.getMessage());
+                return null;
+            }
+        }
+        return chunk;
+    }
+
+    private boolean sendSyncRequest(FramedLink link, long cursor){
+        try{
+            link.send(BinarySyncCodec.encodeSyncRequest(cursor));
+            return true;
+        } catch (IOException | InterruptedException e){
+            Log.e(TAG, "Unable to send sync request");
+            return false;
+        }
+    }
+
+    private boolean sendSchedule(FramedLink link, boolean auto, List<IrrigationData> triggers){
+        try{
+            //the sync request and the schedule never fill the window, so this does not wait for acks
+            link.send(BinarySyncCodec.encodeSchedule(auto, triggers));
+            return true;
+        } catch (IOException | InterruptedException e){
+            Log.e(TAG, "Unable to send schedule");
+            return false;
+        }
+    }
+
+    /**
+     * Queue the irrigation file for an old controller, followed by its '#' terminator. The
+     * file is flushed first, so edits made just before the sync are in it.
+     *
+     * @return false if the file could not be read or queued
+     * */
+    private boolean sendIrrigationData(){
+        BufferedInputStream inputStream = null;
+        try
+        {
+            inputStream = new BufferedInputStream(dataManager.openIrrigationFile());
+            int bufferSize = 1024;
+            byte[] buffer = new byte[bufferSize];
+
+            // we need to know how may bytes were read to write them to the byteBuffer
+            int len;
+            while ((len = inputStream.read(buffer)) != -1){
+                if(len > 0){
+                    session.send(Arrays.copyOfRange(buffer, 0, len));
+                }
+            }
+            //the terminator goes on its own, whatever the size of the file
+            session.send(new byte[]{(byte) '#'});
+            return true;
+        }catch (IOException e){
+            Log.e(TAG, "Unable to send irrigation data");
+            return false;
+        } catch (InterruptedException e){
+            Log.i(TAG, "Irrigation data upload cancelled");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if(inputStream != null){
+                try{
+                    inputStream.close();
+                } catch (IOException e){ }
+            }
+        }
+    }
+}
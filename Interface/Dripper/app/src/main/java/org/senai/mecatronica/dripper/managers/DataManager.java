@@ -3,23 +3,32 @@ package org.senai.mecatronica.dripper.managers;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.support.annotation.NonNull;
-import android.util.JsonWriter;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.senai.mecatronica.dripper.beans.EpochMillis;
 import org.senai.mecatronica.dripper.beans.IrrigationData;
-
-import java.io.BufferedReader;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.IrrigationFileCodec;
+import org.senai.mecatronica.dripper.helpers.ScheduleDigest;
+import org.senai.mecatronica.dripper.helpers.SensorPayloadTokenizer;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+import org.senai.mecatronica.dripper.helpers.TimeFormats;
+
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -29,21 +38,18 @@ import java.util.List;
 
 public class DataManager {
 
+    /**
+     * Notified on the UI thread when new sensor data was stored
+     * */
+    public interface SensorDataListener {
+        void onSensorDataUpdated();
+    }
+
     private static final String TAG = "Data Manager";
 
     //data labels
-    private static final String LABEL_AUTO = "auto";
-    private static final String LABEL_TRIGGERS_SIZE = "numberOfTriggers";
-    private static final String LABEL_TRIGGERS = "triggers";
-    private static final String LABEL_IRRIGATION_TYPE = "oneTime";
-    private static final String LABEL_START_TIME = "startTime";
-    private static final String LABEL_START_DATE = "startDate";
-    private static final String LABEL_DURATION = "duration";
-    private static final String LABEL_WEEKDAYS = "daysOfTheWeek";
 
     private static final String LABEL_LAST_IRRIGATION = "lastIrrigationTime";
-    private static final String LABEL_LOG_FREQUENCY = "logFrequency";
-    private static final String LABEL_NUM_LOGS = "numberOfLogs";
     private static final String LABEL_LOGS = "logs";
     private static final String LABEL_TEMPERATURE = "temperature";
     private static final String LABEL_MOISTURE = "moisture";
@@ -51,36 +57,56 @@ public class DataManager {
     private static final String LABEL_SOIL_MOISTURE = "soilMoisture";
 
     private static final String PREFS_MAC_ADDRESS = "macAddress";
+    //until a controller is chosen
+    private static final String DEFAULT_MAC_ADDRESS = "00:00:00:00:00:00";
+    //text of the last sync, from before it was kept as a number, migrated on first read
     private static final String PREFS_LAST_SYNC = "lastSync";
+    private static final String PREFS_LAST_SYNC_TIME = "lastSyncTime";
+    private static final String PREFS_LAST_IRRIGATION = "lastIrrigation";
+    //followed by the controller's address
+    private static final String PREFS_SYNC_CURSOR = "syncCursor_";
+    //followed by the controller's address
+    private static final String PREFS_CONNECT_STRATEGY = "connectStrategy_";
+    //controller whose readings are in the sensor log directory itself, from before there
+    //were several, the others have a subdirectory of it
+    private static final String PREFS_SENSOR_LOG_OWNER = "sensorLogOwner";
 
     private static final String IRRIGATION_FILE = "default_irrigation_data.json";
+    //legacy field data file, migrated into the sensor log on first load
     private static final String FIELD_DATA_FILE = "default_field_data.json";
+    private static final String SENSOR_LOG_DIR = "sensor_log";
     private static final String SHAREDPREFS_FILE = "org.senai.mecatronica.dripper.sharedprefs";
 
+    //bursts of edits closer than this are saved with a single write
+    private static final long WRITE_COALESCE_WINDOW_MS = 300;
+
     //internal variables
     private Context context;
     private SharedPreferences sharedPreferences;
+    private PersistenceExecutor persistenceExecutor;
+    private ControllerRegistry controllerRegistry;
+    //sensor log partition of each controller, by address
+    private Map<String, SensorLogStore> sensorLogStores;
 
-    //Field Data
-    private Integer currentTemperature;
-    private Integer currentMoisture;
-    private String currentLuminosity;
-    private String currentSoilMoisture;
-    private String lastIrrigation;
-    private String rawSensorData;
-    private String lastSync;
+    //Field Data, of the controller set in the settings
+    private SensorLogStore currentStore;
+    private SensorReading currentReading;
+    private List<SensorDataListener> sensorDataListeners;
 
     //Irrigation Data
     private Boolean autoMode = false;
     private List<IrrigationData> irrigationDataList;
+    //hash of the schedule, computed again after every change
+    private ScheduleDigest scheduleDigest;
 
     //singleton pattern
     private DataManager(Context context) {
         super();
         this.context = context;
         this.irrigationDataList = new ArrayList<>();
-        this.rawSensorData = "";
-        this.lastSync = "-";
+        this.sensorDataListeners = new ArrayList<>();
+        this.sensorLogStores = new HashMap<>();
+        this.persistenceExecutor = new PersistenceExecutor(WRITE_COALESCE_WINDOW_MS);
         sharedPreferences = context.getSharedPreferences(SHAREDPREFS_FILE, Context.MODE_PRIVATE);
     }
 
@@ -105,324 +131,218 @@ public class DataManager {
      * Get data from database (JSON File) and update data manager's fields.
      * If the file does not exist, create a new default file
      * */
-    public void updateIrrigationData() throws JSONException, IOException{
+    public synchronized void updateIrrigationData() throws IOException{
 
         if(!fileExists(IRRIGATION_FILE)){
-            //create file with default settings
-            writeDefaultIrrigationFile(IRRIGATION_FILE);
+            //start with default settings and create the file with them
+            autoMode = false;
+            irrigationDataList = new ArrayList<>();
+            writeIrrigationFile();
+            return;
         }
         //get data from json file and set to variables
-        String jsonString = getJSONData(IRRIGATION_FILE);
-        JSONObject irrigationDataObject = new JSONObject(jsonString);
-        setIrrigationData(irrigationDataObject);
+        readIrrigationFile();
     }
 
 
     /**
-     * Get data from database (JSON File) and calls method to update UI elements
-     * If file does not exist in database, creates a new default one
+     * Get the latest reading from the sensor log and update data manager's fields.
+     * Only the tail record is read, the rest of the history is left on disk.
      * */
-    public void updateSensorData() throws IOException, JSONException{
-        if(!fileExists(FIELD_DATA_FILE)){
-            //create file with default settings
-            writeDefaultFieldDataFile(FIELD_DATA_FILE);
-        }
-        //get data from json file and set to variables
-        String jsonString = getJSONData(FIELD_DATA_FILE);
-        JSONObject fieldDataObject = new JSONObject(jsonString);
-        setFieldData(fieldDataObject);
+    public void updateSensorData() throws IOException{
+        currentStore = getSensorLogStore(getMacAddress());
+        setFieldData(currentStore.getLastReading());
     }
 
     /**
-     * Read file from internal storage and return a string with the contents of the file.
-     *
-     * */
-    @NonNull
-    private String getJSONData(String jsonFileName) throws IOException{
-        String strJSON;
-        StringBuilder buf = new StringBuilder();
-        FileInputStream json;
-
-        json = context.openFileInput(jsonFileName);
-        BufferedReader in = new BufferedReader(new InputStreamReader(json, "UTF-8"));
-        while ((strJSON = in.readLine()) != null) {
-            buf.append(strJSON);
-        }
-        in.close();
-
-        return buf.toString();
-    }
-
-    /**
-     * Read data from JSON Object and set to data manager's instance
+     * Open the sensor log partition of a controller. The owner (see getSensorLogOwner())
+     * gets the sensor log directory and the legacy field data file, if there is one.
      * */
-    private void setIrrigationData(JSONObject irrigationDataObject) throws JSONException{
-        autoMode = irrigationDataObject.getBoolean(LABEL_AUTO);
-        Integer numberOfTriggers = irrigationDataObject.getInt(LABEL_TRIGGERS_SIZE);
-        JSONArray triggers = irrigationDataObject.getJSONArray(LABEL_TRIGGERS);
-
-        //reset old list
-        irrigationDataList = new ArrayList<>();
-
-        //set new values
-        for(int i = 0; i < numberOfTriggers; i++){
-            JSONObject trigger = triggers.getJSONObject(i);
-            IrrigationData data = new IrrigationData();
-            data.setOneTime(trigger.getBoolean(LABEL_IRRIGATION_TYPE));
-            data.setStartTime(trigger.getString(LABEL_START_TIME));
-            data.setStartDate(trigger.getString(LABEL_START_DATE));
-            int durationSecs = trigger.getInt(LABEL_DURATION);
-            int hours = durationSecs / 3600;
-            int minutes = (durationSecs % 3600) / 60;
-            int seconds = durationSecs % 60;
-
-            int[] durationArray = new int[]{hours,minutes,seconds};
-            data.setDuration(durationArray);
-
-            JSONArray daysOfTheWeek = trigger.getJSONArray(LABEL_WEEKDAYS);
-
-            for(int j = 0; j < daysOfTheWeek.length(); j++){
-                data.setWeekDay(daysOfTheWeek.getString(j),true);
+    private synchronized SensorLogStore getSensorLogStore(String address) throws IOException{
+        SensorLogStore store = sensorLogStores.get(address);
+        if(store == null){
+            String owner = getSensorLogOwner();
+            File directory = new File(context.getFilesDir(), SENSOR_LOG_DIR);
+            if(!address.equals(owner)){
+                directory = new File(directory, address.replace(":", ""));
+            }
+            store = new SensorLogStore(directory);
+            sensorLogStores.put(address, store);
+            if(address.equals(owner) && fileExists(FIELD_DATA_FILE)){
+                migrateFieldDataFile(store);
             }
-            irrigationDataList.add(data);
         }
+        return store;
     }
 
     /**
-     * Read data from JSON Object and set to data manager's instance
+     * Controller whose readings are in the sensor log directory itself: the one shown in
+     * the app when the log was first opened or a controller first chosen, as the readings
+     * there came from it. Never the default address, null until a controller is chosen.
      * */
-    private void setFieldData(JSONObject fieldDataObject) throws JSONException{
-
-        //set default values
-        currentTemperature = null;
-        currentMoisture = null;
-        currentLuminosity = null;
-        currentSoilMoisture = null;
-
-        lastIrrigation = fieldDataObject.getString(LABEL_LAST_IRRIGATION);
-        if(fieldDataObject.getInt(LABEL_NUM_LOGS) > 0){
-            JSONArray logs = fieldDataObject.getJSONArray(LABEL_LOGS);
-            JSONObject lastLog = logs.getJSONObject(0);
-            currentTemperature = lastLog.getInt(LABEL_TEMPERATURE);
-            currentMoisture = lastLog.getInt(LABEL_MOISTURE);
-            currentLuminosity = lastLog.getString(LABEL_LUMINOSITY);
-            currentSoilMoisture = lastLog.getString(LABEL_SOIL_MOISTURE);
+    private synchronized String getSensorLogOwner(){
+        String owner = sharedPreferences.getString(PREFS_SENSOR_LOG_OWNER, null);
+        String shown = getMacAddress();
+        //a partition already opened for the controller stays where it is
+        if(owner == null && !shown.equals(DEFAULT_MAC_ADDRESS) && !sensorLogStores.containsKey(shown)){
+            owner = shown;
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putString(PREFS_SENSOR_LOG_OWNER, owner);
+            editor.apply();
         }
+        return owner;
     }
 
     /**
-     * Write irrigation data from manager to database
+     * Move the reading kept in the old JSON field data file into the sensor log.
+     * The file has no timestamp, so its modification time is used.
      * */
-    public void writeIrrigationFile(){
-
-        new Thread(new Runnable() {
-            public void run() {
-                try{
-                    //create a new writer with the file name given
-                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(context.openFileOutput(IRRIGATION_FILE, Context.MODE_PRIVATE), "UTF-8"));
-                    writer.setIndent("  ");
-                    writer.beginObject();
-                    //write current autoMode
-                    writer.name(LABEL_AUTO).value(autoMode);
-
-                    //write number of triggers
-                    writer.name(LABEL_TRIGGERS_SIZE).value(irrigationDataList.size());
-
-                    writer.name(LABEL_TRIGGERS);
-                    //write triggers list
-                    writer.beginArray();
-                    for(IrrigationData data : irrigationDataList){
-                        //trigger object
-                        writer.beginObject();
-                        writer.name(LABEL_IRRIGATION_TYPE).value(data.getOneTime());
-                        writer.name(LABEL_START_TIME).value(data.getStartTime());
-                        writer.name(LABEL_START_DATE).value(data.getStartDate());
-                        int[] durationArray = data.getDuration();
-                        //convert hours, mins, secs to secs
-                        int finalDuration = (durationArray[0]*3600)+(durationArray[1]*60)+durationArray[2];
-                        writer.name(LABEL_DURATION).value(finalDuration);
-                        //weekdays array
-                        writer.name(LABEL_WEEKDAYS);
-                        writer.beginArray();
-                        for(String weekDay : data.getWeekDays().keySet()){
-                            if(data.getWeekDays().get(weekDay)){
-                                writer.value(weekDay);
-                            }
-                        }
-                        writer.endArray();
-                        writer.endObject();
-                    }
-                    writer.endArray();
-                    writer.endObject();
+    private void migrateFieldDataFile(SensorLogStore sensorLogStore) throws IOException{
+        SensorReading reading = new SensorReading(context.getFileStreamPath(FIELD_DATA_FILE).lastModified());
+        boolean hasReading = false;
 
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e){
-                    e.printStackTrace();
+        JsonReader reader = openJsonReader(FIELD_DATA_FILE);
+        try{
+            reader.beginObject();
+            while(reader.hasNext()){
+                String name = reader.nextName();
+                if(name.equals(LABEL_LAST_IRRIGATION)){
+                    setLastIrrigation(reader.nextString());
+                } else if(name.equals(LABEL_LOGS)){
+                    //the old file only ever kept the latest reading, as the first log
+                    reader.beginArray();
+                    if(reader.hasNext()){
+                        readLegacyLog(reader, reading, sensorLogStore.getRegistry());
+                        hasReading = true;
+                    }
+                    while(reader.hasNext()){
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
                 }
             }
-        }).start();
-    }
-
-    private void writeFieldDataFile(final String lastIrrigation, final int numLogs, final Integer temperature, final Integer moisture, final String luminosity, final String soilMoisture){
-
-        new Thread(new Runnable() {
-            public void run() {
-                try{
-                    //create a new writer with the file name given
-                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(context.openFileOutput(FIELD_DATA_FILE, Context.MODE_PRIVATE), "UTF-8"));
-                    writer.setIndent("  ");
-                    writer.beginObject();
-                    //write last irrigation time
-                    writer.name(LABEL_LAST_IRRIGATION).value(lastIrrigation);
-
-                    //write log frequency
-                    writer.name(LABEL_LOG_FREQUENCY).value(60);
-
-                    //write log list size
-                    writer.name(LABEL_NUM_LOGS).value(numLogs);
-
-                    //write logs list
-                    writer.name(LABEL_LOGS);
-                    writer.beginArray();
-                    for(int i = 0; i < numLogs; i++){
-                        writer.beginObject();
-                        if(temperature.equals(null)){
-                            writer.name(LABEL_TEMPERATURE).value("N/A");
-                        }else{
-                            writer.name(LABEL_TEMPERATURE).value(temperature);
-                        }
-                        if(moisture.equals(null)){
-                            writer.name(LABEL_MOISTURE).value("N/A");
-                        }else{
-                            writer.name(LABEL_MOISTURE).value(moisture);
-                        }
-                        if(luminosity.equals(null)){
-                            writer.name(LABEL_LUMINOSITY).value("N/A");
-                        }else{
-                            writer.name(LABEL_LUMINOSITY).value(luminosity);
-                        }
-                        if(soilMoisture.equals(null)){
-                            writer.name(LABEL_SOIL_MOISTURE).value("N/A");
-                        }else{
-                            writer.name(LABEL_SOIL_MOISTURE).value(soilMoisture);
-                        }
-                        writer.endObject();
-                    }
-                    writer.endArray();
-                    writer.endObject();
+            reader.endObject();
+        } catch (IOException | IllegalStateException e){
+            Log.e(TAG, "Discarding unreadable field data file");
+            hasReading = false;
+        } finally {
+            reader.close();
+        }
 
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e){
-                    e.printStackTrace();
-                }
+        if(hasReading){
+            sensorLogStore.append(reading);
+        }
+        context.deleteFile(FIELD_DATA_FILE);
+    }
+
+    private void readLegacyLog(JsonReader reader, SensorReading reading, SensorRegistry registry) throws IOException{
+        reader.beginObject();
+        while(reader.hasNext()){
+            String name = reader.nextName();
+            //sensors that were not found are written as "N/A"
+            if(reader.peek() != JsonToken.NUMBER && reader.peek() != JsonToken.STRING){
+                reader.skipValue();
+            } else if(name.equals(LABEL_TEMPERATURE) && reader.peek() == JsonToken.NUMBER){
+                reading.setNumber(SensorRegistry.TEMPERATURE, reader.nextInt());
+            } else if(name.equals(LABEL_MOISTURE) && reader.peek() == JsonToken.NUMBER){
+                reading.setNumber(SensorRegistry.MOISTURE, reader.nextInt());
+            } else if(name.equals(LABEL_LUMINOSITY)){
+                String label = reader.nextString();
+                reading.setLabelCode(SensorRegistry.LUMINOSITY, registry.labelCode(label, 0, label.length()));
+            } else if(name.equals(LABEL_SOIL_MOISTURE)){
+                String label = reader.nextString();
+                reading.setLabelCode(SensorRegistry.SOIL_MOISTURE, registry.labelCode(label, 0, label.length()));
+            } else {
+                reader.skipValue();
             }
-        }).start();
+        }
+        reader.endObject();
+    }
 
+    private JsonReader openJsonReader(String jsonFileName) throws IOException{
+        InputStream in = new BufferedInputStream(context.openFileInput(jsonFileName));
+        return new JsonReader(new InputStreamReader(in, "UTF-8"));
     }
 
     /**
-     * Write default irrigation data to database
+     * Read the irrigation file in a single streaming pass, binding each trigger straight
+     * into an IrrigationData instance, and set the result to data manager's instance.
      * */
-    private void writeDefaultIrrigationFile(final String jsonFileName){
-
-        new Thread(new Runnable() {
-            public void run() {
-                try{
-                    //create a new writer with the file name given
-                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(context.openFileOutput(jsonFileName, Context.MODE_PRIVATE), "UTF-8"));
-                    writer.setIndent("  ");
-                    writer.beginObject();
-                    //write current autoMode
-                    writer.name(LABEL_AUTO).value(false);
-
-                    //write number of triggers
-                    writer.name(LABEL_TRIGGERS_SIZE).value(0);
-
-                    //write triggers list
-                    writer.name(LABEL_TRIGGERS);
-                    writer.beginArray();
-                    writer.endArray();
-                    writer.endObject();
-
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e){
-                    e.printStackTrace();
-                }
-            }
-        }).start();
+    private void readIrrigationFile() throws IOException{
+        IrrigationFileCodec.Schedule schedule = IrrigationFileCodec.read(context.openFileInput(IRRIGATION_FILE));
+        autoMode = schedule.auto;
+        irrigationDataList = schedule.triggers;
+        scheduleDigest = null;
+    }
 
+    /**
+     * Read data from the latest sensor reading and set to data manager's instance
+     * */
+    private void setFieldData(SensorReading lastReading){
+        currentReading = lastReading;
     }
 
     /**
-     * Write default field data to database
+     * Write irrigation data from manager to database
      * */
-    private void writeDefaultFieldDataFile(final String jsonFileName){
-//        {
-//        "lastIrrigationTime":"-",
-//        "logFrequency":0,
-//        "numberOfLogs":0,
-//        "logs": []
-//    }
-
-        new Thread(new Runnable() {
-            public void run() {
-                try{
-                    //create a new writer with the file name given
-                    JsonWriter writer = new JsonWriter(new OutputStreamWriter(context.openFileOutput(jsonFileName, Context.MODE_PRIVATE), "UTF-8"));
-                    writer.setIndent("  ");
-                    writer.beginObject();
-                    //write last irrigation time
-                    writer.name(LABEL_LAST_IRRIGATION).value("-");
-
-                    //write log frequency
-                    writer.name(LABEL_LOG_FREQUENCY).value(0);
-
-                    //write log list size
-                    writer.name(LABEL_NUM_LOGS).value(0);
-
-                    //write logs list
-                    writer.name(LABEL_LOGS);
-                    writer.beginArray();
-                    writer.endArray();
-                    writer.endObject();
-
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e){
-                    e.printStackTrace();
-                }
+    public synchronized void writeIrrigationFile(){
+        //snapshot the current state, the write happens later on the persistence thread
+        final boolean auto = autoMode;
+        final List<IrrigationData> triggers = new ArrayList<>(irrigationDataList);
+        //every change to the schedule is written, so the hash is outdated
+        scheduleDigest = null;
+
+        persistenceExecutor.schedule(context.getFileStreamPath(IRRIGATION_FILE), new PersistenceExecutor.FileWriterTask() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                IrrigationFileCodec.write(out, auto, triggers);
             }
-        }).start();
-
+        });
     }
 
+    /**
+     * Write all pending changes to the database and wait until they are stored
+     * */
+    public void flushPendingWrites(){
+        try{
+            persistenceExecutor.flush();
+        } catch (InterruptedException e){
+            Log.e(TAG, "Interrupted while writing data");
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * Set how long bursts of changes are collected before being written to the database
+     * */
+    public void setWriteCoalesceWindow(long windowMs){
+        persistenceExecutor.setCoalesceWindow(windowMs);
+    }
 
     public List<IrrigationData> getIrrigationDataList(){
         return this.irrigationDataList;
     }
 
-    public void addIrrigationData(IrrigationData data){
+    public synchronized void addIrrigationData(IrrigationData data){
         irrigationDataList.add(data);
         writeIrrigationFile();
     }
 
-    public void removeIrrigationData(int id){
+    public synchronized void removeIrrigationData(int id){
         if(!irrigationDataList.isEmpty() && irrigationDataList.size()>id){
             irrigationDataList.remove(id);
             writeIrrigationFile();
         }
     }
 
-    public void replaceIrrigationData(Integer id, IrrigationData data){
+    public synchronized void replaceIrrigationData(Integer id, IrrigationData data){
         irrigationDataList.set(id, data);
         writeIrrigationFile();
     }
 
-    public void clearIrrigationData(){
+    public synchronized void clearIrrigationData(){
         irrigationDataList = new ArrayList<>();
         writeIrrigationFile();
     }
@@ -431,11 +351,26 @@ public class DataManager {
         return autoMode;
     }
 
-    public void setAutoMode(Boolean autoMode){
+    public synchronized void setAutoMode(Boolean autoMode){
         this.autoMode = autoMode;
         writeIrrigationFile();
     }
 
+    /**
+     * Copy the current schedule into triggers and return its content hash, compared with
+     * the controller's to upload only the triggers that changed. Both are taken under the
+     * same lock as the changes, so the hash always matches the triggers copied.
+     * */
+    public synchronized ScheduleDigest snapshotSchedule(List<IrrigationData> triggers){
+        triggers.addAll(irrigationDataList);
+        ScheduleDigest digest = scheduleDigest;
+        if(digest == null){
+            digest = ScheduleDigest.of(Boolean.TRUE.equals(autoMode), triggers);
+            scheduleDigest = digest;
+        }
+        return digest;
+    }
+
     public IrrigationData getIrrigationData(int id){
         return irrigationDataList.get(id);
     }
@@ -444,24 +379,59 @@ public class DataManager {
         return irrigationDataList.indexOf(data);
     }
 
+    /**
+     * Latest reading stored from the controller set in the settings, or null if none was
+     * received yet. Its values are resolved with that controller's getSensorRegistry().
+     * */
+    public SensorReading getCurrentReading(){
+        return currentReading;
+    }
+
+    /**
+     * Sensors and labels of a controller's sensor log partition
+     * */
+    public SensorRegistry getSensorRegistry(String address) throws IOException{
+        return getSensorLogStore(address).getRegistry();
+    }
+
     public Integer getCurrentTemperature() {
-        return currentTemperature;
+        return getCurrentNumber(SensorRegistry.TEMPERATURE);
     }
 
     public Integer getCurrentMoisture() {
-        return currentMoisture;
+        return getCurrentNumber(SensorRegistry.MOISTURE);
     }
 
     public String getCurrentLuminosity() {
-        return currentLuminosity;
+        return getCurrentLabel(SensorRegistry.LUMINOSITY);
     }
 
     public String getCurrentSoilMoisture() {
-        return currentSoilMoisture;
+        return getCurrentLabel(SensorRegistry.SOIL_MOISTURE);
+    }
+
+    private Integer getCurrentNumber(int sensorId){
+        if(currentReading == null || !currentReading.hasValue(sensorId)){
+            return null;
+        }
+        return (int) Math.round(currentReading.getNumber(sensorId));
+    }
+
+    private String getCurrentLabel(int sensorId){
+        if(currentReading == null || !currentReading.hasValue(sensorId) || currentStore == null){
+            return null;
+        }
+        return currentStore.getRegistry().getLabel(currentReading.getLabelCode(sensorId));
     }
 
     public String getLastIrrigation(){
-        return lastIrrigation;
+        return sharedPreferences.getString(PREFS_LAST_IRRIGATION, "-");
+    }
+
+    public void setLastIrrigation(String time){
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(PREFS_LAST_IRRIGATION, time);
+        editor.apply();
     }
 
     public void clearDataFiles(){
@@ -469,91 +439,206 @@ public class DataManager {
 
     }
 
+    /**
+     * Set the controller shown in the app, registering it if needed
+     * */
     public void setMacAddress(String address){
         SharedPreferences.Editor editor = sharedPreferences.edit();
         editor.putString(PREFS_MAC_ADDRESS, address);
         editor.apply();
+        getControllerRegistry().register(address);
+        //the first controller chosen gets the readings kept from before there were several
+        getSensorLogOwner();
+    }
+
+    public synchronized ControllerRegistry getControllerRegistry(){
+        if(controllerRegistry == null){
+            controllerRegistry = new ControllerRegistry(context);
+        }
+        return controllerRegistry;
     }
 
     public String getMacAddress(){
-        return sharedPreferences.getString(PREFS_MAC_ADDRESS, "00:00:00:00:00:00");
+        return sharedPreferences.getString(PREFS_MAC_ADDRESS, DEFAULT_MAC_ADDRESS);
+    }
+
+    /**
+     * Way of opening the socket that worked last time for a controller, see
+     * BluetoothConnector
+     * */
+    public int getConnectStrategy(String address){
+        return sharedPreferences.getInt(PREFS_CONNECT_STRATEGY + address, BluetoothConnector.STRATEGY_NONE);
+    }
+
+    public void setConnectStrategy(String address, int strategy){
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putInt(PREFS_CONNECT_STRATEGY + address, strategy);
+        editor.apply();
     }
 
     public Uri getIrrigationDataUri(){
         return Uri.fromFile(context.getFileStreamPath(IRRIGATION_FILE));
     }
 
-    public void appendSensorData(String data, boolean msgOver){
-        rawSensorData += data;
-        if(msgOver){
-            try{
-                parseRawSensorData(rawSensorData);
-            } catch (IllegalStateException e){
-                Log.e(TAG, "Invalid data format");
-            } catch (JSONException e){
-                e.printStackTrace();
-                Log.e(TAG, "Error parsing JSON");
-            } catch (IOException e){
-                Log.e(TAG, "Error updating data");
-            }
-
-            rawSensorData = "";
+    /**
+     * The irrigation file as it is sent to old controllers, with the changes still waiting
+     * to be written stored first, so it always holds the current schedule
+     * */
+    public InputStream openIrrigationFile() throws IOException{
+        if(!fileExists(IRRIGATION_FILE)){
+            //never written yet, e.g. a sync before the schedule was first loaded
+            writeIrrigationFile();
         }
+        flushPendingWrites();
+        return context.openFileInput(IRRIGATION_FILE);
     }
 
-    private void parseRawSensorData(String sensorData) throws IllegalStateException, JSONException, IOException{
+    /**
+     * Parse a complete message received from the controller into sensor readings.
+     * Every log of the message is kept, stamped with its own date and time, sorted by
+     * time and with repeated timestamps merged into one reading (the last one sent wins).
+     * Logs without a date are kept too, in the order sent, up to the time received.
+     * Does not touch the database, so it can run on any thread.
+     * */
+    List<SensorReading> parseRawSensorData(String controllerAddress, String sensorData) throws ParseException{
         //System.out.println(sensorData);
-        String lastIrrigation = "";
-        int numLogs;
-        Integer temperature = null;
-        Integer moisture = null;
-        String luminosity = null;
-        String soilMoisture = null;
-
-        sensorData = sensorData.replace("', '", ""); //remove comma separators
-        sensorData = sensorData.substring(sensorData.indexOf('{'),sensorData.lastIndexOf('}')+1); //enclose object
-        sensorData = sensorData.replaceAll("\\\\n", "");
-        sensorData = sensorData.replaceAll("\\\\t", "");
-
-        JSONObject jsonData = new JSONObject(sensorData);
-        numLogs = jsonData.getInt("numberOfLogs");
-        JSONArray logs = jsonData.getJSONArray("logs");
-
-        JSONObject lastLog = logs.getJSONObject(0);
-        int numSensors = lastLog.getInt("numberOfSensors");
-        JSONArray sensors = lastLog.getJSONArray("sensors");
-        for(int i = 0; i < numSensors; i++){
-            String sensorName = sensors.getJSONObject(i).getString("name");
-            switch (sensorName){
-                case "Temperature":
-                    temperature = sensors.getJSONObject(i).getInt("data");
-                    break;
-                case "Moisture":
-                    moisture = sensors.getJSONObject(i).getInt("data");
-                    break;
-                case "Luminosity":
-                    luminosity = sensors.getJSONObject(i).getString("data");
-                    break;
-                case "Soil Moisture":
-                    soilMoisture = sensors.getJSONObject(i).getString("data");
-                    break;
+        List<SensorReading> logs;
+        try{
+            logs = new SensorPayloadTokenizer(sensorData, System.currentTimeMillis(), getSensorRegistry(controllerAddress)).parse();
+        } catch (IOException e){
+            throw new ParseException("Sensor registry unavailable: " + e.getMessage(), 0);
+        }
+        return sortAndMerge(logs);
+    }
+
+    /**
+     * Sort readings by time, merging readings with the same timestamp into the last one
+     * of them
+     * */
+    static List<SensorReading> sortAndMerge(List<SensorReading> logs){
+        //stable sort, so among equal timestamps the order sent is kept
+        Collections.sort(logs, new Comparator<SensorReading>() {
+            @Override
+            public int compare(SensorReading lhs, SensorReading rhs) {
+                return lhs.getTimestamp() < rhs.getTimestamp() ? -1 : (lhs.getTimestamp() == rhs.getTimestamp() ? 0 : 1);
             }
+        });
+
+        List<SensorReading> readings = new ArrayList<>(logs.size());
+        for(SensorReading log : logs){
+            int last = readings.size() - 1;
+            if(last >= 0 && readings.get(last).getTimestamp() == log.getTimestamp()){
+                readings.set(last, log);
+            } else {
+                readings.add(log);
+            }
+        }
+        return readings;
+    }
+
+    /**
+     * Append readings received from a controller to its sensor log partition in a single
+     * all or nothing append. Readings not newer than the last one stored were already
+     * received and are skipped, so the stored history is never rewritten. Blocks until the
+     * readings are on disk.
+     *
+     * The controller's sync cursor moves past the readings only once they are on disk. A
+     * cursor lost before it is saved only makes the next sync send readings again, which
+     * the append skips.
+     *
+     * @return number of readings stored
+     * */
+    int appendSensorReadings(String controllerAddress, List<SensorReading> readings) throws IOException{
+        SensorLogStore store = getSensorLogStore(controllerAddress);
+        int appended = store.append(readings);
+        SensorReading last = store.getLastReading();
+        if(!readings.isEmpty() && last != null){
+            //readings older than the log's tail were skipped, they are not stored either
+            advanceSyncCursor(controllerAddress, Math.min(readings.get(readings.size() - 1).getTimestamp(), last.getTimestamp()));
         }
+        return appended;
+    }
 
+    /**
+     * Time of the newest reading stored from a controller, 0 if none. The controller only
+     * sends readings newer than this.
+     * */
+    public long getSyncCursor(String controllerAddress) throws IOException{
+        long cursor = sharedPreferences.getLong(PREFS_SYNC_CURSOR + controllerAddress, 0);
+        //never past the log, in case it was cleared after the cursor was saved
+        SensorReading last = getSensorLogStore(controllerAddress).getLastReading();
+        return last == null ? 0 : Math.min(cursor, last.getTimestamp());
+    }
 
-        writeFieldDataFile(lastIrrigation,numLogs,temperature,moisture,luminosity,soilMoisture);
-        updateSensorData();
+    private synchronized void advanceSyncCursor(String controllerAddress, long timestamp){
+        if(timestamp <= sharedPreferences.getLong(PREFS_SYNC_CURSOR + controllerAddress, 0)){
+            return;
+        }
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putLong(PREFS_SYNC_CURSOR + controllerAddress, timestamp);
+        editor.apply();
+    }
 
+    /**
+     * Make a stored reading the current one and notify the listeners, if it comes from the
+     * controller set in the settings. Must be called on the UI thread.
+     * */
+    void publishSensorReading(String controllerAddress, SensorReading reading){
+        if(!controllerAddress.equals(getMacAddress())){
+            //stored in its partition, the app shows one controller at a time
+            return;
+        }
+        synchronized (this){
+            currentStore = sensorLogStores.get(controllerAddress);
+        }
+        setFieldData(reading);
+        setLastSync(EpochMillis.now());
+        for(SensorDataListener listener : new ArrayList<>(sensorDataListeners)){
+            listener.onSensorDataUpdated();
+        }
+    }
+
+    public void addSensorDataListener(SensorDataListener listener){
+        sensorDataListeners.add(listener);
     }
 
-    public void setLastSync(String time){
+    public void removeSensorDataListener(SensorDataListener listener){
+        sensorDataListeners.remove(listener);
+    }
+
+    public void setLastSync(EpochMillis time){
         SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString(PREFS_LAST_SYNC, time);
+        editor.putLong(PREFS_LAST_SYNC_TIME, time.getValue());
+        editor.remove(PREFS_LAST_SYNC);
         editor.apply();
     }
 
-    public String getLastSync() {
-        return sharedPreferences.getString(PREFS_LAST_SYNC, "");
+    /**
+     * @return the time of the last sync, or null if there was none
+     * */
+    public EpochMillis getLastSync() {
+        if(sharedPreferences.contains(PREFS_LAST_SYNC)){
+            migrateLastSync(sharedPreferences);
+        }
+        if(!sharedPreferences.contains(PREFS_LAST_SYNC_TIME)){
+            return null;
+        }
+        return EpochMillis.of(sharedPreferences.getLong(PREFS_LAST_SYNC_TIME, 0));
+    }
+
+    /**
+     * Parse the last sync stored as text by older versions, once, and keep it as a number.
+     * Text that does not parse is dropped.
+     * */
+    static void migrateLastSync(SharedPreferences preferences){
+        EpochMillis lastSync = TimeFormats.parseDateTime(preferences.getString(PREFS_LAST_SYNC, null));
+        SharedPreferences.Editor editor = preferences.edit();
+        if(lastSync != null){
+            editor.putLong(PREFS_LAST_SYNC_TIME, lastSync.getValue());
+        }
+        editor.remove(PREFS_LAST_SYNC);
+        //committed right away, the value is read again at once
+        editor.commit();
     }
 
     public void testDataParser(){
@@ -593,8 +678,12 @@ public class DataManager {
                 "\t]\n" +
                 "}";
         try{
-            parseRawSensorData(testString);
-        } catch (JSONException e){
+            String address = getMacAddress();
+            List<SensorReading> readings = parseRawSensorData(address, testString);
+            if(appendSensorReadings(address, readings) > 0){
+                publishSensorReading(address, readings.get(readings.size() - 1));
+            }
+        } catch (ParseException e){
             Log.e("Test Parser", "Error parsing data");
         } catch (IOException e){
             Log.e("Test Parser", "Error updating data");
@@ -0,0 +1,40 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.MessageAssembler;
+
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Decoder for controllers that only speak the original protocol: '#' terminated text
+ * messages holding the controller's JSON file. The first message ends the sync.
+ * */
+
+public class JsonSyncDecoder implements SensorIngestionPipeline.MessageDecoder<String> {
+
+    private final MessageAssembler assembler;
+    private final DataManager dataManager;
+    private final String controllerAddress;
+
+    public JsonSyncDecoder(DataManager dataManager, String controllerAddress){
+        this.assembler = new MessageAssembler();
+        this.dataManager = dataManager;
+        this.controllerAddress = controllerAddress;
+    }
+
+    @Override
+    public List<String> frame(byte[] data, int offset, int length) {
+        return assembler.append(data, offset, length);
+    }
+
+    @Override
+    public List<SensorReading> parse(String message) throws ParseException {
+        return dataManager.parseRawSensorData(controllerAddress, message);
+    }
+
+    @Override
+    public boolean isLast(String message) {
+        return true;
+    }
+}
@@ -0,0 +1,223 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.senai.mecatronica.dripper.beans.EpochMillis;
+import org.senai.mecatronica.dripper.helpers.LatencyHistogram;
+import org.senai.mecatronica.dripper.helpers.TimeFormats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, gauges and latency histograms of the sync, per controller, kept in memory
+ * since the app started.
+ *
+ * Recording is cheap enough for the sync threads: a map lookup and an atomic add, or a
+ * histogram bucket increment. Histograms take a fixed amount of memory however many
+ * syncs are recorded (see LatencyHistogram). The diagnostics screen shows the report and
+ * exports it to a file.
+ * */
+
+public class MetricsRegistry {
+
+    //histograms, in microseconds
+    public static final String CONNECT_TIME = "connect time";
+    public static final String SYNC_TIME = "sync time";
+    public static final String PARSE_TIME = "parse time";
+    public static final String PERSIST_TIME = "persist time";
+    public static final String UPLOAD_TIME = "upload time";
+    public static final String DOWNLOAD_TIME = "download time";
+    //counters
+    public static final String BYTES_IN = "bytes in";
+    public static final String BYTES_OUT = "bytes out";
+    public static final String FRAMES_IN = "frames in";
+    public static final String FRAMES_OUT = "frames out";
+    public static final String RETRANSMISSIONS = "retransmissions";
+    public static final String SYNCS = "syncs";
+    public static final String CONNECT_FAILURES = "connect failures";
+    public static final String SYNC_FAILURES = "sync failures";
+    public static final String PARSE_FAILURES = "parse failures";
+    public static final String PERSIST_FAILURES = "persist failures";
+    //gauges
+    public static final String LAST_SYNC = "last sync";
+    public static final String PROTOCOL_VERSION = "protocol version";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BAR_WIDTH = 20;
+
+    private static MetricsRegistry metricsRegistry;
+
+    public static synchronized MetricsRegistry getInstance(){
+        if(metricsRegistry == null){
+            metricsRegistry = new MetricsRegistry();
+        }
+        return metricsRegistry;
+    }
+
+    //sorted by address, like the controller registry
+    private final Map<String, ControllerMetrics> controllers = new TreeMap<>();
+
+    private MetricsRegistry(){ }
+
+    /**
+     * Metrics of one controller, created the first time it is asked for
+     * */
+    public synchronized ControllerMetrics forController(String address){
+        ControllerMetrics metrics = controllers.get(address);
+        if(metrics == null){
+            metrics = new ControllerMetrics();
+            controllers.put(address, metrics);
+        }
+        return metrics;
+    }
+
+    public synchronized void reset(){
+        controllers.clear();
+    }
+
+    /**
+     * Every metric as text, controller by controller, histograms with their non empty
+     * buckets
+     * */
+    public synchronized String report(){
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<String, ControllerMetrics> entry : controllers.entrySet()){
+            ControllerMetrics metrics = entry.getValue();
+            builder.append(entry.getKey()).append('\n');
+            for(Map.Entry<String, AtomicLong> gauge : new TreeMap<>(metrics.gauges).entrySet()){
+                long value = gauge.getValue().get();
+                builder.append("  ").append(gauge.getKey()).append(": ")
+                        .append(gauge.getKey().equals(LAST_SYNC) ? TimeFormats.formatTimestamp(EpochMillis.of(value)) : String.valueOf(value))
+                        .append('\n');
+            }
+            for(Map.Entry<String, AtomicLong> counter : new TreeMap<>(metrics.counters).entrySet()){
+                builder.append("  ").append(counter.getKey()).append(": ").append(counter.getValue().get()).append('\n');
+            }
+            for(Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(metrics.histograms).entrySet()){
+                appendHistogram(builder, histogram.getKey(), histogram.getValue());
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the report to a file, followed by the raw histogram buckets as
+     * controller;histogram;lower bound in us;count lines
+     * */
+    public synchronized void export(File file) throws IOException{
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try{
+            writer.write(report());
+            writer.write("controller;histogram;lower_us;count\n");
+            for(Map.Entry<String, ControllerMetrics> entry : controllers.entrySet()){
+                for(Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(entry.getValue().histograms).entrySet()){
+                    LatencyHistogram values = histogram.getValue();
+                    for(int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++){
+                        long count = values.getBucketCount(i);
+                        if(count > 0){
+                            writer.write(entry.getKey() + ";" + histogram.getKey() + ";"
+                                    + LatencyHistogram.lowerBound(i) + ";" + count + "\n");
+                        }
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, LatencyHistogram histogram){
+        builder.append(String.format(Locale.US, "  %s: n=%d mean=%s p50=%s p90=%s p99=%s max=%s\n", name,
+                histogram.getCount(), duration(histogram.getMean()), duration(histogram.getPercentile(0.5)),
+                duration(histogram.getPercentile(0.9)), duration(histogram.getPercentile(0.99)),
+                duration(histogram.getMax())));
+        long largest = 0;
+        for(int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++){
+            largest = Math.max(largest, histogram.getBucketCount(i));
+        }
+        for(int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++){
+            long count = histogram.getBucketCount(i);
+            if(count == 0){
+                continue;
+            }
+            builder.append(String.format(Locale.US, "    >=%-8s ", duration(LatencyHistogram.lowerBound(i))));
+            for(long bar = Math.max(1, count * BAR_WIDTH / largest); bar > 0; bar--){
+                builder.append('#');
+            }
+            builder.append(' ').append(count).append('\n');
+        }
+    }
+
+    private static String duration(long micros){
+        if(micros < 1000){
+            return micros + "us";
+        } else if(micros < 1000000){
+            return String.format(Locale.US, "%.1fms", micros / 1000.0);
+        }
+        return String.format(Locale.US, "%.2fs", micros / 1000000.0);
+    }
+
+    /**
+     * The metrics of one controller, safe to record from any thread
+     * */
+    public static class ControllerMetrics {
+        private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+        public void increment(String counter){
+            add(counter, 1);
+        }
+
+        public void add(String counter, long delta){
+            get(counters, counter).addAndGet(delta);
+        }
+
+        public void set(String gauge, long value){
+            get(gauges, gauge).set(value);
+        }
+
+        /**
+         * Record a duration measured with System.nanoTime()
+         * */
+        public void recordNanos(String histogram, long nanos){
+            LatencyHistogram values = histograms.get(histogram);
+            if(values == null){
+                histograms.putIfAbsent(histogram, new LatencyHistogram());
+                values = histograms.get(histogram);
+            }
+            values.record(nanos / 1000);
+        }
+
+        public long getCounter(String counter){
+            AtomicLong value = counters.get(counter);
+            return value == null ? 0 : value.get();
+        }
+
+        /**
+         * @return the histogram, or null if nothing was recorded in it
+         * */
+        public LatencyHistogram getHistogram(String histogram){
+            return histograms.get(histogram);
+        }
+
+        private static AtomicLong get(ConcurrentMap<String, AtomicLong> values, String name){
+            AtomicLong value = values.get(name);
+            if(value == null){
+                values.putIfAbsent(name, new AtomicLong());
+                value = values.get(name);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single writer for the database files.
+ *
+ * All writes run on one background thread. Writes scheduled for the same file within
+ * the coalescing window are merged, so only the latest snapshot reaches the disk.
+ * Each file is written to a temporary file first and then renamed over the old one,
+ * so readers never see a partially written file.
+ * */
+
+public class PersistenceExecutor {
+
+    private static final String TAG = "Persistence Executor";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * Writes a snapshot of some data to the given stream.
+     * The stream must be flushed but not closed, it is synced and closed afterwards.
+     * */
+    public interface FileWriterTask {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Map<File, FileWriterTask> pendingWrites;
+    private ScheduledFuture<?> scheduledRun;
+    private long coalesceWindowMs;
+
+    public PersistenceExecutor(long coalesceWindowMs){
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.pendingWrites = new LinkedHashMap<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Persistence");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized void setCoalesceWindow(long coalesceWindowMs){
+        this.coalesceWindowMs = coalesceWindowMs;
+    }
+
+    /**
+     * Schedule a write of the target file. If a write of the same file is still pending
+     * it is replaced, and the coalescing window starts again.
+     * */
+    public synchronized void schedule(File target, FileWriterTask task){
+        pendingWrites.put(target, task);
+        if(scheduledRun != null){
+            scheduledRun.cancel(false);
+        }
+        scheduledRun = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runPendingWrites();
+            }
+        }, coalesceWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write everything that is pending right away and wait until it is on disk
+     * */
+    public void flush() throws InterruptedException{
+        try{
+            flush(Long.MAX_VALUE);
+        } catch (TimeoutException e){
+            //cannot happen without a timeout
+        }
+    }
+
+    /**
+     * Write everything that is pending right away and wait up to timeoutMs for it
+     * */
+    public void flush(long timeoutMs) throws InterruptedException, TimeoutException{
+        Future<?> run;
+        synchronized (this){
+            if(scheduledRun != null){
+                scheduledRun.cancel(false);
+                scheduledRun = null;
+            }
+            run = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runPendingWrites();
+                }
+            });
+        }
+        try{
+            run.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e){
+            Log.e(TAG, "Flush failed: " + e.getCause());
+        }
+    }
+
+    private void runPendingWrites(){
+        Map<File, FileWriterTask> writes;
+        synchronized (this){
+            writes = new LinkedHashMap<>(pendingWrites);
+            pendingWrites.clear();
+        }
+        for(Map.Entry<File, FileWriterTask> write : writes.entrySet()){
+            try{
+                writeAtomically(write.getKey(), write.getValue());
+            } catch (IOException e){
+                Log.e(TAG, "Unable to write " + write.getKey().getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeAtomically(File target, FileWriterTask task) throws IOException{
+        File temp = new File(target.getPath() + TEMP_EXTENSION);
+        FileOutputStream out = new FileOutputStream(temp);
+        try{
+            task.write(out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(target)){
+            throw new IOException("Unable to replace " + target.getName());
+        }
+    }
+}
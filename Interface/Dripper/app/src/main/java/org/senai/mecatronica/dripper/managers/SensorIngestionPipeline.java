@@ -0,0 +1,240 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.ChunkChannel;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Turns the bytes read from the controller into stored sensor readings, away from the
+ * UI thread.
+ *
+ * Stages: receive (the socket reader fills the chunk channel) -> frame (rebuild the
+ * messages of the sync protocol) -> parse -> persist (append to the sensor log) ->
+ * publish (hand the stored reading to the UI thread). Framing and parsing depend on the
+ * protocol negotiated with the controller and are done by a MessageDecoder. Each stage
+ * runs on its own thread and the stages are linked by small bounded queues, so a slow
+ * stage blocks the one before it all the way back to the socket instead of buffering
+ * without limit. Readings reach the UI, and the controller's sync cursor moves past
+ * them, only after they were written to disk.
+ * */
+
+public class SensorIngestionPipeline<M> {
+
+    private static final String TAG = "Ingestion Pipeline";
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * Protocol specific part of the pipeline. frame() runs on the frame stage and
+     * parse() on the parse stage, each always on the same thread.
+     * */
+    public interface MessageDecoder<M> {
+        /**
+         * @return the messages completed by a chunk of received bytes
+         * */
+        List<M> frame(byte[] data, int offset, int length);
+
+        /**
+         * @return the readings of a message, sorted by time
+         * */
+        List<SensorReading> parse(M message) throws ParseException;
+
+        /**
+         * True if nothing more is expected from the controller after this message
+         * */
+        boolean isLast(M message);
+    }
+
+    //end of stream markers, compared by identity
+    private final List<M> endOfMessages = new ArrayList<>(0);
+    private static final List<SensorReading> END_OF_READINGS = new ArrayList<>(0);
+
+    private final ChunkChannel chunks;
+    private final MessageDecoder<M> decoder;
+    private final DataManager dataManager;
+    private final String controllerAddress;
+    private final MetricsRegistry.ControllerMetrics metrics;
+    private final Handler mainHandler;
+    private final BlockingQueue<List<M>> messages;
+    private final BlockingQueue<List<SensorReading>> readings;
+    private final List<Thread> stages;
+    private volatile boolean messageComplete;
+    private volatile Runnable messageCompleteListener;
+
+    public SensorIngestionPipeline(ChunkChannel chunks, MessageDecoder<M> decoder, DataManager dataManager,
+                                   String controllerAddress){
+        this.chunks = chunks;
+        this.decoder = decoder;
+        this.dataManager = dataManager;
+        this.controllerAddress = controllerAddress;
+        this.metrics = MetricsRegistry.getInstance().forController(controllerAddress);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.messages = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.readings = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.stages = new ArrayList<>(3);
+        stages.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                frame();
+            }
+        }, "Ingestion Frame"));
+        stages.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse();
+            }
+        }, "Ingestion Parse"));
+        stages.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                persist();
+            }
+        }, "Ingestion Persist"));
+    }
+
+    public void start(){
+        for(Thread stage : stages){
+            stage.start();
+        }
+    }
+
+    /**
+     * No more chunks will be received. Messages already framed are still processed.
+     * */
+    public void finish(){
+        chunks.close();
+    }
+
+    /**
+     * Stop every stage right away, dropping data not yet stored
+     * */
+    public void cancel(){
+        chunks.close();
+        for(Thread stage : stages){
+            stage.interrupt();
+        }
+    }
+
+    /**
+     * True once the last message of the sync was received
+     * */
+    public boolean isMessageComplete(){
+        return messageComplete;
+    }
+
+    /**
+     * Run once on the frame stage when the last message was received, or when the stream
+     * could not be framed any more
+     * */
+    public void setMessageCompleteListener(Runnable listener){
+        this.messageCompleteListener = listener;
+    }
+
+    private void frame(){
+        boolean framing = true;
+        try{
+            ChunkChannel.Chunk chunk;
+            while((chunk = chunks.take()) != null){
+                List<M> completed = null;
+                try{
+                    if(framing){
+                        completed = decoder.frame(chunk.data, 0, chunk.length);
+                    }
+                } catch (IllegalStateException e){
+                    //the stream cannot be framed any more, keep what was received until now
+                    Log.e(TAG, "Invalid stream: " + e.getMessage());
+                    framing = false;
+                    completeMessage();
+                } finally {
+                    chunks.recycle(chunk);
+                }
+                if(completed == null || completed.isEmpty()){
+                    continue;
+                }
+                messages.put(completed);
+                for(M message : completed){
+                    if(decoder.isLast(message)){
+                        completeMessage();
+                    }
+                }
+            }
+            messages.put(endOfMessages);
+        } catch (InterruptedException e){
+            Log.i(TAG, "Frame stage cancelled");
+        }
+    }
+
+    private void completeMessage(){
+        if(messageComplete){
+            return;
+        }
+        messageComplete = true;
+        Runnable listener = messageCompleteListener;
+        if(listener != null){
+            listener.run();
+        }
+    }
+
+    private void parse(){
+        try{
+            List<M> batch;
+            while((batch = messages.take()) != endOfMessages){
+                for(M message : batch){
+                    try{
+                        long start = System.nanoTime();
+                        List<SensorReading> parsed = decoder.parse(message);
+                        metrics.recordNanos(MetricsRegistry.PARSE_TIME, System.nanoTime() - start);
+                        if(!parsed.isEmpty()){
+                            readings.put(parsed);
+                        }
+                    } catch (ParseException e){
+                        metrics.increment(MetricsRegistry.PARSE_FAILURES);
+                        Log.e(TAG, "Invalid data format at " + e.getErrorOffset() + ": " + e.getMessage());
+                    }
+                }
+            }
+            readings.put(END_OF_READINGS);
+        } catch (InterruptedException e){
+            Log.i(TAG, "Parse stage cancelled");
+        }
+    }
+
+    private void persist(){
+        try{
+            List<SensorReading> batch;
+            while((batch = readings.take()) != END_OF_READINGS){
+                try{
+                    long start = System.nanoTime();
+                    int stored = dataManager.appendSensorReadings(controllerAddress, batch);
+                    metrics.recordNanos(MetricsRegistry.PERSIST_TIME, System.nanoTime() - start);
+                    if(stored > 0){
+                        publish(batch.get(batch.size() - 1));
+                    }
+                } catch (IOException e){
+                    metrics.increment(MetricsRegistry.PERSIST_FAILURES);
+                    Log.e(TAG, "Error storing sensor data");
+                }
+            }
+        } catch (InterruptedException e){
+            Log.i(TAG, "Persist stage cancelled");
+        }
+    }
+
+    private void publish(final SensorReading reading){
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dataManager.publishSensorReading(controllerAddress, reading);
+            }
+        });
+    }
+}
@@ -0,0 +1,543 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.util.Log;
+
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only time series of sensor readings.
+ *
+ * Readings are stored as fixed-size binary records in rolling segment files of
+ * RECORDS_PER_SEGMENT records. A record is the timestamp followed by one 8 byte column
+ * per sensor id of the SensorRegistry; a segment is created with as many columns as
+ * there are sensors at the time, and a new one is started when a reading brings a
+ * sensor that does not fit. Segments written by the first version, with the four
+ * original sensors in fixed fields, are still read. Every INDEX_INTERVAL-th record of a
+ * segment is also written to a small sparse index file, so range queries seek close to
+ * the wanted timestamp instead of scanning the whole history. Records are kept in
+ * timestamp order, readings older than the last stored one are skipped.
+ * */
+
+public class SensorLogStore {
+
+    private static final String TAG = "Sensor Log Store";
+
+    private static final int MAGIC = 0x44524C47; //"DRLG"
+    private static final int VERSION_FIXED_FIELDS = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int TIMESTAMP_SIZE = 8;
+    private static final int COLUMN_SIZE = 8;
+    private static final int LABEL_SIZE = 16;
+    private static final int FIXED_RECORD_SIZE = 8 + 4 + 4 + LABEL_SIZE + LABEL_SIZE;
+    private static final int RECORDS_PER_SEGMENT = 4096;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+    private static final int READ_CHUNK_RECORDS = 256;
+    private static final int MISSING_VALUE = Integer.MIN_VALUE;
+    private static final int MISSING_LABEL = 0xFF;
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final String REGISTRY_FILE = "sensors.reg";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final List<Segment> segments;
+    private final SensorRegistry registry;
+    private SensorReading lastReading;
+
+    public SensorLogStore(File directory) throws IOException{
+        this.directory = directory;
+        this.segments = new ArrayList<>();
+        if(!directory.exists() && !directory.mkdirs()){
+            throw new IOException("Unable to create " + directory.getPath());
+        }
+        this.registry = new SensorRegistry(new File(directory, REGISTRY_FILE));
+        openSegments();
+    }
+
+    /**
+     * Sensors and labels the stored columns refer to
+     * */
+    public SensorRegistry getRegistry(){
+        return registry;
+    }
+
+    /**
+     * Load segment files from disk, repairing torn writes and missing index entries
+     * */
+    private void openSegments() throws IOException{
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_EXTENSION);
+            }
+        });
+        if(files == null){
+            return;
+        }
+
+        for(File file : files){
+            Segment segment = openSegment(file);
+            if(segment != null){
+                segments.add(segment);
+            }
+        }
+        //names are zero padded timestamps, but text order puts -10 after -5
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.baseTimestamp < b.baseTimestamp ? -1 : (a.baseTimestamp == b.baseTimestamp ? 0 : 1);
+            }
+        });
+
+        //cache the tail record, it is the only one the UI needs
+        for(int i = segments.size() - 1; i >= 0 && lastReading == null; i--){
+            Segment segment = segments.get(i);
+            if(segment.recordCount > 0){
+                List<SensorReading> tail = readRecords(segment, segment.recordCount - 1, Long.MIN_VALUE, Long.MAX_VALUE);
+                lastReading = tail.get(0);
+            }
+        }
+    }
+
+    private Segment openSegment(File file) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            int version = raf.length() < HEADER_SIZE || raf.readInt() != MAGIC ? 0 : raf.readInt();
+            int recordSize = raf.length() < HEADER_SIZE ? 0 : raf.readInt();
+            int columnCount = raf.length() < HEADER_SIZE ? 0 : raf.readInt();
+            boolean valid = (version == VERSION_FIXED_FIELDS && recordSize == FIXED_RECORD_SIZE)
+                    || (version == VERSION && recordSize == TIMESTAMP_SIZE + columnCount * COLUMN_SIZE);
+            if(!valid){
+                Log.e(TAG, "Skipping invalid segment " + file.getName());
+                return null;
+            }
+            //drop a partially written record left by an interrupted append
+            long payload = raf.length() - HEADER_SIZE;
+            if(payload % recordSize != 0){
+                raf.setLength(HEADER_SIZE + (payload / recordSize) * recordSize);
+            }
+
+            Segment segment = new Segment(file, version, columnCount, (int) (payload / recordSize));
+            loadIndex(segment, raf);
+            return segment;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void loadIndex(Segment segment, RandomAccessFile segmentFile) throws IOException{
+        int expected = (segment.recordCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        if(segment.indexFile.length() == (long) expected * INDEX_ENTRY_SIZE){
+            RandomAccessFile raf = new RandomAccessFile(segment.indexFile, "r");
+            try{
+                byte[] entries = new byte[expected * INDEX_ENTRY_SIZE];
+                raf.readFully(entries);
+                ByteBuffer buffer = ByteBuffer.wrap(entries);
+                for(int i = 0; i < expected; i++){
+                    segment.addIndexEntry(buffer.getLong(), buffer.getInt());
+                }
+            } finally {
+                raf.close();
+            }
+            return;
+        }
+
+        //index is missing or out of date, rebuild it from the segment itself
+        Log.i(TAG, "Rebuilding index for " + segment.file.getName());
+        ByteBuffer entries = ByteBuffer.allocate(expected * INDEX_ENTRY_SIZE);
+        for(int recordNumber = 0; recordNumber < segment.recordCount; recordNumber += INDEX_INTERVAL){
+            segmentFile.seek(HEADER_SIZE + (long) recordNumber * segment.recordSize);
+            long timestamp = segmentFile.readLong();
+            entries.putLong(timestamp).putInt(recordNumber);
+            segment.addIndexEntry(timestamp, recordNumber);
+        }
+        FileOutputStream out = new FileOutputStream(segment.indexFile, false);
+        try{
+            out.write(entries.array(), 0, entries.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    private Segment createSegment(long baseTimestamp, int columnCount) throws IOException{
+        File file = new File(directory, String.format(Locale.US, "%019d", baseTimestamp) + SEGMENT_EXTENSION);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(TIMESTAMP_SIZE + columnCount * COLUMN_SIZE).putInt(columnCount);
+
+        FileOutputStream out = new FileOutputStream(file, false);
+        try{
+            out.write(header.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        Segment segment = new Segment(file, VERSION, columnCount, 0);
+        if(segment.indexFile.exists() && !segment.indexFile.delete()){
+            throw new IOException("Unable to reset " + segment.indexFile.getName());
+        }
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Append readings, in timestamp order, to the end of the log. Cost is proportional
+     * to the number of new readings only; each segment touched gets a single write and
+     * sync.
+     *
+     * The append is all or nothing: if any write fails, the records already written by
+     * this call are removed again before the exception is thrown, so a failed sync can
+     * simply be retried with the same readings.
+     *
+     * @return number of readings actually stored
+     * */
+    public synchronized int append(List<SensorReading> readings) throws IOException{
+        //state to go back to if the append fails halfway
+        Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        int tailRecordCount = tail == null ? 0 : tail.recordCount;
+        int tailIndexSize = tail == null ? 0 : tail.indexSize;
+        int firstNewSegment = segments.size();
+        SensorReading previousLastReading = lastReading;
+
+        try{
+            return appendInOrder(readings, tail);
+        } catch (IOException e){
+            rollback(tail, tailRecordCount, tailIndexSize, firstNewSegment);
+            lastReading = previousLastReading;
+            throw e;
+        }
+    }
+
+    private int appendInOrder(List<SensorReading> readings, Segment segment) throws IOException{
+        long lastTimestamp = lastReading == null ? Long.MIN_VALUE : lastReading.getTimestamp();
+        List<SensorReading> batch = new ArrayList<>();
+        int appended = 0;
+
+        //the columns written below must always be resolvable after a restart
+        registry.save();
+
+        for(SensorReading reading : readings){
+            //history is ordered by time, anything not newer is already stored
+            if(reading.getTimestamp() <= lastTimestamp){
+                continue;
+            }
+            if(segment == null || segment.recordCount + batch.size() >= RECORDS_PER_SEGMENT
+                    || !segment.fits(reading)){
+                if(segment != null && !batch.isEmpty()){
+                    writeBatch(segment, batch);
+                    batch.clear();
+                }
+                int columnCount = Math.max(registry.getSensorCount(), reading.getColumnCount());
+                segment = createSegment(reading.getTimestamp(), columnCount);
+            }
+            batch.add(reading);
+            lastTimestamp = reading.getTimestamp();
+            appended++;
+        }
+
+        if(segment != null && !batch.isEmpty()){
+            writeBatch(segment, batch);
+        }
+        return appended;
+    }
+
+    /**
+     * Undo a partial append: cut the old tail segment back to its previous length and
+     * drop the segments created since
+     * */
+    private void rollback(Segment tail, int tailRecordCount, int tailIndexSize, int firstNewSegment){
+        try{
+            if(tail != null && tail.recordCount != tailRecordCount){
+                truncate(tail.file, HEADER_SIZE + (long) tailRecordCount * tail.recordSize);
+                truncate(tail.indexFile, (long) tailIndexSize * INDEX_ENTRY_SIZE);
+                tail.recordCount = tailRecordCount;
+                tail.indexSize = tailIndexSize;
+            }
+        } catch (IOException e){
+            //reopening the store repairs the segment from its record count
+            Log.e(TAG, "Unable to roll back " + tail.file.getName() + ": " + e.getMessage());
+        }
+        while(segments.size() > firstNewSegment){
+            Segment segment = segments.remove(segments.size() - 1);
+            if(!segment.file.delete() || (segment.indexFile.exists() && !segment.indexFile.delete())){
+                Log.e(TAG, "Unable to delete " + segment.file.getName());
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException{
+        if(!file.exists()){
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            if(raf.length() > length){
+                raf.setLength(length);
+                raf.getFD().sync();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int append(SensorReading reading) throws IOException{
+        List<SensorReading> readings = new ArrayList<>(1);
+        readings.add(reading);
+        return append(readings);
+    }
+
+    private void writeBatch(Segment segment, List<SensorReading> batch) throws IOException{
+        ByteBuffer records = ByteBuffer.allocate(batch.size() * segment.recordSize);
+        ByteBuffer index = ByteBuffer.allocate((batch.size() / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE);
+
+        int recordNumber = segment.recordCount;
+        for(SensorReading reading : batch){
+            if(recordNumber % INDEX_INTERVAL == 0){
+                index.putLong(reading.getTimestamp()).putInt(recordNumber);
+            }
+            encode(reading, segment.columnCount, records);
+            recordNumber++;
+        }
+
+        FileOutputStream out = new FileOutputStream(segment.file, true);
+        try{
+            out.write(records.array(), 0, records.position());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        //the index is only a hint, it is rebuilt on open if this write is lost
+        if(index.position() > 0){
+            out = new FileOutputStream(segment.indexFile, true);
+            try{
+                out.write(index.array(), 0, index.position());
+            } finally {
+                out.close();
+            }
+            index.flip();
+            while(index.hasRemaining()){
+                segment.addIndexEntry(index.getLong(), index.getInt());
+            }
+        }
+
+        segment.recordCount = recordNumber;
+        lastReading = batch.get(batch.size() - 1);
+    }
+
+    /**
+     * Most recent reading stored, or null if the log is empty
+     * */
+    public synchronized SensorReading getLastReading(){
+        return lastReading;
+    }
+
+    /**
+     * Read all readings with from <= timestamp <= to, in time order
+     * */
+    public synchronized List<SensorReading> readRange(long from, long to) throws IOException{
+        List<SensorReading> result = new ArrayList<>();
+        for(int i = 0; i < segments.size(); i++){
+            Segment segment = segments.get(i);
+            //a segment ends where the next one begins
+            if(segment.recordCount == 0 || segment.baseTimestamp > to){
+                continue;
+            }
+            if(i + 1 < segments.size() && segments.get(i + 1).baseTimestamp <= from){
+                continue;
+            }
+            result.addAll(readRecords(segment, segment.findStartRecord(from), from, to));
+        }
+        return result;
+    }
+
+    public synchronized long getRecordCount(){
+        long count = 0;
+        for(Segment segment : segments){
+            count += segment.recordCount;
+        }
+        return count;
+    }
+
+    /**
+     * Erase all segments and indexes
+     * */
+    public synchronized void clear(){
+        for(Segment segment : segments){
+            if(!segment.file.delete() || (segment.indexFile.exists() && !segment.indexFile.delete())){
+                Log.e(TAG, "Unable to delete " + segment.file.getName());
+            }
+        }
+        segments.clear();
+        lastReading = null;
+    }
+
+    private List<SensorReading> readRecords(Segment segment, int startRecord, long from, long to) throws IOException{
+        List<SensorReading> result = new ArrayList<>();
+        byte[] chunk = new byte[READ_CHUNK_RECORDS * segment.recordSize];
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+        try{
+            raf.seek(HEADER_SIZE + (long) startRecord * segment.recordSize);
+            int remaining = segment.recordCount - startRecord;
+            while(remaining > 0){
+                int count = Math.min(remaining, READ_CHUNK_RECORDS);
+                raf.readFully(chunk, 0, count * segment.recordSize);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count * segment.recordSize);
+                for(int i = 0; i < count; i++){
+                    SensorReading reading = segment.version == VERSION
+                            ? decode(buffer, segment.columnCount) : decodeFixedFields(buffer);
+                    if(reading.getTimestamp() > to){
+                        return result;
+                    }
+                    if(reading.getTimestamp() >= from){
+                        result.add(reading);
+                    }
+                }
+                remaining -= count;
+            }
+        } finally {
+            raf.close();
+        }
+        return result;
+    }
+
+    private static void encode(SensorReading reading, int columnCount, ByteBuffer buffer){
+        buffer.putLong(reading.getTimestamp());
+        for(int column = 0; column < columnCount; column++){
+            buffer.putLong(reading.getRaw(column));
+        }
+    }
+
+    private static SensorReading decode(ByteBuffer buffer, int columnCount){
+        SensorReading reading = new SensorReading(buffer.getLong());
+        for(int column = 0; column < columnCount; column++){
+            long value = buffer.getLong();
+            if(value != SensorReading.NO_VALUE){
+                reading.setRaw(column, value);
+            }
+        }
+        return reading;
+    }
+
+    /**
+     * Read a first version record: temperature and moisture as ints, then luminosity
+     * and soil moisture as labels of LABEL_SIZE bytes (a length byte followed by zero
+     * padded UTF-8)
+     * */
+    private SensorReading decodeFixedFields(ByteBuffer buffer){
+        SensorReading reading = new SensorReading(buffer.getLong());
+        int temperature = buffer.getInt();
+        int moisture = buffer.getInt();
+        if(temperature != MISSING_VALUE){
+            reading.setNumber(SensorRegistry.TEMPERATURE, temperature);
+        }
+        if(moisture != MISSING_VALUE){
+            reading.setNumber(SensorRegistry.MOISTURE, moisture);
+        }
+        decodeLabel(buffer, reading, SensorRegistry.LUMINOSITY);
+        decodeLabel(buffer, reading, SensorRegistry.SOIL_MOISTURE);
+        return reading;
+    }
+
+    private void decodeLabel(ByteBuffer buffer, SensorReading reading, int sensorId){
+        int start = buffer.position();
+        int length = buffer.get() & 0xFF;
+        if(length != MISSING_LABEL){
+            String label = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            reading.setLabelCode(sensorId, registry.labelCode(label, 0, label.length()));
+        }
+        buffer.position(start + LABEL_SIZE);
+    }
+
+    /**
+     * One segment file plus its in-memory sparse index
+     * */
+    private static class Segment {
+        private final File file;
+        private final File indexFile;
+        private final long baseTimestamp;
+        private final int version;
+        private final int columnCount;
+        private final int recordSize;
+        private int recordCount;
+        private long[] indexTimestamps;
+        private int[] indexRecords;
+        private int indexSize;
+
+        private Segment(File file, int version, int columnCount, int recordCount){
+            String name = file.getName();
+            this.file = file;
+            this.indexFile = new File(file.getParentFile(), name.replace(SEGMENT_EXTENSION, INDEX_EXTENSION));
+            this.baseTimestamp = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+            this.version = version;
+            this.columnCount = columnCount;
+            this.recordSize = version == VERSION ? TIMESTAMP_SIZE + columnCount * COLUMN_SIZE : FIXED_RECORD_SIZE;
+            this.recordCount = recordCount;
+            this.indexTimestamps = new long[8];
+            this.indexRecords = new int[8];
+        }
+
+        /**
+         * True if every value of the reading has a column here. First version
+         * segments are never appended to.
+         * */
+        private boolean fits(SensorReading reading){
+            if(version != VERSION){
+                return false;
+            }
+            for(int column = columnCount; column < reading.getColumnCount(); column++){
+                if(reading.hasValue(column)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addIndexEntry(long timestamp, int recordNumber){
+            if(indexSize == indexTimestamps.length){
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                indexRecords = Arrays.copyOf(indexRecords, indexSize * 2);
+            }
+            indexTimestamps[indexSize] = timestamp;
+            indexRecords[indexSize] = recordNumber;
+            indexSize++;
+        }
+
+        /**
+         * Record number of the last index entry not after the given timestamp
+         * */
+        private int findStartRecord(long timestamp){
+            int low = 0;
+            int high = indexSize - 1;
+            int found = 0;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                if(indexTimestamps[mid] <= timestamp){
+                    found = indexRecords[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
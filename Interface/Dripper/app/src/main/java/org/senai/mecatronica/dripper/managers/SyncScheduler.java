@@ -0,0 +1,117 @@
+package org.senai.mecatronica.dripper.managers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the syncs of many controllers, a bounded number at a time.
+ *
+ * The phone's radio keeps only a few RFCOMM links usable at once, so syncs beyond the
+ * limit wait in a queue for a free link instead of failing to connect. A controller
+ * already waiting or syncing is not queued again. Threads are released when idle.
+ *
+ * Each queued sync holds a token of its own, so a sync interrupted by cancelAll() that
+ * finishes late does not release a controller queued again after it.
+ * */
+
+public class SyncScheduler {
+
+    private static final long IDLE_THREAD_MS = 30000;
+
+    private final int links;
+    //token of the sync queued for each controller
+    private final Map<String, Object> scheduled;
+    private ThreadPoolExecutor executor;
+    private Runnable idleListener;
+
+    public SyncScheduler(int links){
+        this.links = links;
+        this.scheduled = new HashMap<>();
+    }
+
+    /**
+     * Queue the sync of a controller
+     *
+     * @return false if the controller was already queued or syncing
+     * */
+    public synchronized boolean schedule(final String address, final Runnable sync){
+        if(scheduled.containsKey(address)){
+            return false;
+        }
+        final Object token = new Object();
+        scheduled.put(address, token);
+        if(executor == null){
+            executor = newExecutor();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    sync.run();
+                } finally {
+                    done(address, token);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * True if no sync is waiting or running
+     * */
+    public synchronized boolean isIdle(){
+        return scheduled.isEmpty();
+    }
+
+    /**
+     * Run on the sync's thread each time the last sync queued finished
+     * */
+    public synchronized void setIdleListener(Runnable listener){
+        this.idleListener = listener;
+    }
+
+    /**
+     * Interrupt the syncs running and drop the ones waiting
+     * */
+    public synchronized void cancelAll(){
+        if(executor != null){
+            executor.shutdownNow();
+            executor = null;
+        }
+        scheduled.clear();
+    }
+
+    private void done(String address, Object token){
+        Runnable listener = null;
+        synchronized (this){
+            if(scheduled.get(address) == token){
+                scheduled.remove(address);
+                if(scheduled.isEmpty()){
+                    listener = idleListener;
+                }
+            }
+        }
+        //outside the lock, the listener may ask the scheduler for more
+        if(listener != null){
+            listener.run();
+        }
+    }
+
+    private ThreadPoolExecutor newExecutor(){
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(links, links, IDLE_THREAD_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Controller Sync " + (++count));
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,284 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.util.Log;
+
+import org.senai.mecatronica.dripper.helpers.ChunkChannel;
+import org.senai.mecatronica.dripper.helpers.Transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One sync over an open transport, with the upload and the download running at the
+ * same time.
+ *
+ * A writer thread owns the writes: send() only queues the bytes and returns a
+ * future completed once they were written, so nothing waits on the radio to upload. A
+ * reader thread owns the reads and feeds the ingestion pipeline until the
+ * controller's last message arrived. Each direction has its own future, and a sync takes
+ * about as long as the slower of the two instead of both one after the other.
+ *
+ * The reader blocks on the transport until bytes arrive, so a controller hanging up ends
+ * the download at once. The pipeline interrupts the reader when the controller's last
+ * message arrived, which ends the download on a connection the controller keeps open for
+ * the next sync. A controller that goes quiet without hanging up is given up on by
+ * ControllerSync, which cancels the session.
+ * */
+
+public class SyncSession {
+
+    private static final String TAG = "Sync Session";
+    //pending writes before send() blocks, frames and file chunks are small
+    private static final int OUTBOUND_CAPACITY = 64;
+
+    private final Transport transport;
+    private final ChunkChannel chunks;
+    private final MetricsRegistry.ControllerMetrics metrics;
+    private final BlockingQueue<FutureTask<Integer>> outbound;
+    //stops the writer, compared by identity
+    private final FutureTask<Integer> endOfOutbound;
+    private final Thread writer;
+    private final OutputStream queuedStream;
+    private Thread reader;
+    private volatile SensorIngestionPipeline<?> pipeline;
+    private volatile Future<Integer> lastWrite;
+    private volatile boolean writerStopped;
+    private volatile long lastReadTime;
+
+    public SyncSession(Transport transport, ChunkChannel chunks){
+        this.transport = transport;
+        this.chunks = chunks;
+        this.metrics = MetricsRegistry.getInstance().forController(transport.getAddress());
+        this.outbound = new LinkedBlockingQueue<>(OUTBOUND_CAPACITY);
+        this.endOfOutbound = completed();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Sync Writer");
+        this.queuedStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try{
+                    send(Arrays.copyOfRange(b, off, off + len));
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while queuing data");
+                }
+            }
+        };
+    }
+
+    /**
+     * Start the writer, bytes can be sent from now on
+     * */
+    public void start(){
+        writer.start();
+    }
+
+    /**
+     * Queue bytes for the writer thread, waiting only if the queue is full
+     *
+     * @return completed with the number of bytes once they were written
+     * */
+    public Future<Integer> send(final byte[] bytes) throws IOException, InterruptedException{
+        if(writerStopped){
+            throw new IOException("Connection closed");
+        }
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                transport.write(bytes, 0, bytes.length);
+                metrics.add(MetricsRegistry.BYTES_OUT, bytes.length);
+                return bytes.length;
+            }
+        });
+        outbound.put(task);
+        lastWrite = task;
+        return task;
+    }
+
+    /**
+     * Stream that queues everything written to it, for the link's frames and acks
+     * */
+    public OutputStream getOutputStream(){
+        return queuedStream;
+    }
+
+    /**
+     * Completed once everything queued until now was written
+     * */
+    public Future<Integer> getUpload(){
+        Future<Integer> write = lastWrite;
+        return write == null ? completed() : write;
+    }
+
+    /**
+     * Start reading into the pipeline. The bytes already read during the handshake go
+     * first.
+     *
+     * @return completed with the number of bytes read once the controller's last message
+     * arrived or the connection was closed
+     * */
+    public Future<Integer> startDownload(final SensorIngestionPipeline<?> pipeline, final ChunkChannel.Chunk first){
+        this.pipeline = pipeline;
+        FutureTask<Integer> download = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return read(pipeline, first);
+            }
+        });
+        final Thread reader = new Thread(download, "Sync Reader");
+        pipeline.setMessageCompleteListener(new Runnable() {
+            @Override
+            public void run() {
+                //nothing more is expected, stop waiting on a connection that stays open
+                reader.interrupt();
+            }
+        });
+        this.reader = reader;
+        pipeline.start();
+        reader.start();
+        return download;
+    }
+
+    /**
+     * Time the last bytes were read, or the download started
+     * */
+    public long getLastReadTime(){
+        return lastReadTime;
+    }
+
+    /**
+     * Write what is still queued, then stop the writer
+     * */
+    public void close(){
+        if(!outbound.offer(endOfOutbound)){
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * Stop both directions right away
+     * */
+    public void cancel(){
+        SensorIngestionPipeline<?> current = pipeline;
+        if(current != null){
+            current.cancel();
+        } else {
+            chunks.close();
+        }
+        writer.interrupt();
+        if(reader != null){
+            reader.interrupt();
+        }
+    }
+
+    private void write(){
+        long uploadStart = 0;
+        long uploadEnd = 0;
+        try{
+            FutureTask<Integer> task;
+            while((task = outbound.take()) != endOfOutbound){
+                if(uploadStart == 0){
+                    uploadStart = System.nanoTime();
+                }
+                task.run();
+                uploadEnd = System.nanoTime();
+                if(task.isCancelled()){
+                    continue;
+                }
+                try{
+                    task.get();
+                } catch (ExecutionException e){
+                    Log.e(TAG, "Error writing to transport");
+                    break;
+                }
+            }
+        } catch (InterruptedException e){
+            Log.i(TAG, "Writer cancelled");
+        }
+        if(uploadStart != 0){
+            //from the first write to the end of the last, waits for the controller included
+            metrics.recordNanos(MetricsRegistry.UPLOAD_TIME, uploadEnd - uploadStart);
+        }
+        //nothing else will be written, release whoever waits on a write
+        writerStopped = true;
+        FutureTask<Integer> task;
+        while((task = outbound.poll()) != null){
+            task.cancel(false);
+        }
+    }
+
+    private static FutureTask<Integer> completed(){
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 0;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private int read(SensorIngestionPipeline<?> pipeline, ChunkChannel.Chunk first){
+        long start = System.nanoTime();
+        int total = first.length;
+        metrics.add(MetricsRegistry.BYTES_IN, first.length);
+        lastReadTime = System.currentTimeMillis();
+        chunks.publish(first);
+        ChunkChannel.Chunk chunk = null;
+        // Keep listening to the transport until message is over or exception occurs
+        while(!pipeline.isMessageComplete()){
+            if(Thread.currentThread().isInterrupted()){
+                //cancelled between two reads
+                break;
+            }
+            if(chunk == null){
+                chunk = chunks.acquire();
+                if(chunk == null){
+                    //cancelled, or the last message arrived while every buffer was in use
+                    break;
+                }
+            }
+            try{
+                int bytes = transport.read(chunk.data, 0, chunk.data.length, 0);
+                if(bytes < 0){
+                    Log.i(TAG, "Connection closed by device");
+                    break;
+                }
+                // Send the obtained bytes to the ingestion pipeline
+                chunk.length = bytes;
+                chunks.publish(chunk);
+                chunk = null;
+                total += bytes;
+                metrics.add(MetricsRegistry.BYTES_IN, bytes);
+                lastReadTime = System.currentTimeMillis();
+            } catch (InterruptedIOException e){
+                //the last message arrived, or the sync was cancelled
+                break;
+            } catch (IOException e){
+                Log.e(TAG, "Unable to read from transport");
+                break;
+            }
+        }
+        metrics.recordNanos(MetricsRegistry.DOWNLOAD_TIME, System.nanoTime() - start);
+        //let the pipeline store and publish what was received
+        pipeline.finish();
+        return total;
+    }
+}
@@ -0,0 +1,102 @@
+package org.senai.mecatronica.dripper.services;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+import org.senai.mecatronica.dripper.managers.BluetoothManager;
+
+/**
+ * Keeps the connection to the controller open while the activities come and go.
+ *
+ * The connection itself is owned by BluetoothManager; this service only keeps the
+ * process alive between syncs, so a sync started later reuses the open socket instead of
+ * connecting again. It stops itself once BluetoothManager is idle: the connection was
+ * closed after a while without syncs and no other controller is waiting for its sync.
+ */
+
+public class ConnectionService extends Service {
+
+    private static final String ACTION_SYNC = "org.senai.mecatronica.dripper.action.SYNC";
+    private static final String ACTION_DISCONNECT = "org.senai.mecatronica.dripper.action.DISCONNECT";
+    private static final String ACTION_RELEASE = "org.senai.mecatronica.dripper.action.RELEASE";
+    private static final String EXTRA_MAC_ADDRESS = "macAddress";
+
+    /**
+     * Sync every registered controller, the one at the given address over the connection
+     * kept open
+     * */
+    public static void sync(Context context, String macAddress){
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_SYNC);
+        intent.putExtra(EXTRA_MAC_ADDRESS, macAddress);
+        context.startService(intent);
+    }
+
+    /**
+     * Close the connection and stop the service
+     * */
+    public static void disconnect(Context context){
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_DISCONNECT);
+        context.startService(intent);
+    }
+
+    /**
+     * Close the connection once the syncs running are done, without keeping it for the
+     * next one
+     * */
+    public static void release(Context context){
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_RELEASE);
+        context.startService(intent);
+    }
+
+    //start id of the last command, a sync asked for after the manager went idle keeps the service
+    private volatile int lastStartId;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BluetoothManager.getInstance(this).setIdleListener(new BluetoothManager.IdleListener() {
+            @Override
+            public void onIdle() {
+                stopSelfResult(lastStartId);
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        BluetoothManager btManager = BluetoothManager.getInstance(this);
+        if(intent != null && ACTION_SYNC.equals(intent.getAction())){
+            btManager.setMacAddress(intent.getStringExtra(EXTRA_MAC_ADDRESS));
+            btManager.syncAll();
+        } else if(intent != null && ACTION_RELEASE.equals(intent.getAction())){
+            btManager.releaseConnection();
+            if(!btManager.isBusy()){
+                stopSelf(startId);
+            }
+        } else {
+            //disconnect, or a restart after the process was killed with nothing to resume
+            btManager.closeConnection();
+            stopSelf();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        BluetoothManager btManager = BluetoothManager.getInstance(this);
+        btManager.setIdleListener(null);
+        btManager.closeConnection();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
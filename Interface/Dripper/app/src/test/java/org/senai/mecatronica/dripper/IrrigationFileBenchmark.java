@@ -0,0 +1,184 @@
+package org.senai.mecatronica.dripper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.helpers.IrrigationFileCodec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load benchmark of the irrigation file: the streaming IrrigationFileCodec against the
+ * loader it replaced, which read the whole file into a StringBuilder, built a JSONObject
+ * of it and copied that into IrrigationData objects.
+ *
+ * For every schedule size it reports the p50 and p99 load time and the mean bytes
+ * allocated by a load (on JVMs that report them), and checks both loaders read the same
+ * triggers. Runs on Robolectric for android.util.JsonReader, and only with -Dbench=true.
+ * Sizes and iterations are set with, e.g. -Dbench.triggers=10,1000,100000
+ * -Dbench.iterations=5 -Dbench.warmup=2.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class IrrigationFileBenchmark {
+
+    /**
+     * One way of reading the triggers of an irrigation file
+     * */
+    interface Loader {
+        List<IrrigationData> load(File file) throws Exception;
+    }
+
+    static final Loader STREAMING = new Loader() {
+        @Override
+        public List<IrrigationData> load(File file) throws Exception {
+            return IrrigationFileCodec.read(new FileInputStream(file)).triggers;
+        }
+    };
+
+    //what DataManager did before the streaming codec, kept here to compare against
+    static final Loader LEGACY = new Loader() {
+        @Override
+        public List<IrrigationData> load(File file) throws Exception {
+            StringBuilder buf = new StringBuilder();
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                buf.append(line);
+            }
+            in.close();
+
+            JSONObject irrigationDataObject = new JSONObject(buf.toString());
+            int numberOfTriggers = irrigationDataObject.getInt("numberOfTriggers");
+            JSONArray triggers = irrigationDataObject.getJSONArray("triggers");
+            List<IrrigationData> result = new ArrayList<>();
+            for(int i = 0; i < numberOfTriggers; i++){
+                JSONObject trigger = triggers.getJSONObject(i);
+                IrrigationData data = new IrrigationData();
+                data.setOneTime(trigger.getBoolean("oneTime"));
+                data.setStartTime(trigger.getString("startTime"));
+                data.setStartDate(trigger.getString("startDate"));
+                int durationSecs = trigger.getInt("duration");
+                data.setDuration(new int[]{durationSecs / 3600, (durationSecs % 3600) / 60, durationSecs % 60});
+                JSONArray daysOfTheWeek = trigger.getJSONArray("daysOfTheWeek");
+                for(int j = 0; j < daysOfTheWeek.length(); j++){
+                    data.setWeekDay(daysOfTheWeek.getString(j), true);
+                }
+                result.add(data);
+            }
+            return result;
+        }
+    };
+
+    @Test
+    public void loadSchedules() throws Exception {
+        assumeTrue("Benchmarks run with -Dbench=true", Boolean.getBoolean("bench"));
+        int[] sizes = intList(System.getProperty("bench.triggers", "10,1000,100000"));
+        int iterations = Integer.parseInt(System.getProperty("bench.iterations", "5"));
+        int warmup = Integer.parseInt(System.getProperty("bench.warmup", "2"));
+
+        File file = new File(RuntimeEnvironment.application.getFilesDir(), "default_irrigation_data.json");
+        for(int size : sizes){
+            List<IrrigationData> triggers = schedule(size);
+            OutputStream out = new FileOutputStream(file);
+            try{
+                IrrigationFileCodec.write(out, false, triggers);
+            } finally {
+                out.close();
+            }
+
+            assertSameTriggers(triggers, STREAMING.load(file));
+            assertSameTriggers(triggers, LEGACY.load(file));
+
+            System.out.println(String.format(Locale.US, "triggers=%-6d file=%.1fKB", size, file.length() / 1024.0));
+            System.out.println("    streaming " + measure(STREAMING, file, warmup, iterations));
+            System.out.println("    legacy    " + measure(LEGACY, file, warmup, iterations));
+        }
+        file.delete();
+    }
+
+    /**
+     * Load times and allocations of warmup plus measured loads of a file
+     * */
+    private static String measure(Loader loader, File file, int warmup, int iterations) throws Exception {
+        long[] wall = new long[iterations];
+        long alloc = 0;
+        for(int i = 0; i < warmup + iterations; i++){
+            long startAlloc = ThreadStats.allocatedBytes();
+            long start = System.nanoTime();
+            loader.load(file);
+            long elapsed = System.nanoTime() - start;
+            long allocated = startAlloc < 0 ? -1 : ThreadStats.allocatedBytes() - startAlloc;
+            if(i >= warmup){
+                wall[i - warmup] = elapsed;
+                alloc = alloc < 0 || allocated < 0 ? -1 : alloc + allocated;
+            }
+        }
+        return String.format(Locale.US, "p50=%.2fms p99=%.2fms alloc=%s",
+                percentile(wall, 0.5) / 1e6, percentile(wall, 0.99) / 1e6,
+                alloc < 0 ? "n/a" : String.format(Locale.US, "%.1fKB", alloc / iterations / 1024.0));
+    }
+
+    /**
+     * A schedule with the given number of triggers, a quarter of them one time ones
+     * */
+    static List<IrrigationData> schedule(int size){
+        List<IrrigationData> triggers = new ArrayList<>(size);
+        for(int i = 0; i < size; i++){
+            IrrigationData data = new IrrigationData();
+            data.setOneTime(i % 4 == 0);
+            data.setStartMinute(i % (24 * 60));
+            data.setStartDay(17000 + i % 365);
+            data.setDurationSeconds(60 + i % 600);
+            data.setWeekdayMask(0x12 | (1 << (i % 7)));
+            triggers.add(data);
+        }
+        return triggers;
+    }
+
+    private static void assertSameTriggers(List<IrrigationData> expected, List<IrrigationData> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            IrrigationData a = expected.get(i);
+            IrrigationData b = actual.get(i);
+            assertEquals(a.isOneTime(), b.isOneTime());
+            assertEquals(a.getStartMinute(), b.getStartMinute());
+            assertEquals(a.getStartDay(), b.getStartDay());
+            assertEquals(a.getDurationSeconds(), b.getDurationSeconds());
+            assertEquals(a.getWeekdayMask(), b.getWeekdayMask());
+        }
+    }
+
+    private static long percentile(long[] values, double p){
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static int[] intList(String text){
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
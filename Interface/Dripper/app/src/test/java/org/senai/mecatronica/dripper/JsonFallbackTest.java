@@ -0,0 +1,133 @@
+package org.senai.mecatronica.dripper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.helpers.TcpTransport;
+import org.senai.mecatronica.dripper.helpers.Transport;
+import org.senai.mecatronica.dripper.managers.ControllerSync;
+import org.senai.mecatronica.dripper.managers.DataManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * The sync with an original controller, which stores the hello as its schedule until the
+ * irrigation file is uploaded after it
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class JsonFallbackTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SERVER_JSON = "{\"logFrequency\":60,\"numberOfLogs\":1,\"logs\":[{"
+            + "\"date\":\"12/11/2017\",\"time\":\"06:11:00\",\"numberOfSensors\":1,"
+            + "\"sensors\":[{\"name\":\"Temperature\", \"data\":22.3, \"unit\":\"°C\"}]}]}\n";
+    private static final long TIMEOUT_MS = 5000;
+
+    private File dir;
+    private File clientFile;
+    private DataManager dataManager;
+    private StandInController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("fallback", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File serverFile = new File(dir, "server.json");
+        clientFile = new File(dir, "client.json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(serverFile), UTF_8);
+        try{
+            writer.write(SERVER_JSON);
+        } finally {
+            writer.close();
+        }
+        dataManager = DataManager.getInstance(RuntimeEnvironment.application);
+        dataManager.clearIrrigationData();
+        dataManager.getIrrigationDataList().addAll(IrrigationFileBenchmark.schedule(3));
+        dataManager.writeIrrigationFile();
+        controller = new StandInController(serverFile, clientFile);
+        controller.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        controller.stop();
+        for(File file : dir.listFiles()){
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void interruptedFallbackLeavesTheScheduleAtRisk() throws Exception {
+        controller.dropNextConnection();
+
+        ControllerSync sync = sync();
+
+        assertEquals(0, sync.getVersion());
+        assertTrue(sync.isScheduleAtRisk());
+        assertTrue(controller.awaitWrites(1, TIMEOUT_MS));
+        //what the controller now runs
+        assertEquals("DRP/6", read(new FileInputStream(clientFile)));
+    }
+
+    @Test
+    public void syncAfterAnInterruptedFallbackRestoresTheSchedule() throws Exception {
+        controller.dropNextConnection();
+        assertTrue(sync().isScheduleAtRisk());
+
+        ControllerSync again = sync();
+
+        assertEquals(1, again.getVersion());
+        assertFalse(again.isScheduleAtRisk());
+        //both hellos, then the irrigation file
+        assertTrue("Schedule not stored by the controller", controller.awaitWrites(3, TIMEOUT_MS));
+        assertEquals(read(dataManager.openIrrigationFile()), read(new FileInputStream(clientFile)));
+    }
+
+    /**
+     * One sync on a connection of its own, as the connection thread runs it
+     *
+     * @return the sync, once it ended
+     * */
+    private ControllerSync sync() throws Exception {
+        Transport transport = new TcpTransport("127.0.0.1", controller.getPort());
+        try{
+            transport.open(TIMEOUT_MS);
+            ControllerSync sync = new ControllerSync(transport, dataManager);
+            boolean completed = sync.runSync();
+            assertEquals(!sync.isScheduleAtRisk(), completed);
+            return sync;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while((length = in.read(buffer)) != -1){
+                bytes.write(buffer, 0, length);
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.senai.mecatronica.dripper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.SensorPayloadTokenizer;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parse benchmark of the controller payload: the SensorPayloadTokenizer against the
+ * parsing it replaced, which cleaned the Python list up with string replacements and
+ * regular expressions and then built a JSONObject of it.
+ *
+ * The old code only read the first log of the object; here it binds every log, like the
+ * tokenizer, so both do the same work and their readings are checked to match. For
+ * every payload size it reports the p50 and p99 parse time and the mean bytes allocated
+ * by a parse (on JVMs that report them). Runs on Robolectric for org.json, and only with
+ * -Dbench=true. Sizes and iterations are set with, e.g. -Dbench.records=1,1000,100000
+ * -Dbench.iterations=5 -Dbench.warmup=2.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class SensorPayloadBenchmark {
+
+    /**
+     * One way of parsing a payload into readings
+     * */
+    interface Parser {
+        List<SensorReading> parse(String payload, SensorRegistry registry) throws Exception;
+    }
+
+    static final Parser TOKENIZER = new Parser() {
+        @Override
+        public List<SensorReading> parse(String payload, SensorRegistry registry) throws Exception {
+            return new SensorPayloadTokenizer(payload, 0, registry).parse();
+        }
+    };
+
+    //the clean-up of DataManager.parseRawSensorData before the tokenizer
+    static final Parser LEGACY = new Parser() {
+        @Override
+        public List<SensorReading> parse(String sensorData, SensorRegistry registry) throws Exception {
+            sensorData = sensorData.replace("', '", ""); //remove comma separators
+            sensorData = sensorData.substring(sensorData.indexOf('{'),sensorData.lastIndexOf('}')+1); //enclose object
+            sensorData = sensorData.replaceAll("\\\\n", "");
+            sensorData = sensorData.replaceAll("\\\\t", "");
+
+            JSONObject jsonData = new JSONObject(sensorData);
+            JSONArray logs = jsonData.getJSONArray("logs");
+            List<SensorReading> readings = new ArrayList<>(logs.length());
+            for(int i = 0; i < logs.length(); i++){
+                JSONArray sensors = logs.getJSONObject(i).optJSONArray("sensors");
+                if(sensors == null){
+                    continue;
+                }
+                SensorReading reading = new SensorReading(0);
+                for(int j = 0; j < sensors.length(); j++){
+                    String name = sensors.getJSONObject(j).getString("name");
+                    String data = sensors.getJSONObject(j).getString("data");
+                    int id = registry.findSensor(name, 0, name.length());
+                    if(registry.getKind(id) == SensorRegistry.KIND_LABEL){
+                        reading.setLabelCode(id, registry.labelCode(data, 0, data.length()));
+                    } else {
+                        reading.setNumber(id, Double.parseDouble(data));
+                    }
+                }
+                readings.add(reading);
+            }
+            return readings;
+        }
+    };
+
+    private File file;
+    private SensorRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("registry", "");
+        file.delete();
+        registry = new SensorRegistry(file);
+    }
+
+    @After
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Test
+    public void parsePayloads() throws Exception {
+        assumeTrue("Benchmarks run with -Dbench=true", Boolean.getBoolean("bench"));
+        int[] sizes = intList(System.getProperty("bench.records", "1,1000,10000"));
+        int iterations = Integer.parseInt(System.getProperty("bench.iterations", "5"));
+        int warmup = Integer.parseInt(System.getProperty("bench.warmup", "2"));
+
+        for(int size : sizes){
+            String payload = payload(SyncBenchmark.serverJson(size));
+
+            assertSameReadings(TOKENIZER.parse(payload, registry), LEGACY.parse(payload, registry), size);
+
+            System.out.println(String.format(Locale.US, "records=%-6d payload=%.1fKB", size, payload.length() / 1024.0));
+            System.out.println("    tokenizer " + measure(TOKENIZER, payload, warmup, iterations));
+            System.out.println("    legacy    " + measure(LEGACY, payload, warmup, iterations));
+        }
+    }
+
+    /**
+     * Parse times and allocations of warmup plus measured parses of a payload
+     * */
+    private String measure(Parser parser, String payload, int warmup, int iterations) throws Exception {
+        long[] wall = new long[iterations];
+        long alloc = 0;
+        for(int i = 0; i < warmup + iterations; i++){
+            long startAlloc = ThreadStats.allocatedBytes();
+            long start = System.nanoTime();
+            parser.parse(payload, registry);
+            long elapsed = System.nanoTime() - start;
+            long allocated = startAlloc < 0 ? -1 : ThreadStats.allocatedBytes() - startAlloc;
+            if(i >= warmup){
+                wall[i - warmup] = elapsed;
+                alloc = alloc < 0 || allocated < 0 ? -1 : alloc + allocated;
+            }
+        }
+        return String.format(Locale.US, "p50=%.2fms p99=%.2fms alloc=%s",
+                percentile(wall, 0.5) / 1e6, percentile(wall, 0.99) / 1e6,
+                alloc < 0 ? "n/a" : String.format(Locale.US, "%.1fKB", alloc / iterations / 1024.0));
+    }
+
+    /**
+     * A file as the controller sends it, the Python representation of its lines
+     * */
+    private static String payload(String json){
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i < json.length(); i++){
+            if(json.charAt(i) == '\n'){
+                lines.add(json.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if(start < json.length()){
+            lines.add(json.substring(start));
+        }
+        return StandInController.pythonRepr(lines);
+    }
+
+    private static void assertSameReadings(List<SensorReading> expected, List<SensorReading> actual, int size){
+        assertEquals(size, expected.size());
+        assertEquals(size, actual.size());
+        for(int i = 0; i < size; i++){
+            for(int sensor = 0; sensor < 4; sensor++){
+                assertEquals(expected.get(i).getRaw(sensor), actual.get(i).getRaw(sensor));
+            }
+        }
+    }
+
+    private static long percentile(long[] values, double p){
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static int[] intList(String text){
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
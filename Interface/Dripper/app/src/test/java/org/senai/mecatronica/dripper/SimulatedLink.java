@@ -0,0 +1,159 @@
+package org.senai.mecatronica.dripper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy in front of a StandInController that behaves like a slower link: every
+ * chunk is held for the one-way latency, and chunks leave no faster than the bandwidth
+ * allows, one after the other like bytes on a radio. Counts the bytes each way.
+ * */
+
+public class SimulatedLink {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final int targetPort;
+    //bytes per second, 0 for no limit
+    private final long bandwidth;
+    private final long latencyNanos;
+    private final AtomicLong bytesUp = new AtomicLong();
+    private final AtomicLong bytesDown = new AtomicLong();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    public SimulatedLink(int targetPort, long bandwidth, long latencyMs){
+        this.targetPort = targetPort;
+        this.bandwidth = bandwidth;
+        this.latencyNanos = latencyMs * 1000000L;
+    }
+
+    /**
+     * @return the port the phone side connects to
+     * */
+    public int start() throws IOException{
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!serverSocket.isClosed()){
+                    try{
+                        Socket phone = serverSocket.accept();
+                        Socket controller = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                        phone.setTcpNoDelay(true);
+                        controller.setTcpNoDelay(true);
+                        //the sockets are closed once both directions ended
+                        AtomicInteger open = new AtomicInteger(2);
+                        pipe(phone, controller, bytesUp, open);
+                        pipe(controller, phone, bytesDown, open);
+                    } catch (IOException e){
+                        //closed by stop()
+                    }
+                }
+            }
+        }, "Simulated Link");
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() throws InterruptedException{
+        try{
+            serverSocket.close();
+        } catch (IOException e){ }
+        acceptThread.join();
+    }
+
+    /**
+     * Bytes sent by the phone since the link was started
+     * */
+    public long getBytesUp(){
+        return bytesUp.get();
+    }
+
+    /**
+     * Bytes sent by the controller since the link was started
+     * */
+    public long getBytesDown(){
+        return bytesDown.get();
+    }
+
+    private void pipe(final Socket from, final Socket to, final AtomicLong counter, final AtomicInteger open){
+        final BlockingQueue<Chunk> inFlight = new LinkedBlockingQueue<>();
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long linkFreeAt = 0;
+                try{
+                    InputStream in = from.getInputStream();
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int length;
+                    while((length = in.read(buffer)) > 0){
+                        long now = System.nanoTime();
+                        //serialized after the chunks before it, then delayed by the latency
+                        long start = Math.max(now, linkFreeAt);
+                        linkFreeAt = start + (bandwidth > 0 ? length * 1000000000L / bandwidth : 0);
+                        byte[] data = new byte[length];
+                        System.arraycopy(buffer, 0, data, 0, length);
+                        inFlight.put(new Chunk(data, linkFreeAt + latencyNanos));
+                    }
+                } catch (IOException | InterruptedException e){
+                    //either side closed
+                }
+                inFlight.add(new Chunk(null, 0));
+            }
+        }, "Link Receiver");
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    OutputStream out = to.getOutputStream();
+                    Chunk chunk;
+                    while((chunk = inFlight.take()).data != null){
+                        long wait = chunk.deliverAt - System.nanoTime();
+                        if(wait > 0){
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                        out.write(chunk.data);
+                        out.flush();
+                        counter.addAndGet(chunk.data.length);
+                    }
+                    //pass the end of the stream on
+                    to.shutdownOutput();
+                    if(open.decrementAndGet() == 0){
+                        close(from);
+                        close(to);
+                    }
+                } catch (IOException | InterruptedException e){
+                    close(from);
+                    close(to);
+                }
+            }
+        }, "Link Sender");
+        receiver.start();
+        sender.start();
+    }
+
+    private static void close(Socket socket){
+        try{
+            socket.close();
+        } catch (IOException e){ }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final long deliverAt;
+
+        Chunk(byte[] data, long deliverAt){
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+}
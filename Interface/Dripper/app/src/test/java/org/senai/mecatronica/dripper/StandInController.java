@@ -0,0 +1,508 @@
+package org.senai.mecatronica.dripper;
+
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.BinarySyncCodec;
+import org.senai.mecatronica.dripper.helpers.FramedLink;
+import org.senai.mecatronica.dripper.helpers.ScheduleDigest;
+import org.senai.mecatronica.dripper.helpers.SensorPayloadTokenizer;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+import org.senai.mecatronica.dripper.helpers.WeeklyTimetable;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the field controller, behaving like Program/bt_service.py over TCP
+ * instead of RFCOMM, so the sync can run against it on any JVM (see TcpTransport).
+ *
+ * Like the original controller it answers every chunk it receives with the lines of its
+ * server file, sent as the Python representation of the list of lines followed by '#',
+ * and writes what the phone sent up to a '#' to its client file.
+ *
+ * Given a binary protocol version it answers the hello instead and runs the binary sync
+ * of that version (see WireProtocol): it reads the sync request, takes the schedule, its
+ * diff or the timetable, then sends the logs of its server file newer than the phone's
+ * cursor and the end message. Binary controllers below version 5 hang up after the end
+ * message; later ones keep the connection open until the phone closes it, without
+ * answering another hello on it.
+ *
+ * A connection is served until the phone closes it, one at a time.
+ * */
+
+public class StandInController {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    //the controller reads at most this much per recv
+    private static final int RECV_SIZE = 1024;
+    //a logs message must fit in one frame, about 20 bytes a log
+    private static final int LOGS_PER_MESSAGE = 2000;
+    private static final long TIMEOUT_MS = 60000;
+    //ends the messages of a connection
+    private static final byte[] CLOSED = new byte[0];
+
+    private final File serverFile;
+    private final File clientFile;
+    private final int version;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile Socket clientSocket;
+    private volatile int received;
+    private volatile boolean dropAfterWrite;
+    private int writes;
+    private SensorRegistry registry;
+    private List<SensorReading> logs;
+    //binary protocol only
+    private boolean auto;
+    private List<IrrigationData> triggers = new ArrayList<>();
+    private WeeklyTimetable timetable;
+
+    /**
+     * An original controller, which speaks the JSON protocol only
+     * */
+    public StandInController(File serverFile, File clientFile){
+        this(serverFile, clientFile, WireProtocol.VERSION_JSON);
+    }
+
+    public StandInController(File serverFile, File clientFile, int version){
+        this.serverFile = serverFile;
+        this.clientFile = clientFile;
+        this.version = version;
+    }
+
+    /**
+     * Listen on a free loopback port
+     *
+     * @return the port
+     * */
+    public int start() throws IOException{
+        readLogs();
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Stand-in Controller");
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Chunks received since the stand-in was started
+     * */
+    public int getReceived(){
+        return received;
+    }
+
+    /**
+     * Messages written to the client file, or schedules stored by a binary stand-in,
+     * since the stand-in was started
+     * */
+    public synchronized int getWrites(){
+        return writes;
+    }
+
+    /**
+     * Wait until count messages were written or schedules stored
+     *
+     * @return false if the timeout ran out first
+     * */
+    public synchronized boolean awaitWrites(int count, long timeoutMs) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(writes < count){
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Time of the newest log of the server file, as the phone reads it
+     * */
+    public long getNewestLog(){
+        long newest = 0;
+        for(SensorReading log : logs){
+            newest = Math.max(newest, log.getTimestamp());
+        }
+        return newest;
+    }
+
+    /**
+     * Schedule received by a binary stand-in below version 6
+     * */
+    public synchronized List<IrrigationData> getTriggers(){
+        return new ArrayList<>(triggers);
+    }
+
+    /**
+     * Timetable received by a binary stand-in from version 6, null before the first
+     * */
+    public synchronized WeeklyTimetable getTimetable(){
+        return timetable;
+    }
+
+    /**
+     * Hang up the next connection right after its first message was written to the client
+     * file, before answering it, like a link lost just after the hello
+     * */
+    public void dropNextConnection(){
+        dropAfterWrite = true;
+    }
+
+    /**
+     * Forget the schedule received, like a controller that was just reset
+     * */
+    public synchronized void reset(){
+        auto = false;
+        triggers = new ArrayList<>();
+        timetable = null;
+    }
+
+    public void stop() throws InterruptedException{
+        try{
+            serverSocket.close();
+        } catch (IOException e){ }
+        Socket socket = clientSocket;
+        if(socket != null){
+            try{
+                socket.close();
+            } catch (IOException e){ }
+        }
+        acceptThread.join();
+    }
+
+    private void accept(){
+        while(!serverSocket.isClosed()){
+            try{
+                Socket socket = serverSocket.accept();
+                //RFCOMM sends what it is given, frames and acks must not wait for more
+                socket.setTcpNoDelay(true);
+                clientSocket = socket;
+                if(version >= WireProtocol.VERSION_BINARY){
+                    serveBinary(socket);
+                } else {
+                    serve(socket);
+                }
+            } catch (IOException e){
+                //closed by stop(), or the phone went away
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException{
+        try{
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] data = new byte[RECV_SIZE];
+            StringBuilder fullData = new StringBuilder();
+            int length;
+            while((length = in.read(data)) > 0){
+                received++;
+                fullData.append(new String(data, 0, length, UTF_8));
+                int end = fullData.indexOf("#");
+                if(end >= 0){
+                    writeData(fullData.substring(0, end));
+                    fullData.setLength(0);
+                    if(dropAfterWrite){
+                        dropAfterWrite = false;
+                        return;
+                    }
+                }
+                List<String> lines = readData();
+                if(!lines.isEmpty()){
+                    out.write((pythonRepr(lines) + "#").getBytes(UTF_8));
+                    out.flush();
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void serveBinary(Socket socket) throws IOException{
+        Thread pump = null;
+        try{
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] hello = readHello(in);
+            int offered = hello == null ? 0 : WireProtocol.acceptHello(hello, hello.length);
+            if(offered < WireProtocol.VERSION_BINARY){
+                return;
+            }
+            int negotiated = Math.min(offered, version);
+            out.write(WireProtocol.helloReply(negotiated));
+            out.flush();
+
+            FramedLink link = new FramedLink(out, FramedLink.DEFAULT_WINDOW);
+            BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+            //acks arrive while this thread waits for the window in send()
+            pump = pump(in, link, messages);
+            try{
+                sync(link, messages, negotiated);
+                if(!link.awaitAcknowledged(TIMEOUT_MS)){
+                    throw new IOException("End message not acknowledged");
+                }
+                if(negotiated >= WireProtocol.VERSION_PERSISTENT){
+                    //pings are ignored until the phone closes the connection
+                    pump.join();
+                }
+            } catch (ParseException e){
+                throw new IOException("Invalid message: " + e.getMessage());
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            socket.close();
+            if(pump != null){
+                try{
+                    pump.join();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * The binary sync after the handshake, up to the end message
+     * */
+    private void sync(FramedLink link, BlockingQueue<byte[]> messages, int negotiated)
+            throws IOException, InterruptedException, ParseException{
+        long cursor = 0;
+        if(negotiated >= WireProtocol.VERSION_DELTA_SYNC){
+            cursor = BinarySyncCodec.decodeSyncRequest(take(messages));
+        }
+        if(negotiated < WireProtocol.VERSION_SCHEDULE_DIFF){
+            boolean[] newAuto = new boolean[1];
+            List<IrrigationData> schedule = BinarySyncCodec.decodeSchedule(take(messages), newAuto);
+            storeSchedule(newAuto[0], schedule, null);
+        } else if(negotiated < WireProtocol.VERSION_TIMETABLE){
+            List<IrrigationData> schedule = getTriggers();
+            link.send(BinarySyncCodec.encodeScheduleState(ScheduleDigest.of(isAuto(), schedule)));
+            boolean[] newAuto = new boolean[1];
+            BinarySyncCodec.applyScheduleDiff(take(messages), schedule, newAuto);
+            storeSchedule(newAuto[0], schedule, null);
+        } else {
+            WeeklyTimetable held = getTimetable();
+            link.send(BinarySyncCodec.encodeTimetableState(held == null ? 0 : held.getChecksum()));
+            WeeklyTimetable received = BinarySyncCodec.decodeTimetable(take(messages), held);
+            storeSchedule(received.isAuto(), getTriggers(), received);
+        }
+        sendLogs(link, cursor);
+        link.send(BinarySyncCodec.encodeEnd());
+    }
+
+    /**
+     * Declare the sensors and the labels used, then send the logs newer than the cursor
+     * in batches
+     * */
+    private void sendLogs(FramedLink link, long cursor) throws IOException, InterruptedException{
+        List<SensorReading> newer = new ArrayList<>();
+        for(SensorReading log : logs){
+            if(log.getTimestamp() > cursor){
+                newer.add(log);
+            }
+        }
+        int[] kinds = new int[registry.getSensorCount()];
+        for(int id = 0; id < kinds.length; id++){
+            kinds[id] = registry.getKind(id);
+            String unit = registry.getUnit(id);
+            link.send(BinarySyncCodec.encodeSensor(id, kinds[id], registry.getName(id), unit == null ? "" : unit));
+        }
+        //label wire ids are the registry's codes
+        TreeMap<Integer, String> labels = new TreeMap<>();
+        for(SensorReading log : newer){
+            for(int id = 0; id < log.getColumnCount(); id++){
+                if(kinds[id] == SensorRegistry.KIND_LABEL && log.hasValue(id)){
+                    labels.put(log.getLabelCode(id), registry.getLabel(log.getLabelCode(id)));
+                }
+            }
+        }
+        for(Integer code : labels.keySet()){
+            link.send(BinarySyncCodec.encodeLabel(code, labels.get(code)));
+        }
+        for(int start = 0; start < newer.size(); start += LOGS_PER_MESSAGE){
+            link.send(BinarySyncCodec.encodeLogs(newer.subList(start, Math.min(newer.size(), start + LOGS_PER_MESSAGE)), kinds));
+        }
+    }
+
+    /**
+     * Feed what the phone sends to the link on a thread of its own, its messages to the
+     * queue and CLOSED once the connection ends
+     * */
+    private Thread pump(final InputStream in, final FramedLink link, final BlockingQueue<byte[]> messages){
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = new byte[RECV_SIZE];
+                try{
+                    int length;
+                    while((length = in.read(data)) > 0){
+                        received++;
+                        messages.addAll(link.receive(data, 0, length));
+                    }
+                } catch (IOException e){
+                    //the phone closed the connection
+                }
+                messages.add(CLOSED);
+            }
+        }, "Stand-in Link");
+        pump.start();
+        return pump;
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> messages) throws IOException, InterruptedException{
+        byte[] message = messages.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if(message == null || message == CLOSED){
+            throw new IOException("No message from the phone");
+        }
+        return message;
+    }
+
+    /**
+     * The hello, read up to its '#'
+     *
+     * @return null if the phone closed the connection first
+     * */
+    private byte[] readHello(InputStream in) throws IOException{
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) >= 0){
+            hello.write(b);
+            if(b == '#'){
+                received++;
+                return hello.toByteArray();
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean isAuto(){
+        return auto;
+    }
+
+    private synchronized void storeSchedule(boolean auto, List<IrrigationData> triggers, WeeklyTimetable timetable){
+        this.auto = auto;
+        this.triggers = triggers;
+        if(timetable != null){
+            this.timetable = timetable;
+        }
+        writes++;
+        notifyAll();
+    }
+
+    /**
+     * Logs of the server file, in their own sensor registry
+     * */
+    private void readLogs() throws IOException{
+        File registryFile = new File(serverFile.getPath() + ".sensors");
+        registryFile.delete();
+        registry = new SensorRegistry(registryFile);
+        StringBuilder json = new StringBuilder();
+        for(String line : readData()){
+            json.append(line);
+        }
+        try{
+            logs = new SensorPayloadTokenizer(json.toString(), System.currentTimeMillis(), registry).parse();
+        } catch (ParseException e){
+            throw new IOException("Invalid server file: " + e.getMessage());
+        }
+    }
+
+    private List<String> readData() throws IOException{
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(serverFile), UTF_8));
+        try{
+            //readlines() keeps the line ends
+            StringBuilder line = new StringBuilder();
+            int c;
+            while((c = reader.read()) != -1){
+                line.append((char) c);
+                if(c == '\n'){
+                    lines.add(line.toString());
+                    line.setLength(0);
+                }
+            }
+            if(line.length() > 0){
+                lines.add(line.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void writeData(String data) throws IOException{
+        Writer writer = new OutputStreamWriter(new FileOutputStream(clientFile), UTF_8);
+        try{
+            writer.write(data);
+        } finally {
+            writer.close();
+        }
+        synchronized (this){
+            writes++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * str() of a Python 3 list of strings
+     * */
+    static String pythonRepr(List<String> lines){
+        StringBuilder builder = new StringBuilder("[");
+        for(int i = 0; i < lines.size(); i++){
+            if(i > 0){
+                builder.append(", ");
+            }
+            String line = lines.get(i);
+            //single quotes, unless only double quotes avoid escaping
+            char quote = line.indexOf('\'') >= 0 && line.indexOf('"') < 0 ? '"' : '\'';
+            builder.append(quote);
+            for(int j = 0; j < line.length(); j++){
+                char c = line.charAt(j);
+                switch (c){
+                    case '\n': builder.append("\\n"); break;
+                    case '\r': builder.append("\\r"); break;
+                    case '\t': builder.append("\\t"); break;
+                    case '\\': builder.append("\\\\"); break;
+                    default:
+                        if(c == quote){
+                            builder.append('\\');
+                        }
+                        builder.append(c);
+                }
+            }
+            builder.append(quote);
+        }
+        return builder.append(']').toString();
+    }
+}
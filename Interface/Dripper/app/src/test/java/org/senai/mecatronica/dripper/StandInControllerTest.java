@@ -0,0 +1,188 @@
+package org.senai.mecatronica.dripper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.MessageAssembler;
+import org.senai.mecatronica.dripper.helpers.SensorPayloadTokenizer;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+import org.senai.mecatronica.dripper.helpers.TcpTransport;
+import org.senai.mecatronica.dripper.helpers.Transport;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sync with the stand-in controller over a loopback TCP transport: the handshake, the
+ * sensor payload download and the schedule upload of the original protocol.
+ */
+public class StandInControllerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SERVER_JSON = "{\n"
+            + "\t\"logFrequency\":60,\n"
+            + "\t\"numberOfLogs\":1,\n"
+            + "\t\"logs\":\n"
+            + "\t[\n"
+            + "\t\t{\n"
+            + "\t\t\t\"date\":\"12/11/2017\",\n"
+            + "\t\t\t\"time\":\"06:11:00\",\n"
+            + "\t\t\t\"numberOfSensors\":2,\n"
+            + "\t\t\t\"sensors\":\n"
+            + "\t\t\t[\n"
+            + "\t\t\t\t{\"name\":\"Temperature\", \"data\":22.3, \"unit\":\"°C\"},\n"
+            + "\t\t\t\t{\"name\":\"Soil Moisture\", \"data\":\"Low\", \"unit\":\"\"}\n"
+            + "\t\t\t]\n"
+            + "\t\t},{}\n"
+            + "\t]\n"
+            + "}\n";
+    private static final String SCHEDULE_JSON = "{\"auto\":false,\"numberOfTriggers\":0,\"triggers\":[]}";
+    private static final long TIMEOUT_MS = 5000;
+
+    private File dir;
+    private StandInController controller;
+    private Transport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("standin", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        write(new File(dir, "server.json"), SERVER_JSON);
+        controller = new StandInController(new File(dir, "server.json"), new File(dir, "client.json"));
+        int port = controller.start();
+        transport = new TcpTransport("127.0.0.1", port);
+        transport.open(TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        controller.stop();
+        for(File file : dir.listFiles()){
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void helloIsAnsweredWithTheJsonFile() throws Exception {
+        send(WireProtocol.hello());
+        String message = readMessage();
+        byte[] reply = message.getBytes(UTF_8);
+        assertEquals(WireProtocol.VERSION_JSON, WireProtocol.negotiatedVersion(reply, reply.length));
+
+        SensorRegistry registry = new SensorRegistry(new File(dir, "registry"));
+        List<SensorReading> readings = new SensorPayloadTokenizer(message, 0, registry).parse();
+        assertEquals(1, readings.size());
+        assertEquals(22.3, readings.get(0).getNumber(SensorRegistry.TEMPERATURE), 1e-9);
+        assertEquals("Low", registry.getLabel(readings.get(0).getLabelCode(SensorRegistry.SOIL_MOISTURE)));
+    }
+
+    @Test
+    public void scheduleIsWrittenUpToTheTerminator() throws Exception {
+        send(WireProtocol.hello());
+        readMessage();
+        //split like the phone's 1024 byte chunks, the terminator on its own
+        byte[] schedule = SCHEDULE_JSON.getBytes(UTF_8);
+        send(Arrays.copyOfRange(schedule, 0, 10));
+        send(Arrays.copyOfRange(schedule, 10, schedule.length));
+        send(new byte[]{(byte) '#'});
+
+        //the hello was written as a message too
+        assertTrue("Schedule not written", controller.awaitWrites(2, TIMEOUT_MS));
+        assertEquals(SCHEDULE_JSON, read(new File(dir, "client.json")));
+    }
+
+    @Test
+    public void binaryStandInAnswersTheHello() throws Exception {
+        StandInController binary = new StandInController(new File(dir, "server.json"), new File(dir, "client.json"),
+                WireProtocol.VERSION_SCHEDULE_DIFF);
+        Transport binaryTransport = new TcpTransport("127.0.0.1", binary.start());
+        try{
+            binaryTransport.open(TIMEOUT_MS);
+            byte[] hello = WireProtocol.hello();
+            binaryTransport.write(hello, 0, hello.length);
+            byte[] reply = new byte[WireProtocol.HELLO_REPLY_LENGTH];
+            int length = 0;
+            while(length < reply.length){
+                int read = binaryTransport.read(reply, length, reply.length - length, TIMEOUT_MS);
+                assertTrue("Connection closed", read >= 0);
+                length += read;
+            }
+            assertEquals(WireProtocol.VERSION_SCHEDULE_DIFF, WireProtocol.negotiatedVersion(reply, length));
+            assertEquals(localTime(2017, 11, 12, 6, 11, 0), binary.getNewestLog());
+        } finally {
+            binaryTransport.close();
+            binary.stop();
+        }
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void readTimesOutWhenNothingIsSent() throws Exception {
+        transport.read(new byte[16], 0, 16, 100);
+    }
+
+    private void send(byte[] data) throws IOException, InterruptedException {
+        //the controller answers each recv, give it one per chunk
+        int before = controller.getReceived();
+        transport.write(data, 0, data.length);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(controller.getReceived() == before && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+    }
+
+    private String readMessage() throws IOException {
+        MessageAssembler assembler = new MessageAssembler();
+        byte[] buffer = new byte[1024];
+        while(true){
+            int length = transport.read(buffer, 0, buffer.length, TIMEOUT_MS);
+            assertTrue("Connection closed", length >= 0);
+            List<String> messages = assembler.append(buffer, 0, length);
+            if(!messages.isEmpty()){
+                return messages.get(0);
+            }
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try{
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long localTime(int year, int month, int day, int hour, int minute, int second){
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static String read(File file) throws IOException {
+        if(!file.exists()){
+            return null;
+        }
+        Scanner scanner = new Scanner(file, "UTF-8").useDelimiter("\\A");
+        try{
+            return scanner.hasNext() ? scanner.next() : "";
+        } finally {
+            scanner.close();
+        }
+    }
+}
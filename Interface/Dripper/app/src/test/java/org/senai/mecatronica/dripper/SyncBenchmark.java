@@ -0,0 +1,566 @@
+package org.senai.mecatronica.dripper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.helpers.IrrigationFileCodec;
+import org.senai.mecatronica.dripper.helpers.LatencyHistogram;
+import org.senai.mecatronica.dripper.helpers.TcpTransport;
+import org.senai.mecatronica.dripper.helpers.Transport;
+import org.senai.mecatronica.dripper.helpers.WireProtocol;
+import org.senai.mecatronica.dripper.managers.ControllerSync;
+import org.senai.mecatronica.dripper.managers.DataManager;
+import org.senai.mecatronica.dripper.managers.MetricsRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * End-to-end sync benchmark: ControllerSync over a TcpTransport, against the
+ * StandInController behind a SimulatedLink, speaking the JSON protocol of the original
+ * controller or a binary version.
+ *
+ * Every sync is the first one of a new phone partition with a controller that was just
+ * reset: it goes through a link of its own, so the phone has no logs from it and gets
+ * the whole history, and the controller gets the whole schedule. A sync is timed from
+ * connect until the phone stored the newest log and the controller stored the schedule,
+ * which may both end after ControllerSync returned. For every protocol version,
+ * payload size and link the benchmark reports the p50 and p99 latency, the bytes sent
+ * each way and the mean CPU time of the process (the stand-in's and the link's threads
+ * included, on JVMs that report it).
+ *
+ * It also reports each stage of the sync: connect, upload (the session's writer, from
+ * the hello to the last byte), download (the session's reader), parse (framing included)
+ * and persist. Upload, download and connect overlap the others, and parse and persist
+ * run batch by batch while the download goes on, so the stages do not add up to the
+ * latency. Their wall time comes from the controller's MetricsRegistry histograms, their
+ * CPU time and allocations from the threads that run them (see StageSampler).
+ *
+ * The original controller answers every chunk it receives with its whole file, so large
+ * uploads to large payloads cost quadratic traffic. Cases expected to move more than
+ * bench.maxBytes, or to take longer than bench.maxSeconds on a limited link, are
+ * skipped. Runs on Robolectric for the DataManager. The cases run only with -Dbench=true,
+ * a default test run makes a single small sync. Cases are set with, e.g.
+ * -Dbench.versions=1,6 -Dbench.records=1,1000,100000 -Dbench.triggers=1,100,10000
+ * -Dbench.links=loopback,rfcomm -Dbench.iterations=20 -Dbench.warmup=3 -Dbench.maxSeconds=30.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class SyncBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] STAGES = {"connect", "upload", "download", "parse", "persist"};
+    private static final int CONNECT = 0;
+    private static final int UPLOAD = 1;
+    private static final int DOWNLOAD = 2;
+    private static final int PARSE = 3;
+    private static final int PERSIST = 4;
+    //the phone's upload chunk, and the controller's recv size
+    private static final int CHUNK_SIZE = 1024;
+    private static final long TIMEOUT_MS = 60000;
+
+    /**
+     * Bandwidth in bytes per second (0 for no limit) and one-way latency of a link
+     * */
+    static class LinkProfile {
+        final String name;
+        final long bandwidth;
+        final long latencyMs;
+
+        LinkProfile(String name, long bandwidth, long latencyMs){
+            this.name = name;
+            this.bandwidth = bandwidth;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    static final LinkProfile LOOPBACK = new LinkProfile("loopback", 0, 0);
+    //what an RFCOMM link to the controller typically manages
+    static final LinkProfile RFCOMM = new LinkProfile("rfcomm", 60 * 1024, 20);
+
+    private File dir;
+    private DataManager dataManager;
+    private long maxBytes;
+    private long maxSeconds;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = createTempDir();
+        dataManager = DataManager.getInstance(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown(){
+        delete(dir);
+    }
+
+    @Test
+    public void syncControllers() throws Exception {
+        assumeTrue("Benchmarks run with -Dbench=true", Boolean.getBoolean("bench"));
+        int[] versions = intList(System.getProperty("bench.versions", WireProtocol.VERSION_JSON + "," + WireProtocol.MAX_VERSION));
+        int[] records = intList(System.getProperty("bench.records", "1,1000"));
+        int[] triggers = intList(System.getProperty("bench.triggers", "1,100"));
+        String[] links = System.getProperty("bench.links", "loopback,rfcomm").split(",");
+        int iterations = Integer.parseInt(System.getProperty("bench.iterations", "5"));
+        int warmup = Integer.parseInt(System.getProperty("bench.warmup", "2"));
+        maxBytes = Long.parseLong(System.getProperty("bench.maxBytes", String.valueOf(256L * 1024 * 1024)));
+        maxSeconds = Long.parseLong(System.getProperty("bench.maxSeconds", "5"));
+
+        for(String link : links){
+            LinkProfile profile = link.equals(RFCOMM.name) ? RFCOMM : LOOPBACK;
+            for(int version : versions){
+                for(int recordCount : records){
+                    for(int triggerCount : triggers){
+                        Result result = run(profile, version, recordCount, triggerCount, warmup, iterations);
+                        System.out.println(result == null
+                                ? String.format(Locale.US, "%-8s v%d records=%-6d triggers=%-5d skipped", link, version, recordCount, triggerCount)
+                                : result.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void syncOnce() throws Exception {
+        maxBytes = Long.MAX_VALUE;
+        maxSeconds = Long.MAX_VALUE;
+
+        Result result = run(LOOPBACK, WireProtocol.MAX_VERSION, 10, 10, 0, 1);
+
+        assertNotNull(result);
+        assertTrue(result.bytesDown > 0);
+    }
+
+    /**
+     * Run warmup plus measured syncs of one case
+     *
+     * @return the measurements, or null if the case was skipped
+     * */
+    private Result run(LinkProfile profile, int version, int recordCount, int triggerCount, int warmup, int iterations) throws Exception {
+        File serverFile = new File(dir, "server.json");
+        File clientFile = new File(dir, "client.json");
+        write(serverFile, serverJson(recordCount));
+        List<IrrigationData> schedule = IrrigationFileBenchmark.schedule(triggerCount);
+        ByteArrayOutputStream upload = new ByteArrayOutputStream();
+        IrrigationFileCodec.write(upload, false, schedule);
+
+        long expectedBytes;
+        if(version >= WireProtocol.VERSION_BINARY){
+            //logs take about a twentieth of their JSON, the schedule a tenth
+            expectedBytes = serverFile.length() / 20 + upload.size() / 10;
+        } else {
+            //the reply is about the size of the file, sent again for every chunk uploaded
+            long replyBytes = serverFile.length() * 11 / 10;
+            expectedBytes = replyBytes * (upload.size() / CHUNK_SIZE + 3) + upload.size();
+        }
+        if(expectedBytes > maxBytes || (profile.bandwidth > 0 && expectedBytes / profile.bandwidth > maxSeconds)){
+            return null;
+        }
+
+        dataManager.clearIrrigationData();
+        dataManager.getIrrigationDataList().addAll(schedule);
+        dataManager.writeIrrigationFile();
+
+        StandInController controller = new StandInController(serverFile, clientFile, version);
+        int port = controller.start();
+        Result result = new Result(profile, version, recordCount, triggerCount, iterations);
+        try{
+            for(int i = 0; i < warmup + iterations; i++){
+                controller.reset();
+                Sync sync = new Sync(controller, version, port, profile);
+                sync.run();
+                if(version >= WireProtocol.VERSION_BINARY && version < WireProtocol.VERSION_TIMETABLE){
+                    assertEquals(triggerCount, controller.getTriggers().size());
+                }
+                if(i >= warmup){
+                    result.add(i - warmup, sync);
+                }
+            }
+        } finally {
+            controller.stop();
+        }
+        return result;
+    }
+
+    /**
+     * One sync through a link of its own, so the phone keeps its logs apart from the
+     * ones of the syncs before
+     * */
+    private class Sync {
+        private final StandInController controller;
+        private final int version;
+        private final int port;
+        private final LinkProfile profile;
+        final long[] wall = new long[STAGES.length];
+        final long[] stageCpu = new long[STAGES.length];
+        final long[] stageAlloc = new long[STAGES.length];
+        long latency;
+        long cpu;
+        long bytesUp;
+        long bytesDown;
+
+        Sync(StandInController controller, int version, int port, LinkProfile profile){
+            this.controller = controller;
+            this.version = version;
+            this.port = port;
+            this.profile = profile;
+        }
+
+        void run() throws Exception {
+            SimulatedLink link = new SimulatedLink(port, profile.bandwidth, profile.latencyMs);
+            int linkPort = link.start();
+            Transport transport = new TcpTransport("127.0.0.1", linkPort);
+            //readings are published for the controller shown in the app only
+            dataManager.setMacAddress(transport.getAddress());
+            final long newest = controller.getNewestLog();
+            final CountDownLatch logsStored = new CountDownLatch(1);
+            DataManager.SensorDataListener listener = new DataManager.SensorDataListener() {
+                @Override
+                public void onSensorDataUpdated() {
+                    if(dataManager.getCurrentReading().getTimestamp() >= newest){
+                        logsStored.countDown();
+                    }
+                }
+            };
+            dataManager.addSensorDataListener(listener);
+            //the original controller stores the hello as a message too
+            int writes = controller.getWrites() + (version >= WireProtocol.VERSION_BINARY ? 1 : 2);
+            //the stage times of this sync only, should the link get the port of an earlier one
+            MetricsRegistry.getInstance().reset();
+            StageSampler sampler = new StageSampler();
+            long startCpu = ThreadStats.processCpuTime();
+            long startThreadCpu = ThreadStats.cpuTime();
+            long startAlloc = ThreadStats.allocatedBytes();
+            long start = System.nanoTime();
+            try{
+                transport.open(TIMEOUT_MS);
+                long connected = System.nanoTime();
+                stageCpu[CONNECT] = startThreadCpu < 0 ? -1 : ThreadStats.cpuTime() - startThreadCpu;
+                stageAlloc[CONNECT] = startAlloc < 0 ? -1 : ThreadStats.allocatedBytes() - startAlloc;
+                sampler.start();
+                boolean completed = new ControllerSync(transport, dataManager).runSync();
+                boolean stored = controller.awaitWrites(writes, TIMEOUT_MS);
+                boolean logs = logsStored.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                long end = System.nanoTime();
+                cpu = startCpu < 0 ? -1 : ThreadStats.processCpuTime() - startCpu;
+                //the session and the pipeline record their times as their threads end
+                boolean ended = sampler.stop(TIMEOUT_MS);
+                MetricsRegistry.ControllerMetrics metrics = MetricsRegistry.getInstance().forController(transport.getAddress());
+                latency = end - start;
+                wall[CONNECT] = connected - start;
+                wall[UPLOAD] = totalNanos(metrics, MetricsRegistry.UPLOAD_TIME);
+                wall[DOWNLOAD] = totalNanos(metrics, MetricsRegistry.DOWNLOAD_TIME);
+                wall[PARSE] = totalNanos(metrics, MetricsRegistry.PARSE_TIME);
+                wall[PERSIST] = totalNanos(metrics, MetricsRegistry.PERSIST_TIME);
+                for(int stage = UPLOAD; stage < STAGES.length; stage++){
+                    stageCpu[stage] = sampler.getCpuTime(stage);
+                    stageAlloc[stage] = sampler.getAllocatedBytes(stage);
+                }
+                bytesUp = link.getBytesUp();
+                bytesDown = link.getBytesDown();
+
+                assertTrue("Sync incomplete", completed);
+                assertTrue("Schedule not stored by the controller", stored);
+                assertTrue("Logs not stored", logs);
+                assertTrue("Sync threads still running", ended);
+            } finally {
+                sampler.cancel();
+                dataManager.removeSensorDataListener(listener);
+                transport.close();
+                link.stop();
+            }
+        }
+    }
+
+    /**
+     * Follows the CPU time and allocations of the threads a sync starts, by the stage
+     * each runs. The JVM reports them for live threads only, so the threads are read
+     * every millisecond and the last reading of each kept: whatever a thread does in the
+     * millisecond before it ends is missed. Threads that were running before the sampler
+     * was created, those of an earlier sync, are left out.
+     * */
+    private static class StageSampler implements Runnable {
+        private static final String[][] STAGE_THREADS = {
+                {},
+                {"Sync Writer"},
+                {"Sync Reader"},
+                {"Ingestion Frame", "Ingestion Parse"},
+                {"Ingestion Persist"}};
+
+        private final Set<Thread> earlier;
+        //stage, CPU time and allocated bytes, by thread
+        private final Map<Thread, long[]> readings = new HashMap<>();
+        private final Thread thread;
+        private volatile boolean stopped;
+
+        StageSampler(){
+            earlier = new HashSet<>(liveThreads());
+            thread = new Thread(this, "Stage Sampler");
+        }
+
+        void start(){
+            thread.start();
+        }
+
+        /**
+         * Stop once the threads of the sync ended
+         *
+         * @return false if some still ran after the timeout
+         * */
+        boolean stop(long timeoutMs) throws InterruptedException {
+            stopped = true;
+            if(thread.getState() == Thread.State.NEW){
+                return true;
+            }
+            thread.join(timeoutMs);
+            if(thread.isAlive()){
+                thread.interrupt();
+                thread.join();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Stop right away, when the sync failed
+         * */
+        void cancel(){
+            stopped = true;
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            try{
+                //one last reading once stopped, then wait for the threads still running
+                while(sample() || !stopped){
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e){
+                //given up on
+            }
+        }
+
+        /**
+         * @return true if a thread of the sync is still running
+         * */
+        private boolean sample(){
+            boolean running = false;
+            for(Thread thread : liveThreads()){
+                int stage = stageOf(thread.getName());
+                if(stage < 0 || earlier.contains(thread)){
+                    continue;
+                }
+                long cpu = ThreadStats.cpuTime(thread);
+                long allocated = ThreadStats.allocatedBytes(thread);
+                if(thread.isAlive()){
+                    //an ended thread reads -1, keep its last reading
+                    readings.put(thread, new long[]{stage, cpu, allocated});
+                    running = true;
+                }
+            }
+            return running;
+        }
+
+        long getCpuTime(int stage){
+            return sum(stage, 1);
+        }
+
+        long getAllocatedBytes(int stage){
+            return sum(stage, 2);
+        }
+
+        private long sum(int stage, int field){
+            long total = 0;
+            for(long[] reading : readings.values()){
+                if(reading[0] == stage){
+                    if(reading[field] < 0){
+                        return -1;
+                    }
+                    total += reading[field];
+                }
+            }
+            return total;
+        }
+
+        private static int stageOf(String name){
+            for(int stage = 0; stage < STAGE_THREADS.length; stage++){
+                if(Arrays.asList(STAGE_THREADS[stage]).contains(name)){
+                    return stage;
+                }
+            }
+            return -1;
+        }
+
+        private static List<Thread> liveThreads(){
+            Thread[] threads = new Thread[Thread.activeCount() * 2 + 16];
+            int count = Thread.enumerate(threads);
+            return Arrays.asList(threads).subList(0, count);
+        }
+    }
+
+    /**
+     * Measurements of the syncs of one case
+     * */
+    static class Result {
+        final LinkProfile profile;
+        final int version;
+        final int recordCount;
+        final int triggerCount;
+        final long[] latency;
+        final long[][] wall = new long[STAGES.length][];
+        final long[] stageCpu = new long[STAGES.length];
+        final long[] stageAlloc = new long[STAGES.length];
+        long cpu;
+        long bytesUp;
+        long bytesDown;
+
+        Result(LinkProfile profile, int version, int recordCount, int triggerCount, int iterations){
+            this.profile = profile;
+            this.version = version;
+            this.recordCount = recordCount;
+            this.triggerCount = triggerCount;
+            this.latency = new long[iterations];
+            for(int i = 0; i < STAGES.length; i++){
+                wall[i] = new long[iterations];
+            }
+        }
+
+        void add(int iteration, Sync sync){
+            for(int i = 0; i < STAGES.length; i++){
+                wall[i][iteration] = sync.wall[i];
+                stageCpu[i] = stageCpu[i] < 0 || sync.stageCpu[i] < 0 ? -1 : stageCpu[i] + sync.stageCpu[i];
+                stageAlloc[i] = stageAlloc[i] < 0 || sync.stageAlloc[i] < 0 ? -1 : stageAlloc[i] + sync.stageAlloc[i];
+            }
+            latency[iteration] = sync.latency;
+            cpu = cpu < 0 || sync.cpu < 0 ? -1 : cpu + sync.cpu;
+            bytesUp = sync.bytesUp;
+            bytesDown = sync.bytesDown;
+        }
+
+        @Override
+        public String toString() {
+            int n = latency.length;
+            StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                    "%-8s v%d records=%-6d triggers=%-5d p50=%.1fms p99=%.1fms up=%dB down=%dB cpu=%s",
+                    profile.name, version, recordCount, triggerCount, millis(percentile(latency, 0.5)),
+                    millis(percentile(latency, 0.99)), bytesUp, bytesDown,
+                    cpu < 0 ? "n/a" : String.format(Locale.US, "%.2fms", millis(cpu / n))));
+            for(int i = 0; i < STAGES.length; i++){
+                builder.append(String.format(Locale.US, "%n    %-8s wall p50=%.2fms cpu=%s alloc=%s", STAGES[i],
+                        millis(percentile(wall[i], 0.5)),
+                        stageCpu[i] < 0 ? "n/a" : String.format(Locale.US, "%.2fms", millis(stageCpu[i] / n)),
+                        stageAlloc[i] < 0 ? "n/a" : String.format(Locale.US, "%.1fKB", stageAlloc[i] / n / 1024.0)));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The controller's file with the given number of logs, one a minute, laid out like
+     * the one it writes. Luminosity is a label, written without quotes like the
+     * controller does.
+     * */
+    static String serverJson(int records){
+        SimpleDateFormat date = new SimpleDateFormat("dd/MM/yyyy", Locale.US);
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        long start = System.currentTimeMillis() - records * 60000L;
+        StringBuilder builder = new StringBuilder(records * 400 + 100);
+        builder.append("{\n\t\"logFrequency\":60,\n\t\"numberOfLogs\":").append(records).append(",\n\t\"logs\":\n\t[\n");
+        for(int i = 0; i < records; i++){
+            Date at = new Date(start + i * 60000L);
+            builder.append("\t\t{\n")
+                    .append("\t\t\t\"date\":\"").append(date.format(at)).append("\",\n")
+                    .append("\t\t\t\"time\":\"").append(time.format(at)).append("\",\n")
+                    .append("\t\t\t\"numberOfSensors\":4,\n")
+                    .append("\t\t\t\"sensors\":\n\t\t\t[\n")
+                    .append("\t\t\t\t{\n\t\t\t\t\t\"name\":\"Temperature\",\n\t\t\t\t\t\"data\":").append(15 + i % 20).append(".5,\n\t\t\t\t\t\"unit\":\"°C\"\n\t\t\t\t},\n")
+                    .append("\t\t\t\t{\n\t\t\t\t\t\"name\":\"Moisture\",\n\t\t\t\t\t\"data\":").append(30 + i % 50).append(",\n\t\t\t\t\t\"unit\":\"%\"\n\t\t\t\t},\n")
+                    .append("\t\t\t\t{\n\t\t\t\t\t\"name\":\"Luminosity\",\n\t\t\t\t\t\"data\":").append(i % 1440 < 720 ? "Day" : "Night").append(",\n\t\t\t\t\t\"unit\":\"Lux\"\n\t\t\t\t},\n")
+                    .append("\t\t\t\t{\n\t\t\t\t\t\"name\":\"Soil Moisture\",\n\t\t\t\t\t\"data\":\"").append(i % 3 == 0 ? "Low" : "High").append("\",\n\t\t\t\t\t\"unit\":\"\"\n\t\t\t\t}\n")
+                    .append("\t\t\t]\n\t\t},");
+        }
+        builder.append("{}\n\t]\n}\n");
+        return builder.toString();
+    }
+
+    /**
+     * Sum of the durations recorded in a histogram, within a microsecond a value
+     * */
+    private static long totalNanos(MetricsRegistry.ControllerMetrics metrics, String histogram){
+        LatencyHistogram values = metrics.getHistogram(histogram);
+        return values == null ? 0 : values.getMean() * values.getCount() * 1000;
+    }
+
+    private static long percentile(long[] values, double p){
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1e6;
+    }
+
+    private static int[] intList(String text){
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("syncbench", "");
+        if(!dir.delete() || !dir.mkdir()){
+            throw new IOException("Unable to create " + dir.getPath());
+        }
+        return dir;
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try{
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
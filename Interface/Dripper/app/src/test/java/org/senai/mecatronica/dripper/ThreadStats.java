@@ -0,0 +1,96 @@
+package org.senai.mecatronica.dripper;
+
+import java.lang.reflect.Method;
+
+/**
+ * CPU time and allocations of a live thread, and the CPU time of the whole process,
+ * through the JVM's management beans when it has them, -1 when they do not. Looked up by
+ * reflection, the Android classpath the tests compile against has no
+ * java.lang.management.
+ * */
+class ThreadStats {
+    private static final Object BEAN;
+    private static final Method CPU_TIME;
+    private static final Method THREAD_CPU_TIME;
+    private static final Method ALLOCATED_BYTES;
+    private static final Object OS_BEAN;
+    private static final Method PROCESS_CPU_TIME;
+
+    static {
+        Object bean = null;
+        Method cpuTime = null;
+        Method threadCpuTime = null;
+        Method allocatedBytes = null;
+        try{
+            bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            cpuTime = Class.forName("java.lang.management.ThreadMXBean").getMethod("getCurrentThreadCpuTime");
+            threadCpuTime = Class.forName("java.lang.management.ThreadMXBean").getMethod("getThreadCpuTime", long.class);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e){
+            //reported as n/a
+        }
+        BEAN = bean;
+        CPU_TIME = cpuTime;
+        THREAD_CPU_TIME = threadCpuTime;
+        ALLOCATED_BYTES = allocatedBytes;
+
+        Object osBean = null;
+        Method processCpuTime = null;
+        try{
+            osBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getOperatingSystemMXBean").invoke(null);
+            processCpuTime = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getProcessCpuTime");
+        } catch (Exception e){
+            //reported as n/a
+        }
+        OS_BEAN = osBean;
+        PROCESS_CPU_TIME = processCpuTime;
+    }
+
+    private ThreadStats(){
+    }
+
+    static long cpuTime(){
+        try{
+            return CPU_TIME == null ? -1 : (Long) CPU_TIME.invoke(BEAN);
+        } catch (Exception e){
+            return -1;
+        }
+    }
+
+    /**
+     * CPU time of another thread, -1 once it ended
+     * */
+    static long cpuTime(Thread thread){
+        try{
+            return THREAD_CPU_TIME == null ? -1 : (Long) THREAD_CPU_TIME.invoke(BEAN, thread.getId());
+        } catch (Exception e){
+            return -1;
+        }
+    }
+
+    /**
+     * CPU time of every thread of the process, the ones that already ended included
+     * */
+    static long processCpuTime(){
+        try{
+            return PROCESS_CPU_TIME == null ? -1 : (Long) PROCESS_CPU_TIME.invoke(OS_BEAN);
+        } catch (Exception e){
+            return -1;
+        }
+    }
+
+    static long allocatedBytes(){
+        return allocatedBytes(Thread.currentThread());
+    }
+
+    /**
+     * Bytes allocated by another thread, -1 once it ended
+     * */
+    static long allocatedBytes(Thread thread){
+        try{
+            return ALLOCATED_BYTES == null ? -1 : (Long) ALLOCATED_BYTES.invoke(BEAN, thread.getId());
+        } catch (Exception e){
+            return -1;
+        }
+    }
+}
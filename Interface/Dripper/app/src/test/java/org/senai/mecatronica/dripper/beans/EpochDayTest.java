@@ -0,0 +1,77 @@
+package org.senai.mecatronica.dripper.beans;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Civil date math and the "dd/MM/yy" text of the irrigation file
+ */
+public class EpochDayTest {
+
+    @Test
+    public void knownDates() {
+        assertEquals(0, EpochDay.daysFromCivil(1970, 1, 1));
+        assertEquals(-1, EpochDay.daysFromCivil(1969, 12, 31));
+        assertEquals(11016, EpochDay.daysFromCivil(2000, 2, 29));
+        assertEquals(17482, EpochDay.daysFromCivil(2017, 11, 12));
+        //not a leap year, a century not divisible by 400
+        assertEquals(EpochDay.daysFromCivil(2100, 2, 28) + 1, EpochDay.daysFromCivil(2100, 3, 1));
+    }
+
+    @Test
+    public void civilMathMatchesTheCalendar() {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(1600, Calendar.JANUARY, 1);
+        int day = EpochDay.daysFromCivil(1600, 1, 1);
+        //every day of five centuries, with their leap years
+        while(calendar.get(Calendar.YEAR) < 2100){
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            assertEquals(day, EpochDay.daysFromCivil(year, month, dayOfMonth));
+            assertArrayEquals(new int[]{year, month, dayOfMonth}, EpochDay.civilFromDays(day));
+            assertEquals(calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY, EpochDay.weekdayOf(day));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            day++;
+        }
+    }
+
+    @Test
+    public void civilFromDaysRoundTripsFarFromTheEpoch() {
+        for(int day = -1000000; day <= 1000000; day += 997){
+            int[] date = EpochDay.civilFromDays(day);
+            assertEquals(day, EpochDay.daysFromCivil(date[0], date[1], date[2]));
+        }
+    }
+
+    @Test
+    public void parsesAndFormatsText() {
+        EpochDay day = EpochDay.parse("12/11/17");
+        assertEquals(17482, day.getValue());
+        assertEquals(2017, day.getYear());
+        assertEquals(11, day.getMonth());
+        assertEquals(12, day.getDayOfMonth());
+        assertEquals(0, day.getWeekday());
+        assertEquals("12/11/17", day.format());
+        assertEquals(day, EpochDay.parse("12/11/2017"));
+        assertEquals("01/03/00", EpochDay.of(2000, 3, 1).format());
+    }
+
+    @Test
+    public void unreadableTextIsNull() {
+        assertNull(EpochDay.parse(null));
+        assertNull(EpochDay.parse(""));
+        assertNull(EpochDay.parse("12/11"));
+        assertNull(EpochDay.parse("12-11-17"));
+        assertNull(EpochDay.parse("32/11/17"));
+        assertNull(EpochDay.parse("12/13/17"));
+        assertNull(EpochDay.parse("1a/11/17"));
+        assertNull(EpochDay.parse("12//17"));
+    }
+}
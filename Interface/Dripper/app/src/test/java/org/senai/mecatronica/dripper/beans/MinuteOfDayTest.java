@@ -0,0 +1,60 @@
+package org.senai.mecatronica.dripper.beans;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The "h:mm AM" and "H:mm" times of the irrigation file
+ */
+public class MinuteOfDayTest {
+
+    @Test
+    public void parsesTwelveHourText() {
+        assertEquals(0, MinuteOfDay.parse("12:00 AM").getValue());
+        assertEquals(6 * 60 + 30, MinuteOfDay.parse("6:30 AM").getValue());
+        assertEquals(12 * 60 + 30, MinuteOfDay.parse("12:30 PM").getValue());
+        assertEquals(23 * 60 + 59, MinuteOfDay.parse("11:59 PM").getValue());
+        //the marker as other locales write it
+        assertEquals(18 * 60 + 5, MinuteOfDay.parse("06:05 p.m.").getValue());
+        assertEquals(6 * 60 + 5, MinuteOfDay.parse("6:05am").getValue());
+    }
+
+    @Test
+    public void parsesTwentyFourHourText() {
+        assertEquals(5, MinuteOfDay.parse("0:05").getValue());
+        assertEquals(6 * 60 + 30, MinuteOfDay.parse("06:30").getValue());
+        assertEquals(18 * 60 + 30, MinuteOfDay.parse("18:30").getValue());
+        assertEquals(23 * 60 + 59, MinuteOfDay.parse("23:59").getValue());
+    }
+
+    @Test
+    public void unreadableTextIsNull() {
+        assertNull(MinuteOfDay.parse(null));
+        assertNull(MinuteOfDay.parse(""));
+        assertNull(MinuteOfDay.parse(":30 AM"));
+        assertNull(MinuteOfDay.parse("6:3"));
+        assertNull(MinuteOfDay.parse("6:60"));
+        assertNull(MinuteOfDay.parse("24:00"));
+        assertNull(MinuteOfDay.parse("0:30 AM"));
+        assertNull(MinuteOfDay.parse("13:00 PM"));
+        assertNull(MinuteOfDay.parse("6:30 XM"));
+        assertNull(MinuteOfDay.parse("six:30"));
+    }
+
+    @Test
+    public void formatRoundTripsEveryMinute() {
+        for(int minute = 0; minute < MinuteOfDay.MINUTES_PER_DAY; minute++){
+            MinuteOfDay time = MinuteOfDay.of(minute);
+            assertSame(time, MinuteOfDay.parse(time.format()));
+        }
+        assertEquals("12:00 AM", MinuteOfDay.of(0).format());
+        assertEquals("12:30 PM", MinuteOfDay.of(12, 30).format());
+        assertEquals("6:05 PM", MinuteOfDay.of(18, 5).format());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesMinutesOutOfRange() {
+        MinuteOfDay.of(6, 60);
+    }
+}
@@ -0,0 +1,366 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+
+import java.io.File;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Messages of the binary sync encoded on one side and decoded on the other
+ */
+public class BinarySyncCodecTest {
+
+    private File file;
+    private SensorRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("registry", "");
+        file.delete();
+        registry = new SensorRegistry(file);
+    }
+
+    @After
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Test
+    public void scheduleRoundTrips() throws ParseException {
+        List<IrrigationData> triggers = Arrays.asList(
+                trigger(true, 6 * 60 + 30, 17482, 600, 0),
+                trigger(false, 23 * 60 + 59, IrrigationData.NO_START_DATE, 3 * 3600, 0x7F),
+                trigger(false, 0, 0, 1, 0x12));
+        boolean[] auto = new boolean[1];
+
+        List<IrrigationData> decoded = BinarySyncCodec.decodeSchedule(BinarySyncCodec.encodeSchedule(true, triggers), auto);
+
+        assertTrue(auto[0]);
+        assertSameTriggers(triggers, decoded);
+    }
+
+    @Test
+    public void triggersWithoutStartTimeStartAtMidnight() throws ParseException {
+        IrrigationData trigger = trigger(false, IrrigationData.NO_START_TIME, IrrigationData.NO_START_DATE, 60, 1);
+
+        List<IrrigationData> decoded = BinarySyncCodec.decodeSchedule(
+                BinarySyncCodec.encodeSchedule(false, Arrays.asList(trigger)), new boolean[1]);
+
+        assertEquals(0, decoded.get(0).getStartMinute());
+        assertFalse(decoded.get(0).hasStartDate());
+    }
+
+    @Test
+    public void syncRequestRoundTripsInWholeSeconds() throws ParseException {
+        assertEquals(1510466400000L, BinarySyncCodec.decodeSyncRequest(BinarySyncCodec.encodeSyncRequest(1510466400999L)));
+        assertEquals(0, BinarySyncCodec.decodeSyncRequest(BinarySyncCodec.encodeSyncRequest(-1)));
+    }
+
+    @Test
+    public void logsRoundTripWithTheirSensorsAndLabels() throws ParseException {
+        //the controller's own wire ids, not the phone's registry ids
+        int[] kinds = {SensorRegistry.KIND_LABEL, SensorRegistry.KIND_NUMBER, SensorRegistry.KIND_NUMBER};
+        List<SensorReading> sent = new ArrayList<>();
+        sent.add(reading(1510466400000L, 5, 22.5, -3.25));
+        sent.add(reading(1510466460000L, 6, 23, 0));
+        //clock set back, the delta goes negative
+        sent.add(reading(1510466000000L, 5, 21.75, 100.01));
+        SensorReading partial = new SensorReading(1510466520000L);
+        partial.setNumber(2, 12.5);
+        sent.add(partial);
+
+        BinarySyncCodec codec = new BinarySyncCodec(registry);
+        assertTrue(codec.decode(BinarySyncCodec.encodeSensor(0, SensorRegistry.KIND_LABEL, "Soil Moisture", "")).isEmpty());
+        assertTrue(codec.decode(BinarySyncCodec.encodeSensor(1, SensorRegistry.KIND_NUMBER, "Temperature", "°C")).isEmpty());
+        assertTrue(codec.decode(BinarySyncCodec.encodeSensor(2, SensorRegistry.KIND_NUMBER, "Rain", "mm")).isEmpty());
+        assertTrue(codec.decode(BinarySyncCodec.encodeLabel(5, "Low")).isEmpty());
+        assertTrue(codec.decode(BinarySyncCodec.encodeLabel(6, "High")).isEmpty());
+        List<SensorReading> received = codec.decode(BinarySyncCodec.encodeLogs(sent, kinds));
+        assertTrue(codec.decode(BinarySyncCodec.encodeEnd()).isEmpty());
+        assertTrue(BinarySyncCodec.isEnd(BinarySyncCodec.encodeEnd()));
+
+        int rain = registry.findSensor("Rain", 0, 4);
+        assertEquals(4, received.size());
+        for(int i = 0; i < 3; i++){
+            assertEquals(sent.get(i).getTimestamp(), received.get(i).getTimestamp());
+            assertEquals(i == 1 ? "High" : "Low", registry.getLabel(received.get(i).getLabelCode(SensorRegistry.SOIL_MOISTURE)));
+            assertEquals(sent.get(i).getNumber(1), received.get(i).getNumber(SensorRegistry.TEMPERATURE), 1e-9);
+            assertEquals(sent.get(i).getNumber(2), received.get(i).getNumber(rain), 1e-9);
+        }
+        assertFalse(received.get(3).hasValue(SensorRegistry.TEMPERATURE));
+        assertFalse(received.get(3).hasValue(SensorRegistry.SOIL_MOISTURE));
+        assertEquals(12.5, received.get(3).getNumber(rain), 1e-9);
+        assertEquals("mm", registry.getUnit(rain));
+    }
+
+    @Test(expected = ParseException.class)
+    public void logsOfUndeclaredSensorsAreRejected() throws ParseException {
+        List<SensorReading> sent = Arrays.asList(reading(1510466400000L, 5, 22.5, 0));
+        new BinarySyncCodec(registry).decode(BinarySyncCodec.encodeLogs(sent, new int[]{SensorRegistry.KIND_LABEL, 0, 0}));
+    }
+
+    @Test(expected = ParseException.class)
+    public void unknownMessagesAreRejected() throws ParseException {
+        new BinarySyncCodec(registry).decode(new byte[]{0x7F});
+    }
+
+    @Test
+    public void scheduleStateRoundTrips() throws ParseException {
+        ScheduleDigest digest = ScheduleDigest.of(true, Arrays.asList(
+                trigger(true, 60, 17482, 600, 0), trigger(false, 120, IrrigationData.NO_START_DATE, 60, 3)));
+
+        ScheduleDigest decoded = BinarySyncCodec.decodeScheduleState(BinarySyncCodec.encodeScheduleState(digest));
+
+        assertTrue(digest.matches(decoded));
+    }
+
+    @Test
+    public void scheduleDiffTurnsTheControllersScheduleIntoThePhones() throws ParseException {
+        Random random = new Random(7);
+        for(int round = 0; round < 2000; round++){
+            List<IrrigationData> held = new ArrayList<>();
+            int size = random.nextInt(20);
+            for(int i = 0; i < size; i++){
+                held.add(randomTrigger(random));
+            }
+            boolean heldAuto = random.nextBoolean();
+            List<IrrigationData> phone = new ArrayList<>(held);
+            boolean phoneAuto = random.nextInt(4) == 0 ? !heldAuto : heldAuto;
+            int edits = random.nextInt(8);
+            for(int i = 0; i < edits; i++){
+                edit(random, phone);
+            }
+
+            ScheduleDigest local = ScheduleDigest.of(phoneAuto, phone);
+            byte[] message = BinarySyncCodec.encodeScheduleDiff(local, phone,
+                    BinarySyncCodec.decodeScheduleState(BinarySyncCodec.encodeScheduleState(ScheduleDigest.of(heldAuto, held))));
+            List<IrrigationData> result = new ArrayList<>(held);
+            boolean[] auto = new boolean[1];
+            int hash = BinarySyncCodec.applyScheduleDiff(message, result, auto);
+
+            assertSameTriggers(phone, result);
+            assertEquals(phoneAuto, auto[0]);
+            assertEquals(local.getHash(), hash);
+            assertEquals(hash, ScheduleDigest.of(auto[0], result).getHash());
+            if(edits == 0){
+                assertEquals(0, operationCount(message));
+            }
+        }
+    }
+
+    @Test
+    public void singleEditsCostOneOperation() throws ParseException {
+        Random random = new Random(11);
+        for(int round = 0; round < 200; round++){
+            List<IrrigationData> held = new ArrayList<>();
+            int size = 1 + random.nextInt(30);
+            for(int i = 0; i < size; i++){
+                held.add(randomTrigger(random));
+            }
+            List<IrrigationData> phone = new ArrayList<>(held);
+            int index = random.nextInt(size);
+            switch (random.nextInt(3)){
+                case 0:
+                    phone.add(random.nextInt(size + 1), randomTrigger(random));
+                    break;
+                case 1:
+                    phone.remove(index);
+                    break;
+                default:
+                    IrrigationData edited = trigger(phone.get(index).isOneTime(), (phone.get(index).getStartMinute() + 1) % 1440,
+                            phone.get(index).getStartDay(), phone.get(index).getDurationSeconds(), phone.get(index).getWeekdayMask());
+                    phone.set(index, edited);
+            }
+
+            byte[] message = BinarySyncCodec.encodeScheduleDiff(ScheduleDigest.of(false, phone), phone, ScheduleDigest.of(false, held));
+
+            assertEquals(1, operationCount(message));
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void diffsOutOfRangeAreRejected() throws ParseException {
+        IrrigationData trigger = trigger(false, 60, IrrigationData.NO_START_DATE, 60, 1);
+        //the phone believes the controller holds two triggers, it holds one
+        byte[] message = BinarySyncCodec.encodeScheduleDiff(ScheduleDigest.of(false, new ArrayList<IrrigationData>()),
+                new ArrayList<IrrigationData>(), ScheduleDigest.of(false, Arrays.asList(trigger, trigger)));
+        BinarySyncCodec.applyScheduleDiff(message, new ArrayList<>(Arrays.asList(trigger)), new boolean[1]);
+    }
+
+    @Test
+    public void timetableRoundTrips() throws ParseException {
+        long now = 17482 * IrrigationTimeline.SECONDS_PER_DAY + 8 * 3600;
+        List<IrrigationData> triggers = new ArrayList<>();
+        triggers.add(trigger(false, 6 * 60, IrrigationData.NO_START_DATE, 1800, 0x3E));
+        //crosses from Saturday into Sunday
+        triggers.add(trigger(false, 23 * 60 + 30, IrrigationData.NO_START_DATE, 3600, 0x40));
+        triggers.add(trigger(true, 9 * 60, 17484, 90, 0));
+        WeeklyTimetable timetable = WeeklyTimetable.compile(true, triggers, now);
+
+        WeeklyTimetable decoded = BinarySyncCodec.decodeTimetable(BinarySyncCodec.encodeTimetable(timetable, 0), null);
+
+        assertTrue(timetable.matches(decoded));
+        assertTrue(decoded.isAuto());
+        assertTrue(decoded.isOpenWeekly(6 * 24 * 60 + 23 * 60 + 45));
+        assertTrue(decoded.isOpenWeekly(10));
+        assertFalse(decoded.isOpenWeekly(40));
+        assertTrue(decoded.isOpenAt(17484L * 24 * 60 + 9 * 60 + 1));
+    }
+
+    @Test
+    public void timetableOfTheSameScheduleIsTheSameOnAnotherDay() {
+        long now = 17482 * IrrigationTimeline.SECONDS_PER_DAY + 8 * 3600;
+        List<IrrigationData> triggers = new ArrayList<>();
+        triggers.add(trigger(false, 6 * 60, IrrigationData.NO_START_DATE, 1800, 0x3E));
+        triggers.add(trigger(true, 9 * 60, 17484, 90, 0));
+
+        WeeklyTimetable today = WeeklyTimetable.compile(false, triggers, now);
+        WeeklyTimetable tomorrow = WeeklyTimetable.compile(false, triggers, now + IrrigationTimeline.SECONDS_PER_DAY);
+
+        assertEquals(today.getChecksum(), tomorrow.getChecksum());
+        assertTrue(today.matches(tomorrow));
+        //once the one time trigger is over only the weekly ones are left
+        WeeklyTimetable after = WeeklyTimetable.compile(false, triggers, now + 3 * IrrigationTimeline.SECONDS_PER_DAY);
+        assertEquals(0, after.getAnchor());
+        assertEquals(after.getChecksum(), WeeklyTimetable.compile(false, triggers.subList(0, 1), now).getChecksum());
+    }
+
+    @Test
+    public void oneTimeTriggersAreTakenAWeekAtATimeFromTheFirst() {
+        long now = 17482 * IrrigationTimeline.SECONDS_PER_DAY + 8 * 3600;
+        IrrigationData first = trigger(true, 9 * 60, 17492, 90, 0);
+        IrrigationData sameWeek = trigger(true, 8 * 60, 17498, 60, 0);
+        IrrigationData later = trigger(true, 9 * 60, 17499, 60, 0);
+
+        WeeklyTimetable timetable = WeeklyTimetable.compile(false, Arrays.asList(first, sameWeek, later), now);
+
+        //ten days out, but the first one the controller needs
+        assertEquals(17492L * 24 * 60, timetable.getAnchor());
+        assertTrue(timetable.covers(first));
+        assertTrue(timetable.isOpenAt(17492L * 24 * 60 + 9 * 60));
+        assertTrue(timetable.covers(sameWeek));
+        assertTrue(timetable.isOpenAt(17498L * 24 * 60 + 8 * 60));
+        assertFalse(timetable.covers(later));
+        assertFalse(timetable.isOpenAt(17499L * 24 * 60 + 9 * 60));
+
+        //a sync after the first ones are over sends it
+        WeeklyTimetable next = WeeklyTimetable.compile(false, Arrays.asList(first, sameWeek, later),
+                17498 * IrrigationTimeline.SECONDS_PER_DAY + 12 * 3600);
+        assertTrue(next.covers(later));
+        assertTrue(next.isOpenAt(17499L * 24 * 60 + 9 * 60));
+    }
+
+    @Test
+    public void currentTimetableIsOnlyItsChecksum() throws ParseException {
+        WeeklyTimetable timetable = WeeklyTimetable.compile(false,
+                Arrays.asList(trigger(false, 6 * 60, IrrigationData.NO_START_DATE, 1800, 0x7F)), 0);
+
+        byte[] message = BinarySyncCodec.encodeTimetable(timetable, timetable.getChecksum());
+
+        assertTrue(message.length <= 7);
+        assertSame(timetable, BinarySyncCodec.decodeTimetable(message, timetable));
+        assertEquals(timetable.getChecksum(), BinarySyncCodec.decodeTimetableState(
+                BinarySyncCodec.encodeTimetableState(timetable.getChecksum())));
+    }
+
+    @Test
+    public void denseTimetablesFallBackToTheBitmap() throws ParseException {
+        List<IrrigationData> triggers = new ArrayList<>();
+        //a minute open every other minute of Monday, more runs than the bitmap has bytes
+        for(int minute = 0; minute < 24 * 60; minute += 2){
+            triggers.add(trigger(false, minute, IrrigationData.NO_START_DATE, 60, 0x02));
+        }
+        WeeklyTimetable timetable = WeeklyTimetable.compile(false, triggers, 0);
+
+        byte[] message = BinarySyncCodec.encodeTimetable(timetable, 0);
+
+        assertTrue(message.length <= 2 * WeeklyTimetable.bitmapBytes() + 16);
+        assertTrue(timetable.matches(BinarySyncCodec.decodeTimetable(message, null)));
+    }
+
+    @Test(expected = ParseException.class)
+    public void corruptTimetablesAreRejected() throws ParseException {
+        WeeklyTimetable timetable = WeeklyTimetable.compile(false,
+                Arrays.asList(trigger(false, 6 * 60, IrrigationData.NO_START_DATE, 1800, 0x7F)), 0);
+        byte[] message = BinarySyncCodec.encodeTimetable(timetable, 0);
+        message[message.length - 1] ^= 1;
+        BinarySyncCodec.decodeTimetable(message, null);
+    }
+
+    static IrrigationData trigger(boolean oneTime, int startMinute, int startDay, int durationSeconds, int weekdays){
+        IrrigationData data = new IrrigationData();
+        data.setOneTime(oneTime);
+        data.setStartMinute(startMinute);
+        data.setStartDay(startDay);
+        data.setDurationSeconds(durationSeconds);
+        data.setWeekdayMask(weekdays);
+        return data;
+    }
+
+    static void assertSameTriggers(List<IrrigationData> expected, List<IrrigationData> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            IrrigationData a = expected.get(i);
+            IrrigationData b = actual.get(i);
+            assertEquals(a.isOneTime(), b.isOneTime());
+            assertEquals(a.getStartMinute(), b.getStartMinute());
+            assertEquals(a.getStartDay(), b.getStartDay());
+            assertEquals(a.getDurationSeconds(), b.getDurationSeconds());
+            assertEquals(a.getWeekdayMask(), b.getWeekdayMask());
+        }
+    }
+
+    private static IrrigationData randomTrigger(Random random){
+        boolean oneTime = random.nextBoolean();
+        //a few distinct values, so equal triggers show up too
+        return trigger(oneTime, random.nextInt(4) * 360, oneTime ? 17480 + random.nextInt(3) : IrrigationData.NO_START_DATE,
+                60 * (1 + random.nextInt(3)), oneTime ? 0 : 1 + random.nextInt(127));
+    }
+
+    /**
+     * Add, remove, replace or move a trigger of the schedule
+     * */
+    private static void edit(Random random, List<IrrigationData> triggers){
+        int op = triggers.isEmpty() ? 0 : random.nextInt(4);
+        switch (op){
+            case 0:
+                triggers.add(random.nextInt(triggers.size() + 1), randomTrigger(random));
+                break;
+            case 1:
+                triggers.remove(random.nextInt(triggers.size()));
+                break;
+            case 2:
+                triggers.set(random.nextInt(triggers.size()), randomTrigger(random));
+                break;
+            default:
+                IrrigationData moved = triggers.remove(random.nextInt(triggers.size()));
+                triggers.add(random.nextInt(triggers.size() + 1), moved);
+        }
+    }
+
+    private static int operationCount(byte[] diff) throws ParseException {
+        WireProtocol.Reader reader = new WireProtocol.Reader(diff);
+        reader.readByte();
+        reader.readVarint();
+        reader.readByte();
+        return reader.readInt();
+    }
+
+    private static SensorReading reading(long timestamp, int label, double temperature, double rain){
+        SensorReading reading = new SensorReading(timestamp);
+        reading.setLabelCode(0, label);
+        reading.setNumber(1, temperature);
+        reading.setNumber(2, rain);
+        return reading;
+    }
+}
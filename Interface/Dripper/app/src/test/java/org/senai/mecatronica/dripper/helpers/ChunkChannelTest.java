@@ -0,0 +1,169 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Chunks handed between a producer and a consumer thread through the two rings
+ */
+public class ChunkChannelTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    @Test
+    public void ringIsFirstInFirstOutUpToItsCapacity() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(3);
+        assertEquals(4, queue.capacity());
+        //around the end of the slots a few times
+        for(int round = 0; round < 3; round++){
+            for(int i = 0; i < 4; i++){
+                assertTrue(queue.offer(round * 10 + i));
+            }
+            assertFalse(queue.offer(99));
+            for(int i = 0; i < 4; i++){
+                assertEquals(round * 10 + i, (int) queue.poll());
+            }
+            assertNull(queue.poll());
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void everyChunkArrivesOnceAndInOrder() throws Exception {
+        final int count = 200000;
+        final ChunkChannel channel = new ChunkChannel(4, 64);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    for(int sequence = 0; sequence < count; sequence++){
+                        ChunkChannel.Chunk chunk = channel.acquire();
+                        assertNotNull(chunk);
+                        assertEquals(0, chunk.length);
+                        //the whole buffer, so a chunk written while still read shows up
+                        fill(chunk.data, sequence);
+                        chunk.length = 1 + sequence % chunk.data.length;
+                        channel.publish(chunk);
+                    }
+                } catch (Throwable e){
+                    failure.set(e);
+                }
+                channel.close();
+            }
+        }, "Producer");
+        producer.start();
+
+        Map<ChunkChannel.Chunk, Boolean> pool = new IdentityHashMap<>();
+        int expected = 0;
+        ChunkChannel.Chunk chunk;
+        while((chunk = channel.take()) != null){
+            pool.put(chunk, Boolean.TRUE);
+            assertEquals(1 + expected % chunk.data.length, chunk.length);
+            if(expected % 1000 == 0){
+                //let the producer run into an empty pool
+                Thread.yield();
+            }
+            assertFilled(chunk.data, expected);
+            channel.recycle(chunk);
+            expected++;
+        }
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(count, expected);
+        //the same four buffers went round
+        assertEquals(4, pool.size());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void closeWakesAWaitingProducer() throws Exception {
+        final ChunkChannel channel = new ChunkChannel(2, 16);
+        //every buffer in flight
+        channel.publish(channel.acquire());
+        channel.publish(channel.acquire());
+        final AtomicReference<ChunkChannel.Chunk> acquired = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquired.set(channel.acquire());
+            }
+        }, "Producer");
+        producer.start();
+        awaitWaiting(producer);
+
+        channel.close();
+        producer.join();
+
+        assertNull(acquired.get());
+        //published before the close, still delivered
+        assertNotNull(channel.take());
+        assertNotNull(channel.take());
+        assertNull(channel.take());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void closeWakesAWaitingConsumer() throws Exception {
+        final ChunkChannel channel = new ChunkChannel(2, 16);
+        final AtomicReference<ChunkChannel.Chunk> taken = new AtomicReference<>(channel.acquire());
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(channel.take());
+            }
+        }, "Consumer");
+        consumer.start();
+        awaitWaiting(consumer);
+
+        channel.close();
+        consumer.join();
+
+        assertNull(taken.get());
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void interruptStopsAWaitingProducer() throws Exception {
+        final ChunkChannel channel = new ChunkChannel(1, 16);
+        channel.publish(channel.acquire());
+        final AtomicReference<ChunkChannel.Chunk> acquired = new AtomicReference<>(channel.poll());
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquired.set(channel.acquire());
+            }
+        }, "Producer");
+        producer.start();
+        awaitWaiting(producer);
+
+        producer.interrupt();
+        producer.join();
+
+        assertNull(acquired.get());
+    }
+
+    private static void fill(byte[] data, int sequence){
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte) (sequence + i);
+        }
+    }
+
+    private static void assertFilled(byte[] data, int sequence){
+        for(int i = 0; i < data.length; i++){
+            assertEquals("Chunk " + sequence + " overwritten", (byte) (sequence + i), data[i]);
+        }
+    }
+
+    /**
+     * Wait until a thread parks in the channel
+     * */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while(thread.getState() != Thread.State.TIMED_WAITING && thread.getState() != Thread.State.WAITING){
+            Thread.sleep(1);
+        }
+    }
+}
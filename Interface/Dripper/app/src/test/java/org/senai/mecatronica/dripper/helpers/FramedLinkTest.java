@@ -0,0 +1,221 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two links talking over in-memory pipes that lose and corrupt frames
+ */
+public class FramedLinkTest {
+
+    private static final long TIMEOUT_MS = 30000;
+
+    /**
+     * One direction of the pipe, each write queued for the other side's reader. Drops or
+     * corrupts about one in every lossEvery writes, or the writes chosen with drop().
+     * Links write a whole frame at a time, so a write is a frame.
+     * */
+    private static class LossyStream extends OutputStream {
+        private final BlockingQueue<byte[]> out = new LinkedBlockingQueue<>();
+        private final Random random = new Random(42);
+        private final int lossEvery;
+        private int dropNext;
+
+        LossyStream(int lossEvery){
+            this.lossEvery = lossEvery;
+        }
+
+        synchronized void drop(int writes){
+            dropNext = writes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(dropNext > 0){
+                dropNext--;
+                return;
+            }
+            byte[] copy = Arrays.copyOfRange(b, off, off + len);
+            if(lossEvery > 0 && random.nextInt(lossEvery) == 0){
+                return;
+            }
+            if(lossEvery > 0 && random.nextInt(lossEvery) == 0){
+                copy[random.nextInt(copy.length)] ^= 0x10;
+            }
+            out.add(copy);
+        }
+
+        byte[] take() throws InterruptedException {
+            return out.take();
+        }
+    }
+
+    private LossyStream toPhone;
+    private LossyStream toController;
+    private FramedLink phone;
+    private FramedLink controller;
+    private List<byte[]> receivedByPhone;
+    private List<byte[]> receivedByController;
+    private List<Thread> pumps;
+
+    @Before
+    public void setUp(){
+        pumps = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(Thread pump : pumps){
+            pump.interrupt();
+            pump.join(TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void deliversEveryMessageInOrderOverALossyLink() throws Exception {
+        connect(50);
+        for(int i = 0; i < 300; i++){
+            phone.send(message(i, 200 + i));
+        }
+
+        assertTrue(phone.awaitAcknowledged(TIMEOUT_MS));
+        assertEquals(300, receivedByController.size());
+        for(int i = 0; i < 300; i++){
+            assertArrayEquals(message(i, 200 + i), receivedByController.get(i));
+        }
+        assertTrue(phone.getRetransmissions() > 0);
+        assertEquals(300, phone.getFramesSent());
+        assertEquals(300, controller.getFramesReceived());
+    }
+
+    @Test
+    public void bothSidesSendAtOnce() throws Exception {
+        connect(50);
+        Thread controllerSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    for(int i = 0; i < 200; i++){
+                        controller.send(message(i, 100));
+                    }
+                    controller.awaitAcknowledged(TIMEOUT_MS);
+                } catch (IOException | InterruptedException e){
+                    //the test fails on the count below
+                }
+            }
+        });
+        controllerSender.start();
+        for(int i = 0; i < 200; i++){
+            phone.send(message(i, 300));
+        }
+
+        assertTrue(phone.awaitAcknowledged(TIMEOUT_MS));
+        controllerSender.join(TIMEOUT_MS);
+        assertEquals(200, receivedByController.size());
+        assertEquals(200, receivedByPhone.size());
+        for(int i = 0; i < 200; i++){
+            assertArrayEquals(message(i, 100), receivedByPhone.get(i));
+            assertArrayEquals(message(i, 300), receivedByController.get(i));
+        }
+    }
+
+    @Test
+    public void lostLastFrameIsResentWithoutTrafficBack() throws Exception {
+        connect(0);
+        //the phone's last message goes missing and the controller has nothing to answer
+        toController.drop(1);
+        phone.send(message(1, 64));
+        Thread.sleep(200);
+        phone.retransmitIfDue();
+        assertTrue(receivedByController.isEmpty());
+
+        //the sync's wait loop checks the timer while waiting for the controller
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(receivedByController.isEmpty() && System.currentTimeMillis() < deadline){
+            phone.retransmitIfDue();
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, receivedByController.size());
+        assertArrayEquals(message(1, 64), receivedByController.get(0));
+        assertEquals(1, phone.getRetransmissions());
+        assertTrue(phone.awaitAcknowledged(TIMEOUT_MS));
+    }
+
+    @Test
+    public void lostAckIsRecoveredByTheSender() throws Exception {
+        connect(0);
+        toPhone.drop(1);
+        phone.send(message(7, 10));
+
+        assertTrue(phone.awaitAcknowledged(TIMEOUT_MS));
+        //the resent frame is a duplicate, delivered once
+        assertEquals(1, receivedByController.size());
+        assertEquals(1, phone.getRetransmissions());
+    }
+
+    @Test(expected = IOException.class)
+    public void messagesLargerThanAFrameAreRefused() throws Exception {
+        connect(0);
+        phone.send(new byte[FrameAssembler.MAX_PAYLOAD_LENGTH + 1]);
+    }
+
+    private void connect(int lossEvery){
+        toController = new LossyStream(lossEvery);
+        toPhone = new LossyStream(lossEvery);
+        phone = new FramedLink(toController, FramedLink.DEFAULT_WINDOW);
+        controller = new FramedLink(toPhone, FramedLink.DEFAULT_WINDOW);
+        receivedByPhone = Collections.synchronizedList(new ArrayList<byte[]>());
+        receivedByController = Collections.synchronizedList(new ArrayList<byte[]>());
+        pump(toPhone, phone, receivedByPhone);
+        pump(toController, controller, receivedByController);
+    }
+
+    /**
+     * Feed what one side reads to its link, like the reader thread of a session
+     * */
+    private void pump(final LossyStream in, final FramedLink link, final List<byte[]> received){
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    while(true){
+                        byte[] data = in.take();
+                        received.addAll(link.receive(data, 0, data.length));
+                    }
+                } catch (IOException | InterruptedException e){
+                    //interrupted at the end of the test
+                }
+            }
+        }, "Link Pump");
+        pump.setDaemon(true);
+        pump.start();
+        pumps.add(pump);
+    }
+
+    private static byte[] message(int index, int length){
+        byte[] message = new byte[length];
+        for(int i = 0; i < length; i++){
+            message[i] = (byte) (index + i);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,102 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.BuildConfig;
+import org.senai.mecatronica.dripper.beans.EpochDay;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Irrigation files as the app writes them and as older versions left them. Runs on
+ * Robolectric for android.util.JsonReader.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class IrrigationFileCodecTest {
+
+    @Test
+    public void triggersRoundTrip() throws IOException {
+        IrrigationData weekly = new IrrigationData();
+        weekly.setStartMinute(6 * 60 + 30);
+        weekly.setDurationSeconds(600);
+        weekly.setWeekdayMask(0x12);
+        IrrigationData once = new IrrigationData();
+        once.setOneTime(true);
+        once.setStartMinute(18 * 60);
+        once.setStartDay(17482);
+        once.setDurationSeconds(90);
+
+        IrrigationFileCodec.Schedule schedule = roundTrip(true, Arrays.asList(weekly, once));
+
+        assertTrue(schedule.auto);
+        assertEquals(2, schedule.triggers.size());
+        assertSameTrigger(weekly, schedule.triggers.get(0));
+        assertSameTrigger(once, schedule.triggers.get(1));
+    }
+
+    @Test
+    public void triggersWithoutStartTimeOrDateRoundTrip() throws IOException {
+        IrrigationData data = new IrrigationData();
+        data.setDurationSeconds(60);
+        data.setWeekdayMask(1);
+
+        IrrigationFileCodec.Schedule schedule = roundTrip(false, Arrays.asList(data));
+
+        IrrigationData read = schedule.triggers.get(0);
+        assertEquals(IrrigationData.NO_START_TIME, read.getStartMinute());
+        assertFalse(read.hasStartDate());
+        assertSameTrigger(data, read);
+    }
+
+    @Test
+    public void readsNullStartTimeAndDate() throws IOException {
+        IrrigationFileCodec.Schedule schedule = read("{\"auto\": false, \"numberOfTriggers\": 2, \"triggers\": ["
+                + "{\"oneTime\": true, \"startTime\": null, \"startDate\": null, \"duration\": 60, \"daysOfTheWeek\": []},"
+                + "{\"oneTime\": false, \"startTime\": \"6:30 AM\", \"startDate\": \"12/11/17\", \"duration\": 600,"
+                + " \"daysOfTheWeek\": [\"Monday\", \"Thursday\"]}]}");
+
+        assertEquals(2, schedule.triggers.size());
+        IrrigationData empty = schedule.triggers.get(0);
+        assertEquals(IrrigationData.NO_START_TIME, empty.getStartMinute());
+        assertFalse(empty.hasStartDate());
+        assertEquals(60, empty.getDurationSeconds());
+        //the fields after the nulls are read too
+        IrrigationData weekly = schedule.triggers.get(1);
+        assertEquals(6 * 60 + 30, weekly.getStartMinute());
+        assertEquals(EpochDay.parse("12/11/17").getValue(), weekly.getStartDay());
+        assertEquals(0x12, weekly.getWeekdayMask());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsValuesOfTheWrongType() throws IOException {
+        read("{\"auto\": false, \"triggers\": [{\"oneTime\": 1}]}");
+    }
+
+    private static IrrigationFileCodec.Schedule roundTrip(boolean auto, List<IrrigationData> triggers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IrrigationFileCodec.write(out, auto, triggers);
+        return IrrigationFileCodec.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static IrrigationFileCodec.Schedule read(String json) throws IOException {
+        return IrrigationFileCodec.read(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    private static void assertSameTrigger(IrrigationData expected, IrrigationData actual){
+        assertEquals(expected.isOneTime(), actual.isOneTime());
+        assertEquals(expected.getStartMinute(), actual.getStartMinute());
+        assertEquals(expected.getStartDay(), actual.getStartDay());
+        assertEquals(expected.getDurationSeconds(), actual.getDurationSeconds());
+        assertEquals(expected.getWeekdayMask(), actual.getWeekdayMask());
+    }
+}
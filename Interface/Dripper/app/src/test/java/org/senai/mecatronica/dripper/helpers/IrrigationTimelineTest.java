@@ -0,0 +1,186 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The timeline's heaps against a scan of every day of every trigger
+ */
+public class IrrigationTimelineTest {
+
+    private static final long DAY = IrrigationTimeline.SECONDS_PER_DAY;
+    private static final int FIRST_DAY = 17482;
+    //far enough for the next irrigations asked for, weekly triggers run at least once a week
+    private static final int SCAN_DAYS = 200;
+
+    @Test
+    public void nextMatchesAScan() {
+        Random random = new Random(7);
+        for(int round = 0; round < 50; round++){
+            List<IrrigationData> triggers = randomTriggers(random, 1 + random.nextInt(30));
+            long now = FIRST_DAY * DAY + random.nextInt(30 * (int) DAY);
+            IrrigationTimeline timeline = new IrrigationTimeline(triggers, now);
+
+            for(int count : new int[]{0, 1, 5, 40}){
+                assertSameOccurrences(scanNext(triggers, now, count), timeline.next(count));
+            }
+            List<long[]> first = scanNext(triggers, now, 1);
+            IrrigationTimeline.Occurrence peek = timeline.peek();
+            assertEquals(first.isEmpty(), peek == null);
+            if(peek != null){
+                assertEquals(first.get(0)[1], peek.getStart());
+            }
+        }
+    }
+
+    @Test
+    public void advanceToMatchesAScan() {
+        Random random = new Random(11);
+        for(int round = 0; round < 20; round++){
+            List<IrrigationData> triggers = randomTriggers(random, 1 + random.nextInt(30));
+            long now = FIRST_DAY * DAY - random.nextInt((int) DAY);
+            IrrigationTimeline timeline = new IrrigationTimeline(triggers, now);
+
+            for(int step = 0; step < 100; step++){
+                //steps from a second to a few days, so some land inside irrigations
+                now += random.nextBoolean() ? 1 + random.nextInt(3600) : random.nextInt(3 * (int) DAY);
+                timeline.advanceTo(now);
+
+                assertEquals(now, timeline.getNow());
+                assertSameOccurrences(scanRunning(triggers, now), sorted(timeline.running()));
+                assertSameOccurrences(scanNext(triggers, now, 5), timeline.next(5));
+            }
+        }
+    }
+
+    @Test
+    public void runningIncludesIrrigationsStartedBeforeTheTimeline() {
+        IrrigationData trigger = new IrrigationData();
+        trigger.setStartMinute(23 * 60);
+        trigger.setDurationSeconds(2 * 3600);
+        trigger.setWeekdayMask(0x7f);
+        List<IrrigationData> triggers = Collections.singletonList(trigger);
+
+        //the irrigation of the day before runs past midnight
+        long now = (FIRST_DAY + 1) * DAY + 30 * 60;
+        IrrigationTimeline timeline = new IrrigationTimeline(triggers, now);
+
+        List<IrrigationTimeline.Occurrence> running = timeline.running();
+        assertEquals(1, running.size());
+        assertEquals(FIRST_DAY * DAY + 23 * 3600, running.get(0).getStart());
+        assertTrue(timeline.runningAt(now + 3600).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doesNotGoBackInTime() {
+        IrrigationTimeline timeline = new IrrigationTimeline(new ArrayList<IrrigationData>(), FIRST_DAY * DAY);
+        timeline.advanceTo(FIRST_DAY * DAY - 1);
+    }
+
+    /**
+     * Weekly and one time triggers, some without a start time or weekdays. Irrigations
+     * last up to three hours, less than a day so a trigger never overlaps itself.
+     * */
+    private static List<IrrigationData> randomTriggers(Random random, int count){
+        List<IrrigationData> triggers = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            IrrigationData trigger = new IrrigationData();
+            if(random.nextInt(10) > 0){
+                trigger.setStartMinute(random.nextInt(24 * 60));
+            }
+            trigger.setDurationSeconds(1 + random.nextInt(3 * 3600));
+            if(random.nextInt(4) == 0){
+                trigger.setOneTime(true);
+                trigger.setStartDay(FIRST_DAY - 2 + random.nextInt(40));
+            } else {
+                trigger.setWeekdayMask(random.nextInt(0x80));
+            }
+            triggers.add(trigger);
+        }
+        return triggers;
+    }
+
+    /**
+     * Every irrigation from the day before the first one to SCAN_DAYS later, as
+     * {index, start, end}, sorted like the timeline sorts them
+     * */
+    private static List<long[]> scan(List<IrrigationData> triggers){
+        List<long[]> occurrences = new ArrayList<>();
+        for(int i = 0; i < triggers.size(); i++){
+            IrrigationData trigger = triggers.get(i);
+            if(trigger.getStartMinute() == IrrigationData.NO_START_TIME){
+                continue;
+            }
+            for(int day = FIRST_DAY - 3; day < FIRST_DAY + SCAN_DAYS; day++){
+                boolean runs = trigger.isOneTime()
+                        ? trigger.getStartDay() == day
+                        : trigger.isWeekday(IrrigationTimeline.weekday(day));
+                if(runs){
+                    long start = day * DAY + trigger.getStartMinute() * 60L;
+                    occurrences.add(new long[]{i, start, start + trigger.getDurationSeconds()});
+                }
+            }
+        }
+        Collections.sort(occurrences, BY_START);
+        return occurrences;
+    }
+
+    private static List<long[]> scanNext(List<IrrigationData> triggers, long now, int count){
+        List<long[]> next = new ArrayList<>();
+        for(long[] occurrence : scan(triggers)){
+            if(next.size() < count && occurrence[2] > now){
+                next.add(occurrence);
+            }
+        }
+        return next;
+    }
+
+    private static List<long[]> scanRunning(List<IrrigationData> triggers, long now){
+        List<long[]> running = new ArrayList<>();
+        for(long[] occurrence : scan(triggers)){
+            if(occurrence[1] <= now && now < occurrence[2]){
+                running.add(occurrence);
+            }
+        }
+        return running;
+    }
+
+    private static List<IrrigationTimeline.Occurrence> sorted(List<IrrigationTimeline.Occurrence> occurrences){
+        List<IrrigationTimeline.Occurrence> sorted = new ArrayList<>(occurrences);
+        Collections.sort(sorted, new Comparator<IrrigationTimeline.Occurrence>() {
+            @Override
+            public int compare(IrrigationTimeline.Occurrence a, IrrigationTimeline.Occurrence b) {
+                return BY_START.compare(new long[]{a.getIndex(), a.getStart()}, new long[]{b.getIndex(), b.getStart()});
+            }
+        });
+        return sorted;
+    }
+
+    private static void assertSameOccurrences(List<long[]> expected, List<IrrigationTimeline.Occurrence> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            IrrigationTimeline.Occurrence occurrence = actual.get(i);
+            assertEquals(expected.get(i)[0], occurrence.getIndex());
+            assertEquals(expected.get(i)[1], occurrence.getStart());
+            assertEquals(expected.get(i)[2], occurrence.getEnd());
+        }
+    }
+
+    private static final Comparator<long[]> BY_START = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            if(a[1] != b[1]){
+                return a[1] < b[1] ? -1 : 1;
+            }
+            return Long.compare(a[0], b[0]);
+        }
+    };
+}
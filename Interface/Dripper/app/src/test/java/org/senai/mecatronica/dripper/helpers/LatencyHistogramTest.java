@@ -0,0 +1,108 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Log-linear buckets of the latency histogram and the percentiles read from them
+ */
+public class LatencyHistogramTest {
+
+    private static final int LAST = LatencyHistogram.BUCKET_COUNT - 1;
+
+    @Test
+    public void bucketEdges() {
+        //one bucket per value below four
+        for(int value = 0; value < 4; value++){
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.lowerBound(value));
+        }
+        assertEquals(4, LatencyHistogram.bucketOf(4));
+        assertEquals(5, LatencyHistogram.bucketOf(5));
+        assertEquals(7, LatencyHistogram.bucketOf(7));
+        //two values a bucket from eight on
+        assertEquals(8, LatencyHistogram.bucketOf(8));
+        assertEquals(8, LatencyHistogram.bucketOf(9));
+        assertEquals(9, LatencyHistogram.bucketOf(10));
+        assertEquals(8, LatencyHistogram.lowerBound(8));
+        assertEquals(10, LatencyHistogram.lowerBound(9));
+
+        int top = LatencyHistogram.bucketOf(1L << 40);
+        assertEquals(1L << 40, LatencyHistogram.lowerBound(top));
+        assertEquals(top - 1, LatencyHistogram.bucketOf((1L << 40) - 1));
+    }
+
+    @Test
+    public void everyBucketHoldsItsOwnRange() {
+        for(int bucket = 0; bucket < LAST; bucket++){
+            long low = LatencyHistogram.lowerBound(bucket);
+            long next = LatencyHistogram.lowerBound(bucket + 1);
+            assertTrue(next > low);
+            assertEquals(bucket, LatencyHistogram.bucketOf(low));
+            assertEquals(bucket, LatencyHistogram.bucketOf(next - 1));
+            //never wider than a quarter of its values
+            assertTrue(bucket < 4 || (next - low) * 4 <= low);
+        }
+    }
+
+    @Test
+    public void valuesPastTheRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1L << 45);
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        assertEquals(LAST, LatencyHistogram.bucketOf(1L << 45));
+        assertEquals(LAST, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(2, histogram.getBucketCount(LAST));
+        //negative durations count as zero
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1.0));
+        assertEquals(0, histogram.getPercentile(0.1));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketOfTheExactValues() {
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 0; i < values.length; i++){
+            //spread over several powers of two, like sync times
+            values[i] = (long) Math.exp(4 + random.nextGaussian() * 2);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for(double fraction : new double[]{0.5, 0.9, 0.99, 0.999}){
+            long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            long reported = histogram.getPercentile(fraction);
+            int bucket = LatencyHistogram.bucketOf(exact);
+            long width = LatencyHistogram.lowerBound(bucket + 1) - LatencyHistogram.lowerBound(bucket);
+            //rounded up to the end of the bucket, never below
+            assertTrue(fraction + ": " + reported + " for " + exact, reported >= exact && reported - exact < width);
+        }
+    }
+
+    @Test
+    public void emptyAndResetHistogramsReportZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getMean());
+
+        histogram.record(1000);
+        histogram.record(3000);
+        assertEquals(2000, histogram.getMean());
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getBucketCount(LatencyHistogram.bucketOf(1000)));
+    }
+}
@@ -0,0 +1,141 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.IrrigationData;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Conflicts across the end of the week and between one time triggers
+ */
+public class ScheduleConflictsTest {
+
+    private static final int SUNDAY = 0x01;
+    private static final int SATURDAY = 0x40;
+    //a Sunday
+    private static final int DAY = 17482;
+    private static final long NOW = (DAY - 1) * IrrigationTimeline.SECONDS_PER_DAY;
+
+    @Test
+    public void saturdayNightRunsIntoSundayMorning() {
+        List<IrrigationData> triggers = Arrays.asList(
+                weekly(SATURDAY, 23 * 60, 2 * 3600),
+                weekly(SUNDAY, 30, 600));
+
+        List<ScheduleConflicts.Conflict> conflicts = ScheduleConflicts.find(triggers, NOW);
+
+        assertEquals(1, conflicts.size());
+        ScheduleConflicts.Conflict conflict = conflicts.get(0);
+        assertEquals(0, conflict.getFirst());
+        assertEquals(1, conflict.getSecond());
+        //found where the Sunday trigger starts, in the part carried over to the week's start
+        assertEquals(0, conflict.getWeekday());
+        assertEquals(30, conflict.getStartMinute());
+    }
+
+    @Test
+    public void endingAtMidnightDoesNotConflictWithSunday() {
+        List<IrrigationData> triggers = Arrays.asList(
+                weekly(SATURDAY, 23 * 60, 3600),
+                weekly(SUNDAY, 0, 600));
+
+        assertTrue(ScheduleConflicts.find(triggers, NOW).isEmpty());
+    }
+
+    @Test
+    public void oneTimeTriggersOnTheSameWeekdayOfOtherWeeksDoNotConflict() {
+        List<IrrigationData> triggers = Arrays.asList(
+                oneTime(DAY, 8 * 60, 3600),
+                oneTime(DAY + 7, 8 * 60, 3600));
+
+        assertTrue(ScheduleConflicts.find(triggers, NOW).isEmpty());
+    }
+
+    @Test
+    public void overlappingOneTimeTriggersConflict() {
+        List<IrrigationData> triggers = Arrays.asList(
+                oneTime(DAY, 8 * 60, 3600),
+                oneTime(DAY, 8 * 60 + 59, 60),
+                oneTime(DAY, 9 * 60, 60));
+
+        List<ScheduleConflicts.Conflict> conflicts = ScheduleConflicts.find(triggers, NOW);
+
+        //the third starts as the first ends
+        assertEquals(1, conflicts.size());
+        assertEquals(0, conflicts.get(0).getFirst());
+        assertEquals(1, conflicts.get(0).getSecond());
+    }
+
+    @Test
+    public void oneTimeTriggersConflictAcrossTheEndOfTheWeek() {
+        //Saturday night into the following Sunday, and a week later
+        List<IrrigationData> triggers = Arrays.asList(
+                oneTime(DAY - 1, 23 * 60, 2 * 3600),
+                oneTime(DAY, 30, 600),
+                oneTime(DAY + 7, 30, 600));
+
+        List<ScheduleConflicts.Conflict> conflicts = ScheduleConflicts.find(triggers, NOW);
+
+        assertEquals(1, conflicts.size());
+        assertEquals(0, conflicts.get(0).getFirst());
+        assertEquals(1, conflicts.get(0).getSecond());
+    }
+
+    @Test
+    public void oneTimeTriggerConflictsWithTheWeeklyOnesOfItsWeekday() {
+        List<IrrigationData> triggers = Arrays.asList(
+                weekly(SUNDAY, 8 * 60, 3600),
+                oneTime(DAY + 14, 8 * 60 + 30, 600),
+                oneTime(DAY + 15, 8 * 60 + 30, 600));
+
+        List<ScheduleConflicts.Conflict> conflicts = ScheduleConflicts.find(triggers, NOW);
+
+        assertEquals(1, conflicts.size());
+        assertEquals(0, conflicts.get(0).getFirst());
+        assertEquals(1, conflicts.get(0).getSecond());
+    }
+
+    @Test
+    public void finishedOneTimeTriggersAreLeftOut() {
+        List<IrrigationData> triggers = Arrays.asList(
+                weekly(SUNDAY, 8 * 60, 3600),
+                oneTime(DAY - 7, 8 * 60, 3600));
+
+        assertTrue(ScheduleConflicts.find(triggers, NOW).isEmpty());
+    }
+
+    @Test
+    public void findForChecksTheChangedTrigger() {
+        List<IrrigationData> triggers = Arrays.asList(
+                weekly(SATURDAY, 23 * 60, 2 * 3600),
+                weekly(SUNDAY, 30, 600),
+                weekly(SUNDAY, 12 * 60, 600));
+
+        //moving the last one into Sunday morning, the pair already in conflict is not its own
+        assertEquals(Arrays.asList(0, 1),
+                ScheduleConflicts.findFor(triggers, weekly(SUNDAY, 0, 3600), 2, NOW));
+        assertEquals(Collections.singletonList(2),
+                ScheduleConflicts.findFor(triggers, weekly(SUNDAY, 12 * 60 + 5, 60), -1, NOW));
+    }
+
+    private static IrrigationData weekly(int weekdays, int startMinute, int durationSeconds){
+        IrrigationData trigger = new IrrigationData();
+        trigger.setWeekdayMask(weekdays);
+        trigger.setStartMinute(startMinute);
+        trigger.setDurationSeconds(durationSeconds);
+        return trigger;
+    }
+
+    private static IrrigationData oneTime(int day, int startMinute, int durationSeconds){
+        IrrigationData trigger = new IrrigationData();
+        trigger.setOneTime(true);
+        trigger.setStartDay(day);
+        trigger.setStartMinute(startMinute);
+        trigger.setDurationSeconds(durationSeconds);
+        return trigger;
+    }
+}
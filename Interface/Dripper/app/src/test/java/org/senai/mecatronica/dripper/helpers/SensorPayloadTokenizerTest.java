@@ -0,0 +1,190 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Payloads as the controller sends them, the Python representation of the lines of its
+ * JSON file, parsed into readings.
+ */
+public class SensorPayloadTokenizerTest {
+
+    private static final long RECEIVED_AT = 1500000000000L;
+
+    private File file;
+    private SensorRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("registry", "");
+        file.delete();
+        registry = new SensorRegistry(file);
+    }
+
+    @After
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Test
+    public void parsesTheWrappedPayload() throws Exception {
+        String payload = "['{\\n', '\\t\"numberOfLogs\":1,\\n', '\\t\"logs\":\\n', '\\t[\\n', '\\t\\t{\\n', "
+                + "'\\t\\t\\t\"date\":\"12/11/2017\",\\n', '\\t\\t\\t\"time\":\"06:11:30\",\\n', "
+                + "'\\t\\t\\t\"sensors\":\\n', '\\t\\t\\t[\\n', "
+                + "'\\t\\t\\t\\t{\"name\":\"Temperature\", \"data\":22, \"unit\":\"°C\"},\\n', "
+                + "'\\t\\t\\t\\t{\"name\":\"Moisture\", \"data\":35, \"unit\":\"%\"},\\n', "
+                + "'\\t\\t\\t\\t{\"name\":\"Luminosity\", \"data\":Day, \"unit\":\"Lux\"},\\n', "
+                + "'\\t\\t\\t\\t{\"name\":\"Soil Moisture\", \"data\":\"Low\", \"unit\":\"\"}\\n', "
+                + "'\\t\\t\\t]\\n', '\\t\\t},{}\\n', '\\t]\\n', '}\\n']";
+        List<SensorReading> readings = parse(payload);
+
+        assertEquals(1, readings.size());
+        SensorReading reading = readings.get(0);
+        assertEquals(localTime(2017, 11, 12, 6, 11, 30), reading.getTimestamp());
+        assertEquals(22, reading.getNumber(SensorRegistry.TEMPERATURE), 0);
+        assertEquals(35, reading.getNumber(SensorRegistry.MOISTURE), 0);
+        assertEquals("Day", registry.getLabel(reading.getLabelCode(SensorRegistry.LUMINOSITY)));
+        assertEquals("Low", registry.getLabel(reading.getLabelCode(SensorRegistry.SOIL_MOISTURE)));
+    }
+
+    @Test
+    public void parsesDecimals() throws Exception {
+        List<SensorReading> readings = parse(log("\"12/11/17\"", "\"06:11\"",
+                sensor("Temperature", "22.75") + ", " + sensor("Moisture", "-0.5") + ", " + sensor("Moisture", "+7.")));
+
+        assertEquals(1, readings.size());
+        assertEquals(22.75, readings.get(0).getNumber(SensorRegistry.TEMPERATURE), 1e-9);
+        //the last value of a sensor in a log wins
+        assertEquals(7, readings.get(0).getNumber(SensorRegistry.MOISTURE), 1e-9);
+        //two digit years and times without seconds
+        assertEquals(localTime(2017, 11, 12, 6, 11, 0), readings.get(0).getTimestamp());
+    }
+
+    @Test
+    public void leavesOutValuesThatAreNotNumbers() throws Exception {
+        List<SensorReading> readings = parse(log("\"12/11/2017\"", "\"06:11:00\"",
+                sensor("Temperature", "N/A") + ", " + sensor("Moisture", "\"N/A\"") + ", " + sensor("Soil Moisture", "N/A")));
+
+        assertEquals(1, readings.size());
+        SensorReading reading = readings.get(0);
+        //a failed probe of a number sensor is no value, a label sensor keeps the word
+        assertFalse(reading.hasValue(SensorRegistry.TEMPERATURE));
+        assertFalse(reading.hasValue(SensorRegistry.MOISTURE));
+        assertEquals("N/A", registry.getLabel(reading.getLabelCode(SensorRegistry.SOIL_MOISTURE)));
+    }
+
+    @Test
+    public void dropsLogsWithoutValues() throws Exception {
+        List<SensorReading> readings = parse("{\"logs\":[" + logObject("\"12/11/2017\"", "\"06:11:00\"", sensor("Temperature", "N/A"))
+                + ", {\"date\":\"12/11/2017\", \"sensors\":[]}, {}]}");
+
+        assertTrue(readings.isEmpty());
+    }
+
+    @Test
+    public void registersNewSensorsByTheirFirstValue() throws Exception {
+        List<SensorReading> readings = parse(log("\"12/11/2017\"", "\"06:11:00\"",
+                sensor("Rain", "1.5") + ", " + sensor("Wind", "Strong")));
+
+        int rain = registry.findSensor("Rain", 0, 4);
+        int wind = registry.findSensor("Wind", 0, 4);
+        assertEquals(SensorRegistry.KIND_NUMBER, registry.getKind(rain));
+        assertEquals(SensorRegistry.KIND_LABEL, registry.getKind(wind));
+        assertEquals(1.5, readings.get(0).getNumber(rain), 0);
+        assertEquals("Strong", registry.getLabel(readings.get(0).getLabelCode(wind)));
+    }
+
+    @Test
+    public void stampsLogsWithoutDateOrTimeWithTheReceivingTime() throws Exception {
+        String payload = "{\"logs\":["
+                + logObject(null, null, sensor("Temperature", "20")) + ", "
+                + logObject(null, "\"06:11:00\"", sensor("Temperature", "21")) + ", "
+                + logObject("\"12/11/2017\"", null, sensor("Temperature", "22")) + "]}";
+        List<SensorReading> readings = parse(payload);
+
+        assertEquals(3, readings.size());
+        //a time alone is not enough to place a log, a second apart without an interval
+        assertEquals(RECEIVED_AT - 1000, readings.get(0).getTimestamp());
+        assertEquals(RECEIVED_AT, readings.get(1).getTimestamp());
+        //a date alone is its midnight
+        assertEquals(localTime(2017, 11, 12, 0, 0, 0), readings.get(2).getTimestamp());
+    }
+
+    @Test
+    public void spacesLogsWithoutDateByTheLogInterval() throws Exception {
+        //the interval may come after the logs
+        String payload = "{\"logs\":["
+                + logObject(null, null, sensor("Temperature", "20")) + ", "
+                + logObject("\"12/11/2017\"", "\"06:11:00\"", sensor("Temperature", "21")) + ", "
+                + logObject(null, null, sensor("Temperature", "22")) + ", "
+                + logObject(null, null, sensor("Temperature", "23")) + "], \"logFrequency\":60}";
+        List<SensorReading> readings = parse(payload);
+
+        assertEquals(4, readings.size());
+        assertEquals(RECEIVED_AT - 120000, readings.get(0).getTimestamp());
+        assertEquals(RECEIVED_AT - 60000, readings.get(2).getTimestamp());
+        assertEquals(RECEIVED_AT, readings.get(3).getTimestamp());
+        assertEquals(localTime(2017, 11, 12, 6, 11, 0), readings.get(1).getTimestamp());
+    }
+
+    @Test
+    public void keepsTheOrderSent() throws Exception {
+        String payload = "{\"logs\":["
+                + logObject("\"13/11/2017\"", "\"06:00:00\"", sensor("Temperature", "1")) + ", "
+                + logObject("\"12/11/2017\"", "\"06:00:00\"", sensor("Temperature", "2")) + "]}";
+        List<SensorReading> readings = parse(payload);
+
+        assertEquals(1, readings.get(0).getNumber(SensorRegistry.TEMPERATURE), 0);
+        assertEquals(2, readings.get(1).getNumber(SensorRegistry.TEMPERATURE), 0);
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsAPayloadWithoutAnObject() throws Exception {
+        parse("['\\n']");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsATruncatedPayload() throws Exception {
+        parse("{\"logs\":[{\"date\":\"12/11/2017\", \"sensors\":[{\"name\":\"Temperature\", \"data\":2");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsAnInvalidDate() throws Exception {
+        parse(log("\"12-11-2017\"", "\"06:11:00\"", sensor("Temperature", "20")));
+    }
+
+    private List<SensorReading> parse(String payload) throws ParseException{
+        return new SensorPayloadTokenizer(payload, RECEIVED_AT, registry).parse();
+    }
+
+    private static String log(String date, String time, String sensors){
+        return "{\"numberOfLogs\":1, \"logs\":[" + logObject(date, time, sensors) + "]}";
+    }
+
+    private static String logObject(String date, String time, String sensors){
+        return "{" + (date == null ? "" : "\"date\":" + date + ", ")
+                + (time == null ? "" : "\"time\":" + time + ", ")
+                + "\"sensors\":[" + sensors + "]}";
+    }
+
+    private static String sensor(String name, String data){
+        return "{\"name\":\"" + name + "\", \"data\":" + data + ", \"unit\":\"\"}";
+    }
+
+    private static long localTime(int year, int month, int day, int hour, int minute, int second){
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,116 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Blocking reads through the transport's pump: hangups, interrupts and bytes read ahead
+ */
+public class TcpTransportTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ServerSocket server;
+    private Transport transport;
+    private Socket controller;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        transport = new TcpTransport("127.0.0.1", server.getLocalPort());
+        transport.open(TIMEOUT_MS);
+        controller = server.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        controller.close();
+        server.close();
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void hangupEndsAWaitingReadAtOnce() throws Exception {
+        hangUpAfter(new byte[]{1, 2, 3}, 100);
+
+        byte[] buffer = new byte[16];
+        assertEquals(3, transport.read(buffer, 0, buffer.length, 0));
+        assertEquals(3, buffer[2]);
+        assertEquals(-1, transport.read(buffer, 0, buffer.length, 0));
+        //and on every read after it
+        assertEquals(-1, transport.read(buffer, 0, buffer.length, 0));
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void interruptStopsAWaitingReadAndKeepsTheConnection() throws Exception {
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    transport.read(new byte[16], 0, 16, 0);
+                } catch (IOException e){
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        reader.interrupt();
+        reader.join();
+        assertTrue(failure.get() instanceof InterruptedIOException);
+
+        //the next sync reads on the same connection
+        OutputStream out = controller.getOutputStream();
+        out.write(new byte[]{7, 8});
+        out.flush();
+        byte[] buffer = new byte[16];
+        int length = 0;
+        while(length < 2){
+            length += transport.read(buffer, length, buffer.length - length, TIMEOUT_MS);
+        }
+        assertEquals(7, buffer[0]);
+        assertEquals(8, buffer[1]);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void bytesReadAheadAreAvailable() throws Exception {
+        OutputStream out = controller.getOutputStream();
+        out.write(new byte[1500]);
+        out.flush();
+        while(transport.available() < 1500){
+            Thread.sleep(1);
+        }
+
+        //smaller reads than the pump's, the rest stays queued in order
+        assertEquals(100, transport.read(new byte[100], 0, 100, TIMEOUT_MS));
+        assertEquals(1400, transport.available());
+    }
+
+    private void hangUpAfter(final byte[] data, final long delayMs){
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    Thread.sleep(delayMs);
+                    controller.getOutputStream().write(data);
+                    controller.close();
+                } catch (IOException | InterruptedException e){
+                    //the test fails on what it reads
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
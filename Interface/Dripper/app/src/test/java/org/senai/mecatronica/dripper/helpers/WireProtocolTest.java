@@ -0,0 +1,147 @@
+package org.senai.mecatronica.dripper.helpers;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The handshake and the field encoding of the binary sync
+ */
+public class WireProtocolTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void helloOffersTheHighestVersion(){
+        byte[] hello = WireProtocol.hello();
+        assertEquals("DRP/" + WireProtocol.MAX_VERSION + "#", new String(hello, UTF_8));
+        assertEquals(WireProtocol.MAX_VERSION, WireProtocol.acceptHello(hello, hello.length));
+    }
+
+    @Test
+    public void controllerAnswersWithTheVersionItSpeaks(){
+        byte[] older = "DRP/9#".getBytes(UTF_8);
+        //a newer phone gets the controller's highest version
+        assertEquals(WireProtocol.MAX_VERSION, WireProtocol.acceptHello(older, older.length));
+        byte[] older3 = "DRP/3#".getBytes(UTF_8);
+        assertEquals(3, WireProtocol.acceptHello(older3, older3.length));
+        byte[] data = "{\"auto\":false}#".getBytes(UTF_8);
+        assertEquals(0, WireProtocol.acceptHello(data, data.length));
+    }
+
+    @Test
+    public void phoneReadsTheNegotiatedVersion(){
+        for(int version = WireProtocol.VERSION_BINARY; version <= WireProtocol.MAX_VERSION; version++){
+            byte[] reply = WireProtocol.helloReply(version);
+            assertEquals(WireProtocol.HELLO_REPLY_LENGTH, reply.length);
+            assertEquals(version, WireProtocol.negotiatedVersion(reply, reply.length));
+        }
+    }
+
+    @Test
+    public void phoneWaitsForTheWholeReply(){
+        byte[] reply = WireProtocol.helloReply(WireProtocol.VERSION_PERSISTENT);
+        for(int length = 0; length < reply.length; length++){
+            assertEquals(0, WireProtocol.negotiatedVersion(reply, length));
+        }
+    }
+
+    @Test
+    public void oldControllersFallBackToJson(){
+        byte[] json = "['{\\n', '\\t\"logs\":[]\\n', '}']#".getBytes(UTF_8);
+        assertEquals(WireProtocol.VERSION_JSON, WireProtocol.negotiatedVersion(json, 1));
+        assertEquals(WireProtocol.VERSION_JSON, WireProtocol.negotiatedVersion(json, json.length));
+        byte[] unknown = "DRP/0".getBytes(UTF_8);
+        assertEquals(WireProtocol.VERSION_JSON, WireProtocol.negotiatedVersion(unknown, unknown.length));
+    }
+
+    @Test
+    public void varintsRoundTrip() throws ParseException {
+        long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        WireProtocol.Writer writer = new WireProtocol.Writer((byte) 0x7F);
+        for(long value : values){
+            writer.writeVarint(value).writeSignedVarint(value);
+        }
+        WireProtocol.Reader reader = new WireProtocol.Reader(writer.toMessage());
+        assertEquals(0x7F, reader.readByte());
+        for(long value : values){
+            assertEquals(value, reader.readVarint());
+            assertEquals(value, reader.readSignedVarint());
+        }
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    public void varintsTakeSevenBitsPerByte(){
+        assertEquals(1, new WireProtocol.Writer().writeVarint(127).toMessage().length);
+        assertEquals(2, new WireProtocol.Writer().writeVarint(128).toMessage().length);
+        assertEquals(10, new WireProtocol.Writer().writeVarint(-1).toMessage().length);
+        //small negative numbers stay small
+        assertEquals(1, new WireProtocol.Writer().writeSignedVarint(-64).toMessage().length);
+    }
+
+    @Test
+    public void randomFieldsRoundTrip() throws ParseException {
+        Random random = new Random(42);
+        for(int round = 0; round < 200; round++){
+            long number = random.nextLong() >> random.nextInt(64);
+            String text = randomString(random);
+            byte[] bytes = new byte[random.nextInt(300)];
+            random.nextBytes(bytes);
+
+            byte[] message = new WireProtocol.Writer(WireProtocol.MESSAGE_LOGS)
+                    .writeSignedVarint(number).writeString(text).writeVarint(bytes.length).writeBytes(bytes)
+                    .writeByte(0xFF).toMessage();
+
+            WireProtocol.Reader reader = new WireProtocol.Reader(message);
+            assertEquals(WireProtocol.MESSAGE_LOGS, reader.readByte());
+            assertEquals(number, reader.readSignedVarint());
+            assertEquals(text, reader.readString());
+            assertArrayEquals(bytes, reader.readBytes(reader.readInt()));
+            assertEquals(0xFF, reader.readByte());
+            assertFalse(reader.hasRemaining());
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void truncatedMessagesAreRejected() throws ParseException {
+        byte[] message = new WireProtocol.Writer().writeString("Temperature").toMessage();
+        byte[] truncated = new byte[message.length - 1];
+        System.arraycopy(message, 0, truncated, 0, truncated.length);
+        new WireProtocol.Reader(truncated).readString();
+    }
+
+    @Test(expected = ParseException.class)
+    public void overlongVarintsAreRejected() throws ParseException {
+        byte[] message = new byte[11];
+        Arrays.fill(message, (byte) 0x80);
+        new WireProtocol.Reader(message).readVarint();
+    }
+
+    @Test(expected = ParseException.class)
+    public void intsOutOfRangeAreRejected() throws ParseException {
+        new WireProtocol.Reader(new WireProtocol.Writer().writeVarint(1L << 31).toMessage()).readInt();
+    }
+
+    private static String randomString(Random random){
+        StringBuilder builder = new StringBuilder();
+        int length = random.nextInt(40);
+        for(int i = 0; i < length; i++){
+            //ASCII, accented letters and symbols outside the BMP
+            int kind = random.nextInt(3);
+            if(kind == 0){
+                builder.append((char) (' ' + random.nextInt(95)));
+            } else if(kind == 1){
+                builder.append((char) (0xC0 + random.nextInt(64)));
+            } else {
+                builder.appendCodePoint(0x1F300 + random.nextInt(200));
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.SensorPayloadTokenizer;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * What DataManager does to the readings of a payload before they are stored
+ */
+public class DataManagerTest {
+
+    //after the dated log of the payloads
+    private static final long RECEIVED_AT = 1600000000000L;
+
+    private File file;
+    private SensorRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("registry", "");
+        file.delete();
+        registry = new SensorRegistry(file);
+    }
+
+    @After
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Test
+    public void sortsReadingsByTime(){
+        List<SensorReading> readings = DataManager.sortAndMerge(new ArrayList<>(Arrays.asList(
+                reading(3000, 1), reading(1000, 2), reading(2000, 3))));
+
+        assertEquals(3, readings.size());
+        assertEquals(1000, readings.get(0).getTimestamp());
+        assertEquals(2000, readings.get(1).getTimestamp());
+        assertEquals(3000, readings.get(2).getTimestamp());
+    }
+
+    @Test
+    public void mergesRepeatedTimestampsIntoTheLastOneSent(){
+        List<SensorReading> readings = DataManager.sortAndMerge(new ArrayList<>(Arrays.asList(
+                reading(2000, 1), reading(1000, 2), reading(2000, 3), reading(1000, 4))));
+
+        assertEquals(2, readings.size());
+        assertEquals(4, readings.get(0).getNumber(SensorRegistry.TEMPERATURE), 0);
+        assertEquals(3, readings.get(1).getNumber(SensorRegistry.TEMPERATURE), 0);
+    }
+
+    @Test
+    public void keepsEveryLogWithoutDateOrTime() throws Exception {
+        //logs with no date and time are placed a log interval apart up to the time they
+        //were received at, none of them replaces another
+        String payload = "{\"logFrequency\":60, \"logs\":["
+                + "{\"sensors\":[{\"name\":\"Temperature\", \"data\":20}]}, "
+                + "{\"date\":\"12/11/2017\", \"time\":\"06:11:00\", \"sensors\":[{\"name\":\"Temperature\", \"data\":21}]}, "
+                + "{\"sensors\":[{\"name\":\"Temperature\", \"data\":22}]}]}";
+        List<SensorReading> readings = DataManager.sortAndMerge(
+                new SensorPayloadTokenizer(payload, RECEIVED_AT, registry).parse());
+
+        assertEquals(3, readings.size());
+        assertEquals(21, readings.get(0).getNumber(SensorRegistry.TEMPERATURE), 0);
+        assertEquals(RECEIVED_AT - 60000, readings.get(1).getTimestamp());
+        assertEquals(20, readings.get(1).getNumber(SensorRegistry.TEMPERATURE), 0);
+        assertEquals(RECEIVED_AT, readings.get(2).getTimestamp());
+        assertEquals(22, readings.get(2).getNumber(SensorRegistry.TEMPERATURE), 0);
+    }
+
+    private static SensorReading reading(long timestamp, double temperature){
+        SensorReading reading = new SensorReading(timestamp);
+        reading.setNumber(SensorRegistry.TEMPERATURE, temperature);
+        return reading;
+    }
+}
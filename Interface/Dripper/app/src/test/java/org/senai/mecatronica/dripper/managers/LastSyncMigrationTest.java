@@ -0,0 +1,70 @@
+package org.senai.mecatronica.dripper.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.senai.mecatronica.dripper.BuildConfig;
+import org.senai.mecatronica.dripper.beans.EpochMillis;
+import org.senai.mecatronica.dripper.helpers.TimeFormats;
+
+import static org.junit.Assert.*;
+
+/**
+ * The last sync as older versions stored it, text in the shared preferences
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class LastSyncMigrationTest {
+
+    //the keys as stored on phones, old and new
+    private static final String LAST_SYNC = "lastSync";
+    private static final String LAST_SYNC_TIME = "lastSyncTime";
+
+    private SharedPreferences preferences;
+
+    @Before
+    public void setUp(){
+        preferences = RuntimeEnvironment.application.getSharedPreferences("lastSyncTest", Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+    }
+
+    @Test
+    public void textIsKeptAsANumber(){
+        //the text has no seconds
+        EpochMillis time = EpochMillis.of(1510473600000L);
+        String text = TimeFormats.formatDateTime(time);
+        preferences.edit().putString(LAST_SYNC, text).commit();
+
+        DataManager.migrateLastSync(preferences);
+
+        assertFalse(preferences.contains(LAST_SYNC));
+        assertEquals(TimeFormats.parseDateTime(text).getValue(), preferences.getLong(LAST_SYNC_TIME, 0));
+        assertEquals(text, TimeFormats.formatDateTime(EpochMillis.of(preferences.getLong(LAST_SYNC_TIME, 0))));
+    }
+
+    @Test
+    public void unreadableTextIsDropped(){
+        preferences.edit().putString(LAST_SYNC, "yesterday").commit();
+
+        DataManager.migrateLastSync(preferences);
+
+        assertFalse(preferences.contains(LAST_SYNC));
+        assertFalse(preferences.contains(LAST_SYNC_TIME));
+    }
+
+    @Test
+    public void unreadableTextKeepsANewerTime(){
+        preferences.edit().putString(LAST_SYNC, "yesterday").putLong(LAST_SYNC_TIME, 1510473600000L).commit();
+
+        DataManager.migrateLastSync(preferences);
+
+        assertFalse(preferences.contains(LAST_SYNC));
+        assertEquals(1510473600000L, preferences.getLong(LAST_SYNC_TIME, 0));
+    }
+}
@@ -0,0 +1,122 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalesced, flushed and failed writes of the database files
+ */
+public class PersistenceExecutorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long WINDOW_MS = 100;
+
+    private File dir;
+    private File target;
+    //what the tasks wrote, in the order they ran
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("persistence", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        target = new File(dir, "irrigation.json");
+    }
+
+    @After
+    public void tearDown(){
+        for(File file : dir.listFiles()){
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesWithinTheWindowAreOneWrite() throws Exception {
+        PersistenceExecutor executor = new PersistenceExecutor(WINDOW_MS);
+        for(int i = 0; i < 5; i++){
+            executor.schedule(target, task("snapshot " + i));
+        }
+
+        Thread.sleep(WINDOW_MS * 5);
+
+        assertEquals(Collections.singletonList("snapshot 4"), written);
+        assertEquals("snapshot 4", read(target));
+    }
+
+    @Test
+    public void flushWritesPendingDataAtOnce() throws Exception {
+        PersistenceExecutor executor = new PersistenceExecutor(60000);
+        File other = new File(dir, "other.json");
+        executor.schedule(target, task("schedule"));
+        executor.schedule(other, task("other"));
+
+        executor.flush(5000);
+
+        assertEquals("schedule", read(target));
+        assertEquals("other", read(other));
+        assertEquals(2, written.size());
+        //nothing is left to write a second time
+        executor.flush(5000);
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void failedWriteKeepsThePreviousFile() throws Exception {
+        PersistenceExecutor executor = new PersistenceExecutor(60000);
+        executor.schedule(target, task("old"));
+        executor.flush(5000);
+
+        executor.schedule(target, new PersistenceExecutor.FileWriterTask() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write("half of the new".getBytes(UTF_8));
+                throw new IOException("Disk full");
+            }
+        });
+        executor.flush(5000);
+
+        assertEquals("old", read(target));
+        //and the next write goes through
+        executor.schedule(target, task("new"));
+        executor.flush(5000);
+        assertEquals("new", read(target));
+    }
+
+    private PersistenceExecutor.FileWriterTask task(final String content){
+        return new PersistenceExecutor.FileWriterTask() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                written.add(content);
+                out.write(content.getBytes(UTF_8));
+            }
+        };
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try{
+            byte[] data = new byte[(int) file.length()];
+            int length = 0;
+            while(length < data.length){
+                length += in.read(data, length, data.length - length);
+            }
+            return new String(data, UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
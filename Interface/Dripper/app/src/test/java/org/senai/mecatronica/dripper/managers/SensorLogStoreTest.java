@@ -0,0 +1,225 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.senai.mecatronica.dripper.beans.SensorReading;
+import org.senai.mecatronica.dripper.helpers.SensorRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segments of the sensor log on disk: appends, reopening, rollbacks and range queries
+ */
+public class SensorLogStoreTest {
+
+    //a segment holds this many records
+    private static final int SEGMENT_RECORDS = 4096;
+
+    private File dir;
+    private SensorLogStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("sensorlog", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        store = new SensorLogStore(dir);
+    }
+
+    @After
+    public void tearDown(){
+        delete(dir);
+    }
+
+    @Test
+    public void readingsRoundTrip() throws Exception {
+        int low = store.getRegistry().labelCode("Low", 0, 3);
+        SensorReading reading = new SensorReading(1000);
+        reading.setNumber(SensorRegistry.TEMPERATURE, 22.3);
+        reading.setLabelCode(SensorRegistry.SOIL_MOISTURE, low);
+        SensorReading empty = new SensorReading(2000);
+
+        assertEquals(2, store.append(list(reading, empty)));
+
+        for(SensorLogStore opened : new SensorLogStore[]{store, new SensorLogStore(dir)}){
+            List<SensorReading> stored = opened.readRange(Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(2, stored.size());
+            assertEquals(22.3, stored.get(0).getNumber(SensorRegistry.TEMPERATURE), 0);
+            assertEquals(low, stored.get(0).getLabelCode(SensorRegistry.SOIL_MOISTURE));
+            assertFalse(stored.get(0).hasValue(SensorRegistry.MOISTURE));
+            assertFalse(stored.get(1).hasValue(SensorRegistry.TEMPERATURE));
+            assertEquals(2000, opened.getLastReading().getTimestamp());
+            assertEquals("Low", opened.getRegistry().getLabel(low));
+        }
+    }
+
+    @Test
+    public void olderReadingsAreSkipped() throws Exception {
+        store.append(readings(0, 10, 1000));
+
+        assertEquals(1, store.append(list(reading(5000), reading(9000), reading(10000))));
+        assertEquals(11, store.getRecordCount());
+    }
+
+    @Test
+    public void reopenDropsATruncatedTail() throws Exception {
+        store.append(readings(0, 100, 1000));
+        File segment = segmentFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try{
+            //the last record only half written
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        SensorLogStore reopened = new SensorLogStore(dir);
+
+        assertEquals(99, reopened.getRecordCount());
+        assertEquals(98 * 1000, reopened.getLastReading().getTimestamp());
+        //appends go on after the last whole record
+        assertEquals(1, reopened.append(reading(99 * 1000)));
+        assertTimestamps(new SensorLogStore(dir).readRange(Long.MIN_VALUE, Long.MAX_VALUE), 0, 100, 1000);
+    }
+
+    @Test
+    public void failedBatchIsRolledBack() throws Exception {
+        store.append(readings(0, SEGMENT_RECORDS - 100, 1000));
+        long segmentLength = segmentFiles()[0].length();
+        //the next segment cannot be created where its file should go
+        long blocked = (long) SEGMENT_RECORDS * 1000;
+        File blocker = new File(dir, String.format(Locale.US, "%019d", blocked) + ".seg");
+        assertTrue(blocker.mkdir());
+
+        try{
+            store.append(readings(SEGMENT_RECORDS - 100, 200, 1000));
+            fail("Append into a blocked segment");
+        } catch (IOException e){
+            //expected
+        }
+
+        assertEquals(SEGMENT_RECORDS - 100, store.getRecordCount());
+        assertEquals((SEGMENT_RECORDS - 101) * 1000L, store.getLastReading().getTimestamp());
+        assertEquals(segmentLength, segmentFiles()[0].length());
+        //the same readings go through once the segment can be created
+        assertTrue(blocker.delete());
+        assertEquals(200, store.append(readings(SEGMENT_RECORDS - 100, 200, 1000)));
+        assertTimestamps(new SensorLogStore(dir).readRange(Long.MIN_VALUE, Long.MAX_VALUE), 0, SEGMENT_RECORDS + 100, 1000);
+    }
+
+    @Test
+    public void rangeQueriesSpanSegments() throws Exception {
+        int count = 2 * SEGMENT_RECORDS + 500;
+        store.append(readings(0, count, 10));
+        assertEquals(3, segmentFiles().length);
+
+        for(SensorLogStore opened : new SensorLogStore[]{store, new SensorLogStore(dir)}){
+            //from the middle of the first segment to the middle of the last
+            assertTimestamps(opened.readRange(1000 * 10 + 5, (2 * SEGMENT_RECORDS + 100) * 10), 1001,
+                    2 * SEGMENT_RECORDS + 100 - 1000, 10);
+            //on segment boundaries
+            assertTimestamps(opened.readRange(SEGMENT_RECORDS * 10, SEGMENT_RECORDS * 10), SEGMENT_RECORDS, 1, 10);
+            assertTimestamps(opened.readRange((SEGMENT_RECORDS - 1) * 10, (SEGMENT_RECORDS + 1) * 10), SEGMENT_RECORDS - 1, 3, 10);
+            assertTrue(opened.readRange(count * 10, Long.MAX_VALUE).isEmpty());
+        }
+    }
+
+    @Test
+    public void newSensorStartsASegmentWithMoreColumns() throws Exception {
+        SensorRegistry registry = store.getRegistry();
+        store.append(readings(0, 10, 1000));
+        int rain = registry.register("Rain", "mm", SensorRegistry.KIND_NUMBER);
+        SensorReading wet = reading(10000);
+        wet.setNumber(rain, 1.5);
+        store.append(list(wet, reading(11000)));
+
+        assertEquals(2, segmentFiles().length);
+        SensorLogStore reopened = new SensorLogStore(dir);
+        assertEquals(rain, reopened.getRegistry().findSensor("Rain", 0, 4));
+        List<SensorReading> stored = reopened.readRange(9000, 11000);
+        assertEquals(3, stored.size());
+        assertFalse(stored.get(0).hasValue(rain));
+        assertEquals(1.5, stored.get(1).getNumber(rain), 0);
+        assertFalse(stored.get(2).hasValue(rain));
+        assertEquals(9, stored.get(0).getNumber(SensorRegistry.TEMPERATURE), 0);
+    }
+
+    @Test
+    public void negativeTimestampsKeepTheirOrder() throws Exception {
+        //before 1970, each with a new sensor that starts a segment
+        for(int i = 0; i < 3; i++){
+            store.getRegistry().register("Probe " + i, "", SensorRegistry.KIND_NUMBER);
+            SensorReading reading = reading((i - 3) * 1000000L);
+            reading.setNumber(store.getRegistry().getSensorCount() - 1, i);
+            store.append(reading);
+        }
+        store.append(reading(5));
+        assertEquals(3, segmentFiles().length);
+
+        List<SensorReading> stored = new SensorLogStore(dir).readRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertEquals(4, stored.size());
+        assertEquals(-3000000, stored.get(0).getTimestamp());
+        assertEquals(-2000000, stored.get(1).getTimestamp());
+        assertEquals(-1000000, stored.get(2).getTimestamp());
+        assertEquals(5, stored.get(3).getTimestamp());
+        assertEquals(5, new SensorLogStore(dir).getLastReading().getTimestamp());
+    }
+
+    private File[] segmentFiles(){
+        File[] files = dir.listFiles();
+        List<File> segments = new ArrayList<>();
+        for(File file : files){
+            if(file.getName().endsWith(".seg") && file.isFile()){
+                segments.add(file);
+            }
+        }
+        return segments.toArray(new File[segments.size()]);
+    }
+
+    private static void assertTimestamps(List<SensorReading> readings, int first, int count, long step){
+        assertEquals(count, readings.size());
+        for(int i = 0; i < count; i++){
+            assertEquals((first + i) * step, readings.get(i).getTimestamp());
+        }
+    }
+
+    private static List<SensorReading> readings(int first, int count, long step){
+        List<SensorReading> readings = new ArrayList<>(count);
+        for(int i = first; i < first + count; i++){
+            readings.add(reading(i * step));
+        }
+        return readings;
+    }
+
+    private static SensorReading reading(long timestamp){
+        SensorReading reading = new SensorReading(timestamp);
+        reading.setNumber(SensorRegistry.TEMPERATURE, timestamp / 1000 % 50);
+        return reading;
+    }
+
+    private static List<SensorReading> list(SensorReading... readings){
+        List<SensorReading> list = new ArrayList<>();
+        for(SensorReading reading : readings){
+            list.add(reading);
+        }
+        return list;
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,149 @@
+package org.senai.mecatronica.dripper.managers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Which controllers the scheduler takes, as syncs finish and get cancelled
+ */
+public class SyncSchedulerTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private SyncScheduler scheduler;
+
+    @Before
+    public void setUp(){
+        scheduler = new SyncScheduler(2);
+    }
+
+    @After
+    public void tearDown(){
+        scheduler.cancelAll();
+    }
+
+    @Test
+    public void controllerIsNotQueuedTwice() throws Exception {
+        BlockingSync sync = new BlockingSync();
+        assertTrue(scheduler.schedule(ADDRESS, sync));
+        assertFalse(scheduler.schedule(ADDRESS, NOTHING));
+        assertTrue(scheduler.schedule("66:77:88:99:AA:BB", NOTHING));
+
+        sync.finish();
+        assertTrue(waitForRelease(ADDRESS));
+    }
+
+    @Test
+    public void lateSyncOfACancelledRunKeepsTheNewOne() throws Exception {
+        BlockingSync old = new BlockingSync();
+        scheduler.schedule(ADDRESS, old);
+        assertTrue(old.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        scheduler.cancelAll();
+
+        BlockingSync current = new BlockingSync();
+        assertTrue(scheduler.schedule(ADDRESS, current));
+        //the cancelled sync ignores its interrupt and ends after the new one is queued
+        old.finish();
+        old.awaitEnd();
+        assertFalse(old.thread.isAlive());
+
+        assertFalse(scheduler.schedule(ADDRESS, NOTHING));
+        current.finish();
+        assertTrue(waitForRelease(ADDRESS));
+    }
+
+    @Test
+    public void idleListenerRunsWhenTheLastSyncFinishes() throws Exception {
+        final CountDownLatch idle = new CountDownLatch(1);
+        scheduler.setIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        BlockingSync first = new BlockingSync();
+        BlockingSync second = new BlockingSync();
+        scheduler.schedule(ADDRESS, first);
+        scheduler.schedule("66:77:88:99:AA:BB", second);
+        assertFalse(scheduler.isIdle());
+
+        first.finish();
+        first.awaitStart();
+        assertFalse(idle.await(100, TimeUnit.MILLISECONDS));
+        second.finish();
+
+        assertTrue(idle.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.isIdle());
+    }
+
+    /**
+     * Schedule until the controller is taken again, the scheduler releases it right
+     * after its sync returns
+     * */
+    private boolean waitForRelease(String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(System.currentTimeMillis() < deadline){
+            if(scheduler.schedule(address, NOTHING)){
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * A sync that runs until finish() is called, ignoring interrupts
+     * */
+    private static class BlockingSync implements Runnable {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        volatile Thread thread;
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            started.countDown();
+            boolean interrupted = false;
+            while(true){
+                try{
+                    release.await();
+                    break;
+                } catch (InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void finish(){
+            release.countDown();
+        }
+
+        void awaitStart() throws InterruptedException {
+            assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Wait for the sync and the scheduler's bookkeeping after it to end. Only the
+         * thread of a cancelled pool ends with its task.
+         * */
+        void awaitEnd() throws InterruptedException {
+            assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            thread.join(TIMEOUT_MS);
+        }
+    }
+}